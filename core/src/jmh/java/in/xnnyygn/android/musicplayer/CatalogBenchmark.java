@@ -0,0 +1,143 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of music model and catalog structures over synthetic libraries.
+ * <p>
+ * Time benchmarks open index, decode every music and build search index,
+ * run with {@code -prof gc} to get bytes allocated per operation. Footprint
+ * benchmarks report heap retained by each structure in counter
+ * {@code retainedBytes} of their single measurement, their time includes
+ * forced GC and means nothing. Footprint runs on parallel GC, whose used
+ * heap after {@link System#gc()} is exact.
+ *
+ * @author xnnyygn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CatalogBenchmark {
+
+  /**
+   * Heap retained by last footprint benchmark.
+   *
+   * @author xnnyygn
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Footprint {
+
+    public long retainedBytes;
+
+  }
+
+  @Param({"10000", "50000"})
+  public int musics;
+
+  private File mIndexFile;
+  private LibraryIndex mIndex;
+
+  /**
+   * Structure measured by last footprint benchmark, kept until next one
+   * starts, so that it is neither collected during measurement nor counted
+   * by next one.
+   */
+  private Object mRetained;
+  private long mHeapBefore;
+
+  @Setup(Level.Trial)
+  public void writeIndex() throws IOException {
+    mIndexFile = File.createTempFile("catalog", ".idx");
+    LibraryIndex.write(mIndexFile, Fixtures.createMusics(musics), 0);
+    mIndex = LibraryIndex.open(mIndexFile);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteIndex() {
+    mIndexFile.delete();
+  }
+
+  @Benchmark
+  public LibraryIndex openIndex() throws IOException {
+    return LibraryIndex.open(mIndexFile);
+  }
+
+  @Benchmark
+  public void decodeAll(Blackhole blackhole) {
+    for (int i = 0; i < mIndex.size(); i++) {
+      blackhole.consume(mIndex.getMusic(i));
+    }
+  }
+
+  @Benchmark
+  public SearchIndex syncSearchIndex() {
+    SearchIndex searchIndex = new SearchIndex();
+    searchIndex.sync(mIndex);
+    return searchIndex;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 1)
+  @Measurement(iterations = 1)
+  @Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+  public void musicListFootprint(Footprint footprint) {
+    beginFootprint();
+    endFootprint(footprint, Fixtures.createMusics(musics));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 1)
+  @Measurement(iterations = 1)
+  @Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+  public void indexFootprint(Footprint footprint) throws IOException {
+    beginFootprint();
+    endFootprint(footprint, LibraryIndex.open(mIndexFile));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 1)
+  @Measurement(iterations = 1)
+  @Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+  public void searchIndexFootprint(Footprint footprint) {
+    beginFootprint();
+    SearchIndex searchIndex = new SearchIndex();
+    searchIndex.sync(mIndex);
+    endFootprint(footprint, searchIndex);
+  }
+
+  private void beginFootprint() {
+    mRetained = null;
+    mHeapBefore = Fixtures.usedHeap();
+  }
+
+  private void endFootprint(Footprint footprint, Object retained) {
+    mRetained = retained;
+    footprint.retainedBytes = Fixtures.usedHeap() - mHeapBefore;
+  }
+
+}
@@ -0,0 +1,168 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic libraries for benchmarks.
+ *
+ * @author xnnyygn
+ */
+final class Fixtures {
+
+  private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+  private static final String[] WORDS = {"love", "night", "blue", "river",
+      "song", "light", "heart", "road", "rain", "fire", "dream", "home"};
+
+  /**
+   * MPEG 1 layer III, 128kbps, 44100Hz, stereo, frame length 417.
+   */
+  private static final byte[] FRAME_HEADER = {(byte) 0xff, (byte) 0xfb,
+      (byte) 0x90, (byte) 0x00};
+  private static final int FRAME_LENGTH = 417;
+
+  private Fixtures() {
+  }
+
+  /**
+   * Create directory tree of mp3 files, directories nested by fan out.
+   *
+   * @param root root directory, created if not exists
+   * @param files count of files
+   * @param filesPerDir files per directory
+   * @param fanOut sub directories per directory
+   * @param framesPerFile audio frames per file
+   * @throws IOException if failed to write
+   */
+  static void createTree(File root, int files, int filesPerDir, int fanOut,
+      int framesPerFile) throws IOException {
+    Random random = new Random(files);
+    List<File> dirs = new ArrayList<File>();
+    dirs.add(root);
+    root.mkdirs();
+    int written = 0;
+    for (int d = 0; written < files; d++) {
+      File dir = dirs.get(d);
+      for (int i = 0; i < fanOut; i++) {
+        File subDir = new File(dir, "dir" + i);
+        subDir.mkdir();
+        dirs.add(subDir);
+      }
+      for (int i = 0; i < filesPerDir && written < files; i++, written++) {
+        writeMp3(new File(dir, "track" + i + ".mp3"), randomTitle(random),
+            randomTitle(random), framesPerFile);
+      }
+    }
+  }
+
+  /**
+   * Write mp3 file with ID3v2.3 tag of title and artist.
+   */
+  static void writeMp3(File file, String title, String artist, int frames)
+      throws IOException {
+    byte[] titleFrame = textFrame("TIT2", title);
+    byte[] artistFrame = textFrame("TPE1", artist);
+    int tagSize = titleFrame.length + artistFrame.length;
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[] {'I', 'D', '3', 3, 0, 0,
+          (byte) ((tagSize >> 21) & 0x7f), (byte) ((tagSize >> 14) & 0x7f),
+          (byte) ((tagSize >> 7) & 0x7f), (byte) (tagSize & 0x7f)});
+      out.write(titleFrame);
+      out.write(artistFrame);
+      byte[] frame = new byte[FRAME_LENGTH];
+      System.arraycopy(FRAME_HEADER, 0, frame, 0, FRAME_HEADER.length);
+      for (int i = 0; i < frames; i++) {
+        out.write(frame);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] textFrame(String id, String text) {
+    byte[] bytes = text.getBytes(LATIN_1);
+    int size = bytes.length + 1;
+    byte[] frame = new byte[10 + size];
+    System.arraycopy(id.getBytes(LATIN_1), 0, frame, 0, 4);
+    frame[4] = (byte) (size >> 24);
+    frame[5] = (byte) (size >> 16);
+    frame[6] = (byte) (size >> 8);
+    frame[7] = (byte) size;
+    frame[10] = 0; // ISO-8859-1
+    System.arraycopy(bytes, 0, frame, 11, bytes.length);
+    return frame;
+  }
+
+  /**
+   * Create musics as if found by scanner, with ids in order.
+   *
+   * @param count count
+   * @return musics
+   */
+  static List<Music> createMusics(int count) {
+    Random random = new Random(count);
+    List<Music> musics = new ArrayList<Music>(count);
+    for (int i = 0; i < count; i++) {
+      String title = randomTitle(random);
+      String path =
+          "/sdcard/Music/" + randomTitle(random) + "/" + (i / 20) + "/"
+              + title + ".mp3";
+      musics.add(new Music(i, title, path, randomTitle(random),
+          randomTitle(random), i % 20 + 1, 4000000 + random.nextInt(4000000),
+          1400000000000L + i, 180000 + random.nextInt(120000), null,
+          random.nextLong()));
+    }
+    return musics;
+  }
+
+  private static String randomTitle(Random random) {
+    StringBuilder builder = new StringBuilder();
+    int words = 1 + random.nextInt(3);
+    for (int i = 0; i < words; i++) {
+      if (i > 0) builder.append(' ');
+      builder.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Delete file or directory recursively.
+   *
+   * @param file file
+   */
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * Get heap used after collecting garbage.
+   *
+   * @return bytes
+   */
+  static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // repeat until no more garbage collected
+    for (int i = 0; i < 10; i++) {
+      System.gc();
+      long current = runtime.totalMemory() - runtime.freeMemory();
+      if (current >= used) break;
+      used = current;
+    }
+    return used;
+  }
+
+}
@@ -0,0 +1,106 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost per buffer of PCM pipeline, {@link DspChain} of preamp, equalizer
+ * and limiter, then a pass through {@link PcmRingBuffer}, as decoder and
+ * output threads of PCM engine run it.
+ * <p>
+ * Buffer is a block of stereo 44.1 kHz samples as an MP3 decoder puts
+ * out. Run with -prof gc, gc.alloc.rate.norm is expected to be 0 B/op,
+ * since nothing on the path allocates per buffer.
+ *
+ * @author xnnyygn
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PcmPipelineBenchmark {
+
+  private static final int SAMPLE_RATE = 44100;
+  private static final int CHANNELS = 2;
+
+  @Param({"1152", "4096"})
+  public int frames;
+
+  private short[] source;
+  private short[] block;
+  private short[] output;
+  private DspChain chain;
+  private DspChain flatChain;
+  private PcmRingBuffer ring;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    int samples = frames * CHANNELS;
+    source = new short[samples];
+    Random random = new Random(42);
+    for (int i = 0; i < samples; i++) {
+      source[i] = (short) (random.nextGaussian() * 8000);
+    }
+    block = new short[samples];
+    output = new short[samples];
+
+    GainStage preamp = new GainStage();
+    preamp.setGainDb(3f);
+    EqualizerStage equalizer = new EqualizerStage();
+    for (int band = 0; band < equalizer.getBandCount(); band++) {
+      equalizer.setGainDb(band, band % 2 == 0 ? 4f : -2f);
+    }
+    chain = new DspChain(preamp, equalizer, new LimiterStage());
+    chain.configure(SAMPLE_RATE, CHANNELS, samples);
+    flatChain =
+        new DspChain(new GainStage(), new EqualizerStage(), new LimiterStage());
+    flatChain.configure(SAMPLE_RATE, CHANNELS, samples);
+    ring = new PcmRingBuffer(samples * 4);
+  }
+
+  @Benchmark
+  public short[] chain() {
+    System.arraycopy(source, 0, block, 0, block.length);
+    chain.process(block, 0, block.length);
+    return block;
+  }
+
+  @Benchmark
+  public short[] flatChain() {
+    System.arraycopy(source, 0, block, 0, block.length);
+    flatChain.process(block, 0, block.length);
+    return block;
+  }
+
+  @Benchmark
+  public short[] ring() {
+    ring.write(source, 0, source.length);
+    ring.read(output, 0, output.length);
+    return output;
+  }
+
+  @Benchmark
+  public short[] pipeline() {
+    System.arraycopy(source, 0, block, 0, block.length);
+    chain.process(block, 0, block.length);
+    ring.write(block, 0, block.length);
+    ring.read(output, 0, output.length);
+    return output;
+  }
+
+}
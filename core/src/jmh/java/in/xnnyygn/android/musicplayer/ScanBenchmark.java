@@ -0,0 +1,144 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link LibraryScanner} over synthetic directory trees.
+ * <p>
+ * Cold scan uses a new scanner, so every directory is listed and every tag
+ * read. Rescan uses a scanner with snapshots of last scan and index of its
+ * result, that is, the path taken on every start of list activity. Files
+ * are in page cache after first iteration, numbers are CPU and syscall cost
+ * rather than storage.
+ *
+ * @author xnnyygn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+  /**
+   * Collect musics of one scan.
+   *
+   * @author xnnyygn
+   */
+  private static class Result implements LibraryScanner.Listener {
+
+    final List<Music> musics =
+        Collections.synchronizedList(new ArrayList<Music>());
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicInteger total = new AtomicInteger();
+
+    @Override
+    public void onMusicFound(List<Music> found) {
+      musics.addAll(found);
+    }
+
+    @Override
+    public void onScanFinished(int total, boolean changed) {
+      this.total.set(total);
+      latch.countDown();
+    }
+
+    int await() throws InterruptedException {
+      if (!latch.await(5, TimeUnit.MINUTES)) {
+        throw new IllegalStateException("scan timeout");
+      }
+      return total.get();
+    }
+
+  }
+
+  @Param({"1000", "10000"})
+  public int files;
+
+  @Param({"20"})
+  public int filesPerDir;
+
+  @Param({"4"})
+  public int workers;
+
+  private File mRoot;
+  private File mIndexFile;
+  private LibraryScanner mRescanner;
+  private LibraryIndex mIndex;
+  private LibraryScanner mColdScanner;
+
+  @Setup(Level.Trial)
+  public void createTree() throws IOException, InterruptedException {
+    mRoot = File.createTempFile("scan", "");
+    mRoot.delete();
+    Fixtures.createTree(mRoot, files, filesPerDir, 4, 4);
+
+    // scan once to fill snapshots and write index as the app does
+    mRescanner =
+        new LibraryScanner(workers, LibraryScanner.DEFAULT_BATCH_SIZE);
+    Result result = new Result();
+    mRescanner.scan(Collections.singletonList(mRoot), null, result);
+    result.await();
+    for (int i = 0; i < result.musics.size(); i++) {
+      result.musics.get(i).setId(i);
+    }
+    mIndexFile = File.createTempFile("scan", ".idx");
+    LibraryIndex.write(mIndexFile, result.musics, 0);
+    mIndex = LibraryIndex.open(mIndexFile);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteTree() {
+    mRescanner.shutdown();
+    Fixtures.delete(mRoot);
+    mIndexFile.delete();
+  }
+
+  @Setup(Level.Invocation)
+  public void createColdScanner() {
+    mColdScanner =
+        new LibraryScanner(workers, LibraryScanner.DEFAULT_BATCH_SIZE);
+  }
+
+  @TearDown(Level.Invocation)
+  public void shutdownColdScanner() {
+    mColdScanner.shutdown();
+  }
+
+  @Benchmark
+  public int coldScan() throws InterruptedException {
+    Result result = new Result();
+    mColdScanner.scan(Collections.singletonList(mRoot), null, result);
+    return result.await();
+  }
+
+  @Benchmark
+  public int rescan() throws InterruptedException {
+    Result result = new Result();
+    mRescanner.scan(Collections.singletonList(mRoot), mIndex, result);
+    return result.await();
+  }
+
+}
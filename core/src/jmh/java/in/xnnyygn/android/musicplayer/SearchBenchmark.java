@@ -0,0 +1,56 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of one search over a synthetic library, as run per query typed.
+ * Queries are a one character prefix, a two character prefix, a substring
+ * and two words, all common in fixtures so that results reach the limit.
+ *
+ * @author xnnyygn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+  private static final int MAX_RESULTS = 500;
+
+  @Param({"100000"})
+  public int musics;
+
+  @Param({"l", "ni", "ver", "blue riv"})
+  public String query;
+
+  private SearchIndex mSearchIndex;
+
+  @Setup(Level.Trial)
+  public void buildIndex() {
+    mSearchIndex = new SearchIndex();
+    for (Music music : Fixtures.createMusics(musics)) {
+      mSearchIndex.add(music);
+    }
+  }
+
+  @Benchmark
+  public int[] search() {
+    return mSearchIndex.search(query, MAX_RESULTS);
+  }
+
+}
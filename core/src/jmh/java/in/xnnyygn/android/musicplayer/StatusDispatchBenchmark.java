@@ -0,0 +1,157 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of status dispatch path, from service publishing to listeners of
+ * {@link PlayerEventBus}.
+ * <p>
+ * Direct dispatch runs listeners in publishing thread, measuring bus alone.
+ * Burst dispatch publishes the events of one status change, as service does
+ * on prepare, into a queue standing for main looper, then drains it,
+ * measuring coalescing.
+ *
+ * @author xnnyygn
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StatusDispatchBenchmark {
+
+  /**
+   * Listener consuming events into black hole.
+   *
+   * @author xnnyygn
+   */
+  private static class ConsumingListener implements PlayerEventBus.Listener {
+
+    private final Blackhole blackhole;
+
+    ConsumingListener(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void onTrackChanged(Music music) {
+      blackhole.consume(music);
+    }
+
+    @Override
+    public void onStatusChanged(int status) {
+      blackhole.consume(status);
+    }
+
+    @Override
+    public void onClockChanged(PlaybackClock clock) {
+      blackhole.consume(clock);
+    }
+
+    @Override
+    public void onError(Music music) {
+      blackhole.consume(music);
+    }
+
+  }
+
+  /**
+   * Executor queueing tasks until drained, like a looper.
+   *
+   * @author xnnyygn
+   */
+  private static class QueueExecutor implements Executor {
+
+    private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      queue.add(command);
+    }
+
+    void drain() {
+      Runnable task;
+      while ((task = queue.poll()) != null) {
+        task.run();
+      }
+    }
+
+  }
+
+  private static final Executor DIRECT = new Executor() {
+
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  @Param({"1", "4"})
+  public int listeners;
+
+  private PlayerEventBus mDirectBus;
+  private PlayerEventBus mQueuedBus;
+  private QueueExecutor mQueue;
+  private Music mMusic;
+  private int mStatus;
+
+  @Setup(Level.Trial)
+  public void register(Blackhole blackhole) {
+    mDirectBus = new PlayerEventBus();
+    mQueuedBus = new PlayerEventBus();
+    mQueue = new QueueExecutor();
+    for (int i = 0; i < listeners; i++) {
+      mDirectBus.addListener(new ConsumingListener(blackhole), DIRECT);
+      mQueuedBus.addListener(new ConsumingListener(blackhole), mQueue);
+    }
+    mQueue.drain();
+    mMusic = Fixtures.createMusics(1).get(0);
+  }
+
+  @TearDown(Level.Trial)
+  public void drain() {
+    mQueue.drain();
+  }
+
+  @Benchmark
+  public void publishStatusDirect() {
+    mDirectBus.publishStatus(nextStatus());
+  }
+
+  @Benchmark
+  public void publishBurstQueued() {
+    int status = nextStatus();
+    mQueuedBus.publishTrack(mMusic);
+    mQueuedBus.publishStatus(PlayerStatus.PREPARING);
+    mQueuedBus.publishClock(new PlaybackClock(status, 0, 0, 0, 0f));
+    mQueuedBus.publishStatus(status);
+    mQueuedBus.publishClock(new PlaybackClock(status, 240000, 0,
+        System.nanoTime(), 1f));
+    mQueue.drain();
+  }
+
+  private int nextStatus() {
+    mStatus = mStatus == PlayerStatus.PLAYING ? PlayerStatus.PAUSED
+        : PlayerStatus.PLAYING;
+    return mStatus;
+  }
+
+}
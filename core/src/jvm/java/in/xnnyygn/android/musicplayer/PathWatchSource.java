@@ -0,0 +1,132 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Source of file system events backed by {@link WatchService}, for running
+ * library watcher on a JVM. Kept in {@code src/jvm/java}, out of sources
+ * compiled into the app, since Android has no {@code java.nio.file} before
+ * API 26, see FileObserverSource of app.
+ *
+ * @author xnnyygn
+ */
+public class PathWatchSource implements LibraryWatcher.Source {
+
+  private static final String LOG_TAG = "watcher.path";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+
+  private final WatchService mService;
+  private final Map<WatchKey, File> mDirs = new HashMap<WatchKey, File>();
+  private final Map<String, WatchKey> mKeys = new HashMap<String, WatchKey>();
+  private LibraryWatcher mWatcher;
+  private Thread mThread;
+
+  /**
+   * Create source.
+   *
+   * @throws IOException if failed to create watch service
+   */
+  public PathWatchSource() throws IOException {
+    mService = FileSystems.getDefault().newWatchService();
+  }
+
+  @Override
+  public synchronized boolean watch(File dir, LibraryWatcher watcher) {
+    mWatcher = watcher;
+    try {
+      WatchKey key =
+          dir.toPath().register(mService, StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_DELETE,
+              StandardWatchEventKinds.ENTRY_MODIFY);
+      mDirs.put(key, dir);
+      mKeys.put(dir.getAbsolutePath(), key);
+    } catch (IOException e) {
+      LOGGER.fine("failed to watch " + dir + ", nested exception is " + e);
+      return false;
+    } catch (ClosedWatchServiceException e) {
+      return false;
+    }
+    if (mThread == null) {
+      mThread = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          poll();
+        }
+      }, "watcher-path");
+      mThread.setDaemon(true);
+      mThread.start();
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized void unwatch(File dir) {
+    WatchKey key = mKeys.remove(dir.getAbsolutePath());
+    if (key == null) return;
+    key.cancel();
+    mDirs.remove(key);
+  }
+
+  @Override
+  public void close() {
+    try {
+      mService.close();
+    } catch (IOException e) {
+      LOGGER.fine("failed to close watch service, nested exception is " + e);
+    }
+  }
+
+  private void poll() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = mService.take();
+      } catch (InterruptedException e) {
+        return;
+      } catch (ClosedWatchServiceException e) {
+        return;
+      }
+
+      File dir;
+      LibraryWatcher watcher;
+      synchronized (this) {
+        dir = mDirs.get(key);
+        watcher = mWatcher;
+      }
+      if (dir == null) continue; // unwatched
+      for (WatchEvent<?> event : key.pollEvents()) {
+        WatchEvent.Kind<?> kind = event.kind();
+        if (kind == StandardWatchEventKinds.OVERFLOW) {
+          watcher.onEvent(dir, null, LibraryWatcher.EVENT_OVERFLOW);
+          continue;
+        }
+        String name = ((Path) event.context()).toString();
+        watcher.onEvent(dir, name,
+            kind == StandardWatchEventKinds.ENTRY_DELETE
+                ? LibraryWatcher.EVENT_DELETED : LibraryWatcher.EVENT_CREATED);
+      }
+      if (!key.reset()) {
+        // directory deleted or unwatched
+        synchronized (this) {
+          if (mDirs.remove(key) == null) continue;
+          mKeys.remove(dir.getAbsolutePath());
+        }
+        watcher.onEvent(dir.getParentFile(), dir.getName(),
+            LibraryWatcher.EVENT_DELETED);
+      }
+    }
+  }
+
+}
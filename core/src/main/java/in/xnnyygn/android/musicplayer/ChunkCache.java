@@ -0,0 +1,250 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Disk cache of fixed-size chunks of remote streams, bounded in size and
+ * evicted least recently used first.
+ * <p>
+ * Stream is identified by key of its url, see {@link #keyOf(String)}. Each
+ * chunk is a file named by key and chunk index, length of stream is kept in a
+ * small file of its own. Files are written to temporary file and renamed, so
+ * that a chunk is either whole or absent after process death. Order of use is
+ * restored from modification times when opened, and a chunk read is touched.
+ * <p>
+ * Methods are safe to call from any thread, files are read and written
+ * outside lock.
+ *
+ * @author xnnyygn
+ */
+public class ChunkCache {
+
+  public static final int CHUNK_SIZE = 256 * 1024;
+
+  private static final String LOG_TAG = "cache.chunk";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+  private static final String SUFFIX_LENGTH = ".len";
+  private static final String SUFFIX_TMP = ".tmp";
+
+  private final File mDir;
+  private final long mMaxSize;
+
+  /**
+   * Lengths of files by name, in order of use, guarded by this.
+   */
+  private final LinkedHashMap<String, Long> mFiles =
+      new LinkedHashMap<String, Long>(64, 0.75f, true);
+  private long mSize;
+
+  /**
+   * Create cache, call {@link #open()} before use.
+   *
+   * @param dir directory of cache
+   * @param maxSize max total size of files in bytes
+   */
+  public ChunkCache(File dir, long maxSize) {
+    mDir = dir;
+    mMaxSize = maxSize;
+  }
+
+  /**
+   * Get key of stream, usable as file name.
+   *
+   * @param url url of stream
+   * @return key
+   */
+  public static String keyOf(String url) {
+    // FNV-1a 64
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < url.length(); i++) {
+      hash ^= url.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return Long.toHexString(hash);
+  }
+
+  /**
+   * Load files of cache, drop temporary files left by process death.
+   */
+  public void open() {
+    if (!mDir.isDirectory() && !mDir.mkdirs()) {
+      LOGGER.warning("failed to create cache directory " + mDir);
+      return;
+    }
+    File[] files = mDir.listFiles();
+    if (files == null) return;
+    Arrays.sort(files, new Comparator<File>() {
+
+      @Override
+      public int compare(File lhs, File rhs) {
+        long l = lhs.lastModified();
+        long r = rhs.lastModified();
+        return l < r ? -1 : (l == r ? 0 : 1);
+      }
+    });
+    synchronized (this) {
+      for (File file : files) {
+        if (file.getName().endsWith(SUFFIX_TMP)) {
+          file.delete();
+          continue;
+        }
+        add(file.getName(), file.length());
+      }
+      trim();
+    }
+    LOGGER.fine("open cache of " + mFiles.size() + " file(s), " + mSize
+        + " bytes");
+  }
+
+  /**
+   * Test if chunk is cached.
+   *
+   * @param key key of stream
+   * @param index index of chunk
+   * @return true if cached
+   */
+  public synchronized boolean contains(String key, int index) {
+    return mFiles.containsKey(chunkName(key, index));
+  }
+
+  /**
+   * Get chunk.
+   *
+   * @param key key of stream
+   * @param index index of chunk
+   * @return chunk, shorter than {@link #CHUNK_SIZE} if last one, null if not
+   *         cached
+   */
+  public byte[] get(String key, int index) {
+    String name = chunkName(key, index);
+    Long length;
+    synchronized (this) {
+      length = mFiles.get(name);
+    }
+    if (length == null) return null;
+
+    File file = new File(mDir, name);
+    byte[] bytes = new byte[length.intValue()];
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        in.readFully(bytes);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // evicted meanwhile
+      LOGGER.fine("failed to read chunk " + name + ", nested exception is "
+          + e);
+      return null;
+    }
+    file.setLastModified(System.currentTimeMillis());
+    return bytes;
+  }
+
+  /**
+   * Put chunk, replace chunk cached if any.
+   *
+   * @param key key of stream
+   * @param index index of chunk
+   * @param bytes chunk
+   * @param length length of chunk
+   */
+  public void put(String key, int index, byte[] bytes, int length) {
+    write(chunkName(key, index), bytes, length);
+  }
+
+  /**
+   * Get length of stream.
+   *
+   * @param key key of stream
+   * @return length, -1 if unknown
+   */
+  public long getLength(String key) {
+    String name = key + SUFFIX_LENGTH;
+    synchronized (this) {
+      if (mFiles.get(name) == null) return -1;
+    }
+    try {
+      DataInputStream in =
+          new DataInputStream(new FileInputStream(new File(mDir, name)));
+      try {
+        return in.readLong();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Put length of stream.
+   *
+   * @param key key of stream
+   * @param length length
+   */
+  public void putLength(String key, long length) {
+    write(key + SUFFIX_LENGTH, ByteBuffer.allocate(8).putLong(length)
+        .array(), 8);
+  }
+
+  private void write(String name, byte[] bytes, int length) {
+    File file = new File(mDir, name);
+    File tmpFile = new File(mDir, name + SUFFIX_TMP);
+    try {
+      DataOutputStream out =
+          new DataOutputStream(new FileOutputStream(tmpFile));
+      try {
+        out.write(bytes, 0, length);
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(file)) throw new IOException("failed to rename");
+    } catch (IOException e) {
+      LOGGER.warning("failed to write " + name + ", nested exception is " + e);
+      tmpFile.delete();
+      return;
+    }
+    synchronized (this) {
+      add(name, length);
+      trim();
+    }
+  }
+
+  private void add(String name, long length) {
+    Long old = mFiles.put(name, length);
+    if (old != null) mSize -= old;
+    mSize += length;
+  }
+
+  /**
+   * Evict least recently used files until size within limit.
+   */
+  private void trim() {
+    Iterator<Map.Entry<String, Long>> it = mFiles.entrySet().iterator();
+    while (mSize > mMaxSize && it.hasNext()) {
+      Map.Entry<String, Long> entry = it.next();
+      it.remove();
+      mSize -= entry.getValue();
+      new File(mDir, entry.getKey()).delete();
+    }
+  }
+
+  private static String chunkName(String key, int index) {
+    return key + "-" + index;
+  }
+
+}
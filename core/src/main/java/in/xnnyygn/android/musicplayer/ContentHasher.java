@@ -0,0 +1,172 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Hash of audio payload of mp3 file, identity of content that survives moves,
+ * renames and retagging.
+ * <p>
+ * Payload is the file without ID3v2 tag at head, ID3v1 and APEv2 tags at
+ * tail. Payload up to {@link #FULL_HASH_LIMIT} is hashed as a whole, larger
+ * payload by {@link #SAMPLE_COUNT} samples spread evenly from head to tail
+ * plus its length, so cost per file is bounded. Regions are memory-mapped
+ * read only, one mapping per region, small enough not to hold much address
+ * space until mappings are collected.
+ * <p>
+ * Hash is a 64 bit mix in the manner of xxHash, not cryptographic. Methods
+ * are stateless and safe to call from scanner workers concurrently.
+ *
+ * @author xnnyygn
+ */
+public class ContentHasher {
+
+  /**
+   * Hash not computed or file without payload.
+   */
+  public static final long UNKNOWN = 0;
+
+  public static final int FULL_HASH_LIMIT = 256 * 1024;
+  public static final int SAMPLE_COUNT = 8;
+  public static final int SAMPLE_SIZE = 16 * 1024;
+
+  private static final int ID3V2_HEADER_SIZE = 10;
+  private static final int ID3V1_TAG_SIZE = 128;
+  private static final int APE_FOOTER_SIZE = 32;
+  private static final int APE_FLAG_HEADER = 0x80000000;
+
+  private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME_3 = 0x165667B19E3779F9L;
+  private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+
+  private ContentHasher() {
+  }
+
+  /**
+   * Hash audio payload of file.
+   *
+   * @param file mp3 file
+   * @return hash, {@link #UNKNOWN} if file has no payload
+   * @throws IOException if failed to read
+   */
+  public static long hash(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long start = payloadStart(channel);
+      long end = payloadEnd(channel, start);
+      long length = end - start;
+      if (length <= 0) return UNKNOWN;
+
+      long hash = PRIME_5 + length;
+      if (length <= FULL_HASH_LIMIT) {
+        hash = update(hash, map(channel, start, length));
+      } else {
+        // first sample at head, last one ends at tail
+        long step = (length - SAMPLE_SIZE) / (SAMPLE_COUNT - 1);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+          hash = update(hash, map(channel, start + step * i, SAMPLE_SIZE));
+        }
+      }
+      hash = avalanche(hash);
+      return hash != UNKNOWN ? hash : 1;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Get offset after ID3v2 tag, including footer if any.
+   */
+  private static long payloadStart(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(ID3V2_HEADER_SIZE);
+    if (!readFully(channel, header, 0)) return 0;
+    byte[] bytes = header.array();
+    if (bytes[0] != 'I' || bytes[1] != 'D' || bytes[2] != '3') return 0;
+    long end = ID3V2_HEADER_SIZE + Id3TagReader.syncsafe(bytes, 6);
+    if ((bytes[5] & 0x10) != 0) end += ID3V2_HEADER_SIZE; // footer
+    return end;
+  }
+
+  /**
+   * Get offset of ID3v1 or APEv2 tag at tail, file size if none.
+   */
+  private static long payloadEnd(FileChannel channel, long start)
+      throws IOException {
+    long end = channel.size();
+    ByteBuffer tail = ByteBuffer.allocate(ID3V1_TAG_SIZE);
+    if (end - ID3V1_TAG_SIZE >= start
+        && readFully(channel, tail, end - ID3V1_TAG_SIZE)) {
+      byte[] bytes = tail.array();
+      if (bytes[0] == 'T' && bytes[1] == 'A' && bytes[2] == 'G') {
+        end -= ID3V1_TAG_SIZE;
+      }
+    }
+
+    // APEv2 footer, size and flags little endian, size excludes header
+    ByteBuffer footer =
+        ByteBuffer.allocate(APE_FOOTER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    if (end - APE_FOOTER_SIZE >= start
+        && readFully(channel, footer, end - APE_FOOTER_SIZE)
+        && new String(footer.array(), 0, 8, "ISO-8859-1").equals("APETAGEX")) {
+      long size = footer.getInt(12) & 0xffffffffL;
+      if ((footer.getInt(20) & APE_FLAG_HEADER) != 0) size += APE_FOOTER_SIZE;
+      if (end - size >= start) end -= size;
+    }
+    return end;
+  }
+
+  private static boolean readFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    buffer.clear();
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position + buffer.position());
+      if (n < 0) return false;
+    }
+    return true;
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position,
+      long length) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+        .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static long update(long hash, ByteBuffer buffer) {
+    long h = hash;
+    while (buffer.remaining() >= 8) {
+      h ^= round(buffer.getLong());
+      h = Long.rotateLeft(h, 27) * PRIME_1 + PRIME_4;
+    }
+    if (buffer.remaining() >= 4) {
+      h ^= (buffer.getInt() & 0xffffffffL) * PRIME_1;
+      h = Long.rotateLeft(h, 23) * PRIME_2 + PRIME_3;
+    }
+    while (buffer.hasRemaining()) {
+      h ^= (buffer.get() & 0xff) * PRIME_5;
+      h = Long.rotateLeft(h, 11) * PRIME_1;
+    }
+    return h;
+  }
+
+  private static long round(long value) {
+    return Long.rotateLeft(value * PRIME_2, 31) * PRIME_1;
+  }
+
+  private static long avalanche(long hash) {
+    long h = hash;
+    h ^= h >>> 33;
+    h *= PRIME_2;
+    h ^= h >>> 29;
+    h *= PRIME_3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+}
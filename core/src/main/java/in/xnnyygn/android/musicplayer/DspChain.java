@@ -0,0 +1,89 @@
+package in.xnnyygn.android.musicplayer;
+
+/**
+ * Chain of {@link DspStage} applied to 16 bit PCM blocks, e.g. preamp,
+ * equalizer and limiter.
+ * <p>
+ * Samples are converted to float in a work buffer allocated when
+ * configured, passed through stages in order and converted back with
+ * rounding and clipping, so that processing a block allocates nothing.
+ * Chain and its stages belong to one stream, processed on one thread.
+ *
+ * @author xnnyygn
+ */
+public class DspChain {
+
+  private static final float SCALE = 32768f;
+  private static final float INVERSE_SCALE = 1f / SCALE;
+
+  private final DspStage[] mStages;
+  private float[] mWork = new float[0];
+  private int mChannels = 1;
+
+  /**
+   * Create chain.
+   *
+   * @param stages stages in order
+   */
+  public DspChain(DspStage... stages) {
+    mStages = stages.clone();
+  }
+
+  /**
+   * Configure stages for stream and allocate work buffer.
+   *
+   * @param sampleRate sample rate in Hz
+   * @param channels count of channels
+   * @param maxSamples max samples of a block
+   */
+  public void configure(int sampleRate, int channels, int maxSamples) {
+    mChannels = channels;
+    if (mWork.length < maxSamples) mWork = new float[maxSamples];
+    for (DspStage stage : mStages) {
+      stage.configure(sampleRate, channels);
+    }
+  }
+
+  /**
+   * Reset state of stages, e.g. after seek.
+   */
+  public void reset() {
+    for (DspStage stage : mStages) {
+      stage.reset();
+    }
+  }
+
+  /**
+   * Process block in place.
+   *
+   * @param pcm interleaved samples
+   * @param offset offset in samples
+   * @param length count of samples, whole frames, at most max samples
+   *        configured
+   */
+  public void process(short[] pcm, int offset, int length) {
+    float[] work = mWork;
+    if (length > work.length) {
+      throw new IllegalArgumentException("block of " + length
+          + " samples, max " + work.length);
+    }
+    for (int i = 0; i < length; i++) {
+      work[i] = pcm[offset + i] * INVERSE_SCALE;
+    }
+    int frames = length / mChannels;
+    for (int i = 0; i < mStages.length; i++) {
+      mStages[i].process(work, frames);
+    }
+    for (int i = 0; i < length; i++) {
+      float value = work[i] * SCALE;
+      int sample = (int) (value < 0 ? value - 0.5f : value + 0.5f);
+      if (sample > Short.MAX_VALUE) {
+        sample = Short.MAX_VALUE;
+      } else if (sample < Short.MIN_VALUE) {
+        sample = Short.MIN_VALUE;
+      }
+      pcm[offset + i] = (short) sample;
+    }
+  }
+
+}
@@ -0,0 +1,36 @@
+package in.xnnyygn.android.musicplayer;
+
+/**
+ * Stage of {@link DspChain}, processes interleaved float samples in place.
+ * <p>
+ * {@link #process(float[], int)} runs on audio thread for every buffer and
+ * must not allocate or block. Parameters set from other threads are picked
+ * up by next buffer.
+ *
+ * @author xnnyygn
+ */
+public interface DspStage {
+
+  /**
+   * Configure stage for stream, allocate state and reset it. Called before
+   * first buffer and when format changes.
+   *
+   * @param sampleRate sample rate in Hz
+   * @param channels count of channels
+   */
+  void configure(int sampleRate, int channels);
+
+  /**
+   * Process samples in place.
+   *
+   * @param samples interleaved samples, nominally in [-1, 1]
+   * @param frames count of frames, samples of all channels at one time
+   */
+  void process(float[] samples, int frames);
+
+  /**
+   * Clear state of stream, e.g. filter memory, after seek.
+   */
+  void reset();
+
+}
@@ -0,0 +1,184 @@
+package in.xnnyygn.android.musicplayer;
+
+/**
+ * Graphic equalizer, one peaking biquad per band, as in Audio EQ Cookbook
+ * by Robert Bristow-Johnson, run in transposed direct form II.
+ * <p>
+ * Gains set from any thread are turned into coefficients under lock of
+ * stage and copied to audio thread at head of next buffer, so that
+ * processing reads a version number only while gains stay still. Bands of
+ * 0 dB are skipped.
+ *
+ * @author xnnyygn
+ */
+public class EqualizerStage implements DspStage {
+
+  /**
+   * Center frequencies of default bands in Hz.
+   */
+  public static final float[] DEFAULT_BANDS = {60, 230, 910, 3600, 14000};
+
+  private static final double Q = 1.0;
+
+  /**
+   * Highest center frequency against sample rate, keeps bands below
+   * Nyquist frequency.
+   */
+  private static final double MAX_FREQUENCY = 0.45;
+
+  private final float[] mFrequencies;
+
+  // guarded by this
+  private final float[] mGains;
+  private final float[] mPending;
+  private int mSampleRate;
+
+  private volatile int mVersion;
+
+  // audio thread
+  private final float[] mCoefficients;
+  private final float[] mActiveGains;
+  private int mAppliedVersion = -1;
+  private int mChannels = 1;
+  private float[] mState = new float[0];
+
+  /**
+   * Create equalizer of default bands.
+   */
+  public EqualizerStage() {
+    this(DEFAULT_BANDS);
+  }
+
+  /**
+   * Create equalizer.
+   *
+   * @param frequencies center frequencies of bands in Hz
+   */
+  public EqualizerStage(float... frequencies) {
+    mFrequencies = frequencies.clone();
+    mGains = new float[frequencies.length];
+    mPending = new float[frequencies.length * 5];
+    mCoefficients = new float[frequencies.length * 5];
+    mActiveGains = new float[frequencies.length];
+  }
+
+  /**
+   * Get count of bands.
+   *
+   * @return count
+   */
+  public int getBandCount() {
+    return mFrequencies.length;
+  }
+
+  /**
+   * Get center frequency of band.
+   *
+   * @param band band
+   * @return frequency in Hz
+   */
+  public float getFrequency(int band) {
+    return mFrequencies[band];
+  }
+
+  /**
+   * Get gain of band.
+   *
+   * @param band band
+   * @return gain in dB
+   */
+  public synchronized float getGainDb(int band) {
+    return mGains[band];
+  }
+
+  /**
+   * Set gain of band, safe to call from any thread.
+   *
+   * @param band band
+   * @param db gain in dB
+   */
+  public synchronized void setGainDb(int band, float db) {
+    mGains[band] = db;
+    if (mSampleRate > 0) computeBand(band);
+    mVersion++;
+  }
+
+  @Override
+  public void configure(int sampleRate, int channels) {
+    synchronized (this) {
+      mSampleRate = sampleRate;
+      for (int band = 0; band < mFrequencies.length; band++) {
+        computeBand(band);
+      }
+      mVersion++;
+    }
+    mChannels = channels;
+    int size = mFrequencies.length * channels * 2;
+    if (mState.length != size) mState = new float[size];
+    reset();
+  }
+
+  @Override
+  public void process(float[] samples, int frames) {
+    if (mVersion != mAppliedVersion) apply();
+
+    int channels = mChannels;
+    for (int band = 0; band < mActiveGains.length; band++) {
+      if (mActiveGains[band] == 0f) continue;
+      int c = band * 5;
+      float b0 = mCoefficients[c];
+      float b1 = mCoefficients[c + 1];
+      float b2 = mCoefficients[c + 2];
+      float a1 = mCoefficients[c + 3];
+      float a2 = mCoefficients[c + 4];
+      for (int channel = 0; channel < channels; channel++) {
+        int s = (band * channels + channel) * 2;
+        float z1 = mState[s];
+        float z2 = mState[s + 1];
+        for (int i = channel, n = frames * channels; i < n; i += channels) {
+          float x = samples[i];
+          float y = b0 * x + z1;
+          z1 = b1 * x - a1 * y + z2;
+          z2 = b2 * x - a2 * y;
+          samples[i] = y;
+        }
+        mState[s] = z1;
+        mState[s + 1] = z2;
+      }
+    }
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < mState.length; i++) {
+      mState[i] = 0f;
+    }
+  }
+
+  private synchronized void apply() {
+    System.arraycopy(mPending, 0, mCoefficients, 0, mPending.length);
+    System.arraycopy(mGains, 0, mActiveGains, 0, mGains.length);
+    mAppliedVersion = mVersion;
+  }
+
+  /**
+   * Compute coefficients of peaking filter of band into pending, b0, b1,
+   * b2, a1 and a2 normalized by a0.
+   */
+  private void computeBand(int band) {
+    double frequency =
+        Math.min(mFrequencies[band], mSampleRate * MAX_FREQUENCY);
+    double a = Math.pow(10, mGains[band] / 40.0);
+    double w0 = 2 * Math.PI * frequency / mSampleRate;
+    double cos = Math.cos(w0);
+    double alpha = Math.sin(w0) / (2 * Q);
+    double a0 = 1 + alpha / a;
+    int c = band * 5;
+    mPending[c] = (float) ((1 + alpha * a) / a0);
+    mPending[c + 1] = (float) (-2 * cos / a0);
+    mPending[c + 2] = (float) ((1 - alpha * a) / a0);
+    mPending[c + 3] = (float) (-2 * cos / a0);
+    mPending[c + 4] = (float) ((1 - alpha / a) / a0);
+  }
+
+}
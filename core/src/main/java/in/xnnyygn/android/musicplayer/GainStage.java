@@ -0,0 +1,67 @@
+package in.xnnyygn.android.musicplayer;
+
+/**
+ * Gain, e.g. preamp before equalizer. Changes are ramped over one buffer,
+ * so that they do not click.
+ *
+ * @author xnnyygn
+ */
+public class GainStage implements DspStage {
+
+  private volatile float mTarget = 1f;
+  private float mGain = 1f;
+  private int mChannels = 1;
+
+  /**
+   * Set gain, safe to call from any thread.
+   *
+   * @param db gain in dB
+   */
+  public void setGainDb(float db) {
+    mTarget = (float) Math.pow(10, db / 20);
+  }
+
+  /**
+   * Get gain.
+   *
+   * @return gain in dB
+   */
+  public float getGainDb() {
+    return (float) (20 * Math.log10(mTarget));
+  }
+
+  @Override
+  public void configure(int sampleRate, int channels) {
+    mChannels = channels;
+    mGain = mTarget;
+  }
+
+  @Override
+  public void process(float[] samples, int frames) {
+    float target = mTarget;
+    float gain = mGain;
+    if (gain == target) {
+      if (gain == 1f) return;
+      for (int i = 0, n = frames * mChannels; i < n; i++) {
+        samples[i] *= gain;
+      }
+      return;
+    }
+
+    float step = (target - gain) / frames;
+    int i = 0;
+    for (int frame = 0; frame < frames; frame++) {
+      gain += step;
+      for (int channel = 0; channel < mChannels; channel++) {
+        samples[i++] *= gain;
+      }
+    }
+    mGain = target;
+  }
+
+  @Override
+  public void reset() {
+    mGain = mTarget;
+  }
+
+}
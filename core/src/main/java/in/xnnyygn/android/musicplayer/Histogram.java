@@ -0,0 +1,126 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in milliseconds with fixed buckets.
+ * <p>
+ * Recording only increments atomic counters, no allocation and no lock, so it
+ * can be called on any thread for every sample. Percentiles are estimated as
+ * upper bound of bucket.
+ *
+ * @author xnnyygn
+ */
+public class Histogram {
+
+  /**
+   * Upper bounds (inclusive) of buckets, last bucket is unbounded.
+   */
+  private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500,
+      1000, 2000, 5000, 10000, 30000};
+
+  private final String mName;
+  private final AtomicLongArray mCounts = new AtomicLongArray(
+      BOUNDS.length + 1);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mSum = new AtomicLong();
+  private final AtomicLong mMax = new AtomicLong();
+
+  public Histogram(String name) {
+    mName = name;
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  /**
+   * Record a sample.
+   *
+   * @param value value in milliseconds, negative is taken as 0
+   */
+  public void record(long value) {
+    if (value < 0) value = 0;
+    int bucket = 0;
+    while (bucket < BOUNDS.length && value > BOUNDS[bucket]) {
+      bucket++;
+    }
+    mCounts.incrementAndGet(bucket);
+    mCount.incrementAndGet();
+    mSum.addAndGet(value);
+    long max;
+    do {
+      max = mMax.get();
+    } while (value > max && !mMax.compareAndSet(max, value));
+  }
+
+  public long getCount() {
+    return mCount.get();
+  }
+
+  /**
+   * Estimate percentile.
+   *
+   * @param percent percent, 0 to 100
+   * @return upper bound of bucket containing percentile, max if in last
+   *         bucket, 0 if empty
+   */
+  public long getPercentile(int percent) {
+    long count = mCount.get();
+    if (count == 0) return 0;
+
+    long rank = (count * percent + 99) / 100;
+    long seen = 0;
+    for (int i = 0; i < BOUNDS.length; i++) {
+      seen += mCounts.get(i);
+      if (seen >= rank) return Math.min(BOUNDS[i], mMax.get());
+    }
+    return mMax.get();
+  }
+
+  /**
+   * Append compact summary, for example <code>prepare=12/50/200</code> for
+   * count, p50 and p90.
+   *
+   * @param builder builder
+   */
+  public void appendSummary(StringBuilder builder) {
+    builder.append(mName).append('=').append(getCount()).append('/')
+        .append(getPercentile(50)).append('/').append(getPercentile(90));
+  }
+
+  /**
+   * Dump all buckets.
+   *
+   * @param writer writer
+   */
+  public void dump(PrintWriter writer) {
+    long count = mCount.get();
+    writer.print(mName);
+    writer.print(": count=");
+    writer.print(count);
+    writer.print(" mean=");
+    writer.print(count == 0 ? 0 : mSum.get() / count);
+    writer.print(" max=");
+    writer.print(mMax.get());
+    writer.print(" p50=");
+    writer.print(getPercentile(50));
+    writer.print(" p90=");
+    writer.print(getPercentile(90));
+    writer.print(" p99=");
+    writer.println(getPercentile(99));
+    if (count == 0) return;
+
+    writer.print("  buckets");
+    for (int i = 0; i <= BOUNDS.length; i++) {
+      writer.print(i < BOUNDS.length ? " <=" + BOUNDS[i] : " >"
+          + BOUNDS[BOUNDS.length - 1]);
+      writer.print(':');
+      writer.print(mCounts.get(i));
+    }
+    writer.println();
+  }
+
+}
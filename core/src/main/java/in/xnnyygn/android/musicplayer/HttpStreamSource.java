@@ -0,0 +1,273 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Source of a remote stream over HTTP, read by chunks of
+ * {@link ChunkCache#CHUNK_SIZE} through a {@link ChunkCache}.
+ * <p>
+ * Chunk not cached is fetched by a Range request. Reading a chunk keeps
+ * {@link #READ_AHEAD_CHUNKS} chunks after it fetched ahead on an executor of
+ * network I/O, so that playback seldom waits for network. Fetches block for
+ * seconds on a slow network, so they do not run on workers of
+ * {@link JobScheduler}, which serve storage jobs. Read-ahead rejected by a
+ * busy executor is skipped, chunk is fetched when read. A chunk is fetched
+ * once even if requested by reader and read-ahead together, later request
+ * waits for the fetch in flight. Chunks stay cached after stream is closed,
+ * replay and seek backwards are served from disk.
+ * <p>
+ * Server ignoring Range is supported by skipping to offset of chunk, at cost
+ * of transfer.
+ *
+ * @author xnnyygn
+ */
+public class HttpStreamSource {
+
+  public static final int READ_AHEAD_CHUNKS = 4;
+  public static final int CONNECT_TIMEOUT = 5000;
+  public static final int READ_TIMEOUT = 10000;
+
+  private static final String LOG_TAG = "stream.http";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+
+  private final String mUrl;
+  private final String mKey;
+  private final ChunkCache mCache;
+  private final Executor mReadAheadExecutor;
+  private volatile long mLength = -1;
+  private volatile boolean mClosed;
+
+  /**
+   * Indexes of chunks in flight, guarded by itself.
+   */
+  private final Set<Integer> mFetching = new HashSet<Integer>();
+
+  /**
+   * Indexes of chunks submitted to read ahead, guarded by itself.
+   */
+  private final Set<Integer> mReadingAhead = new HashSet<Integer>();
+
+  /**
+   * Create source.
+   *
+   * @param url url of stream
+   * @param cache cache of chunks
+   * @param readAheadExecutor executor of read-ahead, bounded
+   */
+  public HttpStreamSource(String url, ChunkCache cache,
+      Executor readAheadExecutor) {
+    mUrl = url;
+    mKey = ChunkCache.keyOf(url);
+    mCache = cache;
+    mReadAheadExecutor = readAheadExecutor;
+  }
+
+  /**
+   * Get url of stream.
+   *
+   * @return url
+   */
+  public String getUrl() {
+    return mUrl;
+  }
+
+  /**
+   * Get length of stream, fetch first chunk if unknown.
+   *
+   * @return length
+   * @throws IOException if failed to fetch or server does not report length
+   */
+  public long getLength() throws IOException {
+    if (mLength < 0) mLength = mCache.getLength(mKey);
+    if (mLength < 0) getChunk(0);
+    if (mLength < 0) throw new IOException("length of " + mUrl + " unknown");
+    return mLength;
+  }
+
+  /**
+   * Get chunk, from cache or fetched, and read ahead chunks after it.
+   *
+   * @param index index of chunk
+   * @return chunk, shorter than {@link ChunkCache#CHUNK_SIZE} if last one
+   * @throws IOException if failed to fetch
+   */
+  public byte[] getChunk(int index) throws IOException {
+    byte[] chunk = load(index);
+    readAhead(index);
+    return chunk;
+  }
+
+  /**
+   * Stop reading ahead, read-ahead pending is skipped, chunks fetched are
+   * kept. Chunks are still fetched when read.
+   */
+  public void close() {
+    mClosed = true;
+  }
+
+  private void readAhead(int index) {
+    for (int i = index + 1; i <= index + READ_AHEAD_CHUNKS && !mClosed; i++) {
+      if (mLength >= 0 && (long) i * ChunkCache.CHUNK_SIZE >= mLength) break;
+      if (mCache.contains(mKey, i)) continue;
+      final Integer ahead = i;
+      synchronized (mReadingAhead) {
+        if (!mReadingAhead.add(ahead)) continue;
+      }
+      try {
+        mReadAheadExecutor.execute(new Runnable() {
+
+          @Override
+          public void run() {
+            try {
+              if (!mClosed) load(ahead);
+            } catch (IOException e) {
+              LOGGER.fine("failed to read ahead chunk " + ahead + " of "
+                  + mUrl + ", nested exception is " + e);
+            } finally {
+              doneReadingAhead(ahead);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // executor busy or shut down, chunks after are fetched when read
+        doneReadingAhead(ahead);
+        break;
+      }
+    }
+  }
+
+  private void doneReadingAhead(Integer index) {
+    synchronized (mReadingAhead) {
+      mReadingAhead.remove(index);
+    }
+  }
+
+  /**
+   * Get chunk from cache, or fetch it, or wait for fetch in flight.
+   */
+  private byte[] load(int index) throws IOException {
+    byte[] chunk = mCache.get(mKey, index);
+    if (chunk != null) return chunk;
+
+    synchronized (mFetching) {
+      while (mFetching.contains(index)) {
+        try {
+          mFetching.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("interrupted");
+        }
+      }
+      chunk = mCache.get(mKey, index);
+      if (chunk != null) return chunk;
+      mFetching.add(index);
+    }
+    try {
+      return fetch(index);
+    } finally {
+      synchronized (mFetching) {
+        mFetching.remove(index);
+        mFetching.notifyAll();
+      }
+    }
+  }
+
+  private byte[] fetch(int index) throws IOException {
+    long start = (long) index * ChunkCache.CHUNK_SIZE;
+    long startedAt = System.currentTimeMillis();
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(mUrl).openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+    connection.setRequestProperty("Range", "bytes=" + start + "-"
+        + (start + ChunkCache.CHUNK_SIZE - 1));
+    try {
+      int code = connection.getResponseCode();
+      long skip = 0;
+      if (code == HttpURLConnection.HTTP_PARTIAL) {
+        setLength(parseTotal(connection.getHeaderField("Content-Range")));
+      } else if (code == HttpURLConnection.HTTP_OK) {
+        // range ignored, whole stream sent
+        setLength(parseLong(connection.getHeaderField("Content-Length")));
+        skip = start;
+      } else if (code == 416) {
+        return new byte[0]; // range not satisfiable, past end
+      } else {
+        throw new IOException("HTTP " + code + " from " + mUrl);
+      }
+
+      InputStream in = connection.getInputStream();
+      try {
+        skipFully(in, skip);
+        byte[] bytes = new byte[ChunkCache.CHUNK_SIZE];
+        int length = 0;
+        int n;
+        while (length < bytes.length
+            && (n = in.read(bytes, length, bytes.length - length)) > 0) {
+          length += n;
+        }
+        if (mLength >= 0
+            && length == Math.min(ChunkCache.CHUNK_SIZE, mLength - start)) {
+          mCache.put(mKey, index, bytes, length);
+        }
+        LOGGER.fine("fetch chunk " + index + " of " + mUrl + ", " + length
+            + " bytes in " + (System.currentTimeMillis() - startedAt) + "ms");
+        if (length == bytes.length) return bytes;
+        byte[] last = new byte[length];
+        System.arraycopy(bytes, 0, last, 0, length);
+        return last;
+      } finally {
+        in.close();
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private void setLength(long length) {
+    if (length < 0 || length == mLength) return;
+    mLength = length;
+    mCache.putLength(mKey, length);
+  }
+
+  private static void skipFully(InputStream in, long count) throws IOException {
+    long left = count;
+    while (left > 0) {
+      long n = in.skip(left);
+      if (n <= 0) {
+        if (in.read() < 0) throw new IOException("unexpected end of stream");
+        n = 1;
+      }
+      left -= n;
+    }
+  }
+
+  /**
+   * Parse total of Content-Range, e.g. "bytes 0-1023/4096".
+   *
+   * @return total, -1 if unknown
+   */
+  static long parseTotal(String contentRange) {
+    if (contentRange == null) return -1;
+    int slash = contentRange.lastIndexOf('/');
+    return slash < 0 ? -1 : parseLong(contentRange.substring(slash + 1));
+  }
+
+  private static long parseLong(String value) {
+    if (value == null) return -1;
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return -1; // e.g. "*"
+    }
+  }
+
+}
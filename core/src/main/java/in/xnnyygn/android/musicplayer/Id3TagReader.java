@@ -0,0 +1,641 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * ID3v1 and ID3v2 (2.2, 2.3, 2.4) tag reader.
+ * <p>
+ * Only the ID3v2 tag at file head and 128 bytes ID3v1 tag at file tail are
+ * read, by positional reads into a buffer allocated once per reader. Frames
+ * not needed (pictures etc.) are skipped without reading. Fields found in
+ * ID3v2 take precedence over ID3v1.
+ * <p>
+ * Tag of v2.2 and v2.3 unsynchronised as a whole is reversed while read,
+ * forward only, so that buffer holds bytes of reversed tag and frames are
+ * located by offsets in it, across the whole tag.
+ * <p>
+ * Embedded picture is read separately by {@link #readPicture(File)}, data of
+ * picture is read from file directly into an array of its own size.
+ * <p>
+ * Reader is not thread safe, use one reader per thread.
+ *
+ * @author xnnyygn
+ */
+public class Id3TagReader {
+
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  private static final int V1_TAG_SIZE = 128;
+  private static final int V2_HEADER_SIZE = 10;
+
+  private static final int FLAG_UNSYNCHRONISATION = 0x80;
+  private static final int FLAG_EXTENDED_HEADER = 0x40;
+
+  // frame flags, second byte of v2.3 and v2.4 frame flags
+  private static final int V23_FRAME_COMPRESSION = 0x80;
+  private static final int V23_FRAME_ENCRYPTION = 0x40;
+  private static final int V23_FRAME_GROUPING = 0x20;
+  private static final int V24_FRAME_GROUPING = 0x40;
+  private static final int V24_FRAME_COMPRESSION = 0x08;
+  private static final int V24_FRAME_ENCRYPTION = 0x04;
+  private static final int V24_FRAME_UNSYNCHRONISATION = 0x02;
+  private static final int V24_FRAME_DATA_LENGTH = 0x01;
+
+  private static final int FIELD_NONE = 0;
+  private static final int FIELD_TITLE = 1;
+  private static final int FIELD_ARTIST = 2;
+  private static final int FIELD_ALBUM = 3;
+  private static final int FIELD_TRACK = 4;
+  private static final int FIELD_LENGTH = 5;
+  private static final int FIELD_PICTURE = 6;
+
+  private static final int PICTURE_TYPE_FRONT_COVER = 3;
+
+  /**
+   * Max size of picture read, larger picture is skipped.
+   */
+  private static final int MAX_PICTURE_SIZE = 8 * 1024 * 1024;
+
+  private static final String[] CHARSETS = {"ISO-8859-1", "UTF-16",
+      "UTF-16BE", "UTF-8"};
+
+  private final byte[] mBytes;
+  private final ByteBuffer mBuffer;
+  private final byte[] mScratch;
+  private final ByteBuffer mScratchBuffer;
+
+  private FileChannel mChannel;
+  private long mWindowStart;
+  private int mWindowLength;
+
+  /**
+   * Reading tag unsynchronised as a whole, window positions are offsets in
+   * reversed tag.
+   */
+  private boolean mResyncing;
+  private long mRawPosition;
+  private long mRawEnd;
+  private long mStreamPosition;
+  private boolean mAfterFf;
+
+  private String mTitle;
+  private String mArtist;
+  private String mAlbum;
+  private int mTrackNumber;
+  private int mLength;
+
+  private boolean mPictureWanted;
+  private byte[] mPicture;
+  private boolean mFrontCover;
+
+  public Id3TagReader() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Create reader.
+   *
+   * @param bufferSize buffer size, frames larger than it are truncated
+   */
+  public Id3TagReader(int bufferSize) {
+    mBytes = new byte[Math.max(bufferSize, V1_TAG_SIZE)];
+    mBuffer = ByteBuffer.wrap(mBytes);
+    mScratch = new byte[mBytes.length];
+    mScratchBuffer = ByteBuffer.wrap(mScratch);
+  }
+
+  /**
+   * Read tags of file into music.
+   *
+   * @param file file
+   * @param music music to populate
+   * @return true if any tag found
+   * @throws IOException if failed to read
+   */
+  public boolean read(File file, Music music) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return read(raf.getChannel(), music);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Read tags from channel into music, channel position is not changed.
+   *
+   * @param channel channel
+   * @param music music to populate
+   * @return true if any tag found
+   * @throws IOException if failed to read
+   */
+  public boolean read(FileChannel channel, Music music) throws IOException {
+    mChannel = channel;
+    mTitle = null;
+    mArtist = null;
+    mAlbum = null;
+    mTrackNumber = 0;
+    mLength = 0;
+    mPictureWanted = false;
+    try {
+      boolean found = readV2();
+      found |= readV1(channel.size());
+      if (!found) return false;
+
+      if (mTitle != null) music.setTitle(mTitle);
+      if (mArtist != null) music.setArtist(mArtist);
+      if (mAlbum != null) music.setAlbum(mAlbum);
+      if (mTrackNumber > 0) music.setTrackNumber(mTrackNumber);
+      if (mLength > 0 && music.getDuration() == 0) music.setDuration(mLength);
+      return true;
+    } finally {
+      mChannel = null;
+    }
+  }
+
+  /**
+   * Read embedded picture of file, front cover preferred.
+   *
+   * @param file file
+   * @return data of picture in format of its MIME type, null if not found
+   * @throws IOException if failed to read
+   */
+  public byte[] readPicture(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return readPicture(raf.getChannel());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Read embedded picture from channel, channel position is not changed.
+   *
+   * @param channel channel
+   * @return data of picture, null if not found
+   * @throws IOException if failed to read
+   */
+  public byte[] readPicture(FileChannel channel) throws IOException {
+    mChannel = channel;
+    mPictureWanted = true;
+    mPicture = null;
+    mFrontCover = false;
+    try {
+      readV2();
+      return mPicture;
+    } finally {
+      mChannel = null;
+      mPictureWanted = false;
+      mPicture = null;
+    }
+  }
+
+  private boolean readV2() throws IOException {
+    try {
+      return readV2Frames();
+    } finally {
+      if (mResyncing) {
+        mResyncing = false;
+        mWindowLength = 0; // not file positions
+      }
+    }
+  }
+
+  private boolean readV2Frames() throws IOException {
+    if (!fill(0, mBytes.length) || mWindowLength < V2_HEADER_SIZE) return false;
+    if (mBytes[0] != 'I' || mBytes[1] != 'D' || mBytes[2] != '3') return false;
+
+    int major = mBytes[3];
+    int flags = mBytes[5] & 0xff;
+    if (major < 2 || major > 4) return false;
+    long tagEnd = V2_HEADER_SIZE + syncsafe(mBytes, 6);
+
+    boolean unsynchronised = (flags & FLAG_UNSYNCHRONISATION) != 0;
+    if (unsynchronised && major < 4) {
+      // whole tag unsynchronised, frame offsets are only valid after
+      // reversing it, end of reversed tag known once reached
+      mResyncing = true;
+      mRawPosition = V2_HEADER_SIZE;
+      mRawEnd = tagEnd;
+      mStreamPosition = V2_HEADER_SIZE;
+      mAfterFf = false;
+      mWindowStart = V2_HEADER_SIZE;
+      mWindowLength = 0;
+      tagEnd = Long.MAX_VALUE;
+    }
+
+    long position = V2_HEADER_SIZE;
+    if ((flags & FLAG_EXTENDED_HEADER) != 0 && major >= 3) {
+      if (!ensure(position, 4)) return false;
+      int offset = offset(position);
+      position +=
+          major == 3 ? 4 + mBuffer.getInt(offset) : syncsafe(mBytes, offset);
+    }
+
+    int headerSize = major == 2 ? 6 : 10;
+    while (position + headerSize <= tagEnd) {
+      if (!ensure(position, headerSize)) break;
+      int offset = offset(position);
+      if (mBytes[offset] == 0) break; // padding
+
+      int field;
+      int size;
+      int frameFlags = 0;
+      if (major == 2) {
+        field = v22Field(mBytes, offset);
+        size =
+            ((mBytes[offset + 3] & 0xff) << 16)
+                | ((mBytes[offset + 4] & 0xff) << 8)
+                | (mBytes[offset + 5] & 0xff);
+      } else {
+        field = field(mBytes, offset);
+        size =
+            major == 4 ? syncsafe(mBytes, offset + 4) : mBuffer
+                .getInt(offset + 4);
+        frameFlags = mBytes[offset + 9] & 0xff;
+      }
+      if (size <= 0) break;
+
+      long bodyPosition = position + headerSize;
+      if (field == FIELD_PICTURE) {
+        if (mPictureWanted) {
+          readPictureFrame(major, frameFlags, unsynchronised, bodyPosition,
+              (int) Math.min(size, tagEnd - bodyPosition));
+          if (mFrontCover) break;
+        }
+      } else if (field != FIELD_NONE && !mPictureWanted) {
+        readFrame(field, major, frameFlags, unsynchronised, bodyPosition,
+            (int) Math.min(size, tagEnd - bodyPosition));
+      }
+      position = bodyPosition + size;
+    }
+    return true;
+  }
+
+  private void readFrame(int field, int major, int flags,
+      boolean tagUnsynchronised, long position, int size) throws IOException {
+    if (major == 3
+        && (flags & (V23_FRAME_COMPRESSION | V23_FRAME_ENCRYPTION)) != 0) {
+      return;
+    }
+    if (major == 4
+        && (flags & (V24_FRAME_COMPRESSION | V24_FRAME_ENCRYPTION)) != 0) {
+      return;
+    }
+
+    int skip = 0;
+    if (major == 3 && (flags & V23_FRAME_GROUPING) != 0) skip += 1;
+    if (major == 4 && (flags & V24_FRAME_GROUPING) != 0) skip += 1;
+    if (major == 4 && (flags & V24_FRAME_DATA_LENGTH) != 0) skip += 4;
+    position += skip;
+    size -= skip;
+    if (size <= 0) return;
+
+    // frame bigger than buffer is truncated
+    int length = Math.min(size, mBytes.length);
+    if (!ensure(position, length)) {
+      // near end of file or tag
+      if (!ensure(position, 1)) return;
+      length = Math.min(length, mWindowLength - offset(position));
+    }
+
+    byte[] data = mBytes;
+    int offset = offset(position);
+    if (major == 4
+        && (tagUnsynchronised || (flags & V24_FRAME_UNSYNCHRONISATION) != 0)) {
+      length = resync(mBytes, offset, length, mScratch, 0);
+      data = mScratch;
+      offset = 0;
+    }
+
+    String text = decodeText(data, offset, length);
+    if (text == null) return;
+    switch (field) {
+      case FIELD_TITLE:
+        mTitle = text;
+        break;
+      case FIELD_ARTIST:
+        mArtist = text;
+        break;
+      case FIELD_ALBUM:
+        mAlbum = text;
+        break;
+      case FIELD_TRACK:
+        mTrackNumber = parseLeadingInt(text);
+        break;
+      case FIELD_LENGTH:
+        mLength = parseLeadingInt(text);
+        break;
+    }
+  }
+
+  private void readPictureFrame(int major, int flags,
+      boolean tagUnsynchronised, long position, int size) throws IOException {
+    if (major == 3
+        && (flags & (V23_FRAME_COMPRESSION | V23_FRAME_ENCRYPTION)) != 0) {
+      return;
+    }
+    if (major == 4
+        && (flags & (V24_FRAME_COMPRESSION | V24_FRAME_ENCRYPTION)) != 0) {
+      return;
+    }
+
+    int skip = 0;
+    if (major == 3 && (flags & V23_FRAME_GROUPING) != 0) skip += 1;
+    if (major == 4 && (flags & V24_FRAME_GROUPING) != 0) skip += 1;
+    if (major == 4 && (flags & V24_FRAME_DATA_LENGTH) != 0) skip += 4;
+    position += skip;
+    size -= skip;
+    boolean frameUnsynchronised = major == 4
+        && (tagUnsynchronised || (flags & V24_FRAME_UNSYNCHRONISATION) != 0);
+
+    // header of picture before data, assumed to fit in buffer
+    int length = Math.min(size, mBytes.length);
+    if (length < 4 || !ensure(position, length)) return;
+    int offset = offset(position);
+    int end = offset + length;
+    int encoding = mBytes[offset];
+    if (encoding < 0 || encoding >= CHARSETS.length) return;
+    int i = offset + 1;
+    if (major == 2) {
+      i += 3; // image format
+    } else {
+      i += terminate(mBytes, i, end - i, false) + 1; // MIME type
+    }
+    if (i >= end) return;
+    int pictureType = mBytes[i++] & 0xff;
+    boolean wide = encoding == 1 || encoding == 2;
+    int descriptionLength = terminate(mBytes, i, end - i, wide);
+    i += descriptionLength + (wide ? 2 : 1);
+    if (i >= end) return; // description not terminated in buffer
+
+    boolean frontCover = pictureType == PICTURE_TYPE_FRONT_COVER;
+    if (mPicture != null && !frontCover) return;
+    int dataLength = size - (i - offset);
+    if (dataLength <= 0 || dataLength > MAX_PICTURE_SIZE) return;
+
+    byte[] data = new byte[dataLength];
+    long p = position + (i - offset);
+    if (mResyncing) {
+      if (!readResynced(p, data)) return; // truncated tag
+    } else {
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      int n;
+      while (buffer.hasRemaining() && (n = mChannel.read(buffer, p)) > 0) {
+        p += n;
+      }
+      if (buffer.hasRemaining()) return; // truncated file
+    }
+    if (frameUnsynchronised) {
+      int resynced = resync(data, 0, dataLength, data, 0);
+      if (resynced < dataLength) {
+        byte[] trimmed = new byte[resynced];
+        System.arraycopy(data, 0, trimmed, 0, resynced);
+        data = trimmed;
+      }
+    }
+    mPicture = data;
+    mFrontCover = frontCover;
+  }
+
+  private boolean readV1(long fileSize) throws IOException {
+    if (fileSize < V1_TAG_SIZE) return false;
+
+    long position = fileSize - V1_TAG_SIZE;
+    if (!ensure(position, V1_TAG_SIZE)) return false;
+    int offset = offset(position);
+    if (mBytes[offset] != 'T' || mBytes[offset + 1] != 'A'
+        || mBytes[offset + 2] != 'G') {
+      return false;
+    }
+
+    if (mTitle == null) mTitle = decodeLatin1(offset + 3, 30);
+    if (mArtist == null) mArtist = decodeLatin1(offset + 33, 30);
+    if (mAlbum == null) mAlbum = decodeLatin1(offset + 63, 30);
+    // ID3v1.1, track number in last byte of comment
+    if (mTrackNumber == 0 && mBytes[offset + 125] == 0
+        && mBytes[offset + 126] != 0) {
+      mTrackNumber = mBytes[offset + 126] & 0xff;
+    }
+    return true;
+  }
+
+  /**
+   * Make sure bytes at specified file position are in buffer, refill buffer
+   * from that position if allowed.
+   */
+  private boolean ensure(long position, int length) throws IOException {
+    if (position >= mWindowStart
+        && position + length <= mWindowStart + mWindowLength) {
+      return true;
+    }
+    if (length > mBytes.length) return false;
+    if (mResyncing) return fillResynced(position) && length <= mWindowLength;
+    return fill(position, mBytes.length) && length <= mWindowLength;
+  }
+
+  /**
+   * Fill buffer from specified offset in reversed tag, bytes of window from
+   * that offset on are kept, offsets before window are gone.
+   */
+  private boolean fillResynced(long position) throws IOException {
+    int kept = 0;
+    if (position >= mWindowStart
+        && position < mWindowStart + mWindowLength) {
+      kept = (int) (mWindowStart + mWindowLength - position);
+      System.arraycopy(mBytes, offset(position), mBytes, 0, kept);
+    } else {
+      if (position < mStreamPosition) return false;
+      while (mStreamPosition < position) {
+        int length = (int) Math.min(mBytes.length, position - mStreamPosition);
+        if (readStream(mBytes, 0, length) == 0) return false;
+      }
+    }
+    int n = readStream(mBytes, kept, mBytes.length - kept);
+    mWindowStart = position;
+    mWindowLength = kept + n;
+    return mWindowLength > 0;
+  }
+
+  /**
+   * Read bytes from specified offset in reversed tag into data, window is
+   * left empty if stream is read.
+   *
+   * @return true if data is filled
+   */
+  private boolean readResynced(long position, byte[] data)
+      throws IOException {
+    if (position < mWindowStart) return false;
+    int length =
+        (int) Math.max(0, Math.min(data.length, mWindowStart + mWindowLength
+            - position));
+    if (length > 0) System.arraycopy(mBytes, offset(position), data, 0, length);
+    if (length == data.length) return true;
+
+    while (mStreamPosition < position) {
+      int skip = (int) Math.min(mBytes.length, position - mStreamPosition);
+      if (readStream(mBytes, 0, skip) == 0) return false;
+    }
+    length += readStream(data, length, data.length - length);
+    mWindowStart = mStreamPosition;
+    mWindowLength = 0;
+    return length == data.length;
+  }
+
+  /**
+   * Read bytes of tag from file, dropping zero byte after each 0xff.
+   *
+   * @return count of bytes after reversing, less than length at end of tag
+   */
+  private int readStream(byte[] dest, int offset, int length)
+      throws IOException {
+    int j = 0;
+    while (j < length && mRawPosition < mRawEnd) {
+      mScratchBuffer.clear();
+      mScratchBuffer.limit((int) Math.min(Math.min(length - j,
+          mScratch.length), mRawEnd - mRawPosition));
+      int n = mChannel.read(mScratchBuffer, mRawPosition);
+      if (n <= 0) break;
+      int i = 0;
+      for (; i < n && j < length; i++) {
+        byte b = mScratch[i];
+        if (mAfterFf && b == 0) {
+          mAfterFf = false;
+          continue;
+        }
+        dest[offset + j++] = b;
+        mAfterFf = b == (byte) 0xff;
+      }
+      mRawPosition += i;
+    }
+    mStreamPosition += j;
+    return j;
+  }
+
+  private boolean fill(long position, int length) throws IOException {
+    mBuffer.clear();
+    mBuffer.limit(length);
+    int n;
+    long p = position;
+    while (mBuffer.hasRemaining() && (n = mChannel.read(mBuffer, p)) > 0) {
+      p += n;
+    }
+    mWindowStart = position;
+    mWindowLength = mBuffer.position();
+    return mWindowLength > 0;
+  }
+
+  private int offset(long position) {
+    return (int) (position - mWindowStart);
+  }
+
+  private String decodeLatin1(int offset, int length) {
+    return decode(mBytes, offset, terminate(mBytes, offset, length, false),
+        CHARSETS[0]);
+  }
+
+  private static String decodeText(byte[] data, int offset, int length) {
+    if (length < 2) return null;
+    int encoding = data[offset];
+    if (encoding < 0 || encoding >= CHARSETS.length) return null;
+
+    boolean wide = encoding == 1 || encoding == 2;
+    int textLength = terminate(data, offset + 1, length - 1, wide);
+    return decode(data, offset + 1, textLength, CHARSETS[encoding]);
+  }
+
+  private static String decode(byte[] data, int offset, int length,
+      String charset) {
+    try {
+      String text = new String(data, offset, length, charset).trim();
+      return text.length() > 0 ? text : null;
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get length of text before null terminator.
+   */
+  private static int terminate(byte[] data, int offset, int length,
+      boolean wide) {
+    if (wide) {
+      for (int i = 0; i + 1 < length; i += 2) {
+        if (data[offset + i] == 0 && data[offset + i + 1] == 0) return i;
+      }
+      return length & ~1;
+    }
+    for (int i = 0; i < length; i++) {
+      if (data[offset + i] == 0) return i;
+    }
+    return length;
+  }
+
+  /**
+   * Reverse unsynchronisation, remove zero byte after each 0xff.
+   *
+   * @return length after reversing
+   */
+  static int resync(byte[] src, int srcOffset, int length, byte[] dest,
+      int destOffset) {
+    int j = destOffset;
+    int end = srcOffset + length;
+    for (int i = srcOffset; i < end; i++) {
+      byte b = src[i];
+      dest[j++] = b;
+      if (b == (byte) 0xff && i + 1 < end && src[i + 1] == 0) i++;
+    }
+    return j - destOffset;
+  }
+
+  static int syncsafe(byte[] data, int offset) {
+    return ((data[offset] & 0x7f) << 21) | ((data[offset + 1] & 0x7f) << 14)
+        | ((data[offset + 2] & 0x7f) << 7) | (data[offset + 3] & 0x7f);
+  }
+
+  private static int parseLeadingInt(String text) {
+    int value = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < '0' || c > '9' || value > Integer.MAX_VALUE / 10 - 1) break;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static int field(byte[] data, int offset) {
+    byte b1 = data[offset + 1];
+    byte b2 = data[offset + 2];
+    byte b3 = data[offset + 3];
+    if (data[offset] == 'A' && b1 == 'P' && b2 == 'I' && b3 == 'C') {
+      return FIELD_PICTURE;
+    }
+    if (data[offset] != 'T') return FIELD_NONE;
+    if (b1 == 'I' && b2 == 'T' && b3 == '2') return FIELD_TITLE;
+    if (b1 == 'P' && b2 == 'E' && b3 == '1') return FIELD_ARTIST;
+    if (b1 == 'A' && b2 == 'L' && b3 == 'B') return FIELD_ALBUM;
+    if (b1 == 'R' && b2 == 'C' && b3 == 'K') return FIELD_TRACK;
+    if (b1 == 'L' && b2 == 'E' && b3 == 'N') return FIELD_LENGTH;
+    return FIELD_NONE;
+  }
+
+  private static int v22Field(byte[] data, int offset) {
+    byte b1 = data[offset + 1];
+    byte b2 = data[offset + 2];
+    if (data[offset] == 'P' && b1 == 'I' && b2 == 'C') return FIELD_PICTURE;
+    if (data[offset] != 'T') return FIELD_NONE;
+    if (b1 == 'T' && b2 == '2') return FIELD_TITLE;
+    if (b1 == 'P' && b2 == '1') return FIELD_ARTIST;
+    if (b1 == 'A' && b2 == 'L') return FIELD_ALBUM;
+    if (b1 == 'R' && b2 == 'K') return FIELD_TRACK;
+    if (b1 == 'L' && b2 == 'E') return FIELD_LENGTH;
+    return FIELD_NONE;
+  }
+
+}
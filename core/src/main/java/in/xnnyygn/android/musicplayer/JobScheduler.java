@@ -0,0 +1,351 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * Scheduler of background jobs shared in process, e.g. artwork extraction
+ * and frame analysis.
+ * <p>
+ * Jobs are run by a fixed count of workers in order of priority, then of
+ * submission. Job is identified by key: submitting a key pending raises its
+ * priority instead of adding another job, so rows scrolled into view or
+ * musics queued overtake a run over the whole library. Pending jobs are
+ * cancelled by key or key prefix, job running sees its cancellation by
+ * {@link Job#isCancelled()}.
+ * <p>
+ * Background jobs, of play queue and library, run on all workers but one,
+ * which is kept for visible jobs. While throttled, e.g. during playback,
+ * background jobs run on one worker with a delay between them, leaving
+ * storage to player most of the time.
+ * <p>
+ * Scheduler keeps nothing across process death. Owner of a long run
+ * checkpoints its results, see {@link LibraryAnalyzer}, so that run started
+ * again resumes from what is left.
+ *
+ * @author xnnyygn
+ */
+public class JobScheduler {
+
+  public static final int PRIORITY_VISIBLE = 0;
+  public static final int PRIORITY_QUEUE = 1;
+  public static final int PRIORITY_LIBRARY = 2;
+
+  public static final int DEFAULT_WORKERS = 3;
+  public static final long THROTTLE_DELAY = 200;
+
+  /**
+   * Job, one unit of work, e.g. one music.
+   *
+   * @author xnnyygn
+   */
+  public abstract static class Job implements Runnable {
+
+    volatile boolean cancelled;
+
+    /**
+     * Test if job is cancelled, checked by long job to stop early.
+     *
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * Mark job cancelled, e.g. job finished but its result not delivered
+     * yet. Use {@link JobScheduler#cancel(String)} to remove job pending.
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+
+  }
+
+  /**
+   * Job submitted.
+   *
+   * @author xnnyygn
+   */
+  private static class Entry {
+
+    final String key;
+    final Job job;
+    final long sequence;
+    int priority;
+
+    Entry(String key, Job job, int priority, long sequence) {
+      this.key = key;
+      this.job = job;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    boolean isBackground() {
+      return priority != PRIORITY_VISIBLE;
+    }
+
+  }
+
+  private static final String LOG_TAG = "scheduler";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+
+  private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+
+    @Override
+    public int compare(Entry lhs, Entry rhs) {
+      if (lhs.priority != rhs.priority) return lhs.priority - rhs.priority;
+      return lhs.sequence < rhs.sequence ? -1
+          : (lhs.sequence == rhs.sequence ? 0 : 1);
+    }
+  };
+
+  private static JobScheduler sInstance;
+
+  private final int mMaxBackgroundWorkers;
+  private final TreeSet<Entry> mQueue = new TreeSet<Entry>(ORDER);
+  private final Map<String, Entry> mPending = new HashMap<String, Entry>();
+  private final Map<String, Entry> mRunning = new HashMap<String, Entry>();
+  private long mSequence;
+  private int mBackgroundWorkers;
+  private boolean mThrottled;
+  private long mNextBackgroundAt;
+  private boolean mShutdown;
+
+  /**
+   * Create scheduler and start workers.
+   *
+   * @param workers count of workers, at least 2
+   */
+  public JobScheduler(int workers) {
+    if (workers < 2) throw new IllegalArgumentException("workers " + workers);
+    mMaxBackgroundWorkers = workers - 1;
+    for (int i = 1; i <= workers; i++) {
+      Thread thread = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          work();
+        }
+      }, "job-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Get scheduler shared in process, with default count of workers.
+   *
+   * @return scheduler
+   */
+  public static synchronized JobScheduler getInstance() {
+    if (sInstance == null) sInstance = new JobScheduler(DEFAULT_WORKERS);
+    return sInstance;
+  }
+
+  /**
+   * Submit job. If a job of same key is pending, that job is kept and its
+   * priority raised if lower. Job of same key running does not count, its
+   * result may be stale already.
+   *
+   * @param key key of job
+   * @param priority priority
+   * @param job job
+   * @return true if job submitted
+   * @see #PRIORITY_VISIBLE
+   */
+  public synchronized boolean submit(String key, int priority, Job job) {
+    if (mShutdown) return false;
+    Entry entry = mPending.get(key);
+    if (entry != null) {
+      raise(entry, priority);
+      return false;
+    }
+
+    entry = new Entry(key, job, priority, mSequence++);
+    mPending.put(key, entry);
+    mQueue.add(entry);
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Raise priority of pending job, lower priority is ignored.
+   *
+   * @param key key of job
+   * @param priority priority
+   * @return true if job pending
+   */
+  public synchronized boolean prioritize(String key, int priority) {
+    Entry entry = mPending.get(key);
+    if (entry == null) return false;
+    raise(entry, priority);
+    return true;
+  }
+
+  /**
+   * Raise priorities of pending jobs in one go, e.g. jobs of musics in play
+   * queue, lower priorities are ignored.
+   *
+   * @param keys keys of jobs
+   * @param priority priority
+   * @return count of jobs pending
+   */
+  public synchronized int prioritizeAll(Collection<String> keys,
+      int priority) {
+    int count = 0;
+    for (String key : keys) {
+      Entry entry = mPending.get(key);
+      if (entry == null) continue;
+      raise(entry, priority);
+      count++;
+    }
+    return count;
+  }
+
+  private void raise(Entry entry, int priority) {
+    if (priority >= entry.priority) return;
+    mQueue.remove(entry);
+    entry.priority = priority;
+    mQueue.add(entry);
+    notifyAll();
+  }
+
+  /**
+   * Cancel job pending or running.
+   *
+   * @param key key of job
+   * @return true if job found
+   */
+  public synchronized boolean cancel(String key) {
+    Entry entry = mPending.remove(key);
+    if (entry != null) {
+      mQueue.remove(entry);
+    } else {
+      entry = mRunning.get(key);
+      if (entry == null) return false;
+    }
+    entry.job.cancelled = true;
+    return true;
+  }
+
+  /**
+   * Cancel jobs pending or running whose keys start with prefix.
+   *
+   * @param prefix prefix of keys
+   * @return count of jobs cancelled
+   */
+  public synchronized int cancelAll(String prefix) {
+    int count = 0;
+    for (Iterator<Entry> it = mQueue.iterator(); it.hasNext();) {
+      Entry entry = it.next();
+      if (!entry.key.startsWith(prefix)) continue;
+      it.remove();
+      mPending.remove(entry.key);
+      entry.job.cancelled = true;
+      count++;
+    }
+    for (Entry entry : mRunning.values()) {
+      if (entry.key.startsWith(prefix)) {
+        entry.job.cancelled = true;
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Throttle background jobs or not, e.g. while music played is read from
+   * storage jobs work on.
+   *
+   * @param throttled true to throttle
+   */
+  public synchronized void setThrottled(boolean throttled) {
+    if (mThrottled == throttled) return;
+    mThrottled = throttled;
+    LOGGER.fine((throttled ? "throttle, " : "unthrottle, ") + mQueue.size()
+        + " job(s) pending");
+    notifyAll();
+  }
+
+  /**
+   * Shutdown scheduler, pending jobs are cancelled, workers exit after
+   * running jobs.
+   */
+  public synchronized void shutdown() {
+    mShutdown = true;
+    cancelAll("");
+    notifyAll();
+  }
+
+  private void work() {
+    Entry entry;
+    while ((entry = take()) != null) {
+      Thread.currentThread().setPriority(
+          entry.isBackground() ? Thread.MIN_PRIORITY
+              : Thread.NORM_PRIORITY - 1);
+      try {
+        if (!entry.job.cancelled) entry.job.run();
+      } catch (RuntimeException e) {
+        LOGGER.warning("failed to run job " + entry.key
+            + ", nested exception is " + e);
+      } finally {
+        finish(entry);
+      }
+    }
+  }
+
+  /**
+   * Take next job allowed to run, block until any.
+   *
+   * @return job, null if shutdown
+   */
+  private synchronized Entry take() {
+    while (!mShutdown) {
+      long delay = 0;
+      if (!mQueue.isEmpty()) {
+        // background job first means no visible job pending
+        Entry entry = mQueue.first();
+        if (entry.isBackground()) {
+          int max = mThrottled ? 1 : mMaxBackgroundWorkers;
+          delay =
+              mThrottled ? mNextBackgroundAt - System.currentTimeMillis() : 0;
+          if (mBackgroundWorkers >= max) entry = null;
+          else if (delay > 0) entry = null;
+        }
+        if (entry != null) {
+          mQueue.remove(entry);
+          mPending.remove(entry.key);
+          mRunning.put(entry.key, entry);
+          if (entry.isBackground()) mBackgroundWorkers++;
+          return entry;
+        }
+      }
+      try {
+        if (delay > 0) {
+          wait(delay);
+        } else {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void finish(Entry entry) {
+    if (mRunning.get(entry.key) == entry) mRunning.remove(entry.key);
+    if (entry.isBackground()) {
+      mBackgroundWorkers--;
+      mNextBackgroundAt = System.currentTimeMillis() + THROTTLE_DELAY;
+    }
+    notifyAll();
+  }
+
+}
@@ -0,0 +1,513 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Library analyzer, computes duration and seek table of musics from MPEG
+ * frame headers in background, without preparing media player.
+ * <p>
+ * Each music in index without seek table is a job of {@link JobScheduler} at
+ * library priority, keyed by {@link #jobKey(int)}, so that musics visible or
+ * queued are analyzed first by raising priorities of their jobs. Workers keep
+ * their own {@link Mp3FrameScanner} and read-ahead buffer.
+ * <p>
+ * Results are appended to a journal beside index file periodically, at cost
+ * of results only, and merged into index file once when run finishes or is
+ * cancelled, so that index is rewritten once per run. Journal left by
+ * process death is merged by next run, musics in it are not analyzed
+ * again. Musics failed to analyze are not tried again in process.
+ *
+ * @author xnnyygn
+ */
+public class LibraryAnalyzer {
+
+  /**
+   * Analyzer listener, called from worker thread.
+   *
+   * @author xnnyygn
+   */
+  public interface Listener {
+
+    /**
+     * Called when results are merged into index file.
+     *
+     * @param finished true if all musics analyzed
+     */
+    void onIndexUpdated(boolean finished);
+
+  }
+
+  private static final String LOG_TAG = "analyzer";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+  private static final String JOB_PREFIX = "analyze:";
+  private static final String CHECKPOINT_JOB_PREFIX = "analyze-checkpoint:";
+  private static final int CHECKPOINT_COUNT = 500;
+  private static final long CHECKPOINT_INTERVAL = 30 * 1000;
+  private static final String JOURNAL_SUFFIX = ".analysis";
+
+  /**
+   * Max size of seek table in journal, larger means journal corrupted.
+   */
+  private static final int MAX_SEEK_TABLE_SIZE = 1024 * 1024;
+
+  /**
+   * Result of one music, enough to merge into index.
+   *
+   * @author xnnyygn
+   */
+  static class Analysis {
+
+    final int id;
+    final long size;
+    final long lastModified;
+    final SeekTable seekTable;
+
+    Analysis(int id, long size, long lastModified, SeekTable seekTable) {
+      this.id = id;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.seekTable = seekTable;
+    }
+
+    boolean isOf(Music music) {
+      return music.getId() == id && music.getSize() == size
+          && music.getLastModified() == lastModified;
+    }
+
+  }
+
+  /**
+   * One run over index.
+   *
+   * @author xnnyygn
+   */
+  private class Run {
+
+    final int number;
+    final File indexFile;
+    final File journalFile;
+    final Listener listener;
+    final AtomicInteger pendingJobs = new AtomicInteger();
+
+    /**
+     * Jobs running, the last one finishing after cancel merges results.
+     */
+    final AtomicInteger runningJobs = new AtomicInteger();
+    final long startedAt = System.currentTimeMillis();
+    volatile boolean cancelled;
+    volatile int total;
+
+    /**
+     * Results by id, not written to journal yet.
+     */
+    final Map<Integer, Analysis> results =
+        new ConcurrentHashMap<Integer, Analysis>();
+    long lastCheckpoint = startedAt;
+
+    Run(int number, File indexFile, Listener listener) {
+      this.number = number;
+      this.indexFile = indexFile;
+      this.journalFile = journalOf(indexFile);
+      this.listener = listener;
+    }
+
+    void onAnalyzed(Music music, boolean success) {
+      if (success) {
+        results.put(music.getId(), new Analysis(music.getId(),
+            music.getSize(), music.getLastModified(), music.getSeekTable()));
+      } else {
+        mFailedPaths.add(music.getPath());
+      }
+      onJobDone();
+    }
+
+    /**
+     * Count job done or not submitted, merge when none pending.
+     */
+    void onJobDone() {
+      if (pendingJobs.decrementAndGet() == 0) {
+        if (cancelled) return; // merged by checkpoint job
+        merge(true);
+        long elapsed = System.currentTimeMillis() - startedAt;
+        LOGGER.info(total + " music(s) analyzed in " + elapsed + "ms");
+      } else if (shouldCheckpoint()) {
+        checkpoint();
+      }
+    }
+
+    private synchronized boolean shouldCheckpoint() {
+      long now = System.currentTimeMillis();
+      if (results.size() < CHECKPOINT_COUNT
+          && now - lastCheckpoint < CHECKPOINT_INTERVAL) {
+        return false;
+      }
+      lastCheckpoint = now;
+      return true;
+    }
+
+    private List<Analysis> drainResults() {
+      List<Analysis> drained = new ArrayList<Analysis>(results.size());
+      for (Integer id : new ArrayList<Integer>(results.keySet())) {
+        Analysis analysis = results.remove(id);
+        if (analysis != null) drained.add(analysis);
+      }
+      return drained;
+    }
+
+    /**
+     * Append results to journal, results are kept if failed.
+     */
+    void checkpoint() {
+      synchronized (mJournalLock) {
+        List<Analysis> drained = drainResults();
+        if (drained.isEmpty()) return;
+        try {
+          appendJournal(journalFile, drained);
+        } catch (IOException e) {
+          LOGGER.warning("failed to append results to journal, "
+              + "nested exception is " + e);
+          for (Analysis analysis : drained) {
+            results.put(analysis.id, analysis);
+          }
+        }
+      }
+    }
+
+    /**
+     * Merge journal and results into index, journal is deleted once merged.
+     */
+    void merge(boolean finished) {
+      synchronized (mJournalLock) {
+        List<Analysis> drained = drainResults();
+        Map<Integer, Analysis> merging = readJournal(journalFile);
+        for (Analysis analysis : drained) {
+          merging.put(analysis.id, analysis);
+        }
+        if (merging.isEmpty()) return;
+
+        try {
+          if (!mergeIntoIndex(indexFile, merging)) return;
+        } catch (IOException e) {
+          LOGGER.warning("failed to merge results into index, "
+              + "nested exception is " + e);
+          // merged by next run
+          try {
+            appendJournal(journalFile, drained);
+          } catch (IOException ignored) {
+            // analyzed again by next run
+          }
+          return;
+        }
+        journalFile.delete();
+      }
+      if (!cancelled) listener.onIndexUpdated(finished);
+    }
+
+  }
+
+  /**
+   * Analysis of one music.
+   *
+   * @author xnnyygn
+   */
+  private class AnalyzeJob extends JobScheduler.Job {
+
+    final Run run;
+    final Music music;
+
+    AnalyzeJob(Run run, Music music) {
+      this.run = run;
+      this.music = music;
+    }
+
+    @Override
+    public void run() {
+      run.runningJobs.incrementAndGet();
+      try {
+        run.onAnalyzed(music, analyze(mFrameScanners.get(), music));
+      } finally {
+        // result of job finishing after cancel missed merge of cancel
+        if (run.runningJobs.decrementAndGet() == 0 && run.cancelled) {
+          run.merge(false);
+        }
+      }
+    }
+
+  }
+
+  private final JobScheduler mScheduler;
+  private final ThreadLocal<Mp3FrameScanner> mFrameScanners =
+      new ThreadLocal<Mp3FrameScanner>() {
+
+        @Override
+        protected Mp3FrameScanner initialValue() {
+          return new Mp3FrameScanner();
+        }
+      };
+  private final Set<String> mFailedPaths = Collections
+      .synchronizedSet(new HashSet<String>());
+
+  /**
+   * Lock of journal, shared by runs, a run cancelled may still merge.
+   */
+  private final Object mJournalLock = new Object();
+  private int mRunCount;
+  private Run mCurrentRun;
+
+  /**
+   * Create analyzer on scheduler shared in process.
+   */
+  public LibraryAnalyzer() {
+    this(JobScheduler.getInstance());
+  }
+
+  /**
+   * Create analyzer.
+   *
+   * @param scheduler scheduler to run jobs, analysis is bound by storage so
+   *        background workers of scheduler should not outnumber what storage
+   *        can serve
+   */
+  public LibraryAnalyzer(JobScheduler scheduler) {
+    mScheduler = scheduler;
+  }
+
+  /**
+   * Get key of job analyzing music, to raise its priority.
+   *
+   * @param id id of music
+   * @return key
+   * @see JobScheduler#prioritize(String, int)
+   */
+  public static String jobKey(int id) {
+    return JOB_PREFIX + id;
+  }
+
+  /**
+   * Analyze musics of index without seek table, previous run is cancelled.
+   *
+   * @param indexFile index file to merge results into
+   * @param index index loaded from file
+   * @param listener listener
+   */
+  public synchronized void analyze(File indexFile, final LibraryIndex index,
+      Listener listener) {
+    cancel();
+
+    final Run run = new Run(++mRunCount, indexFile, listener);
+    mCurrentRun = run;
+    mScheduler.submit(JOB_PREFIX + "list", JobScheduler.PRIORITY_LIBRARY,
+        new JobScheduler.Job() {
+
+          @Override
+          public void run() {
+            Map<Integer, Analysis> journal;
+            synchronized (mJournalLock) {
+              journal = readJournal(run.journalFile);
+            }
+            List<Music> musics = new ArrayList<Music>();
+            for (int i = 0; i < index.size() && !isCancelled(); i++) {
+              Music music = index.getMusic(i);
+              if (music.getSeekTable() != null
+                  || mFailedPaths.contains(music.getPath())) {
+                continue;
+              }
+              Analysis analysis = journal.get(music.getId());
+              if (analysis == null || !analysis.isOf(music)) musics.add(music);
+            }
+            if (isCancelled()) return;
+            if (musics.isEmpty()) {
+              // left by process death
+              if (!journal.isEmpty()) run.merge(true);
+              return;
+            }
+
+            LOGGER.info("analyze " + musics.size() + " music(s)");
+            run.total = musics.size();
+            run.pendingJobs.set(musics.size());
+            for (Music music : musics) {
+              // job of same key pending, or scheduler shut down
+              if (!mScheduler.submit(jobKey(music.getId()),
+                  JobScheduler.PRIORITY_LIBRARY, new AnalyzeJob(run, music))) {
+                run.onJobDone();
+              }
+            }
+          }
+        });
+  }
+
+  /**
+   * Cancel current run, no more callback will be made to its listener.
+   * Results not merged yet are merged by a job of its own, results of jobs
+   * still running by the last of them.
+   */
+  public synchronized void cancel() {
+    if (mCurrentRun == null) return;
+
+    final Run run = mCurrentRun;
+    run.cancelled = true;
+    mCurrentRun = null;
+    mScheduler.cancelAll(JOB_PREFIX);
+    mScheduler.submit(CHECKPOINT_JOB_PREFIX + run.number,
+        JobScheduler.PRIORITY_QUEUE, new JobScheduler.Job() {
+
+          @Override
+          public void run() {
+            run.merge(false);
+          }
+        });
+  }
+
+  /**
+   * Build seek table and set duration of music.
+   *
+   * @return true if success
+   */
+  private static boolean analyze(Mp3FrameScanner scanner, Music music) {
+    try {
+      SeekTable table = scanner.scan(new File(music.getPath()));
+      if (table == null) return false;
+      music.setSeekTable(table);
+      music.setDuration(table.getDuration());
+      return true;
+    } catch (IOException e) {
+      LOGGER.fine("failed to analyze " + music.getPath()
+          + ", nested exception is " + e);
+      return false;
+    }
+  }
+
+  /**
+   * Get journal of results beside index file.
+   *
+   * @param indexFile index file
+   * @return journal file
+   */
+  static File journalOf(File indexFile) {
+    return new File(indexFile.getPath() + JOURNAL_SUFFIX);
+  }
+
+  /**
+   * Append results to journal with fsync. Each record is id, size, last
+   * modified time and seek table of music, followed by CRC32 of record.
+   *
+   * @throws IOException if failed to write
+   */
+  static void appendJournal(File journalFile,
+      Collection<Analysis> analyses) throws IOException {
+    if (analyses.isEmpty()) return;
+    FileOutputStream file = new FileOutputStream(journalFile, true);
+    try {
+      CRC32 crc = new CRC32();
+      BufferedOutputStream buffer = new BufferedOutputStream(file);
+      DataOutputStream out =
+          new DataOutputStream(new CheckedOutputStream(buffer, crc));
+      for (Analysis analysis : analyses) {
+        byte[] table = analysis.seekTable.toByteArray();
+        crc.reset();
+        out.writeInt(analysis.id);
+        out.writeLong(analysis.size);
+        out.writeLong(analysis.lastModified);
+        out.writeInt(table.length);
+        out.write(table);
+        out.writeInt((int) crc.getValue());
+      }
+      out.flush();
+      file.getFD().sync();
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Read results in journal, reading ends at record torn by process death.
+   *
+   * @return results by id, empty if no journal
+   */
+  private static Map<Integer, Analysis> readJournal(File journalFile) {
+    Map<Integer, Analysis> analyses = new HashMap<Integer, Analysis>();
+    if (!journalFile.exists()) return analyses;
+    try {
+      CRC32 crc = new CRC32();
+      DataInputStream in =
+          new DataInputStream(new CheckedInputStream(new BufferedInputStream(
+              new FileInputStream(journalFile)), crc));
+      try {
+        while (true) {
+          crc.reset();
+          int id = in.readInt();
+          long size = in.readLong();
+          long lastModified = in.readLong();
+          int length = in.readInt();
+          if (length <= 0 || length > MAX_SEEK_TABLE_SIZE) break;
+          byte[] table = new byte[length];
+          in.readFully(table);
+          int checksum = (int) crc.getValue();
+          if (in.readInt() != checksum) break;
+          SeekTable seekTable = SeekTable.fromByteArray(table);
+          if (seekTable != null) {
+            analyses.put(id,
+                new Analysis(id, size, lastModified, seekTable));
+          }
+        }
+      } catch (EOFException e) {
+        // end of journal
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.warning("failed to read journal, nested exception is " + e);
+    }
+    return analyses;
+  }
+
+  /**
+   * Merge results into index file, musics changed since analysis are
+   * skipped. Index is read and written under lock of index writer, so that
+   * index written by scan in between is not overwritten.
+   *
+   * @return true if index rewritten
+   * @throws IOException if failed to read or write index
+   */
+  private static boolean mergeIntoIndex(File indexFile,
+      Map<Integer, Analysis> analyses) throws IOException {
+    synchronized (LibraryIndex.class) {
+      LibraryIndex index = LibraryIndex.open(indexFile);
+      if (index == null) return false;
+
+      List<Music> musics = new ArrayList<Music>(index.asList());
+      for (Music music : musics) {
+        Analysis analysis = analyses.get(music.getId());
+        if (analysis != null && analysis.isOf(music)) {
+          music.setSeekTable(analysis.seekTable);
+          music.setDuration(analysis.seekTable.getDuration());
+        }
+      }
+      LibraryIndex.write(indexFile, musics, index.getNextId());
+      return true;
+    }
+  }
+
+}
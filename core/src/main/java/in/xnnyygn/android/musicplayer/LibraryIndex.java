@@ -0,0 +1,598 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent library index.
+ * <p>
+ * Binary file memory-mapped read only. Layout:
+ *
+ * <pre>
+ * header  magic, version, count, record size, next id,
+ *         offsets of directory table, id table and string pool, pool length,
+ *         CRC32 of fields before
+ * records count * fixed width record
+ *         id, directory, base name, title, artist and album (offset and
+ *         length in pool), track number, size, last modified, duration,
+ *         seek table (offset and length in pool), content hash
+ * dirs    directory count * directory (offset and length in pool)
+ * ids     next id * (position of record + 1), 0 if no record
+ * pool    UTF-8 bytes of all strings, bytes of seek tables
+ * </pre>
+ *
+ * Path is stored as directory plus base name, so a directory shared by many
+ * musics is stored once. Title is not stored if same as the one derived from
+ * base name.
+ * <p>
+ * Opening an index maps the file and checks header and bounds of tables
+ * against file length only, so that it takes same time whatever count of
+ * musics. Strings and records are decoded on access, and each reference is
+ * checked against its table or pool when decoded.
+ *
+ * @author xnnyygn
+ */
+public class LibraryIndex {
+
+  public static final String FILE_NAME = "library.idx";
+  private static final int MAGIC = 0x4d504c49; // MPLI
+  private static final int VERSION = 6;
+  private static final int HEADER_SIZE = 40;
+  private static final int RECORD_SIZE = 80;
+  private static final int DIR_SIZE = 8;
+
+  /**
+   * Offset of checksum of header, which covers bytes before it.
+   */
+  private static final int CHECKSUM_OFFSET = 36;
+  private static final String CHARSET = "UTF-8";
+
+  private final ByteBuffer mBuffer;
+  private final int mCount;
+  private final int mNextId;
+  private final int mDirTableOffset;
+  private final int mIdTableOffset;
+  private final int mPoolOffset;
+  private final int mPoolLength;
+  private final int mDirCount;
+
+  /**
+   * Hash of path and position of each music packed in a long, sorted, built
+   * on first lookup by path. Guarded by this.
+   */
+  private long[] mPathTable;
+
+  private LibraryIndex(ByteBuffer buffer) {
+    mBuffer = buffer;
+    mCount = buffer.getInt(8);
+    mNextId = buffer.getInt(16);
+    mDirTableOffset = buffer.getInt(20);
+    mIdTableOffset = buffer.getInt(24);
+    mPoolOffset = buffer.getInt(28);
+    mPoolLength = buffer.getInt(32);
+    mDirCount = (mIdTableOffset - mDirTableOffset) / DIR_SIZE;
+  }
+
+  /**
+   * Open index file.
+   *
+   * @param file index file
+   * @return index, null if file not exists
+   * @throws IOException if failed to read or file is corrupted
+   */
+  public static LibraryIndex open(File file) throws IOException {
+    if (!file.exists()) return null;
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      if (length < HEADER_SIZE) throw new IOException("index too short");
+
+      // mapping stays valid after channel closed
+      ByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      if (buffer.getInt(0) != MAGIC) throw new IOException("bad magic");
+      if (buffer.getInt(4) != VERSION) {
+        throw new IOException("unsupported version " + buffer.getInt(4));
+      }
+      if (buffer.getInt(CHECKSUM_OFFSET) != checksumOf(buffer)) {
+        throw new IOException("bad header checksum");
+      }
+      LibraryIndex index = new LibraryIndex(buffer);
+      if (index.mCount < 0 || buffer.getInt(12) != RECORD_SIZE
+          || index.mCount > (length - HEADER_SIZE) / RECORD_SIZE
+          || index.mNextId < index.mCount || index.mNextId > length / 4
+          || index.mDirTableOffset != HEADER_SIZE + index.mCount * RECORD_SIZE
+          || index.mIdTableOffset < index.mDirTableOffset
+          || (index.mIdTableOffset - index.mDirTableOffset) % DIR_SIZE != 0
+          || index.mPoolOffset != index.mIdTableOffset + index.mNextId * 4
+          || (long) index.mPoolOffset + index.mPoolLength != length) {
+        throw new IOException("corrupted index");
+      }
+      return index;
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static int checksumOf(ByteBuffer header) {
+    byte[] bytes = new byte[CHECKSUM_OFFSET];
+    ByteBuffer view = header.duplicate();
+    view.position(0);
+    view.get(bytes);
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Write index file, replace old file atomically. Writers are serialized
+   * by lock of this class.
+   *
+   * @param file index file
+   * @param musics musics in order, all with id assigned
+   * @param minNextId min next id, so that ids of removed musics are not reused
+   * @throws IOException if failed to write
+   */
+  public static synchronized void write(File file, List<Music> musics,
+      int minNextId) throws IOException {
+    int count = musics.size();
+    int nextId = minNextId;
+    List<String> dirs = new ArrayList<String>();
+    Map<String, Integer> dirIndexes = new HashMap<String, Integer>();
+    for (Music music : musics) {
+      if (music.getId() < 0) {
+        throw new IllegalArgumentException("no id assigned to " + music);
+      }
+      nextId = Math.max(nextId, music.getId() + 1);
+      String dir = dirOf(music.getPath());
+      if (!dirIndexes.containsKey(dir)) {
+        dirIndexes.put(dir, dirs.size());
+        dirs.add(dir);
+      }
+    }
+
+    int dirTableOffset = HEADER_SIZE + count * RECORD_SIZE;
+    int idTableOffset = dirTableOffset + dirs.size() * DIR_SIZE;
+    int poolOffset = idTableOffset + nextId * 4;
+    ByteBuffer records = ByteBuffer.allocate(poolOffset);
+    ByteArrayOutputStream pool = new ByteArrayOutputStream(count * 32);
+
+    records.position(HEADER_SIZE);
+    for (int i = 0; i < count; i++) {
+      Music music = musics.get(i);
+      String dir = dirOf(music.getPath());
+      String baseName = music.getPath().substring(dir.length());
+      String title = music.getTitle();
+      records.putInt(music.getId());
+      records.putInt(dirIndexes.get(dir));
+      putString(records, pool, baseName);
+      putString(records, pool,
+          title != null && title.equals(Music.titleOf(baseName)) ? null : title);
+      putString(records, pool, music.getArtist());
+      putString(records, pool, music.getAlbum());
+      records.putInt(music.getTrackNumber());
+      records.putLong(music.getSize());
+      records.putLong(music.getLastModified());
+      records.putInt(music.getDuration());
+      SeekTable seekTable = music.getSeekTable();
+      putBytes(records, pool, seekTable != null ? seekTable.toByteArray()
+          : null);
+      records.putLong(music.getContentHash());
+      records.putInt(idTableOffset + music.getId() * 4, i + 1);
+    }
+    for (String dir : dirs) {
+      putString(records, pool, dir);
+    }
+    records.putInt(0, MAGIC);
+    records.putInt(4, VERSION);
+    records.putInt(8, count);
+    records.putInt(12, RECORD_SIZE);
+    records.putInt(16, nextId);
+    records.putInt(20, dirTableOffset);
+    records.putInt(24, idTableOffset);
+    records.putInt(28, poolOffset);
+    records.putInt(32, pool.size());
+    records.putInt(CHECKSUM_OFFSET, checksumOf(records));
+
+    File tmpFile = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmpFile);
+    try {
+      out.write(records.array());
+      pool.writeTo(out);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmpFile.renameTo(file)) {
+      tmpFile.delete();
+      throw new IOException("failed to rename index to " + file);
+    }
+  }
+
+  /**
+   * Get directory part of path, including trailing separator.
+   */
+  private static String dirOf(String path) {
+    return path.substring(0, path.lastIndexOf(File.separatorChar) + 1);
+  }
+
+  private static void putString(ByteBuffer records, ByteArrayOutputStream pool,
+      String value) throws UnsupportedEncodingException {
+    putBytes(records, pool, value != null ? value.getBytes(CHARSET) : null);
+  }
+
+  private static void putBytes(ByteBuffer records, ByteArrayOutputStream pool,
+      byte[] bytes) {
+    if (bytes == null) {
+      records.putInt(0);
+      records.putInt(-1);
+      return;
+    }
+
+    records.putInt(pool.size());
+    records.putInt(bytes.length);
+    pool.write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Get count of musics.
+   *
+   * @return count
+   */
+  public int size() {
+    return mCount;
+  }
+
+  /**
+   * Get next id to assign, all ids in this index are less than it.
+   *
+   * @return next id
+   */
+  public int getNextId() {
+    return mNextId;
+  }
+
+  /**
+   * Get id of music at specified position without decoding it.
+   *
+   * @param position position
+   * @return id
+   */
+  public int getId(int position) {
+    checkPosition(position);
+    return mBuffer.getInt(HEADER_SIZE + position * RECORD_SIZE);
+  }
+
+  /**
+   * Get position of music by id.
+   *
+   * @param id id
+   * @return position, -1 if not found
+   */
+  public int getPosition(int id) {
+    if (id < 0 || id >= mNextId) return -1;
+    int position = mBuffer.getInt(mIdTableOffset + id * 4) - 1;
+    // entry of corrupted id table is taken as not found
+    if (position < 0 || position >= mCount
+        || mBuffer.getInt(HEADER_SIZE + position * RECORD_SIZE) != id) {
+      return -1;
+    }
+    return position;
+  }
+
+  /**
+   * Get ids of all musics in order.
+   *
+   * @return ids
+   */
+  public int[] getIds() {
+    int[] ids = new int[mCount];
+    for (int i = 0; i < mCount; i++) {
+      ids[i] = mBuffer.getInt(HEADER_SIZE + i * RECORD_SIZE);
+    }
+    return ids;
+  }
+
+  /**
+   * Decode music at specified position.
+   *
+   * @param position position
+   * @return music
+   */
+  public Music getMusic(int position) {
+    checkPosition(position);
+    int offset = HEADER_SIZE + position * RECORD_SIZE;
+    String dir = getDir(offset);
+    String baseName = getString(offset + 8);
+    String title = getString(offset + 16);
+    String artist = getString(offset + 24);
+    String album = getString(offset + 32);
+    return new Music(mBuffer.getInt(offset), title != null ? title
+        : Music.titleOf(baseName), dir + baseName, artist, album,
+        mBuffer.getInt(offset + 40), mBuffer.getLong(offset + 44),
+        mBuffer.getLong(offset + 52), mBuffer.getInt(offset + 60),
+        SeekTable.fromByteArray(getBytes(offset + 64)),
+        mBuffer.getLong(offset + 72));
+  }
+
+  /**
+   * Decode path of music at specified position only.
+   *
+   * @param position position
+   * @return path
+   */
+  public String getPath(int position) {
+    checkPosition(position);
+    int offset = HEADER_SIZE + position * RECORD_SIZE;
+    return getDir(offset) + getString(offset + 8);
+  }
+
+  /**
+   * Find music by path. Table of path hashes, 8 bytes per music, is built on
+   * first call.
+   *
+   * @param path path
+   * @return position, -1 if not found
+   */
+  public synchronized int findPosition(String path) {
+    if (mPathTable == null) {
+      long[] table = new long[mCount];
+      for (int i = 0; i < mCount; i++) {
+        table[i] = ((long) getPath(i).hashCode() << 32) | i;
+      }
+      Arrays.sort(table);
+      mPathTable = table;
+    }
+
+    int hash = path.hashCode();
+    int i = Arrays.binarySearch(mPathTable, (long) hash << 32);
+    if (i < 0) i = -i - 1;
+    for (; i < mPathTable.length && (int) (mPathTable[i] >> 32) == hash; i++) {
+      int position = (int) mPathTable[i];
+      if (getPath(position).equals(path)) return position;
+    }
+    return -1;
+  }
+
+  /**
+   * Decode title of music at specified position only.
+   *
+   * @param position position
+   * @return title
+   */
+  public String getTitle(int position) {
+    checkPosition(position);
+    int offset = HEADER_SIZE + position * RECORD_SIZE;
+    String title = getString(offset + 16);
+    return title != null ? title : Music.titleOf(getString(offset + 8));
+  }
+
+  /**
+   * Get duration of music at specified position without decoding it.
+   *
+   * @param position position
+   * @return duration, 0 if unknown
+   */
+  public int getDuration(int position) {
+    checkPosition(position);
+    return mBuffer.getInt(HEADER_SIZE + position * RECORD_SIZE + 60);
+  }
+
+  /**
+   * Get content hash of music at specified position without decoding it.
+   *
+   * @param position position
+   * @return hash, {@link ContentHasher#UNKNOWN} if not computed
+   */
+  public long getContentHash(int position) {
+    checkPosition(position);
+    return mBuffer.getLong(HEADER_SIZE + position * RECORD_SIZE + 72);
+  }
+
+  /**
+   * Decode music by id.
+   *
+   * @param id id
+   * @return music, null if not found
+   */
+  public Music getMusicById(int id) {
+    int position = getPosition(id);
+    return position < 0 ? null : getMusic(position);
+  }
+
+  private void checkPosition(int position) {
+    if (position < 0 || position >= mCount) {
+      throw new IndexOutOfBoundsException("position " + position + ", count "
+          + mCount);
+    }
+  }
+
+  /**
+   * Decode directory of record at specified offset.
+   */
+  private String getDir(int offset) {
+    int dir = mBuffer.getInt(offset + 4);
+    if (dir < 0 || dir >= mDirCount) {
+      throw new IllegalStateException("corrupted index, directory " + dir
+          + " of " + mDirCount);
+    }
+    return getString(mDirTableOffset + dir * DIR_SIZE);
+  }
+
+  /**
+   * Get bytes referenced at specified offset, length -1 for null.
+   *
+   * @throws IllegalStateException if reference is out of pool
+   */
+  private byte[] getBytes(int offset) {
+    int bytesOffset = mBuffer.getInt(offset);
+    int length = mBuffer.getInt(offset + 4);
+    if (length == -1) return null;
+    if (bytesOffset < 0 || length < 0
+        || (long) bytesOffset + length > mPoolLength) {
+      throw new IllegalStateException("corrupted index, " + length
+          + " bytes at " + bytesOffset + " of pool " + mPoolLength);
+    }
+
+    byte[] bytes = new byte[length];
+    ByteBuffer view = mBuffer.duplicate();
+    view.position(mPoolOffset + bytesOffset);
+    view.get(bytes);
+    return bytes;
+  }
+
+  private String getString(int offset) {
+    byte[] bytes = getBytes(offset);
+    if (bytes == null) return null;
+    try {
+      return new String(bytes, CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e); // never happen
+    }
+  }
+
+  /**
+   * View index as list, musics are decoded on access.
+   *
+   * @return list
+   */
+  public List<Music> asList() {
+    return new MusicList();
+  }
+
+  /**
+   * Reconcile scanned musics with this index. Music with a path in index keeps
+   * its id. Music with a new path and same content as a music whose path is
+   * gone, that is, moved or renamed, takes over its id and fields derived
+   * from frames. Other music gets a new id after next id of index. Fields read
+   * from file content are copied from index entry with same path, size and
+   * last modified.
+   *
+   * @param scanned musics from scanner
+   * @return true if scanned musics are same as index
+   */
+  public boolean reconcile(List<Music> scanned) {
+    Map<String, Music> indexed = new HashMap<String, Music>(mCount * 2);
+    for (int i = 0; i < mCount; i++) {
+      Music music = getMusic(i);
+      indexed.put(music.getPath(), music);
+    }
+
+    boolean same = scanned.size() == mCount;
+    Set<String> paths = new HashSet<String>(scanned.size() * 2);
+    List<Music> added = new ArrayList<Music>();
+    for (Music music : scanned) {
+      paths.add(music.getPath());
+      Music old = indexed.get(music.getPath());
+      if (old == null) {
+        added.add(music);
+        same = false;
+        continue;
+      }
+
+      music.setId(old.getId());
+      if (old.isSameFile(music)) {
+        music.copyContentFields(old);
+      } else {
+        same = false;
+      }
+    }
+    if (added.isEmpty()) return same;
+
+    List<Music> missing = new ArrayList<Music>();
+    for (Music music : indexed.values()) {
+      if (!paths.contains(music.getPath())) missing.add(music);
+    }
+    takeOverMoved(added, missing);
+    int nextId = mNextId;
+    for (Music music : added) {
+      if (music.getId() == Music.NO_ID) music.setId(nextId++);
+    }
+    return same;
+  }
+
+  /**
+   * Give musics added ids of musics missing with same content. Each missing
+   * music is taken over once, by first music added with its content.
+   *
+   * @param added musics with new paths, ids not assigned
+   * @param missing musics whose paths are gone
+   * @return count of musics moved
+   */
+  static int takeOverMoved(List<Music> added, List<Music> missing) {
+    Map<Long, Music> byHash = new HashMap<Long, Music>();
+    for (Music music : missing) {
+      if (music.getContentHash() != ContentHasher.UNKNOWN) {
+        byHash.put(music.getContentHash(), music);
+      }
+    }
+    if (byHash.isEmpty()) return 0;
+
+    int moved = 0;
+    for (Music music : added) {
+      Music old = byHash.remove(music.getContentHash());
+      if (old == null) continue;
+      music.setId(old.getId());
+      music.copyFrameFields(old);
+      moved++;
+    }
+    return moved;
+  }
+
+  /**
+   * Find musics with same content, that is, exact duplicates in different
+   * files.
+   *
+   * @param musics musics
+   * @return groups of two or more musics with same content
+   */
+  public static List<List<Music>> findDuplicates(List<Music> musics) {
+    Map<Long, List<Music>> byHash = new HashMap<Long, List<Music>>();
+    List<List<Music>> duplicates = new ArrayList<List<Music>>();
+    for (Music music : musics) {
+      if (music.getContentHash() == ContentHasher.UNKNOWN) continue;
+      List<Music> group = byHash.get(music.getContentHash());
+      if (group == null) {
+        group = new ArrayList<Music>(2);
+        byHash.put(music.getContentHash(), group);
+      } else if (group.size() == 1) {
+        duplicates.add(group);
+      }
+      group.add(music);
+    }
+    return duplicates;
+  }
+
+  private class MusicList extends AbstractList<Music> implements RandomAccess {
+
+    @Override
+    public Music get(int location) {
+      return getMusic(location);
+    }
+
+    @Override
+    public int size() {
+      return mCount;
+    }
+
+  }
+
+}
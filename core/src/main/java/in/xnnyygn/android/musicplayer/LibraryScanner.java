@@ -0,0 +1,409 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Library scanner, walk music directories recursively in parallel.
+ * <p>
+ * Each directory is a task. A task lists its directory, collects mp3 files and
+ * forks one task per sub directory onto the worker pool, so large trees are
+ * split across all workers. Found musics are delivered to {@link Listener} in
+ * batches while scanning.
+ * <p>
+ * Each directory is scanned once per scan, identified by canonical path, so
+ * that symbolic link loops end and overlapping roots, e.g. /mnt/sdcard and
+ * /storage/sdcard0, do not find same musics twice.
+ * <p>
+ * Directory snapshots (mtime, file names and sub directory names) are kept
+ * between scans. On rescan, directory whose mtime is unchanged is not listed
+ * again, its snapshot is used instead. Tags are read by {@link Id3TagReader}
+ * only for files not known by snapshots or library index, or modified since.
+ * Content of the same files is hashed by {@link ContentHasher} on the same
+ * worker, so files are hashed in parallel. Frames are analyzed later by
+ * {@link LibraryAnalyzer}, so that scan reads only heads, tails and samples
+ * of files.
+ *
+ * @author xnnyygn
+ */
+public class LibraryScanner {
+
+  /**
+   * Scan listener, called from worker threads.
+   *
+   * @author xnnyygn
+   */
+  public interface Listener {
+
+    /**
+     * Called when a batch of musics is found.
+     *
+     * @param musics musics
+     */
+    void onMusicFound(List<Music> musics);
+
+    /**
+     * Called when scan finished.
+     *
+     * @param total total count of musics found
+     * @param changed true if any directory or music file changed since last
+     *        scan
+     */
+    void onScanFinished(int total, boolean changed);
+
+  }
+
+  /**
+   * Snapshot of a directory.
+   *
+   * @author xnnyygn
+   */
+  private static class DirectorySnapshot {
+
+    final long mtime;
+    final String[] files;
+    final String[] subDirs;
+    final Music[] musics;
+
+    DirectorySnapshot(long mtime, String[] files, String[] subDirs) {
+      this.mtime = mtime;
+      this.files = files;
+      this.subDirs = subDirs;
+      this.musics = new Music[files.length];
+    }
+
+  }
+
+  /**
+   * One scan, track pending tasks and current batch.
+   *
+   * @author xnnyygn
+   */
+  private class Scan {
+
+    private final Listener listener;
+    private final Map<String, Music> known = new HashMap<String, Music>();
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private final AtomicInteger total = new AtomicInteger();
+
+    /**
+     * Canonical paths of directories forked.
+     */
+    private final Map<String, Boolean> visitedDirs =
+        new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Paths of directories scanned, keys of snapshots.
+     */
+    private final Map<String, Boolean> scannedDirs =
+        new ConcurrentHashMap<String, Boolean>();
+
+    private volatile boolean cancelled = false;
+    private volatile boolean changed = false;
+    private List<Music> batch = new ArrayList<Music>();
+    private long lastDeliverTime = System.currentTimeMillis();
+
+    Scan(Listener listener) {
+      this.listener = listener;
+    }
+
+    void fork(final File dir) {
+      String canonicalPath;
+      try {
+        canonicalPath = dir.getCanonicalPath();
+      } catch (IOException e) {
+        canonicalPath = dir.getAbsolutePath();
+      }
+      if (visitedDirs.put(canonicalPath, Boolean.TRUE) != null) return;
+
+      pendingTasks.incrementAndGet();
+      try {
+        mExecutor.execute(new Runnable() {
+
+          @Override
+          public void run() {
+            try {
+              if (!cancelled) scanDirectory(Scan.this, dir);
+            } finally {
+              if (pendingTasks.decrementAndGet() == 0) finish();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // scanner shutdown
+        pendingTasks.decrementAndGet();
+        cancelled = true;
+      }
+    }
+
+    void add(List<Music> musics) {
+      if (musics.isEmpty()) return;
+      total.addAndGet(musics.size());
+
+      List<Music> toDeliver = null;
+      synchronized (this) {
+        batch.addAll(musics);
+        long now = System.currentTimeMillis();
+        if (batch.size() >= mBatchSize
+            || now - lastDeliverTime >= INTERVAL_DELIVER_BATCH) {
+          toDeliver = batch;
+          batch = new ArrayList<Music>();
+          lastDeliverTime = now;
+        }
+      }
+      if (toDeliver != null && !cancelled) listener.onMusicFound(toDeliver);
+    }
+
+    private void finish() {
+      if (cancelled) return;
+
+      List<Music> toDeliver;
+      synchronized (this) {
+        toDeliver = batch;
+        batch = new ArrayList<Music>();
+      }
+      if (!toDeliver.isEmpty()) listener.onMusicFound(toDeliver);
+
+      // drop snapshots of directories removed since last scan
+      if (mSnapshots.keySet().retainAll(scannedDirs.keySet())) changed = true;
+      listener.onScanFinished(total.get(), changed);
+    }
+
+  }
+
+  public static final int DEFAULT_BATCH_SIZE = 200;
+  private static final String LOG_TAG = "scanner";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+  private static final long INTERVAL_DELIVER_BATCH = 300;
+  private static final String EXTENSION_MP3 = ".mp3";
+  private static final String NO_MEDIA = ".nomedia";
+
+  private final ThreadLocal<Id3TagReader> mTagReaders =
+      new ThreadLocal<Id3TagReader>() {
+
+        @Override
+        protected Id3TagReader initialValue() {
+          return new Id3TagReader();
+        }
+      };
+  private final ExecutorService mExecutor;
+  private final int mBatchSize;
+  private final Map<String, DirectorySnapshot> mSnapshots =
+      new ConcurrentHashMap<String, DirectorySnapshot>();
+  private Scan mCurrentScan;
+
+  /**
+   * Create scanner with one worker per processor and default batch size.
+   */
+  public LibraryScanner() {
+    this(Math.max(2, Runtime.getRuntime().availableProcessors()),
+        DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Create scanner.
+   *
+   * @param workers count of worker threads
+   * @param batchSize max musics per batch delivered to listener
+   */
+  public LibraryScanner(int workers, int batchSize) {
+    mExecutor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "scanner-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+      }
+    });
+    mBatchSize = batchSize;
+  }
+
+  /**
+   * Scan root directories asynchronously, previous scan will be cancelled.
+   *
+   * @param roots root directories
+   * @param index library index to reuse tags of unchanged files, may be null
+   * @param listener listener
+   */
+  public synchronized void scan(final List<File> roots,
+      final LibraryIndex index, Listener listener) {
+    cancel();
+
+    final Scan scan = new Scan(listener);
+    mCurrentScan = scan;
+    scan.pendingTasks.incrementAndGet();
+    mExecutor.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        // load known musics before any directory task starts
+        if (index != null) {
+          try {
+            for (Music music : index.asList()) {
+              scan.known.put(music.getPath(), music);
+            }
+          } catch (IllegalStateException e) {
+            // record corrupted, index is written again from this scan
+            LOGGER.warning("failed to read library index, nested exception is "
+                + e);
+            scan.known.clear();
+            scan.changed = true;
+          }
+        }
+        for (File root : roots) {
+          scan.fork(root);
+        }
+        if (scan.pendingTasks.decrementAndGet() == 0) scan.finish();
+      }
+    });
+  }
+
+  /**
+   * Cancel current scan, no more callback will be made to its listener.
+   */
+  public synchronized void cancel() {
+    if (mCurrentScan != null) {
+      mCurrentScan.cancelled = true;
+      mCurrentScan = null;
+    }
+  }
+
+  /**
+   * Shutdown scanner, release worker threads.
+   */
+  public void shutdown() {
+    cancel();
+    mExecutor.shutdownNow();
+  }
+
+  private void scanDirectory(Scan scan, File dir) {
+    String dirPath = dir.getAbsolutePath();
+    long mtime = dir.lastModified();
+    if (mtime == 0) return; // not exists or not accessible
+
+    DirectorySnapshot snapshot = mSnapshots.get(dirPath);
+    if (snapshot == null || snapshot.mtime != mtime) {
+      snapshot = listDirectory(dir, mtime);
+      mSnapshots.put(dirPath, snapshot);
+      scan.changed = true;
+    }
+    scan.scannedDirs.put(dirPath, Boolean.TRUE);
+
+    for (String subDir : snapshot.subDirs) {
+      scan.fork(new File(dir, subDir));
+    }
+
+    if (snapshot.files.length == 0) return;
+    List<Music> musics = new ArrayList<Music>(snapshot.files.length);
+    for (int i = 0; i < snapshot.files.length; i++) {
+      Music music = new Music(new File(dir, snapshot.files[i]));
+      Music old = snapshot.musics[i];
+      if (old == null) old = scan.known.get(music.getPath());
+      if (old != null && old.isSameFile(music)) {
+        music.copyContentFields(old);
+      } else {
+        // new, or modified in place, which leaves directory mtime unchanged
+        readTags(music);
+        hashContent(music);
+        scan.changed = true;
+      }
+      snapshot.musics[i] = music;
+      musics.add(music);
+    }
+    scan.add(musics);
+  }
+
+  /**
+   * Test if file is a music file scanner would find, hidden files and files
+   * in directory with no media mark are not.
+   *
+   * @param file file
+   * @return true if music file
+   */
+  static boolean isMusicFile(File file) {
+    String name = file.getName();
+    return !name.startsWith(".")
+        && name.toLowerCase(Locale.US).endsWith(EXTENSION_MP3)
+        && file.isFile()
+        && !new File(file.getParentFile(), NO_MEDIA).exists();
+  }
+
+  /**
+   * Get directories listed by scans, kept between scans.
+   *
+   * @return directories
+   */
+  public List<File> getDirectories() {
+    List<File> dirs = new ArrayList<File>(mSnapshots.size());
+    for (String path : mSnapshots.keySet()) {
+      dirs.add(new File(path));
+    }
+    return dirs;
+  }
+
+  private void readTags(Music music) {
+    try {
+      mTagReaders.get().read(new File(music.getPath()), music);
+    } catch (IOException e) {
+      // keep title from file name
+    }
+  }
+
+  /**
+   * Hash content of music, keep hash unknown if failed.
+   *
+   * @param music music
+   */
+  static void hashContent(Music music) {
+    try {
+      music.setContentHash(ContentHasher.hash(new File(music.getPath())));
+    } catch (IOException e) {
+      // identified by path only
+    }
+  }
+
+  private DirectorySnapshot listDirectory(File dir, long mtime) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return new DirectorySnapshot(mtime, new String[0], new String[0]);
+    }
+
+    List<String> files = new ArrayList<String>();
+    List<String> subDirs = new ArrayList<String>();
+    for (File child : children) {
+      String name = child.getName();
+      if (name.startsWith(".")) {
+        if (NO_MEDIA.equals(name)) {
+          // media scanner convention, ignore whole directory
+          return new DirectorySnapshot(mtime, new String[0], new String[0]);
+        }
+        continue; // hidden
+      }
+      if (name.toLowerCase(Locale.US).endsWith(EXTENSION_MP3)
+          && child.isFile()) {
+        files.add(name);
+      } else if (child.isDirectory()) {
+        subDirs.add(name);
+      }
+    }
+    return new DirectorySnapshot(mtime, files.toArray(new String[files.size()]),
+        subDirs.toArray(new String[subDirs.size()]));
+  }
+
+}
@@ -0,0 +1,222 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+/**
+ * Library updater, applies changes from {@link LibraryWatcher} to index file
+ * incrementally.
+ * <p>
+ * Tags of created files are read one by one, directories to rescan are
+ * scanned by a scanner of its own, so that snapshots of full scans are not
+ * touched. Index is read, merged and written under lock of index writer,
+ * like {@link LibraryAnalyzer}. Music keeps its id if its path is in index,
+ * or takes over id of music removed with same content, e.g. file renamed.
+ *
+ * @author xnnyygn
+ */
+public class LibraryUpdater implements LibraryWatcher.Listener {
+
+  /**
+   * Updater listener, called in watcher thread.
+   *
+   * @author xnnyygn
+   */
+  public interface Listener {
+
+    /**
+     * Called when index file rewritten.
+     */
+    void onIndexUpdated();
+
+  }
+
+  private static final String LOG_TAG = "updater";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+
+  private final File mIndexFile;
+  private final Listener mListener;
+  private final Id3TagReader mTagReader = new Id3TagReader();
+  private final LibraryScanner mScanner = new LibraryScanner(1,
+      LibraryScanner.DEFAULT_BATCH_SIZE);
+
+  /**
+   * Create updater.
+   *
+   * @param indexFile index file
+   * @param listener listener
+   */
+  public LibraryUpdater(File indexFile, Listener listener) {
+    mIndexFile = indexFile;
+    mListener = listener;
+  }
+
+  /**
+   * Shutdown updater, release scanner threads.
+   */
+  public void shutdown() {
+    mScanner.shutdown();
+  }
+
+  @Override
+  public void onLibraryChanged(LibraryWatcher.Changes changes) {
+    long start = System.currentTimeMillis();
+    List<Music> found = new ArrayList<Music>();
+    for (File file : changes.createdFiles) {
+      Music music = new Music(file);
+      try {
+        mTagReader.read(file, music);
+      } catch (IOException e) {
+        // keep title from file name
+      }
+      LibraryScanner.hashContent(music);
+      found.add(music);
+    }
+
+    List<String> removed = new ArrayList<String>(changes.deletedPaths);
+    if (!changes.rescanDirs.isEmpty()) {
+      try {
+        found.addAll(rescan(changes.rescanDirs));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      for (File dir : changes.rescanDirs) {
+        removed.add(dir.getAbsolutePath());
+      }
+    }
+
+    try {
+      if (!merge(found, removed)) return;
+    } catch (IOException e) {
+      LOGGER.warning("failed to update library index, nested exception is "
+          + e);
+      return;
+    }
+    LOGGER.info("apply " + changes + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+    mListener.onIndexUpdated();
+  }
+
+  private List<Music> rescan(List<File> dirs) throws InterruptedException {
+    final List<Music> found = new ArrayList<Music>();
+    final CountDownLatch latch = new CountDownLatch(1);
+    LibraryIndex index = null;
+    try {
+      index = LibraryIndex.open(mIndexFile);
+    } catch (IOException e) {
+      // read all tags again
+    }
+    mScanner.scan(dirs, index, new LibraryScanner.Listener() {
+
+      @Override
+      public void onMusicFound(List<Music> musics) {
+        synchronized (found) {
+          found.addAll(musics);
+        }
+      }
+
+      @Override
+      public void onScanFinished(int total, boolean changed) {
+        latch.countDown();
+      }
+    });
+    latch.await();
+    synchronized (found) {
+      return found;
+    }
+  }
+
+  /**
+   * Merge musics found and paths removed into index file. Musics under
+   * removed paths are dropped before musics found are added.
+   *
+   * @return true if index rewritten
+   * @throws IOException if failed to read or write index
+   */
+  private boolean merge(List<Music> found, List<String> removed)
+      throws IOException {
+    synchronized (LibraryIndex.class) {
+      LibraryIndex index = LibraryIndex.open(mIndexFile);
+      if (index == null) return false; // first scan not finished
+
+      Set<String> removedPaths = new HashSet<String>(removed);
+      Map<String, Music> indexed = new HashMap<String, Music>();
+      Map<String, Music> merged = new LinkedHashMap<String, Music>();
+      int dropped = 0;
+      for (Music music : index.asList()) {
+        indexed.put(music.getPath(), music);
+        if (isRemoved(music.getPath(), removedPaths)) {
+          dropped++;
+        } else {
+          merged.put(music.getPath(), music);
+        }
+      }
+
+      // music found again under removed path is not a change
+      boolean changed = false;
+      List<Music> added = new ArrayList<Music>();
+      for (Music music : found) {
+        String path = music.getPath();
+        Music old = indexed.get(path);
+        if (old == null) {
+          if (merged.containsKey(path)) continue; // found twice
+          added.add(music);
+          changed = true;
+        } else {
+          if (isRemoved(path, removedPaths)) {
+            if (merged.containsKey(path)) continue;
+            dropped--;
+          }
+          music.setId(old.getId());
+          if (old.isSameFile(music)) {
+            music.copyContentFields(old);
+          } else {
+            changed = true;
+          }
+        }
+        merged.put(path, music);
+      }
+      if (!changed && dropped == 0) return false;
+
+      if (!added.isEmpty()) {
+        List<Music> missing = new ArrayList<Music>();
+        for (Music music : indexed.values()) {
+          if (!merged.containsKey(music.getPath())) missing.add(music);
+        }
+        int moved = LibraryIndex.takeOverMoved(added, missing);
+        if (moved > 0) LOGGER.fine(moved + " music(s) moved");
+      }
+      int nextId = index.getNextId();
+      for (Music music : added) {
+        if (music.getId() == Music.NO_ID) music.setId(nextId++);
+      }
+
+      List<Music> musics = new ArrayList<Music>(merged.values());
+      Collections.sort(musics, Music.TITLE_ORDER);
+      LibraryIndex.write(mIndexFile, musics, nextId);
+      return true;
+    }
+  }
+
+  /**
+   * Test if path or any of its parents is removed.
+   */
+  private static boolean isRemoved(String path, Set<String> removedPaths) {
+    for (String p = path; p != null; p = new File(p).getParent()) {
+      if (removedPaths.contains(p)) return true;
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,415 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Library watcher, turns file system events of library directories into
+ * batches of changes.
+ * <p>
+ * Each directory is watched by a {@link Source}, which is not recursive, e.g.
+ * one FileObserver per directory on Android. Events are coalesced by path,
+ * last event wins, and delivered when no event arrived for debounce delay,
+ * or max delay after first event during a burst. Directories created are
+ * watched and rescanned, directories deleted are unwatched.
+ * <p>
+ * When source loses events, or too many events are pending, e.g. copying a
+ * whole album tree, affected directories are rescanned instead of applying
+ * events one by one.
+ * <p>
+ * Listener is called in watcher thread, never concurrently.
+ *
+ * @author xnnyygn
+ */
+public class LibraryWatcher {
+
+  /**
+   * File or directory created, moved in or written.
+   */
+  public static final int EVENT_CREATED = 1;
+
+  /**
+   * File or directory deleted or moved out.
+   */
+  public static final int EVENT_DELETED = 2;
+
+  /**
+   * Events of directory lost, name is null.
+   */
+  public static final int EVENT_OVERFLOW = 3;
+
+  /**
+   * Source of file system events.
+   *
+   * @author xnnyygn
+   */
+  public interface Source {
+
+    /**
+     * Watch directory, not recursive. Events are reported to
+     * {@link LibraryWatcher#onEvent(File, String, int)}, deletion of directory
+     * itself as event of its parent.
+     *
+     * @param dir directory
+     * @param watcher watcher to report to
+     * @return true if watched
+     */
+    boolean watch(File dir, LibraryWatcher watcher);
+
+    /**
+     * Stop watching directory.
+     *
+     * @param dir directory
+     */
+    void unwatch(File dir);
+
+    /**
+     * Stop watching all directories.
+     */
+    void close();
+
+  }
+
+  /**
+   * Batch of changes.
+   *
+   * @author xnnyygn
+   */
+  public static class Changes {
+
+    /**
+     * Music files created or written.
+     */
+    public final List<File> createdFiles = new ArrayList<File>();
+
+    /**
+     * Paths of files or directories deleted.
+     */
+    public final List<String> deletedPaths = new ArrayList<String>();
+
+    /**
+     * Directories to rescan recursively, none under another.
+     */
+    public final List<File> rescanDirs = new ArrayList<File>();
+
+    public boolean isEmpty() {
+      return createdFiles.isEmpty() && deletedPaths.isEmpty()
+          && rescanDirs.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+      return "Changes [created=" + createdFiles.size() + ", deleted="
+          + deletedPaths.size() + ", rescan=" + rescanDirs + "]";
+    }
+
+  }
+
+  /**
+   * Watcher listener.
+   *
+   * @author xnnyygn
+   */
+  public interface Listener {
+
+    /**
+     * Called with a batch of changes.
+     *
+     * @param changes changes, not empty
+     */
+    void onLibraryChanged(Changes changes);
+
+  }
+
+  public static final long DEFAULT_DEBOUNCE_DELAY = 1000;
+  public static final int DEFAULT_MAX_PENDING_EVENTS = 1000;
+  public static final int MAX_WATCHED_DIRS = 4096;
+
+  private static final String LOG_TAG = "watcher";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+  private static final int MAX_DELAY_FACTOR = 5;
+
+  private final Source mSource;
+  private final Listener mListener;
+  private final long mDebounceDelay;
+  private final int mMaxPendingEvents;
+  private final ScheduledExecutorService mExecutor = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "watcher");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  /**
+   * Directories watched, accessed in watcher thread only. Sorted, so that
+   * directories under a path are a sub set.
+   */
+  private final TreeSet<String> mWatchedDirs = new TreeSet<String>();
+
+  /**
+   * Pending events by path and directories overflowed, guarded by this.
+   */
+  private Map<String, Integer> mPendingEvents =
+      new LinkedHashMap<String, Integer>();
+  private Set<String> mOverflowDirs = new HashSet<String>();
+  private long mFirstEventAt;
+  private long mLastEventAt;
+  private boolean mFlushScheduled;
+
+  private final Runnable mFlushTask = new Runnable() {
+
+    @Override
+    public void run() {
+      flushIfQuiet();
+    }
+  };
+
+  /**
+   * Create watcher with default debounce delay and max pending events.
+   *
+   * @param source source of events
+   * @param listener listener
+   */
+  public LibraryWatcher(Source source, Listener listener) {
+    this(source, listener, DEFAULT_DEBOUNCE_DELAY, DEFAULT_MAX_PENDING_EVENTS);
+  }
+
+  /**
+   * Create watcher.
+   *
+   * @param source source of events
+   * @param listener listener
+   * @param debounceDelay delay without event before changes delivered
+   * @param maxPendingEvents max events pending before falling back to rescan
+   */
+  public LibraryWatcher(Source source, Listener listener, long debounceDelay,
+      int maxPendingEvents) {
+    mSource = source;
+    mListener = listener;
+    mDebounceDelay = debounceDelay;
+    mMaxPendingEvents = maxPendingEvents;
+  }
+
+  /**
+   * Watch directories, each not recursive, in addition to directories
+   * watched. Directories beyond {@link #MAX_WATCHED_DIRS} are not watched.
+   * Source is called in watcher thread, this method only copies
+   * directories. Safe to call from any thread, ignored once stopped.
+   *
+   * @param dirs directories
+   */
+  public void watch(Collection<File> dirs) {
+    final List<File> toWatch = new ArrayList<File>(dirs);
+    try {
+      mExecutor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          for (File dir : toWatch) {
+            watchDirectory(dir);
+          }
+          LOGGER.info("watch " + mWatchedDirs.size() + " directory(s)");
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // stopped
+    }
+  }
+
+  /**
+   * Stop watching, pending events are dropped.
+   */
+  public void stop() {
+    mExecutor.shutdownNow();
+    mSource.close();
+    synchronized (this) {
+      mPendingEvents.clear();
+      mOverflowDirs.clear();
+    }
+  }
+
+  /**
+   * Report event, called by source in any thread.
+   *
+   * @param dir directory watched
+   * @param name name of file or directory in directory, null if overflow
+   * @param event event
+   * @see #EVENT_CREATED
+   */
+  public void onEvent(File dir, String name, int event) {
+    if (name != null && name.startsWith(".")) return; // hidden
+
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      if (event == EVENT_OVERFLOW) {
+        mOverflowDirs.add(dir.getAbsolutePath());
+      } else {
+        String path = new File(dir, name).getAbsolutePath();
+        mPendingEvents.remove(path); // keep order of last event
+        mPendingEvents.put(path, event);
+        if (mPendingEvents.size() > mMaxPendingEvents) collapsePendingEvents();
+      }
+      mLastEventAt = now;
+      if (mFlushScheduled) return;
+      mFirstEventAt = now;
+      mFlushScheduled = true;
+    }
+    schedule(mDebounceDelay);
+  }
+
+  /**
+   * Replace pending events with rescan of their directories. Must be called
+   * with lock held.
+   */
+  private void collapsePendingEvents() {
+    LOGGER.info(mPendingEvents.size() + " event(s) pending, rescan instead");
+    for (String path : mPendingEvents.keySet()) {
+      mOverflowDirs.add(new File(path).getParent());
+    }
+    mPendingEvents.clear();
+  }
+
+  private void schedule(long delay) {
+    try {
+      mExecutor.schedule(mFlushTask, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // stopped
+    }
+  }
+
+  private void flushIfQuiet() {
+    Map<String, Integer> events;
+    Set<String> overflowDirs;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      long quiet = now - mLastEventAt;
+      long waited = now - mFirstEventAt;
+      if (quiet < mDebounceDelay
+          && waited < mDebounceDelay * MAX_DELAY_FACTOR) {
+        schedule(Math.min(mDebounceDelay - quiet, mDebounceDelay
+            * MAX_DELAY_FACTOR - waited));
+        return;
+      }
+
+      events = mPendingEvents;
+      overflowDirs = mOverflowDirs;
+      mPendingEvents = new LinkedHashMap<String, Integer>();
+      mOverflowDirs = new HashSet<String>();
+      mFlushScheduled = false;
+    }
+
+    Changes changes = toChanges(events, overflowDirs);
+    if (changes.isEmpty()) return;
+    LOGGER.fine("deliver " + changes);
+    try {
+      mListener.onLibraryChanged(changes);
+    } catch (RuntimeException e) {
+      LOGGER.warning("failed to apply changes, nested exception is " + e);
+    }
+  }
+
+  private Changes toChanges(Map<String, Integer> events,
+      Set<String> overflowDirs) {
+    Changes changes = new Changes();
+    for (Map.Entry<String, Integer> entry : events.entrySet()) {
+      String path = entry.getKey();
+      File file = new File(path);
+      if (entry.getValue() == EVENT_DELETED || !file.exists()) {
+        changes.deletedPaths.add(path);
+        unwatchTree(path);
+      } else if (file.isDirectory()) {
+        watchTree(file);
+        overflowDirs.add(path);
+      } else if (LibraryScanner.isMusicFile(file)) {
+        changes.createdFiles.add(file);
+      }
+    }
+
+    // rescan covers any change under directory, shorter paths first
+    List<String> dirs = new ArrayList<String>(overflowDirs);
+    Collections.sort(dirs);
+    List<String> rescanDirs = new ArrayList<String>();
+    for (String dir : dirs) {
+      if (!isUnderAny(dir, rescanDirs)) rescanDirs.add(dir);
+    }
+    for (String dir : rescanDirs) {
+      changes.rescanDirs.add(new File(dir));
+    }
+    for (int i = changes.createdFiles.size() - 1; i >= 0; i--) {
+      if (isUnderAny(changes.createdFiles.get(i).getPath(), rescanDirs)) {
+        changes.createdFiles.remove(i);
+      }
+    }
+    return changes;
+  }
+
+  private static boolean isUnderAny(String path, List<String> dirs) {
+    for (String dir : dirs) {
+      if (isUnder(path, dir)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Test if path is same as or under directory.
+   *
+   * @param path path
+   * @param dir directory
+   * @return true if under
+   */
+  static boolean isUnder(String path, String dir) {
+    return path.startsWith(dir)
+        && (path.length() == dir.length() || path.charAt(dir.length()) == '/');
+  }
+
+  private void watchDirectory(File dir) {
+    String path = dir.getAbsolutePath();
+    if (mWatchedDirs.contains(path)) return;
+    if (mWatchedDirs.size() >= MAX_WATCHED_DIRS) {
+      LOGGER.fine("too many directories, not watch " + path);
+      return;
+    }
+    if (mSource.watch(dir, this)) mWatchedDirs.add(path);
+  }
+
+  private void watchTree(File dir) {
+    watchDirectory(dir);
+    File[] children = dir.listFiles();
+    if (children == null) return;
+    for (File child : children) {
+      if (!child.getName().startsWith(".") && child.isDirectory()) {
+        watchTree(child);
+      }
+    }
+  }
+
+  private void unwatchTree(String path) {
+    // '0' follows '/', so sub set is path and paths under it
+    for (String dir : new ArrayList<String>(mWatchedDirs.subSet(path,
+        path + '0'))) {
+      if (!isUnder(dir, path)) continue;
+      mSource.unwatch(new File(dir));
+      mWatchedDirs.remove(dir);
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+package in.xnnyygn.android.musicplayer;
+
+/**
+ * Peak limiter, last stage of chain, keeps boost of preamp and equalizer
+ * from clipping.
+ * <p>
+ * Envelope follows peak of all channels of a frame at once and decays
+ * exponentially after, so that stereo image holds and gain recovers
+ * smoothly. Attack is instant, so no sample leaves above threshold.
+ *
+ * @author xnnyygn
+ */
+public class LimiterStage implements DspStage {
+
+  private static final float DEFAULT_THRESHOLD_DB = -0.5f;
+  private static final float DEFAULT_RELEASE_MILLIS = 80f;
+
+  private volatile float mThreshold;
+  private final float mReleaseMillis;
+  private float mRelease;
+  private float mEnvelope;
+  private int mChannels = 1;
+
+  /**
+   * Create limiter of default threshold and release.
+   */
+  public LimiterStage() {
+    this(DEFAULT_THRESHOLD_DB, DEFAULT_RELEASE_MILLIS);
+  }
+
+  /**
+   * Create limiter.
+   *
+   * @param thresholdDb threshold in dBFS
+   * @param releaseMillis time for gain to recover by about 63%
+   */
+  public LimiterStage(float thresholdDb, float releaseMillis) {
+    setThresholdDb(thresholdDb);
+    mReleaseMillis = releaseMillis;
+  }
+
+  /**
+   * Set threshold, safe to call from any thread.
+   *
+   * @param db threshold in dBFS
+   */
+  public void setThresholdDb(float db) {
+    mThreshold = (float) Math.pow(10, db / 20);
+  }
+
+  @Override
+  public void configure(int sampleRate, int channels) {
+    mChannels = channels;
+    mRelease =
+        (float) Math.exp(-1000.0 / (mReleaseMillis * Math.max(sampleRate, 1)));
+    reset();
+  }
+
+  @Override
+  public void process(float[] samples, int frames) {
+    float threshold = mThreshold;
+    float release = mRelease;
+    float envelope = mEnvelope;
+    int channels = mChannels;
+    int i = 0;
+    for (int frame = 0; frame < frames; frame++) {
+      float peak = 0f;
+      for (int channel = 0; channel < channels; channel++) {
+        float value = Math.abs(samples[i + channel]);
+        if (value > peak) peak = value;
+      }
+      envelope *= release;
+      if (peak > envelope) envelope = peak;
+      if (envelope > threshold) {
+        float gain = threshold / envelope;
+        for (int channel = 0; channel < channels; channel++) {
+          samples[i + channel] *= gain;
+        }
+      }
+      i += channels;
+    }
+    mEnvelope = envelope;
+  }
+
+  @Override
+  public void reset() {
+    mEnvelope = 0f;
+  }
+
+}
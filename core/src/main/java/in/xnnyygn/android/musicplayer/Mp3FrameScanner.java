@@ -0,0 +1,486 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MPEG audio frame scanner, builds seek table of MP3 file.
+ * <p>
+ * Xing and VBRI headers in first frame are used if they have a TOC, otherwise
+ * all frame headers are walked sequentially through a read-ahead buffer,
+ * frame bodies are skipped without decoding. Walking finds exact frame count
+ * and offsets, and tells if bitrate varies.
+ * <p>
+ * Scanner is not thread safe, use one scanner per thread.
+ *
+ * @author xnnyygn
+ */
+public class Mp3FrameScanner {
+
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Max entries of table built by walking, interval between entries is at
+   * least one second.
+   */
+  private static final int MAX_ENTRIES = 256;
+
+  /**
+   * Max bytes searched for first frame, and for next frame after sync lost.
+   */
+  private static final int MAX_SYNC_SEARCH = 64 * 1024;
+  private static final int MAX_RESYNC = 4 * 1024;
+
+  private static final int XING_FLAG_FRAMES = 1;
+  private static final int XING_FLAG_BYTES = 2;
+  private static final int XING_FLAG_TOC = 4;
+  private static final int XING_TOC_SIZE = 100;
+  private static final int VBRI_OFFSET = 36;
+
+  private static final int VERSION_25 = 0;
+  private static final int VERSION_2 = 2;
+  private static final int VERSION_1 = 3;
+  private static final int LAYER_2 = 2;
+  private static final int LAYER_1 = 3;
+
+  // kbps by [version 1 ? 0 : 1][layer 1, 2, 3][bitrate index]
+  private static final int[][][] BITRATES = {
+      { {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+          {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+          {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}},
+      { {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+          {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+          {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}}};
+  private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+  private final ByteBuffer mBuffer;
+  private FileChannel mChannel;
+  private long mWindowStart;
+  private int mWindowLength;
+
+  /**
+   * First frame has Xing, Info or VBRI header.
+   */
+  private boolean mInfoFrame;
+
+  private int[] mFrames = new int[MAX_ENTRIES];
+  private long[] mOffsets = new long[MAX_ENTRIES];
+
+  public Mp3FrameScanner() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Create scanner.
+   *
+   * @param bufferSize size of read-ahead buffer
+   */
+  public Mp3FrameScanner(int bufferSize) {
+    mBuffer = ByteBuffer.allocate(Math.max(bufferSize, 1024));
+  }
+
+  /**
+   * Build seek table of file.
+   *
+   * @param file file
+   * @return table, null if no MPEG audio frame found
+   * @throws IOException if failed to read
+   */
+  public SeekTable scan(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return scan(raf.getChannel());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Build seek table from channel, channel position is not changed.
+   *
+   * @param channel channel
+   * @return table, null if no MPEG audio frame found
+   * @throws IOException if failed to read
+   */
+  public SeekTable scan(FileChannel channel) throws IOException {
+    begin(channel);
+    try {
+      long first = findFirstFrame(skipId3v2());
+      if (first < 0) return null;
+
+      SeekTable table = readInfoFrame(first, channel.size());
+      if (table != null) return table;
+      // Xing frame without TOC is not an audio frame
+      if (mInfoFrame) first += frameLength(readInt(first));
+      return walk(first, channel.size());
+    } finally {
+      mChannel = null;
+    }
+  }
+
+  /**
+   * Find offset of frame by walking headers from nearest entry of accurate
+   * table.
+   *
+   * @param channel channel of file the table built from
+   * @param table table
+   * @param frame frame index
+   * @return offset of frame, offset of nearest entry if table not accurate or
+   *         sync lost
+   * @throws IOException if failed to read
+   */
+  public long locate(FileChannel channel, SeekTable table, int frame)
+      throws IOException {
+    int entry = Math.max(0, table.findEntry(frame));
+    long offset = table.getEntryOffset(entry);
+    if (!table.isAccurate()) return offset;
+
+    begin(channel);
+    try {
+      int first = readInt(offset);
+      long position = offset;
+      for (int i = table.getEntryFrame(entry); i <= frame; i++) {
+        int header = readInt(position);
+        if (!sameStream(first, header)) {
+          // skip junk between frames as walking did
+          position = resync(first, position);
+          if (position < 0) return offset;
+          header = readInt(position);
+        }
+        if (i == frame) break;
+        position += frameLength(header);
+      }
+      return position;
+    } finally {
+      mChannel = null;
+    }
+  }
+
+  private void begin(FileChannel channel) {
+    mChannel = channel;
+    mWindowStart = 0;
+    mWindowLength = 0;
+  }
+
+  /**
+   * Get offset after ID3v2 tag at file head.
+   */
+  private long skipId3v2() throws IOException {
+    if (!ensure(0, 10)) return 0;
+    byte[] bytes = mBuffer.array();
+    if (bytes[0] != 'I' || bytes[1] != 'D' || bytes[2] != '3') return 0;
+    long end = 10 + Id3TagReader.syncsafe(bytes, 6);
+    if ((bytes[5] & 0x10) != 0) end += 10; // footer
+    return end;
+  }
+
+  /**
+   * Find first frame whose next frame is valid too, to skip false sync in
+   * padding or garbage.
+   */
+  private long findFirstFrame(long start) throws IOException {
+    for (long p = start; p < start + MAX_SYNC_SEARCH; p++) {
+      if (!ensure(p, 4)) return -1;
+      int header = readInt(p);
+      int length = frameLength(header);
+      if (length <= 0) continue;
+      if (!ensure(p + length, 4)) return p; // single frame file
+      if (sameStream(header, readInt(p + length))) return p;
+    }
+    return -1;
+  }
+
+  /**
+   * Read Xing, Info or VBRI header in first frame.
+   *
+   * @return table from TOC, null if no header or no TOC
+   */
+  private SeekTable readInfoFrame(long first, long fileSize)
+      throws IOException {
+    mInfoFrame = false;
+    int header = readInt(first);
+    int frameLength = frameLength(header);
+    if (!ensure(first, Math.min(frameLength, mBuffer.capacity()))) {
+      return null;
+    }
+    byte[] bytes = mBuffer.array();
+    int offset = (int) (first - mWindowStart);
+    int end = Math.min(mWindowLength, offset + frameLength);
+    int sampleRate = sampleRate(header);
+    int samplesPerFrame = samplesPerFrame(header);
+    long audioStart = first + frameLength;
+
+    int xing = offset + xingOffset(header);
+    if (xing + 8 <= end && (matches(bytes, xing, "Xing")
+        || matches(bytes, xing, "Info"))) {
+      mInfoFrame = true;
+      boolean vbr = bytes[xing] == 'X';
+      int flags = mBuffer.getInt(xing + 4);
+      int i = xing + 8;
+      int frameCount = -1;
+      long byteCount = fileSize - audioStart;
+      if ((flags & XING_FLAG_FRAMES) != 0 && i + 4 <= end) {
+        frameCount = mBuffer.getInt(i);
+        i += 4;
+      }
+      if ((flags & XING_FLAG_BYTES) != 0 && i + 4 <= end) {
+        byteCount = mBuffer.getInt(i) & 0xffffffffL;
+        i += 4;
+      }
+      if (frameCount <= 0) return null;
+      if (!vbr) {
+        // constant bitrate, player seeks accurately by itself
+        return new SeekTable(false, false, sampleRate, samplesPerFrame,
+            frameCount, new int[] {0}, new long[] {audioStart}, 1);
+      }
+      if ((flags & XING_FLAG_TOC) == 0 || i + XING_TOC_SIZE > end) {
+        return null;
+      }
+      int[] frames = new int[XING_TOC_SIZE];
+      long[] offsets = new long[XING_TOC_SIZE];
+      for (int k = 0; k < XING_TOC_SIZE; k++) {
+        frames[k] = (int) ((long) k * frameCount / XING_TOC_SIZE);
+        offsets[k] = audioStart + (bytes[i + k] & 0xff) * byteCount / 256;
+        if (k > 0 && offsets[k] < offsets[k - 1]) offsets[k] = offsets[k - 1];
+      }
+      return new SeekTable(false, true, sampleRate, samplesPerFrame,
+          frameCount, frames, offsets, XING_TOC_SIZE);
+    }
+
+    int vbri = offset + VBRI_OFFSET;
+    if (vbri + 26 <= end && matches(bytes, vbri, "VBRI")) {
+      mInfoFrame = true;
+      int frameCount = mBuffer.getInt(vbri + 14);
+      int entryCount = mBuffer.getShort(vbri + 18) & 0xffff;
+      int scale = mBuffer.getShort(vbri + 20) & 0xffff;
+      int entrySize = mBuffer.getShort(vbri + 22) & 0xffff;
+      int framesPerEntry = mBuffer.getShort(vbri + 24) & 0xffff;
+      int i = vbri + 26;
+      if (frameCount <= 0 || entrySize < 1 || entrySize > 4
+          || i + entryCount * entrySize > end) {
+        return null;
+      }
+      int[] frames = new int[entryCount + 1];
+      long[] offsets = new long[entryCount + 1];
+      frames[0] = 0;
+      offsets[0] = audioStart;
+      int count = 1;
+      for (int k = 0; k < entryCount; k++) {
+        long size = 0;
+        for (int b = 0; b < entrySize; b++) {
+          size = (size << 8) | (bytes[i++] & 0xff);
+        }
+        int frame = (k + 1) * framesPerEntry;
+        if (frame >= frameCount) break;
+        frames[count] = frame;
+        offsets[count] = offsets[count - 1] + size * scale;
+        count++;
+      }
+      return new SeekTable(false, true, sampleRate, samplesPerFrame,
+          frameCount, frames, offsets, count);
+    }
+    return null;
+  }
+
+  private SeekTable walk(long first, long fileSize) throws IOException {
+    int firstHeader = readInt(first);
+    int sampleRate = sampleRate(firstHeader);
+    int samplesPerFrame = samplesPerFrame(firstHeader);
+    int firstBitrate = (firstHeader >>> 12) & 0xf;
+    long estimate = (fileSize - first) / frameLength(firstHeader);
+    int interval =
+        (int) Math.max(sampleRate / samplesPerFrame, estimate / MAX_ENTRIES
+            + 1);
+
+    boolean vbr = false;
+    int count = 0;
+    int frame = 0;
+    long position = first;
+    while (ensure(position, 4)) {
+      int header = readInt(position);
+      if (!sameStream(firstHeader, header)) {
+        position = resync(firstHeader, position);
+        if (position < 0) break;
+        header = readInt(position);
+      }
+      if (frame % interval == 0) {
+        if (count == mFrames.length) grow();
+        mFrames[count] = frame;
+        mOffsets[count] = position;
+        count++;
+      }
+      if (((header >>> 12) & 0xf) != firstBitrate) vbr = true;
+      position += frameLength(header);
+      frame++;
+    }
+    return new SeekTable(true, vbr, sampleRate, samplesPerFrame, frame,
+        mFrames, mOffsets, count);
+  }
+
+  /**
+   * Find next frame of same stream after sync lost, e.g. junk between
+   * frames. Tags at file tail end the walk.
+   *
+   * @return offset of frame, -1 if not found
+   */
+  private long resync(int firstHeader, long start) throws IOException {
+    byte[] bytes = mBuffer.array();
+    if (ensure(start, 3)) {
+      int offset = (int) (start - mWindowStart);
+      if (matches(bytes, offset, "TAG") || matches(bytes, offset, "APE")) {
+        return -1; // ID3v1, APE tag
+      }
+    }
+    for (long p = start + 1; p < start + MAX_RESYNC; p++) {
+      if (!ensure(p, 4)) return -1;
+      if (sameStream(firstHeader, readInt(p))) return p;
+    }
+    return -1;
+  }
+
+  private void grow() {
+    int[] frames = new int[mFrames.length * 2];
+    long[] offsets = new long[mOffsets.length * 2];
+    System.arraycopy(mFrames, 0, frames, 0, mFrames.length);
+    System.arraycopy(mOffsets, 0, offsets, 0, mOffsets.length);
+    mFrames = frames;
+    mOffsets = offsets;
+  }
+
+  /**
+   * Make sure bytes at specified file position are in buffer, refill buffer
+   * from that position if not.
+   */
+  private boolean ensure(long position, int length) throws IOException {
+    if (position >= mWindowStart
+        && position + length <= mWindowStart + mWindowLength) {
+      return true;
+    }
+    mBuffer.clear();
+    int n;
+    long p = position;
+    while (mBuffer.hasRemaining() && (n = mChannel.read(mBuffer, p)) > 0) {
+      p += n;
+    }
+    mWindowStart = position;
+    mWindowLength = mBuffer.position();
+    return length <= mWindowLength;
+  }
+
+  /**
+   * Read big endian int at position, position should be ensured.
+   */
+  private int readInt(long position) throws IOException {
+    if (!ensure(position, 4)) return 0;
+    return mBuffer.getInt((int) (position - mWindowStart));
+  }
+
+  private static boolean matches(byte[] bytes, int offset, String id) {
+    for (int i = 0; i < id.length(); i++) {
+      if (bytes[offset + i] != id.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Test if header is a valid frame header of same version, layer and sample
+   * rate as first header.
+   */
+  static boolean sameStream(int first, int header) {
+    return frameLength(header) > 0
+        && (first & 0xfffe0c00) == (header & 0xfffe0c00);
+  }
+
+  private static int version(int header) {
+    return (header >>> 19) & 3;
+  }
+
+  private static int layer(int header) {
+    return (header >>> 17) & 3;
+  }
+
+  /**
+   * Get sample rate of frame header.
+   *
+   * @param header header
+   * @return sample rate, 0 if invalid
+   */
+  static int sampleRate(int header) {
+    int index = (header >>> 10) & 3;
+    if (index == 3) return 0;
+    switch (version(header)) {
+      case VERSION_1:
+        return SAMPLE_RATES[index];
+      case VERSION_2:
+        return SAMPLE_RATES[index] / 2;
+      case VERSION_25:
+        return SAMPLE_RATES[index] / 4;
+    }
+    return 0;
+  }
+
+  /**
+   * Get samples per frame of frame header.
+   *
+   * @param header header
+   * @return samples per frame
+   */
+  static int samplesPerFrame(int header) {
+    switch (layer(header)) {
+      case LAYER_1:
+        return 384;
+      case LAYER_2:
+        return 1152;
+      default:
+        return version(header) == VERSION_1 ? 1152 : 576;
+    }
+  }
+
+  /**
+   * Get bitrate of frame header.
+   *
+   * @param header header
+   * @return bitrate in bits per second, 0 if free or invalid
+   */
+  static int bitrate(int header) {
+    int index = (header >>> 12) & 0xf;
+    int layer = layer(header);
+    if (index == 0xf || layer == 0) return 0;
+    int[] table =
+        BITRATES[version(header) == VERSION_1 ? 0 : 1][LAYER_1 - layer];
+    return table[index] * 1000;
+  }
+
+  /**
+   * Get length of frame in bytes including header.
+   *
+   * @param header header
+   * @return length, 0 if not a valid frame header, free bitrate not
+   *         supported
+   */
+  static int frameLength(int header) {
+    if ((header & 0xffe00000) != 0xffe00000 || version(header) == 1) return 0;
+    int bitrate = bitrate(header);
+    int sampleRate = sampleRate(header);
+    if (bitrate == 0 || sampleRate == 0) return 0;
+
+    int padding = (header >>> 9) & 1;
+    if (layer(header) == LAYER_1) {
+      return (12 * bitrate / sampleRate + padding) * 4;
+    }
+    return samplesPerFrame(header) / 8 * bitrate / sampleRate + padding;
+  }
+
+  /**
+   * Get offset of Xing header from frame start, after side information.
+   */
+  private static int xingOffset(int header) {
+    boolean mono = ((header >>> 6) & 3) == 3;
+    if (version(header) == VERSION_1) return mono ? 21 : 36;
+    return mono ? 13 : 21;
+  }
+
+}
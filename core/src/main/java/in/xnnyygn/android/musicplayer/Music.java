@@ -0,0 +1,277 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.util.Comparator;
+
+public class Music {
+
+  /**
+   * Id not assigned by catalog yet.
+   */
+  public static final int NO_ID = -1;
+
+  /**
+   * Order by title ignoring case, then by path.
+   */
+  public static final Comparator<Music> TITLE_ORDER = new Comparator<Music>() {
+
+    @Override
+    public int compare(Music lhs, Music rhs) {
+      int result = lhs.title.compareToIgnoreCase(rhs.title);
+      return result != 0 ? result : lhs.path.compareTo(rhs.path);
+    }
+  };
+
+  private static final String EXTENSION_MP3 = ".mp3";
+  private int id = NO_ID;
+  private String title;
+  private String path;
+  private String artist;
+  private String album;
+  private int trackNumber;
+  private long size;
+  private long lastModified;
+  private int duration;
+  private SeekTable seekTable;
+  private long contentHash = ContentHasher.UNKNOWN;
+
+  public Music(File file) {
+    this.title = titleOf(file.getName());
+    this.path = file.getAbsolutePath();
+    this.size = file.length();
+    this.lastModified = file.lastModified();
+  }
+
+  public Music(int id, String title, String path, String artist,
+      String album, int trackNumber, long size, long lastModified,
+      int duration, SeekTable seekTable, long contentHash) {
+    this.id = id;
+    this.title = title;
+    this.path = path;
+    this.artist = artist;
+    this.album = album;
+    this.trackNumber = trackNumber;
+    this.size = size;
+    this.lastModified = lastModified;
+    this.duration = duration;
+    this.seekTable = seekTable;
+    this.contentHash = contentHash;
+  }
+
+  /**
+   * Get title derived from file name, that is, name without mp3 extension
+   * of any case. Name of other extension is kept as is.
+   * 
+   * @param fileName file name
+   * @return title
+   */
+  public static String titleOf(String fileName) {
+    int start = fileName.length() - EXTENSION_MP3.length();
+    if (start <= 0
+        || !fileName.regionMatches(true, start, EXTENSION_MP3, 0,
+            EXTENSION_MP3.length())) {
+      return fileName;
+    }
+    return fileName.substring(0, start);
+  }
+
+  /**
+   * Get id assigned by catalog.
+   * 
+   * @return id, {@link #NO_ID} if not assigned
+   * @see MusicCatalog
+   */
+  public int getId() {
+    return id;
+  }
+
+  public void setId(int id) {
+    this.id = id;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public void setTitle(String title) {
+    this.title = title;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public void setPath(String path) {
+    this.path = path;
+  }
+
+  /**
+   * Get artist.
+   * 
+   * @return artist, null if unknown
+   */
+  public String getArtist() {
+    return artist;
+  }
+
+  public void setArtist(String artist) {
+    this.artist = artist;
+  }
+
+  /**
+   * Get album.
+   * 
+   * @return album, null if unknown
+   */
+  public String getAlbum() {
+    return album;
+  }
+
+  public void setAlbum(String album) {
+    this.album = album;
+  }
+
+  /**
+   * Get track number in album.
+   * 
+   * @return track number, 0 if unknown
+   */
+  public int getTrackNumber() {
+    return trackNumber;
+  }
+
+  public void setTrackNumber(int trackNumber) {
+    this.trackNumber = trackNumber;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public void setSize(long size) {
+    this.size = size;
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public void setLastModified(long lastModified) {
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * Get duration in milliseconds.
+   * 
+   * @return duration, 0 if unknown
+   */
+  public int getDuration() {
+    return duration;
+  }
+
+  public void setDuration(int duration) {
+    this.duration = duration;
+  }
+
+  /**
+   * Get seek table built from MPEG frames.
+   * 
+   * @return seek table, null if not built
+   */
+  public SeekTable getSeekTable() {
+    return seekTable;
+  }
+
+  public void setSeekTable(SeekTable seekTable) {
+    this.seekTable = seekTable;
+  }
+
+  /**
+   * Get hash of audio payload.
+   * 
+   * @return hash, {@link ContentHasher#UNKNOWN} if not computed
+   * @see ContentHasher
+   */
+  public long getContentHash() {
+    return contentHash;
+  }
+
+  public void setContentHash(long contentHash) {
+    this.contentHash = contentHash;
+  }
+
+  /**
+   * Copy fields read from file content, used when file is not modified.
+   * 
+   * @param other music of same file
+   */
+  public void copyContentFields(Music other) {
+    this.title = other.title;
+    this.artist = other.artist;
+    this.album = other.album;
+    this.trackNumber = other.trackNumber;
+    this.duration = other.duration;
+    this.seekTable = other.seekTable;
+    this.contentHash = other.contentHash;
+  }
+
+  /**
+   * Copy fields derived from frames of other music with same content, used
+   * when file is moved or renamed. Seek table is copied only if size is same,
+   * since offsets of frames depend on size of tags.
+   * 
+   * @param other music of same content
+   */
+  public void copyFrameFields(Music other) {
+    this.duration = other.duration;
+    if (size == other.size) this.seekTable = other.seekTable;
+  }
+
+  /**
+   * Test if other music has same audio payload, both hashes known.
+   * 
+   * @param other other music
+   * @return true if same
+   */
+  public boolean isSameContent(Music other) {
+    return contentHash != ContentHasher.UNKNOWN
+        && contentHash == other.contentHash;
+  }
+
+  /**
+   * Test if file of other music has same size and last modified time.
+   * 
+   * @param other other music
+   * @return true if same
+   */
+  public boolean isSameFile(Music other) {
+    return path.equals(other.path) && size == other.size
+        && lastModified == other.lastModified;
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + ((path == null) ? 0 : path.hashCode());
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) return true;
+    if (obj == null) return false;
+    if (getClass() != obj.getClass()) return false;
+    Music other = (Music) obj;
+    if (path == null) {
+      if (other.path != null) return false;
+    } else if (!path.equals(other.path)) return false;
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "Music [id=" + id + ", title=" + title + ", path=" + path + "]";
+  }
+
+}
@@ -0,0 +1,412 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Catalog of musics in library shared in process, musics are referred by id.
+ * <p>
+ * Musics are decoded from library index on access, so that no music is kept
+ * in heap for the catalog. Before first index is written, musics found by
+ * scanner are kept as provisional musics, with ids assigned in order found,
+ * that is, id of provisional music is its position. Provisional musics keep
+ * their ids when written to index.
+ * <p>
+ * Search index is kept in sync with catalog in background.
+ * <p>
+ * Catalog is changed on main thread only. Index and provisional musics are
+ * published together as an immutable snapshot, so that catalog is read from
+ * any thread, e.g. playback thread of service, and each read sees index and
+ * provisional musics of the same moment.
+ * <p>
+ * Remote streams are musics of catalog too, out of library order. A stream
+ * added by url, or found by url in a playlist, gets an id counting down from
+ * {@link #FIRST_STREAM_ID}, kept in process.
+ *
+ * @author xnnyygn
+ */
+public class MusicCatalog implements Playlist.Resolver {
+
+  /**
+   * Id of first stream, below {@link Music#NO_ID} and
+   * {@link Playlist#UNRESOLVED}, so that ids of streams never clash with ids
+   * of library.
+   */
+  public static final int FIRST_STREAM_ID = -3;
+
+  private static final String LOG_TAG = "catalog";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+  private static final MusicCatalog sInstance = new MusicCatalog();
+
+  /**
+   * Musics of catalog at one moment, never changed once published.
+   *
+   * @author xnnyygn
+   */
+  private static class Snapshot {
+
+    final LibraryIndex index;
+
+    /**
+     * Provisional musics, shared with later snapshots which append beyond
+     * count of this one.
+     */
+    final Music[] provisionalMusics;
+    final int provisionalCount;
+
+    Snapshot(LibraryIndex index, Music[] provisionalMusics,
+        int provisionalCount) {
+      this.index = index;
+      this.provisionalMusics = provisionalMusics;
+      this.provisionalCount = provisionalCount;
+    }
+
+    Snapshot withIndex(LibraryIndex index) {
+      return new Snapshot(index, new Music[0], 0);
+    }
+
+    Snapshot withProvisionalMusics(List<Music> musics) {
+      int count = provisionalCount + musics.size();
+      Music[] array = provisionalMusics;
+      if (count > array.length) {
+        array = new Music[Math.max(count, array.length * 2)];
+        System.arraycopy(provisionalMusics, 0, array, 0, provisionalCount);
+      }
+      for (int i = 0; i < musics.size(); i++) {
+        array[provisionalCount + i] = musics.get(i);
+      }
+      return new Snapshot(index, array, count);
+    }
+
+  }
+
+  private File mIndexFile;
+  private volatile Snapshot mSnapshot = new Snapshot(null, new Music[0], 0);
+
+  /**
+   * Streams by url, guarded by itself. Array of streams by position is
+   * replaced as a whole when stream added, for readers of any thread.
+   */
+  private final Map<String, Music> mStreamsByUrl = new HashMap<String, Music>();
+  private volatile Music[] mStreams = new Music[0];
+  private final SearchIndex mSearchIndex = new SearchIndex();
+  private final ExecutorService mIndexer = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "search-indexer");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.NORM_PRIORITY - 1);
+          return thread;
+        }
+      });
+
+  private MusicCatalog() {
+  }
+
+  /**
+   * Get catalog.
+   *
+   * @return catalog
+   */
+  public static MusicCatalog getInstance() {
+    return sInstance;
+  }
+
+  /**
+   * Load index from file if not loaded, corrupted index file is deleted.
+   *
+   * @param indexFile index file
+   * @return index, null if not exists
+   */
+  public LibraryIndex load(File indexFile) {
+    if (mIndexFile != null) return mSnapshot.index;
+
+    mIndexFile = indexFile;
+    LibraryIndex index = null;
+    try {
+      index = LibraryIndex.open(indexFile);
+    } catch (IOException e) {
+      LOGGER.warning("failed to open library index, nested exception is " + e);
+      indexFile.delete();
+    }
+    if (index != null) {
+      mSnapshot = mSnapshot.withIndex(index);
+      LOGGER.info("load " + index.size() + " music(s) from index");
+      syncSearchIndex(index);
+    }
+    return index;
+  }
+
+  /**
+   * Get index loaded.
+   *
+   * @return index, null if not written yet
+   */
+  public LibraryIndex getIndex() {
+    return mSnapshot.index;
+  }
+
+  /**
+   * Reload index after index file rewritten, provisional musics are dropped.
+   *
+   * @return true if success
+   */
+  public boolean reload() {
+    LibraryIndex index;
+    try {
+      index = LibraryIndex.open(mIndexFile);
+      if (index == null) return false;
+    } catch (IOException e) {
+      LOGGER.warning("failed to reload library index, nested exception is "
+          + e);
+      return false;
+    }
+    mSnapshot = mSnapshot.withIndex(index);
+    LOGGER.info("reload " + index.size() + " music(s) from index");
+    syncSearchIndex(index);
+    return true;
+  }
+
+  private void syncSearchIndex(final LibraryIndex index) {
+    mIndexer.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        long start = System.currentTimeMillis();
+        mSearchIndex.sync(index);
+        LOGGER.info("sync search index of " + mSearchIndex.size()
+            + " music(s) in " + (System.currentTimeMillis() - start) + "ms");
+      }
+    });
+  }
+
+  /**
+   * Add musics found before first index written.
+   *
+   * @param musics musics with ids assigned in order
+   */
+  public void addProvisionalMusics(final List<Music> musics) {
+    mSnapshot = mSnapshot.withProvisionalMusics(musics);
+    mIndexer.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        for (Music music : musics) {
+          mSearchIndex.add(music);
+        }
+      }
+    });
+  }
+
+  /**
+   * Search musics, musics being indexed may be missing. Safe to call from
+   * other threads.
+   *
+   * @param query query
+   * @param maxResults max count of results
+   * @return ids of musics
+   * @see SearchIndex#search(String, int)
+   */
+  public int[] search(String query, int maxResults) {
+    return mSearchIndex.search(query, maxResults);
+  }
+
+  /**
+   * Get count of musics.
+   *
+   * @return count
+   */
+  public int size() {
+    Snapshot snapshot = mSnapshot;
+    return snapshot.index != null ? snapshot.index.size()
+        : snapshot.provisionalCount;
+  }
+
+  /**
+   * Get music at specified position in library order.
+   *
+   * @param position position
+   * @return music
+   */
+  public Music getMusicAt(int position) {
+    Snapshot snapshot = mSnapshot;
+    if (snapshot.index != null) return snapshot.index.getMusic(position);
+    if (position < 0 || position >= snapshot.provisionalCount) {
+      throw new IndexOutOfBoundsException("position " + position);
+    }
+    return snapshot.provisionalMusics[position];
+  }
+
+  /**
+   * Get ids of all musics in library order.
+   *
+   * @return ids
+   */
+  public int[] getIds() {
+    Snapshot snapshot = mSnapshot;
+    if (snapshot.index != null) return snapshot.index.getIds();
+
+    int[] ids = new int[snapshot.provisionalCount];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = snapshot.provisionalMusics[i].getId();
+    }
+    return ids;
+  }
+
+  /**
+   * Add remote stream, or get stream added before. Safe to call from any
+   * thread.
+   *
+   * @param url http or https url
+   * @return id of stream
+   * @see StreamProxy#isStream(String)
+   */
+  public int addStream(String url) {
+    synchronized (mStreamsByUrl) {
+      Music stream = mStreamsByUrl.get(url);
+      if (stream != null) return stream.getId();
+
+      Music[] streams = new Music[mStreams.length + 1];
+      System.arraycopy(mStreams, 0, streams, 0, mStreams.length);
+      stream =
+          new Music(FIRST_STREAM_ID - mStreams.length, titleOfUrl(url), url,
+              null, null, 0, 0, 0, 0, null, ContentHasher.UNKNOWN);
+      streams[mStreams.length] = stream;
+      mStreamsByUrl.put(url, stream);
+      mStreams = streams;
+      LOGGER.fine("add stream " + stream.getId() + " " + url);
+      return stream.getId();
+    }
+  }
+
+  /**
+   * Write urls of streams in queue, ids of streams are kept in process only.
+   *
+   * @param queue queue
+   * @param out output
+   * @throws IOException if failed to write
+   * @see #readStreams(PlayQueue, DataInputStream)
+   */
+  public void writeStreams(PlayQueue queue, DataOutputStream out)
+      throws IOException {
+    Music[] streams = mStreams;
+    boolean[] queued = new boolean[streams.length];
+    int count = 0;
+    for (int i = 0; i < queue.size(); i++) {
+      int position = FIRST_STREAM_ID - queue.getId(i);
+      if (position >= 0 && position < streams.length && !queued[position]) {
+        queued[position] = true;
+        count++;
+      }
+    }
+    out.writeInt(count);
+    for (int i = 0; i < streams.length; i++) {
+      if (!queued[i]) continue;
+      out.writeInt(streams[i].getId());
+      out.writeUTF(streams[i].getPath());
+    }
+  }
+
+  /**
+   * Read urls written by {@link #writeStreams(PlayQueue, DataOutputStream)}
+   * and replace ids of streams in queue read before with ids of this
+   * process, streams are added if not yet. Ids of streams without url are
+   * replaced with {@link Music#NO_ID}.
+   *
+   * @param queue queue of ids written with urls
+   * @param in input
+   * @throws IOException if failed to read or corrupted
+   */
+  public void readStreams(PlayQueue queue, DataInputStream in)
+      throws IOException {
+    int count = in.readInt();
+    if (count < 0 || count > queue.size()) {
+      throw new IOException("corrupted streams of queue");
+    }
+    Map<Integer, Integer> ids = new HashMap<Integer, Integer>();
+    for (int i = 0; i < count; i++) {
+      int id = in.readInt();
+      String url = in.readUTF();
+      if (id > FIRST_STREAM_ID || !StreamProxy.isStream(url)) {
+        throw new IOException("corrupted streams of queue");
+      }
+      ids.put(id, addStream(url));
+    }
+    for (int i = 0; i < queue.size(); i++) {
+      int id = queue.getId(i);
+      if (id > FIRST_STREAM_ID) continue;
+      Integer newId = ids.get(id);
+      queue.setId(i, newId != null ? newId : Music.NO_ID);
+    }
+  }
+
+  /**
+   * Get title of stream from last segment of url path.
+   *
+   * @param url url
+   * @return title, url itself if path has no name
+   */
+  static String titleOfUrl(String url) {
+    int end = url.length();
+    int query = url.indexOf('?');
+    if (query >= 0) end = query;
+    int fragment = url.indexOf('#');
+    if (fragment >= 0 && fragment < end) end = fragment;
+    int start = url.lastIndexOf('/', end - 1) + 1;
+    int scheme = url.indexOf("://");
+    if (start <= scheme + 3 || start >= end) return url;
+    return Music.titleOf(url.substring(start, end));
+  }
+
+  /**
+   * Find music by path, url of stream is added as stream.
+   *
+   * @param path path or url
+   * @return id, {@link Music#NO_ID} if not in library
+   */
+  @Override
+  public int findId(String path) {
+    if (StreamProxy.isStream(path)) return addStream(path);
+
+    Snapshot snapshot = mSnapshot;
+    if (snapshot.index != null) {
+      int position = snapshot.index.findPosition(path);
+      return position < 0 ? Music.NO_ID : snapshot.index.getId(position);
+    }
+    for (int i = 0; i < snapshot.provisionalCount; i++) {
+      Music music = snapshot.provisionalMusics[i];
+      if (music.getPath().equals(path)) return music.getId();
+    }
+    return Music.NO_ID;
+  }
+
+  /**
+   * Get music by id.
+   *
+   * @param id id
+   * @return music, null if not in library
+   */
+  public Music getMusic(int id) {
+    if (id <= FIRST_STREAM_ID) {
+      Music[] streams = mStreams;
+      int position = FIRST_STREAM_ID - id;
+      return position < streams.length ? streams[position] : null;
+    }
+    Snapshot snapshot = mSnapshot;
+    if (snapshot.index != null) return snapshot.index.getMusicById(id);
+    if (id < 0 || id >= snapshot.provisionalCount) return null;
+    return snapshot.provisionalMusics[id];
+  }
+
+}
@@ -0,0 +1,141 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring buffer of 16 bit PCM samples between one producer thread and one
+ * consumer thread, e.g. decoder and audio output, without locks.
+ * <p>
+ * Each side owns one counter of samples, written by that side only and
+ * published by an ordered store, and keeps a cached copy of the other
+ * counter, read again only when the cache says buffer is full or empty. So
+ * a write or read of a block costs a copy plus at most one volatile read,
+ * and nothing is allocated after construction. Capacity is a power of two,
+ * counters are masked to positions.
+ *
+ * @author xnnyygn
+ */
+public class PcmRingBuffer {
+
+  private final short[] mBuffer;
+  private final int mMask;
+
+  /**
+   * Samples written, by producer.
+   */
+  private final AtomicLong mWritten = new AtomicLong();
+
+  /**
+   * Samples read, by consumer.
+   */
+  private final AtomicLong mRead = new AtomicLong();
+
+  /**
+   * Count of samples read as last seen by producer.
+   */
+  private long mReadCache;
+
+  /**
+   * Count of samples written as last seen by consumer.
+   */
+  private long mWrittenCache;
+
+  /**
+   * Create ring buffer.
+   *
+   * @param capacity capacity in samples, rounded up to a power of two
+   */
+  public PcmRingBuffer(int capacity) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("capacity " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    mBuffer = new short[size];
+    mMask = size - 1;
+  }
+
+  /**
+   * Get capacity.
+   *
+   * @return capacity in samples
+   */
+  public int capacity() {
+    return mBuffer.length;
+  }
+
+  /**
+   * Write samples as many as space allows, called by producer only.
+   *
+   * @param samples samples
+   * @param offset offset in samples
+   * @param length count of samples
+   * @return count written, 0 if full
+   */
+  public int write(short[] samples, int offset, int length) {
+    long written = mWritten.get();
+    int free = (int) (mBuffer.length - (written - mReadCache));
+    if (free < length) {
+      mReadCache = mRead.get();
+      free = (int) (mBuffer.length - (written - mReadCache));
+    }
+    int count = Math.min(free, length);
+    if (count <= 0) return 0;
+
+    int position = (int) written & mMask;
+    int first = Math.min(count, mBuffer.length - position);
+    System.arraycopy(samples, offset, mBuffer, position, first);
+    System.arraycopy(samples, offset + first, mBuffer, 0, count - first);
+    mWritten.lazySet(written + count);
+    return count;
+  }
+
+  /**
+   * Read samples as many as available, called by consumer only.
+   *
+   * @param samples buffer to read into
+   * @param offset offset in samples
+   * @param length max count of samples
+   * @return count read, 0 if empty
+   */
+  public int read(short[] samples, int offset, int length) {
+    long read = mRead.get();
+    int available = (int) (mWrittenCache - read);
+    if (available < length) {
+      mWrittenCache = mWritten.get();
+      available = (int) (mWrittenCache - read);
+    }
+    int count = Math.min(available, length);
+    if (count <= 0) return 0;
+
+    int position = (int) read & mMask;
+    int first = Math.min(count, mBuffer.length - position);
+    System.arraycopy(mBuffer, position, samples, offset, first);
+    System.arraycopy(mBuffer, 0, samples, offset + first, count - first);
+    mRead.lazySet(read + count);
+    return count;
+  }
+
+  /**
+   * Get count of samples available to read, approximate while other side
+   * runs.
+   *
+   * @return count
+   */
+  public int available() {
+    return (int) (mWritten.get() - mRead.get());
+  }
+
+  /**
+   * Drop samples written but not read. Caller must make sure neither side
+   * runs, e.g. consumer parked on a lock producer holds, so that the lock
+   * orders this against both.
+   */
+  public void clear() {
+    long written = mWritten.get();
+    mRead.set(written);
+    mReadCache = written;
+    mWrittenCache = written;
+  }
+
+}
@@ -0,0 +1,391 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Play queue of track ids.
+ * <p>
+ * Ids are kept in a primitive int array. Shuffle order is a permutation of
+ * queue positions generated lazily, one position each time queue moves past
+ * the generated part (Fisher-Yates step), so turning shuffle on or off is
+ * O(1) for any queue size. Positions already generated are kept, so moving
+ * back replays the same order. Permutation arrays are allocated at most once
+ * per queue and encoded as value + 1, where 0 means identity, so that they
+ * need no initialization.
+ *
+ * @author xnnyygn
+ */
+public class PlayQueue {
+
+  /**
+   * Filter of tracks, e.g. tracks found in library.
+   *
+   * @author xnnyygn
+   */
+  public interface Filter {
+
+    /**
+     * Test if track at position is accepted.
+     *
+     * @param position position in queue order
+     * @return true if accepted
+     */
+    boolean accept(int position);
+
+  }
+
+  private static final int FORMAT_VERSION = 1;
+
+  private final Random mRandom;
+  private int[] mIds = new int[0];
+  private int mSize = 0;
+
+  /**
+   * Position in ids of current track, -1 if empty.
+   */
+  private int mCursor = -1;
+
+  private boolean mShuffle = false;
+  private int[] mOrder;
+  private int[] mInverse;
+
+  /**
+   * Count of generated shuffle positions.
+   */
+  private int mGenerated;
+  private int mShuffleCursor;
+
+  public PlayQueue() {
+    this(new Random());
+  }
+
+  public PlayQueue(Random random) {
+    mRandom = random;
+  }
+
+  /**
+   * Replace tracks, shuffle restarts from the cursor if on.
+   *
+   * @param ids track ids, owned by queue after call
+   * @param size count of ids used
+   * @param cursor position of current track
+   */
+  public void setTracks(int[] ids, int size, int cursor) {
+    if (cursor < 0 || cursor >= size) {
+      throw new IndexOutOfBoundsException("cursor " + cursor + ", size " + size);
+    }
+    mIds = ids;
+    mSize = size;
+    mCursor = cursor;
+    mOrder = null;
+    mInverse = null;
+    if (mShuffle) startShuffle();
+  }
+
+  /**
+   * Remove all tracks.
+   */
+  public void clear() {
+    mIds = new int[0];
+    mSize = 0;
+    mCursor = -1;
+    mOrder = null;
+    mInverse = null;
+  }
+
+  /**
+   * Create a queue of ids from 0 (inclusive) to size (exclusive).
+   *
+   * @param size size
+   * @return ids
+   */
+  public static int[] range(int size) {
+    int[] ids = new int[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = i;
+    }
+    return ids;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  /**
+   * Get id at specified position in queue order.
+   *
+   * @param position position
+   * @return id
+   */
+  public int getId(int position) {
+    return mIds[position];
+  }
+
+  /**
+   * Replace id at specified position in queue order, e.g. once resolved.
+   * Order and cursor are kept.
+   *
+   * @param position position
+   * @param id id
+   */
+  public void setId(int position, int id) {
+    if (position < 0 || position >= mSize) {
+      throw new IndexOutOfBoundsException("position " + position + ", size "
+          + mSize);
+    }
+    mIds[position] = id;
+  }
+
+  /**
+   * Get position of current track in queue order.
+   *
+   * @return cursor, -1 if empty
+   */
+  public int getCursor() {
+    return mCursor;
+  }
+
+  /**
+   * Get id of current track.
+   *
+   * @return id, -1 if empty
+   */
+  public int getCurrentId() {
+    return mCursor < 0 ? -1 : mIds[mCursor];
+  }
+
+  /**
+   * Move to specified position, shuffle restarts from there if on.
+   *
+   * @param position position in queue order
+   */
+  public void moveTo(int position) {
+    if (position < 0 || position >= mSize) {
+      throw new IndexOutOfBoundsException("position " + position + ", size "
+          + mSize);
+    }
+    mCursor = position;
+    if (mShuffle) startShuffle();
+  }
+
+  public boolean isShuffle() {
+    return mShuffle;
+  }
+
+  /**
+   * Turn shuffle on or off, current track is kept.
+   *
+   * @param shuffle shuffle
+   */
+  public void setShuffle(boolean shuffle) {
+    if (mShuffle == shuffle) return;
+    mShuffle = shuffle;
+    if (shuffle && mSize > 0) startShuffle();
+  }
+
+  private void startShuffle() {
+    if (mOrder == null || mOrder.length < mSize) {
+      mOrder = new int[mSize];
+      mInverse = new int[mSize];
+    }
+    // any permutation left from last shuffle is valid, just bring current
+    // track to front
+    swap(0, inverse(mCursor));
+    mGenerated = 1;
+    mShuffleCursor = 0;
+  }
+
+  /**
+   * Get position of next track without moving.
+   *
+   * @param wrap wrap to start at end of queue
+   * @return position, -1 if at end and not wrap
+   */
+  public int peekNext(boolean wrap) {
+    if (mSize == 0) return -1;
+    if (!mShuffle) {
+      if (mCursor + 1 < mSize) return mCursor + 1;
+      return wrap ? 0 : -1;
+    }
+
+    if (mShuffleCursor + 1 < mGenerated) return order(mShuffleCursor + 1);
+    if (mGenerated < mSize) {
+      // generate one more shuffle position
+      swap(mGenerated, mGenerated + mRandom.nextInt(mSize - mGenerated));
+      mGenerated++;
+      return order(mShuffleCursor + 1);
+    }
+    // replay same order when wrapping
+    return wrap ? order(0) : -1;
+  }
+
+  /**
+   * Move to next track.
+   *
+   * @param wrap wrap to start at end of queue
+   * @return true if moved
+   */
+  public boolean moveToNext(boolean wrap) {
+    int next = peekNext(wrap);
+    if (next < 0) return false;
+    if (mShuffle) {
+      mShuffleCursor = mShuffleCursor + 1 < mGenerated ? mShuffleCursor + 1 : 0;
+    }
+    mCursor = next;
+    return true;
+  }
+
+  /**
+   * Get position of next track accepted by filter without moving, tracks
+   * not accepted are passed over. Each track is tried at most once.
+   *
+   * @param wrap wrap to start at end of queue
+   * @param filter filter
+   * @return position, -1 if none accepted
+   */
+  public int peekNext(boolean wrap, Filter filter) {
+    int cursor = mCursor;
+    int shuffleCursor = mShuffleCursor;
+    try {
+      for (int i = 0; i < mSize; i++) {
+        if (!moveToNext(wrap)) return -1;
+        if (filter.accept(mCursor)) return mCursor;
+      }
+      return -1;
+    } finally {
+      // shuffle positions generated meanwhile are kept
+      mCursor = cursor;
+      mShuffleCursor = shuffleCursor;
+    }
+  }
+
+  /**
+   * Move from current track on to first track accepted by filter, current
+   * track included. Each track is tried at most once.
+   *
+   * @param wrap wrap to start at end of queue
+   * @param filter filter
+   * @return true if on a track accepted, otherwise cursor is on last track
+   *         tried
+   */
+  public boolean moveToAccepted(boolean wrap, Filter filter) {
+    for (int i = 0; i < mSize; i++) {
+      if (filter.accept(mCursor)) return true;
+      if (!moveToNext(wrap)) return false;
+    }
+    return false;
+  }
+
+  /**
+   * Get position of previous track without moving.
+   *
+   * @param wrap wrap to end at start of queue
+   * @return position, -1 if at start and not wrap
+   */
+  public int peekPrevious(boolean wrap) {
+    if (mSize == 0) return -1;
+    if (!mShuffle) {
+      if (mCursor > 0) return mCursor - 1;
+      return wrap ? mSize - 1 : -1;
+    }
+
+    if (mShuffleCursor > 0) return order(mShuffleCursor - 1);
+    return wrap ? order(mGenerated - 1) : -1;
+  }
+
+  /**
+   * Move to previous track, in shuffle mode tracks are played back in
+   * reversed shuffle order.
+   *
+   * @param wrap wrap to end at start of queue
+   * @return true if moved
+   */
+  public boolean moveToPrevious(boolean wrap) {
+    int previous = peekPrevious(wrap);
+    if (previous < 0) return false;
+    if (mShuffle) {
+      mShuffleCursor = mShuffleCursor > 0 ? mShuffleCursor - 1 : mGenerated - 1;
+    }
+    mCursor = previous;
+    return true;
+  }
+
+  private int order(int i) {
+    int value = mOrder[i];
+    return value == 0 ? i : value - 1;
+  }
+
+  private int inverse(int position) {
+    int value = mInverse[position];
+    return value == 0 ? position : value - 1;
+  }
+
+  private void swap(int i, int j) {
+    if (i == j) return;
+    int a = order(i);
+    int b = order(j);
+    mOrder[i] = b + 1;
+    mOrder[j] = a + 1;
+    mInverse[b] = i + 1;
+    mInverse[a] = j + 1;
+  }
+
+  /**
+   * Write ids, cursor and shuffle flag. Shuffle order is not written,
+   * shuffle restarts from cursor after read.
+   *
+   * @param out output
+   * @throws IOException if failed to write
+   */
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(mSize);
+    out.writeInt(mCursor);
+    out.writeBoolean(mShuffle);
+    for (int i = 0; i < mSize; i++) {
+      out.writeInt(mIds[i]);
+    }
+  }
+
+  /**
+   * Read queue written by {@link #writeTo(DataOutputStream)}.
+   *
+   * @param in input
+   * @param maxLength max length of input in bytes, e.g. file length, count of
+   *        ids beyond it is rejected before allocating
+   * @throws IOException if failed to read, format not supported or corrupted
+   */
+  public void readFrom(DataInputStream in, long maxLength) throws IOException {
+    if (in.readInt() != FORMAT_VERSION) {
+      throw new IOException("unsupported queue format");
+    }
+    int size = in.readInt();
+    int cursor = in.readInt();
+    boolean shuffle = in.readBoolean();
+    if (size < 0 || (long) size * 4 > maxLength
+        || (size > 0 ? cursor < 0 || cursor >= size : cursor != -1)) {
+      throw new IOException("corrupted queue");
+    }
+    int[] ids = new int[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = in.readInt();
+    }
+
+    mShuffle = shuffle;
+    if (size == 0) {
+      mIds = ids;
+      mSize = 0;
+      mCursor = -1;
+    } else {
+      setTracks(ids, size, cursor);
+    }
+  }
+
+}
@@ -0,0 +1,97 @@
+package in.xnnyygn.android.musicplayer;
+
+/**
+ * Snapshot of playback clock published by service on state change.
+ * <p>
+ * Position at any time is extrapolated from anchor position read from media
+ * player at anchor time, so that position can be shown every frame without
+ * asking media player.
+ *
+ * @author xnnyygn
+ */
+public class PlaybackClock {
+
+  /**
+   * Clock of player not prepared.
+   */
+  public static final PlaybackClock STOPPED = new PlaybackClock(
+      PlayerStatus.INIT, 0, 0, 0, 0f);
+
+  private final int status;
+  private final int duration;
+  private final int anchorPosition;
+  private final long anchorUptime;
+  private final float rate;
+
+  /**
+   * Create clock.
+   *
+   * @param status player status
+   * @param duration duration, 0 if unknown
+   * @param anchorPosition position at anchor time
+   * @param anchorUptime anchor time in uptime milliseconds
+   * @param rate position advanced per millisecond, 0 if not playing
+   */
+  public PlaybackClock(int status, int duration, int anchorPosition,
+      long anchorUptime, float rate) {
+    this.status = status;
+    this.duration = duration;
+    this.anchorPosition = anchorPosition;
+    this.anchorUptime = anchorUptime;
+    this.rate = rate;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * Get duration.
+   *
+   * @return duration, 0 if unknown
+   */
+  public int getDuration() {
+    return duration;
+  }
+
+  public int getAnchorPosition() {
+    return anchorPosition;
+  }
+
+  public long getAnchorUptime() {
+    return anchorUptime;
+  }
+
+  public float getRate() {
+    return rate;
+  }
+
+  /**
+   * Test if position advances by time.
+   *
+   * @return true if running
+   */
+  public boolean isRunning() {
+    return rate > 0f;
+  }
+
+  /**
+   * Get position extrapolated to specified time, never beyond duration.
+   *
+   * @param uptime time in uptime milliseconds
+   * @return position
+   */
+  public int getPosition(long uptime) {
+    long elapsed = Math.max(0L, uptime - anchorUptime);
+    int position = anchorPosition + (int) (elapsed * rate);
+    return duration > 0 ? Math.min(position, duration) : position;
+  }
+
+  @Override
+  public String toString() {
+    return "PlaybackClock [status=" + status + ", duration=" + duration
+        + ", anchorPosition=" + anchorPosition + ", anchorUptime="
+        + anchorUptime + ", rate=" + rate + "]";
+  }
+
+}
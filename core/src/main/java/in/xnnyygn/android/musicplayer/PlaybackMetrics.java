@@ -0,0 +1,223 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Playback metrics shared in process.
+ * <p>
+ * Latencies are recorded in histograms, in total and by size of file and by
+ * storage root the file is on, so that devices and storages can be compared.
+ * Recording does not allocate, callers measure time by themselves.
+ *
+ * @author xnnyygn
+ */
+public class PlaybackMetrics {
+
+  private static final PlaybackMetrics sInstance = new PlaybackMetrics();
+
+  private static final long SIZE_SMALL = 4L * 1024 * 1024;
+  private static final long SIZE_MEDIUM = 16L * 1024 * 1024;
+  private static final String[] SIZE_NAMES = {"small", "medium", "large"};
+
+  /**
+   * Max count of storage roots distinguished, files on other roots are
+   * counted as other.
+   */
+  private static final int MAX_ROOTS = 4;
+
+  /**
+   * Latency in total and by dimensions.
+   *
+   * @author xnnyygn
+   */
+  private class Metric {
+
+    private final Histogram total;
+    private final Histogram[] bySize = new Histogram[SIZE_NAMES.length];
+    private final Histogram[] byRoot = new Histogram[MAX_ROOTS + 1];
+
+    Metric(String name) {
+      total = new Histogram(name);
+      for (int i = 0; i < bySize.length; i++) {
+        bySize[i] = new Histogram(name + ".size." + SIZE_NAMES[i]);
+      }
+      for (int i = 0; i < byRoot.length; i++) {
+        byRoot[i] =
+            new Histogram(name + ".root." + (i < MAX_ROOTS ? i : "other"));
+      }
+    }
+
+    void record(long millis, Music music) {
+      total.record(millis);
+      if (music == null) return;
+      bySize[sizeClassOf(music.getSize())].record(millis);
+      byRoot[rootIndexOf(music.getPath())].record(millis);
+    }
+
+    void dump(PrintWriter writer) {
+      total.dump(writer);
+      for (Histogram histogram : bySize) {
+        if (histogram.getCount() > 0) histogram.dump(writer);
+      }
+      for (Histogram histogram : byRoot) {
+        if (histogram.getCount() > 0) histogram.dump(writer);
+      }
+    }
+
+  }
+
+  private volatile String[] mRoots = new String[0];
+
+  private final Metric mTimeToFirstAudio = new Metric("ttfa");
+  private final Metric mPrepareLatency = new Metric("prepare");
+  private final Metric mSeekLatency = new Metric("seek");
+  private final AtomicLong mErrors = new AtomicLong();
+  private final AtomicLongArray mErrorsByRoot = new AtomicLongArray(
+      MAX_ROOTS + 1);
+  private final Histogram mScanDuration = new Histogram("scan");
+  private final AtomicLong mLastScanTotal = new AtomicLong();
+
+  private PlaybackMetrics() {
+  }
+
+  /**
+   * Get metrics.
+   *
+   * @return metrics
+   */
+  public static PlaybackMetrics getInstance() {
+    return sInstance;
+  }
+
+  /**
+   * Set storage roots to distinguish, in order of index shown in metrics.
+   *
+   * @param roots roots
+   */
+  public void setStorageRoots(List<File> roots) {
+    int count = Math.min(roots.size(), MAX_ROOTS);
+    String[] paths = new String[count];
+    for (int i = 0; i < count; i++) {
+      paths[i] = roots.get(i).getAbsolutePath();
+    }
+    mRoots = paths;
+  }
+
+  private static int sizeClassOf(long size) {
+    if (size < SIZE_SMALL) return 0;
+    return size < SIZE_MEDIUM ? 1 : 2;
+  }
+
+  private int rootIndexOf(String path) {
+    String[] roots = mRoots;
+    for (int i = 0; i < roots.length; i++) {
+      String root = roots[i];
+      if (path.startsWith(root)
+          && (path.length() == root.length() || path.charAt(root.length())
+              == File.separatorChar)) {
+        return i;
+      }
+    }
+    return MAX_ROOTS;
+  }
+
+  /**
+   * Record time from play requested to audio started.
+   *
+   * @param millis time
+   * @param music music played
+   */
+  public void recordTimeToFirstAudio(long millis, Music music) {
+    mTimeToFirstAudio.record(millis, music);
+  }
+
+  /**
+   * Record time from prepare started to prepared.
+   *
+   * @param millis time
+   * @param music music prepared
+   */
+  public void recordPrepareLatency(long millis, Music music) {
+    mPrepareLatency.record(millis, music);
+  }
+
+  /**
+   * Record time from seek requested to seek completed.
+   *
+   * @param millis time
+   * @param music music played
+   */
+  public void recordSeekLatency(long millis, Music music) {
+    mSeekLatency.record(millis, music);
+  }
+
+  /**
+   * Record error of player.
+   *
+   * @param music music failed, null if unknown
+   */
+  public void recordError(Music music) {
+    mErrors.incrementAndGet();
+    if (music != null) {
+      mErrorsByRoot.incrementAndGet(rootIndexOf(music.getPath()));
+    }
+  }
+
+  /**
+   * Record duration of library scan.
+   *
+   * @param millis time
+   * @param total count of musics found
+   */
+  public void recordScan(long millis, int total) {
+    mScanDuration.record(millis);
+    mLastScanTotal.set(total);
+  }
+
+  /**
+   * Get compact summary in one line, count, p50 and p90 of each latency.
+   *
+   * @return summary
+   */
+  public String toCompactString() {
+    StringBuilder builder = new StringBuilder(128);
+    mTimeToFirstAudio.total.appendSummary(builder);
+    builder.append(' ');
+    mPrepareLatency.total.appendSummary(builder);
+    builder.append(' ');
+    mSeekLatency.total.appendSummary(builder);
+    builder.append(" errors=").append(mErrors.get()).append(' ');
+    mScanDuration.appendSummary(builder);
+    builder.append(" scanned=").append(mLastScanTotal.get());
+    return builder.toString();
+  }
+
+  /**
+   * Dump all metrics.
+   *
+   * @param writer writer
+   */
+  public void dump(PrintWriter writer) {
+    String[] roots = mRoots;
+    for (int i = 0; i < roots.length; i++) {
+      writer.println("root." + i + ": " + roots[i]);
+    }
+    mTimeToFirstAudio.dump(writer);
+    mPrepareLatency.dump(writer);
+    mSeekLatency.dump(writer);
+    writer.print("errors: count=");
+    writer.print(mErrors.get());
+    for (int i = 0; i <= MAX_ROOTS; i++) {
+      writer.print(" root." + (i < MAX_ROOTS ? i : "other") + "=");
+      writer.print(mErrorsByRoot.get(i));
+    }
+    writer.println();
+    mScanDuration.dump(writer);
+    writer.println("scanned: " + mLastScanTotal.get());
+  }
+
+}
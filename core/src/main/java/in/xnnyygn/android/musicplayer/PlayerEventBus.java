@@ -0,0 +1,215 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * In-process registry of player listeners.
+ * <p>
+ * Events are dispatched on executor chosen by each listener. Events published
+ * before last dispatch runs are coalesced, that is, listener gets only latest
+ * value of each kind, so a burst of status changes costs one dispatch.
+ * Listeners are kept in copy-on-write list, publishing never locks against
+ * registration.
+ *
+ * @author xnnyygn
+ */
+public class PlayerEventBus {
+
+  /**
+   * Player listener, all methods are called on executor registered with.
+   *
+   * @author xnnyygn
+   */
+  public interface Listener {
+
+    /**
+     * Called when current music changed.
+     *
+     * @param music current music
+     */
+    void onTrackChanged(Music music);
+
+    /**
+     * Called when player status changed.
+     *
+     * @param status status
+     * @see PlayerStatus#PLAYING
+     */
+    void onStatusChanged(int status);
+
+    /**
+     * Called on position discontinuity, that is, status change or seek.
+     *
+     * @param clock clock anchored at discontinuity
+     */
+    void onClockChanged(PlaybackClock clock);
+
+    /**
+     * Called when failed to play music.
+     *
+     * @param music music failed
+     */
+    void onError(Music music);
+
+  }
+
+  private static final int EVENT_TRACK = 1;
+  private static final int EVENT_STATUS = 1 << 1;
+  private static final int EVENT_CLOCK = 1 << 2;
+  private static final int EVENT_ERROR = 1 << 3;
+
+  private final CopyOnWriteArrayList<Registration> mRegistrations =
+      new CopyOnWriteArrayList<Registration>();
+
+  /**
+   * Latest values, guarded by this.
+   */
+  private Music mTrack;
+  private int mStatus = PlayerStatus.INIT;
+  private PlaybackClock mClock = PlaybackClock.STOPPED;
+  private Music mErrorTrack;
+
+  /**
+   * Register listener, latest track, status and clock are dispatched to it
+   * at once.
+   *
+   * @param listener listener
+   * @param executor executor to dispatch events on, e.g. main looper
+   */
+  public void addListener(Listener listener, Executor executor) {
+    Registration registration = new Registration(listener, executor);
+    mRegistrations.add(registration);
+    registration.post(EVENT_TRACK | EVENT_STATUS | EVENT_CLOCK);
+  }
+
+  /**
+   * Unregister listener, no event is dispatched to it after call if called on
+   * its executor.
+   *
+   * @param listener listener
+   */
+  public void removeListener(Listener listener) {
+    for (Registration registration : mRegistrations) {
+      if (registration.listener == listener) {
+        registration.cancel();
+        mRegistrations.remove(registration);
+      }
+    }
+  }
+
+  public void publishTrack(Music music) {
+    synchronized (this) {
+      mTrack = music;
+    }
+    publish(EVENT_TRACK);
+  }
+
+  public void publishStatus(int status) {
+    synchronized (this) {
+      mStatus = status;
+    }
+    publish(EVENT_STATUS);
+  }
+
+  public void publishClock(PlaybackClock clock) {
+    synchronized (this) {
+      mClock = clock;
+    }
+    publish(EVENT_CLOCK);
+  }
+
+  public void publishError(Music music) {
+    synchronized (this) {
+      mErrorTrack = music;
+    }
+    publish(EVENT_ERROR);
+  }
+
+  private void publish(int event) {
+    for (Registration registration : mRegistrations) {
+      registration.post(event);
+    }
+  }
+
+  /**
+   * Listener with events pending dispatch.
+   *
+   * @author xnnyygn
+   */
+  private class Registration implements Runnable {
+
+    final Listener listener;
+    private final Executor executor;
+
+    /**
+     * Events not dispatched yet, guarded by this. Runnable is posted only when
+     * it changes from 0.
+     */
+    private int pendingEvents;
+    private boolean cancelled;
+
+    Registration(Listener listener, Executor executor) {
+      this.listener = listener;
+      this.executor = executor;
+    }
+
+    void post(int event) {
+      synchronized (this) {
+        if (cancelled) return;
+        boolean posted = pendingEvents != 0;
+        pendingEvents |= event;
+        if (posted) return;
+      }
+      executor.execute(this);
+    }
+
+    void cancel() {
+      // runnable already submitted finds no pending event
+      synchronized (this) {
+        cancelled = true;
+        pendingEvents = 0;
+      }
+    }
+
+    @Override
+    public void run() {
+      int events;
+      synchronized (this) {
+        events = pendingEvents;
+        pendingEvents = 0;
+      }
+      if (events == 0) return;
+
+      Music track;
+      int status;
+      PlaybackClock clock;
+      Music errorTrack;
+      synchronized (PlayerEventBus.this) {
+        track = mTrack;
+        status = mStatus;
+        clock = mClock;
+        errorTrack = mErrorTrack;
+      }
+      // listener may remove itself in any callback
+      if ((events & EVENT_TRACK) != 0 && !isCancelled()) {
+        listener.onTrackChanged(track);
+      }
+      if ((events & EVENT_STATUS) != 0 && !isCancelled()) {
+        listener.onStatusChanged(status);
+      }
+      if ((events & EVENT_CLOCK) != 0 && !isCancelled()) {
+        listener.onClockChanged(clock);
+      }
+      if ((events & EVENT_ERROR) != 0 && !isCancelled()) {
+        listener.onError(errorTrack);
+      }
+    }
+
+    private synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+  }
+
+}
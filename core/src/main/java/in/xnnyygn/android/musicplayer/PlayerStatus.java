@@ -0,0 +1,39 @@
+package in.xnnyygn.android.musicplayer;
+
+/**
+ * Status of player, shared by service, event bus and clock.
+ *
+ * @author xnnyygn
+ */
+public final class PlayerStatus {
+
+  public static final int INIT = 0;
+  public static final int PLAYING = 1;
+  public static final int PAUSED = 2;
+  public static final int PREPARING = 3;
+  public static final int PREPARED = 4;
+  public static final int COMPLETED = 5;
+  public static final int ERROR = 6;
+
+  private PlayerStatus() {
+  }
+
+  /**
+   * Test if player in status is prepared, that is, duration and position are
+   * available.
+   *
+   * @param status status
+   * @return true if prepared
+   */
+  public static boolean isPrepared(int status) {
+    switch (status) {
+      case PREPARED:
+      case PLAYING:
+      case PAUSED:
+      case COMPLETED:
+        return true;
+    }
+    return false;
+  }
+
+}
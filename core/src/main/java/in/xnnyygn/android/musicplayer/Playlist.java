@@ -0,0 +1,361 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Playlist file whose entries are resolved to musics of library lazily.
+ * <p>
+ * Opening reads the file once and keeps only offset of each entry, so a
+ * playlist of tens of thousands of entries costs an int per entry. Entries
+ * are read again and resolved to ids in batches of {@link #BATCH_SIZE} when
+ * playback or view reaches them, see {@link #resolve(int, int, Resolver)}.
+ * Relative paths are resolved against directory of playlist file, file urls
+ * are decoded, other urls are kept as is, http ones resolved to streams by
+ * {@link MusicCatalog}. Entries not found in library are collected for
+ * report.
+ *
+ * @author xnnyygn
+ */
+public class Playlist {
+
+  /**
+   * Resolver of paths to ids of library.
+   *
+   * @author xnnyygn
+   */
+  public interface Resolver {
+
+    /**
+     * Find music by path.
+     *
+     * @param path absolute path or url
+     * @return id, {@link Music#NO_ID} if not found
+     */
+    int findId(String path);
+
+  }
+
+  public static final int FORMAT_M3U = 0;
+  public static final int FORMAT_PLS = 1;
+
+  /**
+   * Id of entry not resolved yet.
+   */
+  public static final int UNRESOLVED = -2;
+  public static final int BATCH_SIZE = 256;
+
+  private static final String LOG_TAG = "playlist";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+  private static final String FILE_URL = "file://";
+  private static final String M3U_HEADER = "#EXTM3U";
+  private static final String PLS_HEADER = "[playlist]";
+  private static final int SNIFF_SIZE = 64;
+
+  private final File mFile;
+  private final int mFormat;
+  private final int[] mOffsets;
+  private final int mSize;
+
+  /**
+   * Locations of entries not found in library, guarded by itself.
+   */
+  private final List<String> mMissing = new ArrayList<String>();
+
+  private Playlist(File file, int format, int[] offsets, int size) {
+    mFile = file;
+    mFormat = format;
+    mOffsets = offsets;
+    mSize = size;
+  }
+
+  /**
+   * Get format of playlist by file name.
+   *
+   * @param name file name
+   * @return format, -1 if not a playlist
+   */
+  public static int formatOf(String name) {
+    String lowerName = name.toLowerCase();
+    if (lowerName.endsWith(".m3u") || lowerName.endsWith(".m3u8")) {
+      return FORMAT_M3U;
+    }
+    return lowerName.endsWith(".pls") ? FORMAT_PLS : -1;
+  }
+
+  /**
+   * Get format of playlist by mime type.
+   *
+   * @param mimeType mime type, null if unknown
+   * @return format, -1 if not a playlist
+   */
+  public static int formatOfMimeType(String mimeType) {
+    if (mimeType == null) return -1;
+    String lowerType = mimeType.toLowerCase();
+    if (lowerType.equals("audio/x-mpegurl") || lowerType.equals("audio/mpegurl")
+        || lowerType.equals("application/x-mpegurl")
+        || lowerType.equals("application/vnd.apple.mpegurl")) {
+      return FORMAT_M3U;
+    }
+    return lowerType.equals("audio/x-scpls") ? FORMAT_PLS : -1;
+  }
+
+  /**
+   * Get format of playlist by its first line, "#EXTM3U" or "[playlist]",
+   * after byte order mark and blank lines if any.
+   *
+   * @param file playlist file
+   * @return format, -1 if neither
+   * @throws IOException if failed to read
+   */
+  static int sniffFormat(File file) throws IOException {
+    byte[] head = new byte[SNIFF_SIZE];
+    int length = 0;
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int n;
+      while (length < head.length
+          && (n = in.read(head, length, head.length - length)) > 0) {
+        length += n;
+      }
+    } finally {
+      in.close();
+    }
+
+    int start = 0;
+    if (length >= 3 && (head[0] & 0xff) == 0xef && (head[1] & 0xff) == 0xbb
+        && (head[2] & 0xff) == 0xbf) {
+      start = 3;
+    }
+    while (start < length && head[start] <= ' ') {
+      start++;
+    }
+    String line = new String(head, start, length - start, "ISO-8859-1");
+    if (line.startsWith(M3U_HEADER)) return FORMAT_M3U;
+    return line.regionMatches(true, 0, PLS_HEADER, 0, PLS_HEADER.length())
+        ? FORMAT_PLS : -1;
+  }
+
+  /**
+   * Open playlist file and index its entries, format by file name or
+   * header.
+   *
+   * @param file playlist file
+   * @return playlist
+   * @throws IOException if failed to read or not a playlist
+   * @see #open(File, String)
+   */
+  public static Playlist open(File file) throws IOException {
+    return open(file, null);
+  }
+
+  /**
+   * Open playlist file and index its entries. Format is told by file name,
+   * or by mime type, e.g. of view intent, or by header of file.
+   *
+   * @param file playlist file
+   * @param mimeType mime type, null if unknown
+   * @return playlist
+   * @throws IOException if failed to read or not a playlist
+   */
+  public static Playlist open(File file, String mimeType) throws IOException {
+    int format = formatOf(file.getName());
+    if (format < 0) format = formatOfMimeType(mimeType);
+    if (format < 0) format = sniffFormat(file);
+    if (format < 0) throw new IOException("not a playlist " + file);
+    if (file.length() > Integer.MAX_VALUE) {
+      throw new IOException("playlist too large " + file);
+    }
+
+    long startedAt = System.currentTimeMillis();
+    int[] offsets = new int[64];
+    int size = 0;
+    PlaylistReader reader =
+        new PlaylistReader(new FileInputStream(file), format, 0);
+    try {
+      PlaylistReader.Entry entry;
+      while ((entry = reader.read()) != null) {
+        if (size == offsets.length) {
+          int[] newOffsets = new int[size * 2];
+          System.arraycopy(offsets, 0, newOffsets, 0, size);
+          offsets = newOffsets;
+        }
+        offsets[size++] = (int) entry.offset;
+      }
+    } finally {
+      reader.close();
+    }
+    LOGGER.info("open playlist " + file + " of " + size + " entries in "
+        + (System.currentTimeMillis() - startedAt) + "ms");
+    return new Playlist(file, format, offsets, size);
+  }
+
+  /**
+   * Get playlist file.
+   *
+   * @return file
+   */
+  public File getFile() {
+    return mFile;
+  }
+
+  /**
+   * Get count of entries.
+   *
+   * @return count
+   */
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Create ids of all entries, all {@link #UNRESOLVED}.
+   *
+   * @return ids
+   */
+  public int[] createIds() {
+    int[] ids = new int[mSize];
+    for (int i = 0; i < mSize; i++) {
+      ids[i] = UNRESOLVED;
+    }
+    return ids;
+  }
+
+  /**
+   * Get start of batch containing entry.
+   *
+   * @param position position of entry
+   * @return position of first entry of batch
+   */
+  public static int batchOf(int position) {
+    return position - position % BATCH_SIZE;
+  }
+
+  /**
+   * Read entries and resolve them to ids of library.
+   *
+   * @param from position of first entry
+   * @param count count of entries, fewer resolved if playlist ends
+   * @param resolver resolver
+   * @return ids, {@link Music#NO_ID} for entry not found
+   * @throws IOException if failed to read
+   */
+  public int[] resolve(int from, int count, Resolver resolver)
+      throws IOException {
+    if (from < 0 || from >= mSize) {
+      throw new IndexOutOfBoundsException("position " + from + ", size "
+          + mSize);
+    }
+    int[] ids = new int[Math.min(count, mSize - from)];
+    FileInputStream in = new FileInputStream(mFile);
+    in.getChannel().position(mOffsets[from]);
+    PlaylistReader reader = new PlaylistReader(in, mFormat, mOffsets[from]);
+    int missing = 0;
+    try {
+      for (int i = 0; i < ids.length; i++) {
+        PlaylistReader.Entry entry = reader.read();
+        if (entry == null) throw new IOException("playlist changed " + mFile);
+        String path = resolvePath(entry.location);
+        ids[i] = resolver.findId(path);
+        if (ids[i] == Music.NO_ID) {
+          synchronized (mMissing) {
+            mMissing.add(entry.location);
+          }
+          missing++;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    LOGGER.fine("resolve " + ids.length + " entries from " + from + ", "
+        + missing + " not in library");
+    return ids;
+  }
+
+  /**
+   * Get locations of entries resolved but not found in library so far.
+   *
+   * @return locations
+   */
+  public List<String> getMissing() {
+    synchronized (mMissing) {
+      return Collections.unmodifiableList(new ArrayList<String>(mMissing));
+    }
+  }
+
+  /**
+   * Resolve location of entry to absolute path or url.
+   *
+   * @param location location
+   * @return path or url
+   */
+  String resolvePath(String location) {
+    if (location.startsWith(FILE_URL)) {
+      return normalize(decodePercent(location.substring(FILE_URL.length())));
+    }
+    if (location.indexOf("://") > 0) return location;
+
+    String path = location.replace('\\', '/');
+    if (!path.startsWith("/")) {
+      path = mFile.getAbsoluteFile().getParent() + "/" + path;
+    }
+    return normalize(path);
+  }
+
+  /**
+   * Remove "." and ".." from absolute path, without touching file system.
+   */
+  static String normalize(String path) {
+    List<String> names = new ArrayList<String>();
+    for (String name : path.split("/")) {
+      if (name.length() == 0 || name.equals(".")) continue;
+      if (name.equals("..")) {
+        if (!names.isEmpty()) names.remove(names.size() - 1);
+        continue;
+      }
+      names.add(name);
+    }
+    StringBuilder builder = new StringBuilder(path.length());
+    for (String name : names) {
+      builder.append('/').append(name);
+    }
+    return builder.length() > 0 ? builder.toString() : "/";
+  }
+
+  /**
+   * Decode %XX escapes of file url as UTF-8, '+' is kept.
+   */
+  private static String decodePercent(String value) {
+    if (value.indexOf('%') < 0) return value;
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+      int i = 0;
+      while (i < value.length()) {
+        int high = i + 2 < value.length() && value.charAt(i) == '%'
+            ? Character.digit(value.charAt(i + 1), 16) : -1;
+        int low = high >= 0 ? Character.digit(value.charAt(i + 2), 16) : -1;
+        if (low >= 0) {
+          bytes.write(high * 16 + low);
+          i += 3;
+          continue;
+        }
+        int end = value.indexOf('%', i + 1);
+        if (end < 0) end = value.length();
+        byte[] run = value.substring(i, end).getBytes("UTF-8");
+        bytes.write(run, 0, run.length);
+        i = end;
+      }
+      return bytes.toString("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e); // never happen
+    }
+  }
+
+}
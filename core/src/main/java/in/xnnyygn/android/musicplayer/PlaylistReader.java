@@ -0,0 +1,242 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming reader of M3U, M3U8 and PLS playlists, one entry at a time.
+ * <p>
+ * Lines are decoded as UTF-8, which covers M3U8 and plain ASCII M3U. Reader
+ * counts bytes consumed, so that each entry carries offset of its first
+ * line, e.g. #EXTINF of M3U or FileN of PLS, and a reader started at that
+ * offset reads from that entry on. Entries of PLS are expected in order of
+ * their numbers, as written by common players.
+ *
+ * @author xnnyygn
+ */
+public class PlaylistReader {
+
+  /**
+   * Entry of playlist.
+   *
+   * @author xnnyygn
+   */
+  public static class Entry {
+
+    /**
+     * Path or url as written in playlist, maybe relative.
+     */
+    public final String location;
+
+    /**
+     * Title, null if none.
+     */
+    public final String title;
+
+    /**
+     * Duration in seconds, -1 if unknown.
+     */
+    public final int duration;
+
+    /**
+     * Offset of first line of entry in bytes.
+     */
+    public final long offset;
+
+    Entry(String location, String title, int duration, long offset) {
+      this.location = location;
+      this.title = title;
+      this.duration = duration;
+      this.offset = offset;
+    }
+
+  }
+
+  private static final String CHARSET = "UTF-8";
+  private static final String EXTINF = "#EXTINF:";
+  private static final int MAX_LINE = 64 * 1024;
+
+  private final InputStream mIn;
+  private final int mFormat;
+  private final byte[] mBuffer = new byte[16 * 1024];
+  private int mBufferPosition;
+  private int mBufferLimit;
+  private byte[] mLine = new byte[256];
+  private long mOffset;
+  private long mLineOffset;
+
+  /**
+   * Entry of PLS read in part, completed by a line of next entry or end.
+   */
+  private int mNumber = -1;
+  private String mFile;
+  private String mTitle;
+  private int mLength = -1;
+  private long mEntryOffset;
+
+  /**
+   * Create reader.
+   *
+   * @param in input, buffered by reader
+   * @param format format
+   * @param offset offset of input in playlist file, 0 if from head
+   * @see Playlist#FORMAT_M3U
+   */
+  public PlaylistReader(InputStream in, int format, long offset) {
+    mIn = in;
+    mFormat = format;
+    mOffset = offset;
+  }
+
+  /**
+   * Read next entry.
+   *
+   * @return entry, null if no more
+   * @throws IOException if failed to read
+   */
+  public Entry read() throws IOException {
+    return mFormat == Playlist.FORMAT_PLS ? readPls() : readM3u();
+  }
+
+  /**
+   * Close input.
+   *
+   * @throws IOException if failed to close
+   */
+  public void close() throws IOException {
+    mIn.close();
+  }
+
+  private Entry readM3u() throws IOException {
+    String title = null;
+    int duration = -1;
+    long entryOffset = -1;
+    String line;
+    while ((line = readLine()) != null) {
+      line = line.trim();
+      if (line.length() == 0) continue;
+      if (line.startsWith(EXTINF)) {
+        // #EXTINF:duration[ attributes],title
+        int comma = line.indexOf(',');
+        String info =
+            line.substring(EXTINF.length(), comma < 0 ? line.length() : comma);
+        int space = info.indexOf(' ');
+        duration = parseInt(space < 0 ? info : info.substring(0, space));
+        title = comma < 0 ? null : emptyToNull(line.substring(comma + 1));
+        entryOffset = mLineOffset;
+        continue;
+      }
+      if (line.charAt(0) == '#') continue;
+      return new Entry(line, title, duration, entryOffset >= 0 ? entryOffset
+          : mLineOffset);
+    }
+    return null;
+  }
+
+  private Entry readPls() throws IOException {
+    String line;
+    while ((line = readLine()) != null) {
+      int equals = line.indexOf('=');
+      if (equals < 0) continue; // [playlist] or blank
+      String key = line.substring(0, equals).trim().toLowerCase();
+      String value = line.substring(equals + 1).trim();
+      int field;
+      if (key.startsWith("file")) {
+        field = 0;
+      } else if (key.startsWith("title")) {
+        field = 1;
+      } else if (key.startsWith("length")) {
+        field = 2;
+      } else {
+        continue; // NumberOfEntries, Version
+      }
+      int number = parseInt(key.substring(field == 0 ? 4 : (field == 1 ? 5
+          : 6)));
+      if (number < 0) continue;
+
+      Entry entry = null;
+      if (number != mNumber) {
+        entry = takePls();
+        mNumber = number;
+        mEntryOffset = mLineOffset;
+      }
+      if (field == 0) {
+        mFile = emptyToNull(value);
+      } else if (field == 1) {
+        mTitle = emptyToNull(value);
+      } else {
+        mLength = parseInt(value);
+      }
+      if (entry != null) return entry;
+    }
+    return takePls();
+  }
+
+  /**
+   * Take entry of PLS read so far, null if it has no file.
+   */
+  private Entry takePls() {
+    Entry entry =
+        mFile == null ? null : new Entry(mFile, mTitle, mLength, mEntryOffset);
+    mNumber = -1;
+    mFile = null;
+    mTitle = null;
+    mLength = -1;
+    return entry;
+  }
+
+  /**
+   * Read line without line terminator, BOM at head of file is dropped.
+   *
+   * @return line, null if end of input
+   */
+  private String readLine() throws IOException {
+    mLineOffset = mOffset;
+    int length = 0;
+    int b;
+    while ((b = readByte()) >= 0) {
+      mOffset++;
+      if (b == '\n') break;
+      if (length == mLine.length) {
+        if (length >= MAX_LINE) throw new IOException("line too long");
+        byte[] line = new byte[length * 2];
+        System.arraycopy(mLine, 0, line, 0, length);
+        mLine = line;
+      }
+      mLine[length++] = (byte) b;
+    }
+    if (b < 0 && length == 0) return null;
+
+    int start = 0;
+    if (mLineOffset == 0 && length >= 3 && (mLine[0] & 0xff) == 0xef
+        && (mLine[1] & 0xff) == 0xbb && (mLine[2] & 0xff) == 0xbf) {
+      start = 3;
+    }
+    if (length > start && mLine[length - 1] == '\r') length--;
+    return new String(mLine, start, length - start, CHARSET);
+  }
+
+  private int readByte() throws IOException {
+    if (mBufferPosition == mBufferLimit) {
+      int n = mIn.read(mBuffer, 0, mBuffer.length);
+      if (n <= 0) return -1;
+      mBufferPosition = 0;
+      mBufferLimit = n;
+    }
+    return mBuffer[mBufferPosition++] & 0xff;
+  }
+
+  private static int parseInt(String value) {
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static String emptyToNull(String value) {
+    String trimmed = value.trim();
+    return trimmed.length() > 0 ? trimmed : null;
+  }
+
+}
@@ -0,0 +1,79 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Streaming writer of M3U and PLS playlists, one entry at a time, encoded
+ * as UTF-8. Count of entries of PLS is written when closed.
+ *
+ * @author xnnyygn
+ */
+public class PlaylistWriter {
+
+  private final Writer mOut;
+  private final int mFormat;
+  private int mCount;
+
+  /**
+   * Create writer and write header.
+   *
+   * @param out output
+   * @param format format
+   * @throws IOException if failed to write
+   * @see Playlist#FORMAT_M3U
+   */
+  public PlaylistWriter(OutputStream out, int format) throws IOException {
+    mOut = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+    mFormat = format;
+    writeLine(format == Playlist.FORMAT_PLS ? "[playlist]" : "#EXTM3U");
+  }
+
+  /**
+   * Write entry.
+   *
+   * @param location path or url
+   * @param title title, null if none
+   * @param duration duration in seconds, -1 if unknown
+   * @throws IOException if failed to write
+   */
+  public void write(String location, String title, int duration)
+      throws IOException {
+    mCount++;
+    if (mFormat == Playlist.FORMAT_PLS) {
+      writeLine("File" + mCount + "=" + location);
+      if (title != null) writeLine("Title" + mCount + "=" + title);
+      writeLine("Length" + mCount + "=" + duration);
+      return;
+    }
+    if (title != null || duration >= 0) {
+      writeLine("#EXTINF:" + duration + "," + (title != null ? title : ""));
+    }
+    writeLine(location);
+  }
+
+  /**
+   * Write trailer if any and close output.
+   *
+   * @throws IOException if failed to write
+   */
+  public void close() throws IOException {
+    try {
+      if (mFormat == Playlist.FORMAT_PLS) {
+        writeLine("NumberOfEntries=" + mCount);
+        writeLine("Version=2");
+      }
+    } finally {
+      mOut.close();
+    }
+  }
+
+  private void writeLine(String line) throws IOException {
+    mOut.write(line);
+    mOut.write('\n');
+  }
+
+}
@@ -0,0 +1,531 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+
+/**
+ * In-memory search index over title, artist, album and file location.
+ * <p>
+ * Text of each music is normalized, that is, lower case with accents removed,
+ * then indexed as trigram posting lists for substring queries, plus posting
+ * lists of first one and two characters of each word for short prefix
+ * queries. Posting lists are primitive int arrays of document numbers in
+ * ascending order, keys are in an open addressing table of longs. Normalized
+ * texts are kept in one char array by offset and length of each document,
+ * so that no object is kept per document.
+ * <p>
+ * Adding a music appends its document number to posting lists. Removing a
+ * music only marks its document deleted, deleted documents are purged from
+ * posting lists once they are a quarter of all, so the index is never
+ * rebuilt. All methods are synchronized, index can be updated in background
+ * while queried on another thread.
+ *
+ * @author xnnyygn
+ */
+public class SearchIndex {
+
+  private static final int KEY_TRIGRAM = 0;
+  private static final int KEY_PREFIX = 1;
+  private static final long NO_KEY = -1L;
+  private static final int INITIAL_POSTING_SIZE = 4;
+
+  /**
+   * Folded characters of U+00C0 to U+017F.
+   */
+  private static final char[] FOLD = new char[0x180 - 0xc0];
+
+  static {
+    String latin1 =
+        "aaaaaaaceeeeiiiidnooooo\u00d7ouuuuy\u00fes"
+            + "aaaaaaaceeeeiiiidnooooo\u00f7ouuuuy\u00fey";
+    latin1.getChars(0, latin1.length(), FOLD, 0);
+    fold(0x100, 0x105, 'a');
+    fold(0x106, 0x10d, 'c');
+    fold(0x10e, 0x111, 'd');
+    fold(0x112, 0x11b, 'e');
+    fold(0x11c, 0x123, 'g');
+    fold(0x124, 0x127, 'h');
+    fold(0x128, 0x133, 'i');
+    fold(0x134, 0x135, 'j');
+    fold(0x136, 0x138, 'k');
+    fold(0x139, 0x142, 'l');
+    fold(0x143, 0x14b, 'n');
+    fold(0x14c, 0x153, 'o');
+    fold(0x154, 0x159, 'r');
+    fold(0x15a, 0x161, 's');
+    fold(0x162, 0x167, 't');
+    fold(0x168, 0x173, 'u');
+    fold(0x174, 0x175, 'w');
+    fold(0x176, 0x178, 'y');
+    fold(0x179, 0x17e, 'z');
+    fold(0x17f, 0x17f, 's');
+  }
+
+  private static void fold(int from, int to, char c) {
+    for (int i = from; i <= to; i++) {
+      FOLD[i - 0xc0] = c;
+    }
+  }
+
+  /**
+   * Hash table of keys, slot of key is index of its posting list.
+   */
+  private long[] mKeys = newKeyTable(1024);
+  private int[] mSlots = new int[1024];
+  private int mKeyCount = 0;
+  private int[][] mPostings = new int[256][];
+  private int[] mPostingSizes = new int[256];
+
+  /**
+   * Music id, offset and length of normalized text of each document, length
+   * -1 if deleted.
+   */
+  private int[] mDocIds = new int[256];
+  private int[] mDocOffsets = new int[256];
+  private int[] mDocLengths = new int[256];
+  private int mDocCount = 0;
+
+  /**
+   * Normalized texts of documents in order.
+   */
+  private char[] mTexts = new char[256 * 32];
+  private int mTextLength = 0;
+  private int mDeletedCount = 0;
+
+  /**
+   * Document number + 1 of each music id, 0 if not indexed.
+   */
+  private int[] mDocsById = new int[256];
+
+  private static long[] newKeyTable(int capacity) {
+    long[] keys = new long[capacity];
+    for (int i = 0; i < capacity; i++) {
+      keys[i] = NO_KEY;
+    }
+    return keys;
+  }
+
+  /**
+   * Normalize text, lower case and remove accents of latin letters, collapse
+   * non letter or digit characters into single space.
+   *
+   * @param text text
+   * @return normalized text
+   */
+  public static String normalize(CharSequence text) {
+    StringBuilder builder = new StringBuilder(text.length());
+    boolean space = true;
+    for (int i = 0; i < text.length(); i++) {
+      char c = Character.toLowerCase(text.charAt(i));
+      if (c >= 0xc0 && c < 0x180) c = FOLD[c - 0xc0];
+      if (Character.isLetterOrDigit(c)) {
+        builder.append(c);
+        space = false;
+      } else if (!space) {
+        builder.append(' ');
+        space = true;
+      }
+    }
+    int length = builder.length();
+    if (length > 0 && builder.charAt(length - 1) == ' ') {
+      builder.setLength(length - 1);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Get searchable text of music, title, artist, album, name of directory
+   * and name of file.
+   *
+   * @param music music
+   * @return normalized text
+   */
+  static String textOf(Music music) {
+    StringBuilder builder = new StringBuilder(128);
+    builder.append(music.getTitle());
+    if (music.getArtist() != null) {
+      builder.append(' ').append(music.getArtist());
+    }
+    if (music.getAlbum() != null) {
+      builder.append(' ').append(music.getAlbum());
+    }
+    String path = music.getPath();
+    int end = path.lastIndexOf(File.separatorChar);
+    int start = end > 0 ? path.lastIndexOf(File.separatorChar, end - 1) : -1;
+    builder.append(' ').append(path, start + 1, path.length());
+    return normalize(builder);
+  }
+
+  /**
+   * Get count of musics indexed.
+   *
+   * @return count
+   */
+  public synchronized int size() {
+    return mDocCount - mDeletedCount;
+  }
+
+  /**
+   * Add or update music.
+   *
+   * @param music music with id assigned
+   */
+  public void add(Music music) {
+    String text = textOf(music);
+    synchronized (this) {
+      addText(music.getId(), text);
+    }
+  }
+
+  /**
+   * Add or update music with normalized text.
+   *
+   * @param id id
+   * @param text normalized text
+   * @return true if index changed
+   */
+  private boolean addText(int id, String text) {
+    int doc = getDoc(id);
+    if (doc >= 0) {
+      if (textEquals(doc, text)) return false;
+      removeDoc(doc);
+    }
+
+    doc = mDocCount++;
+    if (doc == mDocIds.length) {
+      mDocIds = grow(mDocIds, doc * 2);
+      mDocOffsets = grow(mDocOffsets, doc * 2);
+      mDocLengths = grow(mDocLengths, doc * 2);
+    }
+    if (mTextLength + text.length() > mTexts.length) {
+      char[] texts =
+          new char[Math.max(mTextLength + text.length(), mTexts.length * 2)];
+      System.arraycopy(mTexts, 0, texts, 0, mTextLength);
+      mTexts = texts;
+    }
+    text.getChars(0, text.length(), mTexts, mTextLength);
+    mDocIds[doc] = id;
+    mDocOffsets[doc] = mTextLength;
+    mDocLengths[doc] = text.length();
+    mTextLength += text.length();
+    if (id >= mDocsById.length) {
+      mDocsById = grow(mDocsById, Math.max(id + 1, mDocsById.length * 2));
+    }
+    mDocsById[id] = doc + 1;
+
+    boolean wordStart = true;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == ' ') {
+        wordStart = true;
+        continue;
+      }
+      if (wordStart) {
+        addPosting(key(KEY_PREFIX, (char) 0, (char) 0, c), doc);
+        if (i + 1 < text.length() && text.charAt(i + 1) != ' ') {
+          addPosting(key(KEY_PREFIX, (char) 0, c, text.charAt(i + 1)), doc);
+        }
+        wordStart = false;
+      }
+      if (i + 2 < text.length()) {
+        addPosting(key(KEY_TRIGRAM, c, text.charAt(i + 1), text.charAt(i + 2)),
+            doc);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Remove music.
+   *
+   * @param id id
+   */
+  public synchronized void remove(int id) {
+    int doc = getDoc(id);
+    if (doc >= 0) removeDoc(doc);
+  }
+
+  /**
+   * Update index to musics in library index, only musics added, removed or
+   * changed are updated.
+   *
+   * @param index library index
+   */
+  public void sync(LibraryIndex index) {
+    boolean[] present = new boolean[index.getNextId()];
+    for (int i = 0; i < index.size(); i++) {
+      Music music = index.getMusic(i);
+      present[music.getId()] = true;
+      String text = textOf(music);
+      synchronized (this) {
+        addText(music.getId(), text);
+      }
+    }
+    synchronized (this) {
+      // removing may renumber documents, find ids first
+      int[] removed = new int[mDocCount];
+      int count = 0;
+      for (int doc = 0; doc < mDocCount; doc++) {
+        int id = mDocIds[doc];
+        if (mDocLengths[doc] >= 0 && (id >= present.length || !present[id])) {
+          removed[count++] = id;
+        }
+      }
+      for (int i = 0; i < count; i++) {
+        remove(removed[i]);
+      }
+    }
+  }
+
+  private int getDoc(int id) {
+    return id >= 0 && id < mDocsById.length ? mDocsById[id] - 1 : -1;
+  }
+
+  private boolean textEquals(int doc, String text) {
+    int length = mDocLengths[doc];
+    if (length != text.length()) return false;
+    int offset = mDocOffsets[doc];
+    for (int i = 0; i < length; i++) {
+      if (mTexts[offset + i] != text.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private void removeDoc(int doc) {
+    mDocsById[mDocIds[doc]] = 0;
+    mDocLengths[doc] = -1;
+    mDeletedCount++;
+    if (mDeletedCount * 4 > mDocCount) purge();
+  }
+
+  /**
+   * Remove deleted documents and renumber documents left in same order, so
+   * that posting lists stay sorted. Texts left are moved to front.
+   */
+  private void purge() {
+    int[] renumbered = new int[mDocCount];
+    int count = 0;
+    int textLength = 0;
+    for (int doc = 0; doc < mDocCount; doc++) {
+      int length = mDocLengths[doc];
+      if (length < 0) {
+        renumbered[doc] = -1;
+        continue;
+      }
+      renumbered[doc] = count;
+      System.arraycopy(mTexts, mDocOffsets[doc], mTexts, textLength, length);
+      mDocIds[count] = mDocIds[doc];
+      mDocOffsets[count] = textLength;
+      mDocLengths[count] = length;
+      mDocsById[mDocIds[count]] = count + 1;
+      textLength += length;
+      count++;
+    }
+    mTextLength = textLength;
+
+    for (int slot = 0; slot < mKeyCount; slot++) {
+      int[] posting = mPostings[slot];
+      int size = 0;
+      for (int i = 0; i < mPostingSizes[slot]; i++) {
+        int doc = renumbered[posting[i]];
+        if (doc >= 0) posting[size++] = doc;
+      }
+      mPostingSizes[slot] = size;
+    }
+    mDocCount = count;
+    mDeletedCount = 0;
+  }
+
+  private static long key(int type, char c1, char c2, char c3) {
+    return ((long) type << 48) | ((long) c1 << 32) | ((long) c2 << 16) | c3;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * Find slot of key.
+   *
+   * @return slot, -1 if not found
+   */
+  private int findSlot(long key) {
+    int mask = mKeys.length - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      if (mKeys[i] == key) return mSlots[i];
+      if (mKeys[i] == NO_KEY) return -1;
+    }
+  }
+
+  private void addPosting(long key, int doc) {
+    int mask = mKeys.length - 1;
+    int i = hash(key) & mask;
+    while (mKeys[i] != key && mKeys[i] != NO_KEY) {
+      i = (i + 1) & mask;
+    }
+
+    int slot;
+    if (mKeys[i] == NO_KEY) {
+      slot = mKeyCount++;
+      mKeys[i] = key;
+      mSlots[i] = slot;
+      if (slot == mPostings.length) {
+        int[][] postings = new int[slot * 2][];
+        System.arraycopy(mPostings, 0, postings, 0, slot);
+        mPostings = postings;
+        mPostingSizes = grow(mPostingSizes, slot * 2);
+      }
+      mPostings[slot] = new int[INITIAL_POSTING_SIZE];
+      if (mKeyCount * 2 > mKeys.length) rehash();
+    } else {
+      slot = mSlots[i];
+    }
+
+    int size = mPostingSizes[slot];
+    int[] posting = mPostings[slot];
+    if (size > 0 && posting[size - 1] == doc) return; // same key in document
+    if (size == posting.length) {
+      posting = grow(posting, size * 2);
+      mPostings[slot] = posting;
+    }
+    posting[size] = doc;
+    mPostingSizes[slot] = size + 1;
+  }
+
+  private void rehash() {
+    long[] oldKeys = mKeys;
+    int[] oldSlots = mSlots;
+    mKeys = newKeyTable(oldKeys.length * 2);
+    mSlots = new int[oldKeys.length * 2];
+    int mask = mKeys.length - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldKeys[j] == NO_KEY) continue;
+      int i = hash(oldKeys[j]) & mask;
+      while (mKeys[i] != NO_KEY) {
+        i = (i + 1) & mask;
+      }
+      mKeys[i] = oldKeys[j];
+      mSlots[i] = oldSlots[j];
+    }
+  }
+
+  private static int[] grow(int[] array, int length) {
+    int[] grown = new int[length];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  /**
+   * Search musics matching all words of query, a word matches if it is a
+   * prefix of a word in text, or, if longer than two characters, a substring
+   * of text.
+   *
+   * @param query query
+   * @param maxResults max count of results
+   * @return ids of musics matched in order added
+   */
+  public synchronized int[] search(String query, int maxResults) {
+    String normalized = normalize(query);
+    if (normalized.length() == 0) return new int[0];
+    String[] terms = normalized.split(" ");
+
+    // posting lists to intersect, at least one per term
+    int listCount = 0;
+    int[] slots = new int[normalized.length()];
+    for (String term : terms) {
+      if (term.length() == 1) {
+        slots[listCount++] = findSlot(key(KEY_PREFIX, (char) 0, (char) 0,
+            term.charAt(0)));
+      } else if (term.length() == 2) {
+        slots[listCount++] = findSlot(key(KEY_PREFIX, (char) 0,
+            term.charAt(0), term.charAt(1)));
+      } else {
+        for (int i = 0; i + 2 < term.length(); i++) {
+          slots[listCount++] = findSlot(key(KEY_TRIGRAM, term.charAt(i),
+              term.charAt(i + 1), term.charAt(i + 2)));
+        }
+      }
+      if (slots[listCount - 1] < 0) return new int[0];
+    }
+
+    // drive by shortest posting list
+    int shortest = 0;
+    for (int i = 1; i < listCount; i++) {
+      if (mPostingSizes[slots[i]] < mPostingSizes[slots[shortest]]) {
+        shortest = i;
+      }
+    }
+
+    int[] results = new int[Math.min(maxResults, mDocCount)];
+    int resultCount = 0;
+    int[] driver = mPostings[slots[shortest]];
+    int driverSize = mPostingSizes[slots[shortest]];
+    for (int i = 0; i < driverSize && resultCount < results.length; i++) {
+      int doc = driver[i];
+      if (mDocLengths[doc] < 0
+          || !containsAll(slots, listCount, shortest, doc)) {
+        continue;
+      }
+      if (verify(doc, terms)) results[resultCount++] = mDocIds[doc];
+    }
+
+    int[] ids = new int[resultCount];
+    System.arraycopy(results, 0, ids, 0, resultCount);
+    return ids;
+  }
+
+  private boolean containsAll(int[] slots, int listCount, int except, int doc) {
+    for (int i = 0; i < listCount; i++) {
+      if (i == except) continue;
+      int slot = slots[i];
+      if (binarySearch(mPostings[slot], mPostingSizes[slot], doc) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int binarySearch(int[] array, int size, int value) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (array[mid] < value) {
+        low = mid + 1;
+      } else if (array[mid] > value) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Verify terms longer than two characters, trigrams may match apart.
+   */
+  private boolean verify(int doc, String[] terms) {
+    for (String term : terms) {
+      if (term.length() > 2
+          && !contains(mDocOffsets[doc], mDocLengths[doc], term)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean contains(int offset, int length, String term) {
+    char first = term.charAt(0);
+    int last = offset + length - term.length();
+    for (int i = offset; i <= last; i++) {
+      if (mTexts[i] != first) continue;
+      int j = 1;
+      while (j < term.length() && mTexts[i + j] == term.charAt(j)) {
+        j++;
+      }
+      if (j == term.length()) return true;
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,348 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Seek table of MP3 file, maps frame index to byte offset of frame.
+ * <p>
+ * Entries are ascending by frame index, looked up by binary search. Table
+ * built by walking frames is accurate, each entry is offset of the frame
+ * exactly, frames between entries are found by walking headers from nearest
+ * entry. Table built from Xing or VBRI TOC is an estimation.
+ * <p>
+ * Table is stored in library index as bytes, with frame indexes and offsets
+ * delta encoded in variable length integers, a few hundred bytes per file.
+ * Entries are decoded on first lookup.
+ *
+ * @author xnnyygn
+ */
+public class SeekTable {
+
+  private static final int FLAG_ACCURATE = 1;
+  private static final int FLAG_VBR = 2;
+
+  private final byte[] mBytes;
+  private final int mFlags;
+  private final int mSampleRate;
+  private final int mSamplesPerFrame;
+  private final int mFrameCount;
+
+  /**
+   * Entries, decoded on first lookup, offsets assigned before frames.
+   */
+  private volatile int[] mFrames;
+  private long[] mOffsets;
+
+  /**
+   * Create table.
+   *
+   * @param accurate true if offsets are offsets of frames exactly
+   * @param vbr true if bitrate varies between frames
+   * @param sampleRate sample rate
+   * @param samplesPerFrame samples per frame
+   * @param frameCount count of audio frames
+   * @param frames ascending frame indexes of entries
+   * @param offsets offsets of entries
+   * @param count count of entries
+   */
+  public SeekTable(boolean accurate, boolean vbr, int sampleRate,
+      int samplesPerFrame, int frameCount, int[] frames, long[] offsets,
+      int count) {
+    mFlags = (accurate ? FLAG_ACCURATE : 0) | (vbr ? FLAG_VBR : 0);
+    mSampleRate = sampleRate;
+    mSamplesPerFrame = samplesPerFrame;
+    mFrameCount = frameCount;
+    mOffsets = new long[count];
+    System.arraycopy(offsets, 0, mOffsets, 0, count);
+    int[] entryFrames = new int[count];
+    System.arraycopy(frames, 0, entryFrames, 0, count);
+    mFrames = entryFrames;
+    mBytes = encode();
+  }
+
+  private SeekTable(byte[] bytes) {
+    mBytes = bytes;
+    int[] cursor = new int[1];
+    mFlags = readVarInt(bytes, cursor);
+    mSampleRate = readVarInt(bytes, cursor);
+    mSamplesPerFrame = readVarInt(bytes, cursor);
+    mFrameCount = readVarInt(bytes, cursor);
+  }
+
+  /**
+   * Wrap bytes from {@link #toByteArray()}, entries decoded on first lookup.
+   * Entries are validated without decoding, so that lookup never fails.
+   *
+   * @param bytes bytes
+   * @return table, null if bytes are null, empty or corrupted
+   */
+  public static SeekTable fromByteArray(byte[] bytes) {
+    if (bytes == null || bytes.length == 0) return null;
+    try {
+      SeekTable table = new SeekTable(bytes);
+      if (table.mSampleRate <= 0 || table.mSamplesPerFrame <= 0
+          || table.mFrameCount < 0 || !isValidEntries(bytes)) {
+        return null;
+      }
+      return table;
+    } catch (ArrayIndexOutOfBoundsException e) {
+      return null; // truncated
+    }
+  }
+
+  /**
+   * Test if entries are ascending and end with bytes.
+   */
+  private static boolean isValidEntries(byte[] bytes) {
+    int[] cursor = new int[1];
+    for (int i = 0; i < 4; i++) {
+      readVarLong(bytes, cursor); // header
+    }
+    long count = readVarLong(bytes, cursor);
+    // two bytes per entry at least
+    if (count < 0 || count > (bytes.length - cursor[0]) / 2) return false;
+    long frame = 0;
+    long offset = 0;
+    for (int i = 0; i < count; i++) {
+      long frameDelta = readVarLong(bytes, cursor);
+      long offsetDelta = readVarLong(bytes, cursor);
+      if (frameDelta < 0 || offsetDelta < 0) return false;
+      frame += frameDelta;
+      offset += offsetDelta;
+      if (frame > Integer.MAX_VALUE || offset < 0) return false;
+    }
+    return cursor[0] == bytes.length;
+  }
+
+  private byte[] encode() {
+    ByteArrayOutputStream out =
+        new ByteArrayOutputStream(16 + mFrames.length * 4);
+    writeVarLong(out, mFlags);
+    writeVarLong(out, mSampleRate);
+    writeVarLong(out, mSamplesPerFrame);
+    writeVarLong(out, mFrameCount);
+    writeVarLong(out, mFrames.length);
+    int lastFrame = 0;
+    long lastOffset = 0;
+    for (int i = 0; i < mFrames.length; i++) {
+      writeVarLong(out, mFrames[i] - lastFrame);
+      writeVarLong(out, mOffsets[i] - lastOffset);
+      lastFrame = mFrames[i];
+      lastOffset = mOffsets[i];
+    }
+    return out.toByteArray();
+  }
+
+  private synchronized void decodeEntries() {
+    if (mFrames != null) return;
+
+    int[] cursor = new int[1];
+    for (int i = 0; i < 4; i++) {
+      readVarInt(mBytes, cursor); // header
+    }
+    int count = readVarInt(mBytes, cursor);
+    int[] frames = new int[count];
+    long[] offsets = new long[count];
+    int frame = 0;
+    long offset = 0;
+    for (int i = 0; i < count; i++) {
+      frame += readVarInt(mBytes, cursor);
+      offset += readVarLong(mBytes, cursor);
+      frames[i] = frame;
+      offsets[i] = offset;
+    }
+    mOffsets = offsets;
+    mFrames = frames;
+  }
+
+  private static void writeVarLong(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static int readVarInt(byte[] bytes, int[] cursor) {
+    return (int) readVarLong(bytes, cursor);
+  }
+
+  private static long readVarLong(byte[] bytes, int[] cursor) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = bytes[cursor[0]++];
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * Get bytes to store.
+   *
+   * @return bytes, should not be modified
+   */
+  public byte[] toByteArray() {
+    return mBytes;
+  }
+
+  /**
+   * Test if offsets are offsets of frames exactly.
+   *
+   * @return true if accurate, false if estimated from TOC
+   */
+  public boolean isAccurate() {
+    return (mFlags & FLAG_ACCURATE) != 0;
+  }
+
+  /**
+   * Test if bitrate varies between frames.
+   *
+   * @return true if VBR
+   */
+  public boolean isVbr() {
+    return (mFlags & FLAG_VBR) != 0;
+  }
+
+  public int getSampleRate() {
+    return mSampleRate;
+  }
+
+  public int getSamplesPerFrame() {
+    return mSamplesPerFrame;
+  }
+
+  public int getFrameCount() {
+    return mFrameCount;
+  }
+
+  /**
+   * Get duration in milliseconds.
+   *
+   * @return duration
+   */
+  public int getDuration() {
+    return getTimeOfFrame(mFrameCount);
+  }
+
+  /**
+   * Get index of frame containing specified time.
+   *
+   * @param time time in milliseconds
+   * @return frame index, not larger than last frame
+   */
+  public int getFrameAt(int time) {
+    long frame = (long) time * mSampleRate / (1000L * mSamplesPerFrame);
+    return (int) Math.max(0, Math.min(frame, mFrameCount - 1));
+  }
+
+  /**
+   * Get start time of frame.
+   *
+   * @param frame frame index
+   * @return time in milliseconds
+   */
+  public int getTimeOfFrame(int frame) {
+    return (int) ((long) frame * mSamplesPerFrame * 1000 / mSampleRate);
+  }
+
+  /**
+   * Find last entry not after specified frame.
+   *
+   * @param frame frame index
+   * @return entry index, -1 if no entry
+   */
+  public int findEntry(int frame) {
+    decodeEntries();
+    int low = 0;
+    int high = mFrames.length - 1;
+    int found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (mFrames[mid] <= frame) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Estimate time a player reaches when seeking by constant bitrate, as
+   * player does for VBR file without TOC. Bitrate is taken from entries
+   * around frame data source starts at.
+   *
+   * @param baseFrame frame data source starts at
+   * @param time time to seek to in milliseconds, not before base frame
+   * @return time reached in milliseconds, time itself if not estimable
+   */
+  public int estimateConstantBitrateSeek(int baseFrame, int time) {
+    decodeEntries();
+    int entry = Math.max(findEntry(baseFrame), 0);
+    if (entry + 1 >= mFrames.length || mFrames[entry + 1] == mFrames[entry]) {
+      return time;
+    }
+    double bytesPerFrame =
+        (double) (mOffsets[entry + 1] - mOffsets[entry])
+            / (mFrames[entry + 1] - mFrames[entry]);
+    double baseOffset =
+        mOffsets[entry] + (baseFrame - mFrames[entry]) * bytesPerFrame;
+    double frames =
+        (double) (time - getTimeOfFrame(baseFrame)) * mSampleRate
+            / (1000.0 * mSamplesPerFrame);
+    return getTimeOfFrame(getFrameAtOffset(baseOffset + frames
+        * bytesPerFrame));
+  }
+
+  /**
+   * Get frame at offset, interpolated between entries.
+   */
+  private int getFrameAtOffset(double offset) {
+    int low = 0;
+    int high = mOffsets.length - 1;
+    int found = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (mOffsets[mid] <= offset) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    double frame = mFrames[found];
+    if (found + 1 < mOffsets.length && offset > mOffsets[found]) {
+      frame +=
+          (offset - mOffsets[found]) * (mFrames[found + 1] - mFrames[found])
+              / (mOffsets[found + 1] - mOffsets[found]);
+    }
+    return (int) Math.max(0, Math.min(frame, mFrameCount));
+  }
+
+  public int getEntryCount() {
+    decodeEntries();
+    return mFrames.length;
+  }
+
+  public int getEntryFrame(int entry) {
+    decodeEntries();
+    return mFrames[entry];
+  }
+
+  public long getEntryOffset(int entry) {
+    decodeEntries();
+    return mOffsets[entry];
+  }
+
+  @Override
+  public String toString() {
+    return "SeekTable [accurate=" + isAccurate() + ", vbr=" + isVbr()
+        + ", frames=" + mFrameCount + ", duration=" + getDuration()
+        + ", bytes=" + mBytes.length + "]";
+  }
+
+}
@@ -0,0 +1,293 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of playback state, e.g. current music and position,
+ * that survives process death.
+ * <p>
+ * Each record is a kind and a value with checksum, fixed width. Records are
+ * buffered, latest value of each kind only, and appended with fsync at most
+ * every {@link #FLUSH_INTERVAL}, so that checkpoints during playback cost one
+ * small write per interval. Replay takes latest value of each kind, a record
+ * torn by crash fails its checksum and ends replay. Journal is compacted to
+ * one record per kind when opened and when it grows over
+ * {@link #MAX_RECORDS}.
+ * <p>
+ * Records are written in a thread of journal, {@link #record(int, long)} is
+ * safe to call from any thread and never blocks on storage.
+ *
+ * @author xnnyygn
+ */
+public class StateJournal {
+
+  public static final int KIND_TRACK = 0;
+  public static final int KIND_POSITION = 1;
+  public static final int KIND_CURSOR = 2;
+  public static final int KIND_PLAY_MODE = 3;
+
+  public static final long FLUSH_INTERVAL = 2000;
+  public static final int MAX_RECORDS = 4096;
+
+  private static final String LOG_TAG = "journal";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+  private static final int KIND_COUNT = 4;
+  private static final int RECORD_SIZE = 16;
+  private static final int MAGIC = 0x4d50534a; // MPSJ
+
+  private final File mFile;
+  private final ScheduledExecutorService mExecutor = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "journal");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Latest values and values not written yet, guarded by this.
+   */
+  private final long[] mValues = new long[KIND_COUNT];
+  private final boolean[] mKnown = new boolean[KIND_COUNT];
+  private final boolean[] mDirty = new boolean[KIND_COUNT];
+  private boolean mFlushScheduled;
+
+  /**
+   * Output appending to journal and count of records in it, accessed in
+   * thread of journal.
+   */
+  private FileOutputStream mOut;
+  private int mRecords;
+
+  private final Runnable mFlushTask = new Runnable() {
+
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  /**
+   * Create journal, call {@link #open()} before use.
+   *
+   * @param file journal file
+   */
+  public StateJournal(File file) {
+    mFile = file;
+  }
+
+  /**
+   * Replay journal file and compact it in background. Torn or corrupted
+   * records at tail are dropped.
+   */
+  public void open() {
+    if (mFile.exists()) {
+      try {
+        replay();
+      } catch (IOException e) {
+        LOGGER.warning("failed to replay journal, nested exception is " + e);
+      }
+    }
+    execute(new Runnable() {
+
+      @Override
+      public void run() {
+        compact();
+      }
+    });
+  }
+
+  private void replay() throws IOException {
+    // never grows much over max records, see flush
+    long fileLength = mFile.length();
+    if (fileLength > (long) MAX_RECORDS * 2 * RECORD_SIZE) {
+      throw new IOException("journal too large, " + fileLength + " bytes");
+    }
+    byte[] bytes = new byte[(int) fileLength];
+    FileInputStream in = new FileInputStream(mFile);
+    int length = 0;
+    try {
+      int n;
+      while (length < bytes.length
+          && (n = in.read(bytes, length, bytes.length - length)) > 0) {
+        length += n;
+      }
+    } finally {
+      in.close();
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+    int count = 0;
+    synchronized (this) {
+      while (buffer.remaining() >= RECORD_SIZE) {
+        int kind = buffer.getInt();
+        long value = buffer.getLong();
+        if (buffer.getInt() != checksum(kind, value) || kind < 0
+            || kind >= KIND_COUNT) {
+          LOGGER.info("torn record at " + count + ", drop tail");
+          break;
+        }
+        mValues[kind] = value;
+        mKnown[kind] = true;
+        count++;
+      }
+    }
+    LOGGER.fine("replay " + count + " record(s)");
+  }
+
+  private static int checksum(int kind, long value) {
+    // never 0, so that zeros of file extended but not written are torn
+    int hash = MAGIC ^ (kind * 0x9e3779b1);
+    hash = hash * 31 + (int) value;
+    hash = hash * 31 + (int) (value >>> 32);
+    return hash != 0 ? hash : 1;
+  }
+
+  /**
+   * Get latest value of kind.
+   *
+   * @param kind kind
+   * @param defaultValue value if none recorded
+   * @return value
+   * @see #KIND_TRACK
+   */
+  public synchronized long get(int kind, long defaultValue) {
+    return mKnown[kind] ? mValues[kind] : defaultValue;
+  }
+
+  /**
+   * Record value of kind, written within {@link #FLUSH_INTERVAL}. Value
+   * recorded again before written replaces it.
+   *
+   * @param kind kind
+   * @param value value
+   */
+  public void record(int kind, long value) {
+    synchronized (this) {
+      if (mKnown[kind] && mValues[kind] == value) return;
+      mValues[kind] = value;
+      mKnown[kind] = true;
+      mDirty[kind] = true;
+      if (mFlushScheduled) return;
+      mFlushScheduled = true;
+    }
+    try {
+      mExecutor.schedule(mFlushTask, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // closed
+    }
+  }
+
+  /**
+   * Write values pending and close journal, returns without waiting.
+   */
+  public void close() {
+    execute(mFlushTask);
+    execute(new Runnable() {
+
+      @Override
+      public void run() {
+        closeOutput();
+      }
+    });
+    mExecutor.shutdown(); // pending writes will complete
+  }
+
+  private void execute(Runnable task) {
+    try {
+      mExecutor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // closed
+    }
+  }
+
+  /**
+   * Append values pending, or compact if journal grows too large.
+   */
+  private void flush() {
+    ByteBuffer records = ByteBuffer.allocate(KIND_COUNT * RECORD_SIZE);
+    synchronized (this) {
+      mFlushScheduled = false;
+      for (int kind = 0; kind < KIND_COUNT; kind++) {
+        if (!mDirty[kind]) continue;
+        mDirty[kind] = false;
+        putRecord(records, kind, mValues[kind]);
+      }
+    }
+    int count = records.position() / RECORD_SIZE;
+    if (count == 0) return;
+    if (mOut == null || mRecords + count > MAX_RECORDS) {
+      compact();
+      return;
+    }
+
+    try {
+      mOut.write(records.array(), 0, records.position());
+      mOut.getFD().sync();
+      mRecords += count;
+    } catch (IOException e) {
+      LOGGER.warning("failed to append journal, nested exception is " + e);
+    }
+  }
+
+  private static void putRecord(ByteBuffer records, int kind, long value) {
+    records.putInt(kind);
+    records.putLong(value);
+    records.putInt(checksum(kind, value));
+  }
+
+  /**
+   * Rewrite journal with latest values only, replace old file atomically and
+   * append to it after.
+   */
+  private void compact() {
+    ByteBuffer records = ByteBuffer.allocate(KIND_COUNT * RECORD_SIZE);
+    synchronized (this) {
+      for (int kind = 0; kind < KIND_COUNT; kind++) {
+        mDirty[kind] = false;
+        if (mKnown[kind]) putRecord(records, kind, mValues[kind]);
+      }
+    }
+
+    closeOutput();
+    File tmpFile = new File(mFile.getPath() + ".tmp");
+    try {
+      FileOutputStream out = new FileOutputStream(tmpFile);
+      try {
+        out.write(records.array(), 0, records.position());
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(mFile)) throw new IOException("failed to rename");
+      mOut = new FileOutputStream(mFile, true);
+      mRecords = records.position() / RECORD_SIZE;
+    } catch (IOException e) {
+      LOGGER.warning("failed to compact journal, nested exception is " + e);
+    }
+  }
+
+  private void closeOutput() {
+    if (mOut == null) return;
+    try {
+      mOut.close();
+    } catch (IOException e) {
+      // ignore
+    }
+    mOut = null;
+  }
+
+}
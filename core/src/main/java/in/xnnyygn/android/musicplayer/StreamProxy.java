@@ -0,0 +1,306 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * HTTP server on loopback serving remote streams to media player, which
+ * accepts only a url or a local file as data source.
+ * <p>
+ * Stream is registered by its url and served at a local url, see
+ * {@link #urlOf(String)}. Requests of player, Range ones for seeks included,
+ * are answered from chunks of {@link HttpStreamSource}, so that whatever
+ * player reads goes through cache and read-ahead. One thread per connection,
+ * player opens one or two at a time.
+ * <p>
+ * Read-ahead of all streams shares {@link #READ_AHEAD_THREADS} threads of
+ * proxy and a bounded queue. Only {@link #MAX_SOURCES} streams registered
+ * last are kept, others are closed and answered by 404 until registered
+ * again, which player does on each prepare.
+ *
+ * @author xnnyygn
+ */
+public class StreamProxy {
+
+  public static final int READ_AHEAD_THREADS = 2;
+  public static final int MAX_READ_AHEAD_PENDING =
+      HttpStreamSource.READ_AHEAD_CHUNKS * 2;
+  public static final int MAX_SOURCES = 4;
+
+  private static final String LOG_TAG = "stream.proxy";
+  private static final Logger LOGGER = Logger.getLogger(LOG_TAG);
+  private static final int MAX_HEADER_LINE = 8 * 1024;
+
+  private final ChunkCache mCache;
+  private final ThreadPoolExecutor mReadAheadExecutor =
+      new ThreadPoolExecutor(READ_AHEAD_THREADS, READ_AHEAD_THREADS, 0,
+          TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+              MAX_READ_AHEAD_PENDING), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "stream-read-ahead");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+
+  /**
+   * Sources by key of url in order of access, guarded by itself.
+   */
+  private final Map<String, HttpStreamSource> mSources =
+      new LinkedHashMap<String, HttpStreamSource>(MAX_SOURCES * 2, 0.75f,
+          true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, HttpStreamSource> eldest) {
+          if (size() <= MAX_SOURCES) return false;
+          eldest.getValue().close();
+          return true;
+        }
+      };
+  private ServerSocket mServer;
+
+  /**
+   * Create proxy, call {@link #start()} before use.
+   *
+   * @param cache cache of chunks
+   */
+  public StreamProxy(ChunkCache cache) {
+    mCache = cache;
+  }
+
+  /**
+   * Test if path of music is url of remote stream.
+   *
+   * @param path path
+   * @return true if http or https url
+   */
+  public static boolean isStream(String path) {
+    return path.startsWith("http://") || path.startsWith("https://");
+  }
+
+  /**
+   * Open cache and listen on an ephemeral port of loopback.
+   *
+   * @throws IOException if failed to listen
+   */
+  public void start() throws IOException {
+    mCache.open();
+    mServer = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+    Thread thread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        accept();
+      }
+    }, "stream-proxy");
+    thread.setDaemon(true);
+    thread.start();
+    LOGGER.info("listen on port " + mServer.getLocalPort());
+  }
+
+  /**
+   * Get local url serving stream.
+   *
+   * @param url url of stream
+   * @return local url, url itself if proxy not started
+   */
+  public String urlOf(String url) {
+    if (mServer == null) return url;
+    String key = ChunkCache.keyOf(url);
+    synchronized (mSources) {
+      // get refreshes order of access
+      if (mSources.get(key) == null) {
+        mSources.put(key, new HttpStreamSource(url, mCache,
+            mReadAheadExecutor));
+      }
+    }
+    return "http://127.0.0.1:" + mServer.getLocalPort() + "/" + key;
+  }
+
+  /**
+   * Stop listening and cancel read-ahead, connections open end with their
+   * requests.
+   */
+  public void close() {
+    synchronized (mSources) {
+      for (HttpStreamSource source : mSources.values()) {
+        source.close();
+      }
+      mSources.clear();
+    }
+    mReadAheadExecutor.shutdownNow();
+    if (mServer == null) return;
+    try {
+      mServer.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  private void accept() {
+    while (true) {
+      final Socket socket;
+      try {
+        socket = mServer.accept();
+      } catch (IOException e) {
+        return; // closed
+      }
+      Thread thread = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            serve(socket);
+          } catch (SocketException e) {
+            // player closed connection, e.g. to seek
+          } catch (IOException e) {
+            LOGGER.warning("failed to serve stream, nested exception is " + e);
+          } finally {
+            try {
+              socket.close();
+            } catch (IOException e) {
+              // ignore
+            }
+          }
+        }
+      }, "stream-connection");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private void serve(Socket socket) throws IOException {
+    InputStream in = new BufferedInputStream(socket.getInputStream());
+    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+    String[] request = readLine(in).split(" ");
+    if (request.length < 2) return;
+    long rangeStart = 0;
+    long rangeEnd = -1;
+    boolean ranged = false;
+    String line;
+    while ((line = readLine(in)).length() > 0) {
+      int colon = line.indexOf(':');
+      if (colon < 0
+          || !line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+        continue;
+      }
+      // bytes=start-[end], other forms served whole
+      String range = line.substring(colon + 1).trim();
+      int dash = range.indexOf('-');
+      if (!range.startsWith("bytes=") || dash < 0) continue;
+      try {
+        rangeStart = Long.parseLong(range.substring(6, dash).trim());
+        String end = range.substring(dash + 1).trim();
+        rangeEnd = end.length() > 0 ? Long.parseLong(end) : -1;
+        ranged = true;
+      } catch (NumberFormatException e) {
+        rangeStart = 0;
+        rangeEnd = -1;
+      }
+    }
+
+    HttpStreamSource source;
+    synchronized (mSources) {
+      source = mSources.get(request[1].substring(1));
+    }
+    if (source == null) {
+      writeError(out, "404 Not Found");
+      return;
+    }
+    long length;
+    try {
+      length = source.getLength();
+    } catch (IOException e) {
+      LOGGER.warning("failed to open " + source.getUrl()
+          + ", nested exception is " + e);
+      writeError(out, "502 Bad Gateway");
+      return;
+    }
+    if (rangeEnd < 0 || rangeEnd >= length) rangeEnd = length - 1;
+    if (rangeStart >= length) {
+      writeError(out, "416 Requested Range Not Satisfiable");
+      return;
+    }
+
+    writeStatus(out, ranged ? "206 Partial Content" : "200 OK", rangeEnd
+        - rangeStart + 1);
+    if (ranged) {
+      writeHeader(out, "Content-Range: bytes " + rangeStart + "-" + rangeEnd
+          + "/" + length);
+    }
+    writeHeader(out, "");
+    if (request[0].equals("HEAD")) {
+      out.flush();
+      return;
+    }
+
+    long position = rangeStart;
+    while (position <= rangeEnd) {
+      int index = (int) (position / ChunkCache.CHUNK_SIZE);
+      byte[] chunk = source.getChunk(index);
+      int offset = (int) (position - (long) index * ChunkCache.CHUNK_SIZE);
+      int count =
+          (int) Math.min(chunk.length - offset, rangeEnd - position + 1);
+      if (count <= 0) throw new IOException("stream shorter than " + length);
+      out.write(chunk, offset, count);
+      position += count;
+    }
+    out.flush();
+  }
+
+  private static void writeStatus(OutputStream out, String status,
+      long contentLength) throws IOException {
+    writeHeader(out, "HTTP/1.1 " + status);
+    writeHeader(out, "Content-Type: audio/mpeg");
+    writeHeader(out, "Accept-Ranges: bytes");
+    writeHeader(out, "Content-Length: " + contentLength);
+    writeHeader(out, "Connection: close");
+  }
+
+  private static void writeError(OutputStream out, String status)
+      throws IOException {
+    writeStatus(out, status, 0);
+    writeHeader(out, "");
+    out.flush();
+  }
+
+  private static void writeHeader(OutputStream out, String line)
+      throws IOException {
+    out.write((line + "\r\n").getBytes("ISO-8859-1"));
+  }
+
+  /**
+   * Read line of request, without CRLF.
+   */
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder builder = new StringBuilder();
+    int c;
+    while ((c = in.read()) >= 0 && c != '\n') {
+      if (c != '\r') builder.append((char) c);
+      if (builder.length() > MAX_HEADER_LINE) {
+        throw new IOException("header line too long");
+      }
+    }
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,84 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Downsampled envelope of decoded audio, peak and RMS of each bucket of
+ * equal duration, scaled to 0 - 255.
+ *
+ * @author xnnyygn
+ */
+public class Waveform {
+
+  private final byte[] mPeaks;
+  private final byte[] mRms;
+
+  /**
+   * Create waveform.
+   *
+   * @param peaks peaks of buckets
+   * @param rms RMS of buckets, same length as peaks
+   */
+  public Waveform(byte[] peaks, byte[] rms) {
+    if (peaks.length != rms.length) {
+      throw new IllegalArgumentException("peaks and rms differ in length");
+    }
+    mPeaks = peaks;
+    mRms = rms;
+  }
+
+  /**
+   * Read waveform written by {@link #writeTo(DataOutputStream)}.
+   *
+   * @param in input
+   * @return waveform
+   * @throws IOException if failed to read
+   */
+  public static Waveform readFrom(DataInputStream in) throws IOException {
+    int count = in.readUnsignedShort();
+    byte[] peaks = new byte[count];
+    byte[] rms = new byte[count];
+    in.readFully(peaks);
+    in.readFully(rms);
+    return new Waveform(peaks, rms);
+  }
+
+  /**
+   * Write waveform.
+   *
+   * @param out output
+   * @throws IOException if failed to write
+   */
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeShort(mPeaks.length);
+    out.write(mPeaks);
+    out.write(mRms);
+  }
+
+  public int getBucketCount() {
+    return mPeaks.length;
+  }
+
+  /**
+   * Get peak of bucket.
+   *
+   * @param bucket bucket
+   * @return peak, 0 - 255
+   */
+  public int getPeak(int bucket) {
+    return mPeaks[bucket] & 0xff;
+  }
+
+  /**
+   * Get RMS of bucket.
+   *
+   * @param bucket bucket
+   * @return RMS, 0 - 255
+   */
+  public int getRms(int bucket) {
+    return mRms[bucket] & 0xff;
+  }
+
+}
@@ -0,0 +1,168 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link ContentHasher}.
+ *
+ * @author xnnyygn
+ */
+public class ContentHasherTest {
+
+  /**
+   * Payload sampled, 8 samples of 16 KB with step of 144 KB.
+   */
+  private static final int SAMPLED_LENGTH = 1024 * 1024;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private int mFiles;
+
+  @Test
+  public void sameContentSameHash() throws IOException {
+    byte[] payload = payload(100000, 1);
+    assertEquals(hash(payload), hash(payload.clone()));
+    assertFalse(hash(payload) == hash(payload(100000, 2)));
+  }
+
+  @Test
+  public void ignoreTags() throws IOException {
+    byte[] payload = payload(50000, 1);
+    long hash = hash(payload);
+    assertEquals(hash, hash(concat(id3v2(20), payload)));
+    assertEquals(hash, hash(concat(payload, id3v1())));
+    assertEquals(hash, hash(concat(id3v2(300), payload, id3v1())));
+  }
+
+  @Test
+  public void hashShortFiles() throws IOException {
+    assertEquals(ContentHasher.UNKNOWN, hash(new byte[0]));
+    assertEquals(ContentHasher.UNKNOWN, hash(id3v2(20)));
+
+    // tails of less than 8 and 4 bytes are hashed too
+    Set<Long> hashes = new HashSet<Long>();
+    for (int length = 1; length <= 12; length++) {
+      long hash = hash(payload(length, 1));
+      assertFalse(hash == ContentHasher.UNKNOWN);
+      hashes.add(hash);
+    }
+    assertEquals(12, hashes.size());
+    assertFalse(hash(new byte[] {1, 2, 3}) == hash(new byte[] {1, 2, 4}));
+  }
+
+  @Test
+  public void hashWholePayloadUpToLimit() throws IOException {
+    byte[] payload = payload(ContentHasher.FULL_HASH_LIMIT, 1);
+    long hash = hash(payload);
+    payload[ContentHasher.FULL_HASH_LIMIT / 2] ^= 1;
+    assertFalse(hash == hash(payload));
+  }
+
+  @Test
+  public void hashSampledRegionsOfLargePayload() throws IOException {
+    byte[] payload = payload(SAMPLED_LENGTH, 1);
+    long hash = hash(payload);
+    int step =
+        (SAMPLED_LENGTH - ContentHasher.SAMPLE_SIZE)
+            / (ContentHasher.SAMPLE_COUNT - 1);
+
+    // last byte of first sample, first byte of second one, last byte
+    assertTrue(changes(payload, hash, ContentHasher.SAMPLE_SIZE - 1));
+    assertTrue(changes(payload, hash, step));
+    assertTrue(changes(payload, hash, SAMPLED_LENGTH - 1));
+    // bytes between samples are not read
+    assertFalse(changes(payload, hash, ContentHasher.SAMPLE_SIZE));
+    assertFalse(changes(payload, hash, step - 1));
+
+    // length is hashed
+    byte[] longer = new byte[SAMPLED_LENGTH + 1];
+    System.arraycopy(payload, 0, longer, 0, SAMPLED_LENGTH);
+    assertFalse(hash == hash(longer));
+  }
+
+  /**
+   * Test if hash changes once byte at offset is flipped, byte restored
+   * after.
+   */
+  private boolean changes(byte[] payload, long hash, int offset)
+      throws IOException {
+    payload[offset] ^= 1;
+    try {
+      return hash(payload) != hash;
+    } finally {
+      payload[offset] ^= 1;
+    }
+  }
+
+  private long hash(byte[] content) throws IOException {
+    File file = new File(mFolder.getRoot(), "track" + mFiles++ + ".mp3");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    return ContentHasher.hash(file);
+  }
+
+  private static byte[] payload(int length, long seed) {
+    byte[] payload = new byte[length];
+    new Random(seed).nextBytes(payload);
+    return payload;
+  }
+
+  /**
+   * ID3v2.3 tag of specified size after header, no flags.
+   */
+  private static byte[] id3v2(int size) {
+    byte[] tag = new byte[10 + size];
+    tag[0] = 'I';
+    tag[1] = 'D';
+    tag[2] = '3';
+    tag[3] = 3;
+    // syncsafe size, 7 bits per byte
+    tag[6] = (byte) ((size >> 21) & 0x7f);
+    tag[7] = (byte) ((size >> 14) & 0x7f);
+    tag[8] = (byte) ((size >> 7) & 0x7f);
+    tag[9] = (byte) (size & 0x7f);
+    return tag;
+  }
+
+  private static byte[] id3v1() {
+    byte[] tag = new byte[128];
+    tag[0] = 'T';
+    tag[1] = 'A';
+    tag[2] = 'G';
+    tag[3] = 'x';
+    return tag;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    int length = 0;
+    for (byte[] part : parts) {
+      length += part.length;
+    }
+    byte[] bytes = new byte[length];
+    int offset = 0;
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, bytes, offset, part.length);
+      offset += part.length;
+    }
+    return bytes;
+  }
+
+}
@@ -0,0 +1,80 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link EqualizerStage}.
+ *
+ * @author xnnyygn
+ */
+public class EqualizerStageTest {
+
+  private static final int SAMPLE_RATE = 44100;
+
+  /**
+   * Samples run before measuring, long enough for filter to settle.
+   */
+  private static final int SETTLE_SAMPLES = SAMPLE_RATE / 10;
+  private static final int MEASURE_SAMPLES = SAMPLE_RATE / 10;
+  private static final double TOLERANCE_DB = 0.1;
+
+  @Test
+  public void gainAtBandCenter() {
+    EqualizerStage equalizer = new EqualizerStage(1000f);
+    equalizer.configure(SAMPLE_RATE, 1);
+    equalizer.setGainDb(0, 6f);
+    assertEquals(6.0, responseDb(equalizer, 1000, 1), TOLERANCE_DB);
+
+    equalizer.setGainDb(0, -9f);
+    equalizer.reset();
+    assertEquals(-9.0, responseDb(equalizer, 1000, 1), TOLERANCE_DB);
+  }
+
+  @Test
+  public void unityFarFromBand() {
+    EqualizerStage equalizer = new EqualizerStage(10000f);
+    equalizer.configure(SAMPLE_RATE, 1);
+    equalizer.setGainDb(0, 12f);
+    assertEquals(0.0, responseDb(equalizer, 50, 1), TOLERANCE_DB);
+  }
+
+  @Test
+  public void gainAtBandCenterOfEachChannel() {
+    EqualizerStage equalizer = new EqualizerStage(230f, 3600f);
+    equalizer.configure(SAMPLE_RATE, 2);
+    equalizer.setGainDb(1, 6f);
+    assertEquals(6.0, responseDb(equalizer, 3600, 2), TOLERANCE_DB);
+  }
+
+  /**
+   * Run sine of frequency on all channels, and measure gain of first
+   * channel by ratio of RMS after settled.
+   */
+  private static double responseDb(EqualizerStage equalizer,
+      double frequency, int channels) {
+    int frames = SETTLE_SAMPLES + MEASURE_SAMPLES;
+    float[] samples = new float[frames * channels];
+    for (int frame = 0; frame < frames; frame++) {
+      float value =
+          (float) (0.25 * Math.sin(2 * Math.PI * frequency * frame
+              / SAMPLE_RATE));
+      for (int channel = 0; channel < channels; channel++) {
+        samples[frame * channels + channel] = value;
+      }
+    }
+    float[] input = samples.clone();
+    equalizer.process(samples, frames);
+
+    double inputPower = 0;
+    double outputPower = 0;
+    for (int frame = SETTLE_SAMPLES; frame < frames; frame++) {
+      int i = frame * channels;
+      inputPower += input[i] * input[i];
+      outputPower += samples[i] * samples[i];
+    }
+    return 10 * Math.log10(outputPower / inputPower);
+  }
+
+}
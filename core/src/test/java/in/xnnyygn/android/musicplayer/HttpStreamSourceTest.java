@@ -0,0 +1,156 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link HttpStreamSource} against a local HTTP server.
+ *
+ * @author xnnyygn
+ */
+public class HttpStreamSourceTest {
+
+  private static final int CHUNK_SIZE = ChunkCache.CHUNK_SIZE;
+
+  /**
+   * Executor keeping tasks until run by test.
+   *
+   * @author xnnyygn
+   */
+  private static class QueueExecutor implements Executor {
+
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      List<Runnable> running = new ArrayList<Runnable>(tasks);
+      tasks.clear();
+      for (Runnable task : running) {
+        task.run();
+      }
+    }
+
+  }
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private TestHttpServer mServer;
+  private ChunkCache mCache;
+  private final QueueExecutor mExecutor = new QueueExecutor();
+
+  @Before
+  public void setUp() throws Exception {
+    // two whole chunks and a short last one
+    mServer = new TestHttpServer(TestHttpServer.bodyOf(CHUNK_SIZE * 2 + 1000));
+    mCache = new ChunkCache(new File(mFolder.getRoot(), "cache"),
+        CHUNK_SIZE * 16);
+    mCache.open();
+  }
+
+  @After
+  public void tearDown() {
+    mServer.stop();
+  }
+
+  @Test
+  public void readChunksByRange() throws Exception {
+    HttpStreamSource source = source("/a.mp3");
+    assertEquals(mServer.body.length, source.getLength());
+    assertArrayEquals(slice(0), source.getChunk(0));
+    assertArrayEquals(slice(2), source.getChunk(2));
+  }
+
+  @Test
+  public void readChunkOfServerIgnoringRange() throws Exception {
+    mServer.ignoreRange = true;
+    HttpStreamSource source = source("/a.mp3");
+    assertArrayEquals(slice(1), source.getChunk(1));
+    assertEquals(mServer.body.length, source.getLength());
+  }
+
+  @Test
+  public void readCachedChunkWithoutServer() throws Exception {
+    source("/a.mp3").getChunk(1);
+    mServer.stop();
+
+    HttpStreamSource source = source("/a.mp3");
+    assertEquals(mServer.body.length, source.getLength());
+    assertArrayEquals(slice(1), source.getChunk(1));
+  }
+
+  @Test
+  public void readAheadChunksAfterOnce() throws Exception {
+    HttpStreamSource source = source("/a.mp3");
+    source.getChunk(0);
+    // chunks 1 and 2, stream ends before read-ahead does
+    assertEquals(2, mExecutor.tasks.size());
+    source.getChunk(0);
+    assertEquals(2, mExecutor.tasks.size());
+
+    mExecutor.runAll();
+    int requests = mServer.requests.get();
+    assertArrayEquals(slice(1), source.getChunk(1));
+    assertArrayEquals(slice(2), source.getChunk(2));
+    assertEquals(requests, mServer.requests.get());
+  }
+
+  @Test
+  public void readWhenReadAheadRejected() throws Exception {
+    HttpStreamSource source =
+        new HttpStreamSource(mServer.urlOf("/a.mp3"), mCache, new Executor() {
+
+          @Override
+          public void execute(Runnable command) {
+            throw new RejectedExecutionException("busy");
+          }
+        });
+    assertArrayEquals(slice(0), source.getChunk(0));
+    assertArrayEquals(slice(1), source.getChunk(1));
+  }
+
+  @Test
+  public void skipReadAheadWhenClosed() throws Exception {
+    HttpStreamSource source = source("/a.mp3");
+    source.getChunk(0);
+    source.close();
+    int requests = mServer.requests.get();
+    mExecutor.runAll();
+    assertEquals(requests, mServer.requests.get());
+  }
+
+  @Test
+  public void parseTotal() {
+    assertEquals(4096, HttpStreamSource.parseTotal("bytes 0-1023/4096"));
+    assertEquals(-1, HttpStreamSource.parseTotal("bytes 0-1023/*"));
+    assertEquals(-1, HttpStreamSource.parseTotal(null));
+  }
+
+  private HttpStreamSource source(String path) {
+    return new HttpStreamSource(mServer.urlOf(path), mCache, mExecutor);
+  }
+
+  private byte[] slice(int index) {
+    int start = index * CHUNK_SIZE;
+    return Arrays.copyOfRange(mServer.body, start,
+        Math.min(start + CHUNK_SIZE, mServer.body.length));
+  }
+
+}
@@ -0,0 +1,262 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link Id3TagReader} against sample files.
+ *
+ * @author xnnyygn
+ */
+public class Id3TagReaderTest {
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void readV23() throws Exception {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    frame(frames, 3, "TIT2", text("Title"));
+    frame(frames, 3, "TPE1", text("Artist"));
+    frame(frames, 3, "TALB", text("Album"));
+    frame(frames, 3, "TRCK", text("7/12"));
+    Music music = read(sample(tag(3, 0, frames.toByteArray()), null));
+
+    assertEquals("Title", music.getTitle());
+    assertEquals("Artist", music.getArtist());
+    assertEquals("Album", music.getAlbum());
+    assertEquals(7, music.getTrackNumber());
+  }
+
+  @Test
+  public void readV22() throws Exception {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    frame(frames, 2, "TT2", text("Title"));
+    frame(frames, 2, "TP1", text("Artist"));
+    Music music = read(sample(tag(2, 0, frames.toByteArray()), null));
+
+    assertEquals("Title", music.getTitle());
+    assertEquals("Artist", music.getArtist());
+  }
+
+  @Test
+  public void readV24Utf8() throws Exception {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    byte[] title = "\u97f3\u697d".getBytes("UTF-8");
+    byte[] body = new byte[title.length + 1];
+    body[0] = 3;
+    System.arraycopy(title, 0, body, 1, title.length);
+    frame(frames, 4, "TIT2", body);
+    Music music = read(sample(tag(4, 0, frames.toByteArray()), null));
+
+    assertEquals("\u97f3\u697d", music.getTitle());
+  }
+
+  @Test
+  public void readV1() throws Exception {
+    Music music = read(sample(null, v1("Title", "Artist", 5)));
+
+    assertEquals("Title", music.getTitle());
+    assertEquals("Artist", music.getArtist());
+    assertEquals(5, music.getTrackNumber());
+  }
+
+  @Test
+  public void v2TakesPrecedenceOverV1() throws Exception {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    frame(frames, 3, "TIT2", text("Title v2"));
+    Music music =
+        read(sample(tag(3, 0, frames.toByteArray()), v1("Title v1", "Artist",
+            0)));
+
+    assertEquals("Title v2", music.getTitle());
+    assertEquals("Artist", music.getArtist());
+  }
+
+  @Test
+  public void noTag() throws Exception {
+    File file = sample(null, null);
+    Music music = new Music(file);
+    assertFalse(new Id3TagReader().read(file, music));
+  }
+
+  @Test
+  public void undoUnsynchronisationAcrossWholeTag() throws Exception {
+    // frame of 0xff bytes pushes title beyond first buffer
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    frame(frames, 3, "PRIV", filled(3 * Id3TagReader.DEFAULT_BUFFER_SIZE));
+    frame(frames, 3, "TIT2", text("Title"));
+    frame(frames, 3, "TPE1", text("Artist"));
+    byte[] tag = tag(3, 0x80, unsynchronise(frames.toByteArray()));
+    Music music = read(sample(tag, null));
+
+    assertEquals("Title", music.getTitle());
+    assertEquals("Artist", music.getArtist());
+  }
+
+  @Test
+  public void undoUnsynchronisationOfV22() throws Exception {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    frame(frames, 2, "TT2", text("Title\u00ff"));
+    frame(frames, 2, "TP1", text("Artist"));
+    byte[] tag = tag(2, 0x80, unsynchronise(frames.toByteArray()));
+    Music music = read(sample(tag, null));
+
+    assertEquals("Title\u00ff", music.getTitle());
+    assertEquals("Artist", music.getArtist());
+  }
+
+  @Test
+  public void readPictureOfUnsynchronisedTag() throws Exception {
+    byte[] picture = filled(2 * Id3TagReader.DEFAULT_BUFFER_SIZE);
+    for (int i = 0; i < picture.length; i += 3) {
+      picture[i] = 0;
+    }
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    frame(frames, 3, "TIT2", text("Title"));
+    frame(frames, 3, "APIC", picture(picture));
+    byte[] tag = tag(3, 0x80, unsynchronise(frames.toByteArray()));
+    File file = sample(tag, null);
+
+    assertArrayEquals(picture, new Id3TagReader().readPicture(file));
+    assertEquals("Title", read(file).getTitle());
+  }
+
+  @Test
+  public void readPicture() throws Exception {
+    byte[] picture = filled(100);
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    frame(frames, 3, "APIC", picture(picture));
+    File file = sample(tag(3, 0, frames.toByteArray()), null);
+
+    assertArrayEquals(picture, new Id3TagReader().readPicture(file));
+  }
+
+  private Music read(File file) throws IOException {
+    Music music = new Music(file);
+    assertTrue(new Id3TagReader().read(file, music));
+    return music;
+  }
+
+  private File sample(byte[] tag, byte[] v1) throws IOException {
+    File file = mFolder.newFile();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      if (tag != null) out.write(tag);
+      out.write(new byte[1000]); // audio
+      if (v1 != null) out.write(v1);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private static byte[] tag(int major, int flags, byte[] frames) {
+    byte[] tag = new byte[10 + frames.length];
+    tag[0] = 'I';
+    tag[1] = 'D';
+    tag[2] = '3';
+    tag[3] = (byte) major;
+    tag[5] = (byte) flags;
+    syncsafe(tag, 6, frames.length);
+    System.arraycopy(frames, 0, tag, 10, frames.length);
+    return tag;
+  }
+
+  private static void frame(ByteArrayOutputStream out, int major, String id,
+      byte[] body) throws IOException {
+    out.write(id.getBytes("ISO-8859-1"));
+    if (major == 2) {
+      out.write(body.length >> 16);
+      out.write(body.length >> 8);
+      out.write(body.length);
+    } else {
+      byte[] size = new byte[4];
+      if (major == 4) {
+        syncsafe(size, 0, body.length);
+      } else {
+        size[0] = (byte) (body.length >> 24);
+        size[1] = (byte) (body.length >> 16);
+        size[2] = (byte) (body.length >> 8);
+        size[3] = (byte) body.length;
+      }
+      out.write(size);
+      out.write(0);
+      out.write(0);
+    }
+    out.write(body);
+  }
+
+  private static byte[] text(String text) throws IOException {
+    byte[] bytes = text.getBytes("ISO-8859-1");
+    byte[] body = new byte[bytes.length + 1];
+    System.arraycopy(bytes, 0, body, 1, bytes.length);
+    return body;
+  }
+
+  private static byte[] picture(byte[] data) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(0);
+    body.write("image/png".getBytes("ISO-8859-1"));
+    body.write(0);
+    body.write(3); // front cover
+    body.write(0); // empty description
+    body.write(data);
+    return body.toByteArray();
+  }
+
+  private static byte[] filled(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) 0xff;
+    }
+    return bytes;
+  }
+
+  /**
+   * Insert zero byte after each 0xff, as encoder does when followed by zero
+   * or sync bits.
+   */
+  private static byte[] unsynchronise(byte[] bytes) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte b : bytes) {
+      out.write(b);
+      if (b == (byte) 0xff) out.write(0);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] v1(String title, String artist, int track)
+      throws IOException {
+    byte[] tag = new byte[128];
+    tag[0] = 'T';
+    tag[1] = 'A';
+    tag[2] = 'G';
+    byte[] bytes = title.getBytes("ISO-8859-1");
+    System.arraycopy(bytes, 0, tag, 3, bytes.length);
+    bytes = artist.getBytes("ISO-8859-1");
+    System.arraycopy(bytes, 0, tag, 33, bytes.length);
+    tag[126] = (byte) track;
+    tag[127] = (byte) 0xff; // no genre
+    return tag;
+  }
+
+  private static void syncsafe(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) ((value >> 21) & 0x7f);
+    bytes[offset + 1] = (byte) ((value >> 14) & 0x7f);
+    bytes[offset + 2] = (byte) ((value >> 7) & 0x7f);
+    bytes[offset + 3] = (byte) (value & 0x7f);
+  }
+
+}
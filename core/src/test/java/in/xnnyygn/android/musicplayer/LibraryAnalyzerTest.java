@@ -0,0 +1,220 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link LibraryAnalyzer}.
+ *
+ * @author xnnyygn
+ */
+public class LibraryAnalyzerTest {
+
+  /**
+   * MPEG 1 layer III, 128kbps, 44100Hz, stereo, frame length 417.
+   */
+  private static final byte[] FRAME_HEADER = {(byte) 0xff, (byte) 0xfb,
+      (byte) 0x90, (byte) 0x00};
+  private static final int FRAME_LENGTH = 417;
+  private static final int FRAMES = 100;
+
+  /**
+   * Listener counting merges.
+   *
+   * @author xnnyygn
+   */
+  private static class Result implements LibraryAnalyzer.Listener {
+
+    final AtomicInteger updates = new AtomicInteger();
+    final CountDownLatch finished = new CountDownLatch(1);
+
+    @Override
+    public void onIndexUpdated(boolean finished) {
+      updates.incrementAndGet();
+      if (finished) this.finished.countDown();
+    }
+
+  }
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private JobScheduler mScheduler;
+  private File mIndexFile;
+
+  @Before
+  public void setUp() throws IOException {
+    mScheduler = new JobScheduler(2);
+    mIndexFile = new File(mFolder.getRoot(), LibraryIndex.FILE_NAME);
+  }
+
+  @After
+  public void tearDown() {
+    mScheduler.shutdown();
+  }
+
+  @Test
+  public void mergeOnceWhenFinished() throws Exception {
+    List<Music> musics = writeMusics(20);
+    LibraryIndex.write(mIndexFile, musics, musics.size());
+
+    Result result = analyze();
+    LibraryIndex index = LibraryIndex.open(mIndexFile);
+    for (int i = 0; i < index.size(); i++) {
+      assertEquals(FRAMES, index.getMusic(i).getSeekTable().getFrameCount());
+    }
+    assertEquals(1, result.updates.get());
+    assertFalse(LibraryAnalyzer.journalOf(mIndexFile).exists());
+  }
+
+  @Test
+  public void mergeJournalLeftByProcessDeath() throws Exception {
+    List<Music> musics = writeMusics(2);
+    LibraryIndex.write(mIndexFile, musics, musics.size());
+    // journal of first music, table differs from file to tell it apart
+    Music first = musics.get(0);
+    SeekTable journaled =
+        new SeekTable(true, false, 44100, 1152, 999, new int[] {0},
+            new long[] {0}, 1);
+    LibraryAnalyzer.appendJournal(LibraryAnalyzer.journalOf(mIndexFile),
+        Collections.singletonList(new LibraryAnalyzer.Analysis(
+            first.getId(), first.getSize(), first.getLastModified(),
+            journaled)));
+
+    analyze();
+    LibraryIndex index = LibraryIndex.open(mIndexFile);
+    assertEquals(999, index.getMusicById(0).getSeekTable().getFrameCount());
+    assertEquals(FRAMES, index.getMusicById(1).getSeekTable()
+        .getFrameCount());
+    assertFalse(LibraryAnalyzer.journalOf(mIndexFile).exists());
+  }
+
+  @Test
+  public void finishWhenSubmitRejected() throws Exception {
+    List<Music> musics = writeMusics(3);
+    LibraryIndex.write(mIndexFile, musics, musics.size());
+    mScheduler.shutdown();
+    mScheduler = new JobScheduler(2) {
+
+      @Override
+      public boolean submit(String key, int priority, Job job) {
+        // as if job of same key pending
+        if (key.equals(LibraryAnalyzer.jobKey(0))) return false;
+        return super.submit(key, priority, job);
+      }
+    };
+
+    analyze();
+    LibraryIndex index = LibraryIndex.open(mIndexFile);
+    assertNull(index.getMusicById(0).getSeekTable());
+    assertEquals(FRAMES, index.getMusicById(2).getSeekTable()
+        .getFrameCount());
+  }
+
+  @Test
+  public void mergeResultOfJobRunningWhenCancelled() throws Exception {
+    List<Music> musics = writeMusics(1);
+    LibraryIndex.write(mIndexFile, musics, musics.size());
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    mScheduler.shutdown();
+    mScheduler = new JobScheduler(3) {
+
+      @Override
+      public boolean submit(String key, int priority, final Job job) {
+        if (!key.equals(LibraryAnalyzer.jobKey(0))) {
+          return super.submit(key, priority, job);
+        }
+        return super.submit(key, priority, new Job() {
+
+          @Override
+          public void run() {
+            started.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            job.run();
+          }
+        });
+      }
+    };
+
+    Result result = new Result();
+    LibraryAnalyzer analyzer = new LibraryAnalyzer(mScheduler);
+    analyzer.analyze(mIndexFile, LibraryIndex.open(mIndexFile), result);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    analyzer.cancel();
+    // merge job of cancel runs first, on the other background worker
+    final CountDownLatch merged = new CountDownLatch(1);
+    mScheduler.submit("probe", JobScheduler.PRIORITY_QUEUE,
+        new JobScheduler.Job() {
+
+          @Override
+          public void run() {
+            merged.countDown();
+          }
+        });
+    assertTrue(merged.await(10, TimeUnit.SECONDS));
+    release.countDown();
+
+    long deadline = System.currentTimeMillis() + 10000;
+    SeekTable table = null;
+    while (table == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      table = LibraryIndex.open(mIndexFile).getMusicById(0).getSeekTable();
+    }
+    assertNotNull(table);
+    assertEquals(0, result.updates.get());
+  }
+
+  private Result analyze() throws Exception {
+    Result result = new Result();
+    new LibraryAnalyzer(mScheduler).analyze(mIndexFile,
+        LibraryIndex.open(mIndexFile), result);
+    assertTrue(result.finished.await(10, TimeUnit.SECONDS));
+    return result;
+  }
+
+  private List<Music> writeMusics(int count) throws IOException {
+    List<Music> musics = new ArrayList<Music>(count);
+    for (int i = 0; i < count; i++) {
+      File file = mFolder.newFile("track" + i + ".mp3");
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        byte[] frame = new byte[FRAME_LENGTH];
+        System.arraycopy(FRAME_HEADER, 0, frame, 0, FRAME_HEADER.length);
+        for (int j = 0; j < FRAMES; j++) {
+          out.write(frame);
+        }
+      } finally {
+        out.close();
+      }
+      Music music = new Music(file);
+      music.setId(i);
+      musics.add(music);
+    }
+    return musics;
+  }
+
+}
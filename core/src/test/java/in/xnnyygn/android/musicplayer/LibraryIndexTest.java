@@ -0,0 +1,139 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link LibraryIndex} file format.
+ *
+ * @author xnnyygn
+ */
+public class LibraryIndexTest {
+
+  private static final int HEADER_SIZE = 40;
+  private static final int RECORD_SIZE = 80;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private File mFile;
+
+  @Before
+  public void setUp() throws IOException {
+    mFile = new File(mFolder.getRoot(), LibraryIndex.FILE_NAME);
+    List<Music> musics = new ArrayList<Music>();
+    for (int i = 0; i < 3; i++) {
+      musics.add(new Music(i, "title " + i, "/music/dir" + (i % 2)
+          + "/track" + i + ".mp3", "artist", null, i + 1, 1000 + i, 2000 + i,
+          0, null, ContentHasher.UNKNOWN));
+    }
+    LibraryIndex.write(mFile, musics, 5);
+  }
+
+  @Test
+  public void openReadsWrittenMusics() throws IOException {
+    LibraryIndex index = LibraryIndex.open(mFile);
+    assertEquals(3, index.size());
+    assertEquals(5, index.getNextId());
+    Music music = index.getMusicById(2);
+    assertEquals("/music/dir0/track2.mp3", music.getPath());
+    assertEquals("title 2", music.getTitle());
+    assertEquals(1002, music.getSize());
+    assertEquals(1, index.findPosition("/music/dir1/track1.mp3"));
+  }
+
+  @Test
+  public void openReturnsNullIfNotExists() throws IOException {
+    assertNull(LibraryIndex.open(new File(mFolder.getRoot(), "none")));
+  }
+
+  @Test
+  public void rejectStringOutOfPoolWhenDecoded() throws IOException {
+    // length of title of second record
+    corrupt(HEADER_SIZE + RECORD_SIZE + 20, 1 << 20);
+    LibraryIndex index = LibraryIndex.open(mFile);
+    assertEquals("title 0", index.getTitle(0));
+    assertDecodeFails(index, 1);
+  }
+
+  @Test
+  public void rejectNegativeOffsetWhenDecoded() throws IOException {
+    // offset of base name of first record
+    corrupt(HEADER_SIZE + 8, -4);
+    assertDecodeFails(LibraryIndex.open(mFile), 0);
+  }
+
+  @Test
+  public void rejectDirectoryOutOfTableWhenDecoded() throws IOException {
+    corrupt(HEADER_SIZE + 4, 7);
+    LibraryIndex index = LibraryIndex.open(mFile);
+    try {
+      index.getPath(0);
+      fail("directory out of table decoded");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void notFindIdNotInIdTable() throws IOException {
+    corrupt(HEADER_SIZE + RECORD_SIZE * 2, 4);
+    LibraryIndex index = LibraryIndex.open(mFile);
+    assertNull(index.getMusicById(2));
+    assertNull(index.getMusicById(4));
+    assertEquals(1, index.getPosition(1));
+  }
+
+  @Test
+  public void openRejectsHeaderNotMatchingChecksum() throws IOException {
+    corrupt(16, 6);
+    assertCorrupted();
+  }
+
+  @Test
+  public void openRejectsHugeCount() throws IOException {
+    corrupt(8, Integer.MAX_VALUE / RECORD_SIZE);
+    assertCorrupted();
+  }
+
+  private void corrupt(long offset, int value) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+    try {
+      raf.seek(offset);
+      raf.writeInt(value);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void assertDecodeFails(LibraryIndex index, int position) {
+    try {
+      index.getMusic(position);
+      fail("corrupted record decoded");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  private void assertCorrupted() {
+    try {
+      LibraryIndex.open(mFile);
+      fail("corrupted index opened");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,135 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link LibraryScanner}.
+ *
+ * @author xnnyygn
+ */
+public class LibraryScannerTest {
+
+  /**
+   * Result of one scan.
+   *
+   * @author xnnyygn
+   */
+  private static class Result implements LibraryScanner.Listener {
+
+    final List<Music> musics =
+        Collections.synchronizedList(new ArrayList<Music>());
+    final CountDownLatch finished = new CountDownLatch(1);
+    volatile boolean changed;
+
+    @Override
+    public void onMusicFound(List<Music> found) {
+      musics.addAll(found);
+    }
+
+    @Override
+    public void onScanFinished(int total, boolean changed) {
+      this.changed = changed;
+      finished.countDown();
+    }
+
+  }
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private LibraryScanner mScanner;
+
+  @Before
+  public void setUp() {
+    mScanner = new LibraryScanner(2, 10);
+  }
+
+  @After
+  public void tearDown() {
+    mScanner.shutdown();
+  }
+
+  @Test
+  public void rescanFindsFileModifiedInPlace() throws Exception {
+    File dir = mFolder.newFolder("music");
+    File file = new File(dir, "track.mp3");
+    write(file, 1000);
+    long dirMtime = dir.lastModified();
+
+    Result first = scan(dir);
+    assertEquals(1, first.musics.size());
+    assertEquals(1000, first.musics.get(0).getSize());
+
+    Result unchanged = scan(dir);
+    assertFalse(unchanged.changed);
+
+    write(file, 2000);
+    file.setLastModified(file.lastModified() + 2000);
+    dir.setLastModified(dirMtime);
+    Result modified = scan(dir);
+    assertTrue(modified.changed);
+    assertEquals(2000, modified.musics.get(0).getSize());
+  }
+
+  @Test
+  public void scanWithIndexOfCorruptedRecord() throws Exception {
+    File dir = mFolder.newFolder("music");
+    write(new File(dir, "track.mp3"), 1000);
+    List<Music> musics = scan(dir).musics;
+    musics.get(0).setId(0);
+    File indexFile = mFolder.newFile(LibraryIndex.FILE_NAME);
+    LibraryIndex.write(indexFile, musics, 1);
+    RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+    try {
+      // length of base name of first record, header 40 bytes
+      raf.seek(40 + 12);
+      raf.writeInt(1 << 20);
+    } finally {
+      raf.close();
+    }
+
+    mScanner.shutdown();
+    mScanner = new LibraryScanner(2, 10);
+    Result result = new Result();
+    mScanner.scan(Arrays.asList(dir), LibraryIndex.open(indexFile), result);
+    assertTrue(result.finished.await(5, TimeUnit.SECONDS));
+    assertTrue(result.changed);
+    assertEquals(1, result.musics.size());
+  }
+
+  private Result scan(File root) throws InterruptedException {
+    Result result = new Result();
+    mScanner.scan(Arrays.asList(root), null, result);
+    assertTrue(result.finished.await(5, TimeUnit.SECONDS));
+    return result;
+  }
+
+  private static void write(File file, int size) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[size]);
+    } finally {
+      out.close();
+    }
+  }
+
+}
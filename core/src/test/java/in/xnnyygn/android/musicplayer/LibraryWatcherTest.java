@@ -0,0 +1,209 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link LibraryWatcher}, events reported by hand.
+ *
+ * @author xnnyygn
+ */
+public class LibraryWatcherTest {
+
+  private static final long DEBOUNCE_DELAY = 50;
+  private static final long TIMEOUT = 5000;
+
+  /**
+   * Source recording directories watched.
+   *
+   * @author xnnyygn
+   */
+  static class RecordingSource implements LibraryWatcher.Source {
+
+    final Set<String> dirs = new ConcurrentSkipListSet<String>();
+    volatile CountDownLatch watched = new CountDownLatch(1);
+    volatile Thread thread;
+
+    @Override
+    public boolean watch(File dir, LibraryWatcher watcher) {
+      thread = Thread.currentThread();
+      dirs.add(dir.getAbsolutePath());
+      watched.countDown();
+      return true;
+    }
+
+    @Override
+    public void unwatch(File dir) {
+      dirs.remove(dir.getAbsolutePath());
+    }
+
+    @Override
+    public void close() {
+      dirs.clear();
+    }
+
+  }
+
+  /**
+   * Listener queueing changes delivered.
+   *
+   * @author xnnyygn
+   */
+  static class QueueListener implements LibraryWatcher.Listener {
+
+    final BlockingQueue<LibraryWatcher.Changes> changes =
+        new LinkedBlockingQueue<LibraryWatcher.Changes>();
+
+    @Override
+    public void onLibraryChanged(LibraryWatcher.Changes changes) {
+      this.changes.add(changes);
+    }
+
+    LibraryWatcher.Changes take() throws InterruptedException {
+      LibraryWatcher.Changes taken =
+          changes.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+      assertNotNull("no changes delivered", taken);
+      return taken;
+    }
+
+  }
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private final RecordingSource mSource = new RecordingSource();
+  private final QueueListener mListener = new QueueListener();
+  private LibraryWatcher mWatcher;
+
+  @After
+  public void tearDown() {
+    if (mWatcher != null) mWatcher.stop();
+  }
+
+  @Test
+  public void watchInWatcherThread() throws Exception {
+    File dir = watch(1);
+    assertTrue(mSource.dirs.contains(dir.getAbsolutePath()));
+    assertNotNull(mSource.thread);
+    assertEquals("watcher", mSource.thread.getName());
+  }
+
+  @Test
+  public void coalesceEventsOfPath() throws Exception {
+    File dir = watch(10);
+    File file = new File(dir, "a.mp3");
+    mWatcher.onEvent(dir, "a.mp3", LibraryWatcher.EVENT_CREATED);
+    mWatcher.onEvent(dir, "a.mp3", LibraryWatcher.EVENT_DELETED);
+    mWatcher.onEvent(dir, ".hidden.mp3", LibraryWatcher.EVENT_CREATED);
+
+    LibraryWatcher.Changes changes = mListener.take();
+    assertTrue(changes.createdFiles.isEmpty());
+    assertEquals(Collections.singletonList(file.getAbsolutePath()),
+        changes.deletedPaths);
+    assertNull(mListener.changes.poll(DEBOUNCE_DELAY * 3,
+        TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void reportMusicFilesCreated() throws Exception {
+    File dir = watch(10);
+    File music = new File(dir, "a.mp3");
+    assertTrue(music.createNewFile());
+    assertTrue(new File(dir, "cover.jpg").createNewFile());
+    mWatcher.onEvent(dir, "a.mp3", LibraryWatcher.EVENT_CREATED);
+    mWatcher.onEvent(dir, "cover.jpg", LibraryWatcher.EVENT_CREATED);
+
+    LibraryWatcher.Changes changes = mListener.take();
+    assertEquals(Collections.singletonList(music.getAbsoluteFile()),
+        changes.createdFiles);
+    assertTrue(changes.deletedPaths.isEmpty());
+  }
+
+  @Test
+  public void rescanOnOverflow() throws Exception {
+    File dir = watch(10);
+    assertTrue(new File(dir, "a.mp3").createNewFile());
+    mWatcher.onEvent(dir, "a.mp3", LibraryWatcher.EVENT_CREATED);
+    mWatcher.onEvent(dir, null, LibraryWatcher.EVENT_OVERFLOW);
+
+    LibraryWatcher.Changes changes = mListener.take();
+    // file under directory rescanned is not reported on its own
+    assertTrue(changes.createdFiles.isEmpty());
+    assertEquals(Collections.singletonList(dir.getAbsoluteFile()),
+        changes.rescanDirs);
+  }
+
+  @Test
+  public void rescanWhenTooManyEventsPending() throws Exception {
+    File dir = watch(3);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(new File(dir, i + ".mp3").createNewFile());
+      mWatcher.onEvent(dir, i + ".mp3", LibraryWatcher.EVENT_CREATED);
+    }
+
+    LibraryWatcher.Changes changes = mListener.take();
+    assertTrue(changes.createdFiles.isEmpty());
+    assertEquals(Collections.singletonList(dir.getAbsoluteFile()),
+        changes.rescanDirs);
+  }
+
+  @Test
+  public void watchDirectoryCreatedAndUnwatchDeleted() throws Exception {
+    File dir = watch(10);
+    File album = new File(dir, "album");
+    File disc = new File(album, "disc1");
+    assertTrue(disc.mkdirs());
+    mWatcher.onEvent(dir, "album", LibraryWatcher.EVENT_CREATED);
+
+    LibraryWatcher.Changes changes = mListener.take();
+    assertEquals(Collections.singletonList(album.getAbsoluteFile()),
+        changes.rescanDirs);
+    assertTrue(mSource.dirs.contains(album.getAbsolutePath()));
+    assertTrue(mSource.dirs.contains(disc.getAbsolutePath()));
+
+    assertTrue(disc.delete());
+    assertTrue(album.delete());
+    mWatcher.onEvent(dir, "album", LibraryWatcher.EVENT_DELETED);
+    changes = mListener.take();
+    assertEquals(Collections.singletonList(album.getAbsolutePath()),
+        changes.deletedPaths);
+    assertEquals(Collections.singleton(dir.getAbsolutePath()), mSource.dirs);
+  }
+
+  @Test
+  public void isUnder() {
+    assertTrue(LibraryWatcher.isUnder("/a/b", "/a/b"));
+    assertTrue(LibraryWatcher.isUnder("/a/b/c", "/a/b"));
+    assertFalse(LibraryWatcher.isUnder("/a/bc", "/a/b"));
+  }
+
+  private File watch(int maxPendingEvents) throws IOException,
+      InterruptedException {
+    File dir = mFolder.newFolder("music");
+    mWatcher =
+        new LibraryWatcher(mSource, mListener, DEBOUNCE_DELAY,
+            maxPendingEvents);
+    mWatcher.watch(Collections.singletonList(dir));
+    assertTrue(mSource.watched.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    return dir;
+  }
+
+}
@@ -0,0 +1,60 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link LimiterStage}.
+ *
+ * @author xnnyygn
+ */
+public class LimiterStageTest {
+
+  private static final int SAMPLE_RATE = 44100;
+  private static final float THRESHOLD_DB = -6f;
+
+  @Test
+  public void keepPeaksUnderCeiling() {
+    LimiterStage limiter = new LimiterStage(THRESHOLD_DB, 80f);
+    limiter.configure(SAMPLE_RATE, 2);
+    float ceiling = (float) Math.pow(10, THRESHOLD_DB / 20);
+    Random random = new Random(1);
+    float[] samples = new float[4096];
+    for (int block = 0; block < 50; block++) {
+      for (int i = 0; i < samples.length; i++) {
+        // boosted past full scale, with sudden peaks
+        samples[i] = (random.nextFloat() * 2 - 1) * (1 + block % 3);
+      }
+      limiter.process(samples, samples.length / 2);
+      for (int i = 0; i < samples.length; i++) {
+        assertTrue("sample " + samples[i] + " above " + ceiling,
+            Math.abs(samples[i]) <= ceiling * 1.0001f);
+      }
+    }
+  }
+
+  @Test
+  public void passQuietSamples() {
+    LimiterStage limiter = new LimiterStage(THRESHOLD_DB, 80f);
+    limiter.configure(SAMPLE_RATE, 1);
+    float[] samples = {0f, 0.1f, -0.3f, 0.45f, -0.45f, 0.2f};
+    float[] expected = samples.clone();
+    limiter.process(samples, samples.length);
+    assertArrayEquals(expected, samples, 0f);
+  }
+
+  @Test
+  public void scaleChannelsOfFrameAlike() {
+    LimiterStage limiter = new LimiterStage(THRESHOLD_DB, 80f);
+    limiter.configure(SAMPLE_RATE, 2);
+    float[] samples = {1f, 0.25f};
+    limiter.process(samples, 1);
+    // stereo image holds, quiet channel scaled as loud one
+    assertTrue(Math.abs(samples[0] / samples[1] - 4f) < 1e-4f);
+  }
+
+}
@@ -0,0 +1,103 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests of streams of {@link MusicCatalog}.
+ *
+ * @author xnnyygn
+ */
+public class MusicCatalogTest {
+
+  @Test
+  public void addStreamOnce() {
+    MusicCatalog catalog = MusicCatalog.getInstance();
+    int id = catalog.addStream("http://example.com/radio/one.mp3");
+    assertTrue(id <= MusicCatalog.FIRST_STREAM_ID);
+    assertEquals(id, catalog.addStream("http://example.com/radio/one.mp3"));
+
+    Music stream = catalog.getMusic(id);
+    assertEquals(id, stream.getId());
+    assertEquals("one", stream.getTitle());
+    assertEquals("http://example.com/radio/one.mp3", stream.getPath());
+  }
+
+  @Test
+  public void findIdOfUrlAddsStream() {
+    MusicCatalog catalog = MusicCatalog.getInstance();
+    int id = catalog.findId("https://example.com/two.mp3");
+    assertEquals("two", catalog.getMusic(id).getTitle());
+  }
+
+  @Test
+  public void titleOfUrl() {
+    assertEquals("a", MusicCatalog.titleOfUrl("http://host/dir/a.mp3?x=/y"));
+    assertEquals("b", MusicCatalog.titleOfUrl("http://host/b#part"));
+    assertEquals("http://host/", MusicCatalog.titleOfUrl("http://host/"));
+    assertEquals("http://host", MusicCatalog.titleOfUrl("http://host"));
+  }
+
+  @Test
+  public void writeAndReadStreamsOfQueue() throws IOException {
+    MusicCatalog catalog = MusicCatalog.getInstance();
+    int stream = catalog.addStream("http://example.com/three.mp3");
+    PlayQueue queue = new PlayQueue();
+    queue.setTracks(new int[] {0, stream, 1, stream}, 4, 1);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    queue.writeTo(out);
+    catalog.writeStreams(queue, out);
+
+    PlayQueue restored = read(bytes.toByteArray());
+    assertEquals(0, restored.getId(0));
+    assertEquals(1, restored.getId(2));
+    assertEquals("http://example.com/three.mp3",
+        catalog.getMusic(restored.getCurrentId()).getPath());
+    assertEquals(restored.getId(1), restored.getId(3));
+  }
+
+  @Test
+  public void readStreamsOfOtherProcess() throws IOException {
+    MusicCatalog catalog = MusicCatalog.getInstance();
+    // ids of streams in process written, not added in this one
+    int written = MusicCatalog.FIRST_STREAM_ID - 1000;
+    int unknown = MusicCatalog.FIRST_STREAM_ID - 1001;
+    PlayQueue queue = new PlayQueue();
+    queue.setTracks(new int[] {written, unknown, 2}, 3, 0);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    queue.writeTo(out);
+    out.writeInt(1);
+    out.writeInt(written);
+    out.writeUTF("https://example.com/four.mp3");
+
+    PlayQueue restored = read(bytes.toByteArray());
+    Music stream = catalog.getMusic(restored.getId(0));
+    assertEquals("https://example.com/four.mp3", stream.getPath());
+    assertEquals(Music.NO_ID, restored.getId(1));
+    assertNull(catalog.getMusic(restored.getId(1)));
+    assertEquals(2, restored.getId(2));
+  }
+
+  private static PlayQueue read(byte[] bytes) throws IOException {
+    DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(bytes));
+    PlayQueue queue = new PlayQueue();
+    queue.readFrom(in, bytes.length);
+    MusicCatalog.getInstance().readStreams(queue, in);
+    return queue;
+  }
+
+}
@@ -0,0 +1,29 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link Music}.
+ *
+ * @author xnnyygn
+ */
+public class MusicTest {
+
+  @Test
+  public void titleOfStripsMp3Extension() {
+    assertEquals("song", Music.titleOf("song.mp3"));
+    assertEquals("song", Music.titleOf("song.MP3"));
+    assertEquals("song.mp3", Music.titleOf("song.mp3.mp3"));
+  }
+
+  @Test
+  public void titleOfKeepsOtherName() {
+    assertEquals("a", Music.titleOf("a"));
+    assertEquals("", Music.titleOf(""));
+    assertEquals(".mp3", Music.titleOf(".mp3"));
+    assertEquals("song.ogg", Music.titleOf("song.ogg"));
+  }
+
+}
@@ -0,0 +1,119 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link PathWatchSource} driving {@link LibraryWatcher} on files
+ * of a temporary folder.
+ *
+ * @author xnnyygn
+ */
+public class PathWatchSourceTest {
+
+  private static final long DEBOUNCE_DELAY = 100;
+  private static final long TIMEOUT = 10000;
+
+  /**
+   * Source counting directories watched, so that test waits for watch
+   * registered before touching files.
+   *
+   * @author xnnyygn
+   */
+  private static class CountingSource extends
+      LibraryWatcherTest.RecordingSource {
+
+    final PathWatchSource source;
+
+    CountingSource(PathWatchSource source) {
+      this.source = source;
+    }
+
+    @Override
+    public boolean watch(File dir, LibraryWatcher watcher) {
+      boolean watched = source.watch(dir, watcher);
+      if (watched) super.watch(dir, watcher);
+      return watched;
+    }
+
+    @Override
+    public void unwatch(File dir) {
+      source.unwatch(dir);
+      super.unwatch(dir);
+    }
+
+    @Override
+    public void close() {
+      source.close();
+      super.close();
+    }
+
+  }
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private final LibraryWatcherTest.QueueListener mListener =
+      new LibraryWatcherTest.QueueListener();
+  private CountingSource mSource;
+  private LibraryWatcher mWatcher;
+  private File mDir;
+
+  @Before
+  public void setUp() throws Exception {
+    mDir = mFolder.newFolder("music");
+    mSource = new CountingSource(new PathWatchSource());
+    mWatcher =
+        new LibraryWatcher(mSource, mListener, DEBOUNCE_DELAY,
+            LibraryWatcher.DEFAULT_MAX_PENDING_EVENTS);
+    mWatcher.watch(Collections.singletonList(mDir));
+    assertTrue(mSource.watched.await(TIMEOUT, TimeUnit.MILLISECONDS));
+  }
+
+  @After
+  public void tearDown() {
+    mWatcher.stop();
+  }
+
+  @Test
+  public void reportFileCreatedAndDeleted() throws Exception {
+    File music = new File(mDir, "a.mp3");
+    assertTrue(music.createNewFile());
+    LibraryWatcher.Changes changes = mListener.take();
+    assertTrue(changes.toString(),
+        changes.createdFiles.contains(music.getAbsoluteFile()));
+
+    assertTrue(music.delete());
+    changes = mListener.take();
+    assertTrue(changes.toString(),
+        changes.deletedPaths.contains(music.getAbsolutePath()));
+  }
+
+  @Test
+  public void watchDirectoryCreated() throws Exception {
+    File album = new File(mDir, "album");
+    mSource.watched = new CountDownLatch(1);
+    assertTrue(album.mkdir());
+    LibraryWatcher.Changes changes = mListener.take();
+    assertTrue(changes.toString(),
+        changes.rescanDirs.contains(album.getAbsoluteFile()));
+    assertTrue(mSource.watched.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+    File music = new File(album, "b.mp3");
+    assertTrue(music.createNewFile());
+    changes = mListener.take();
+    assertTrue(changes.toString(),
+        changes.createdFiles.contains(music.getAbsoluteFile()));
+  }
+
+}
@@ -0,0 +1,156 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link PcmRingBuffer}.
+ *
+ * @author xnnyygn
+ */
+public class PcmRingBufferTest {
+
+  @Test
+  public void roundCapacityToPowerOfTwo() {
+    assertEquals(8, new PcmRingBuffer(5).capacity());
+    assertEquals(8, new PcmRingBuffer(8).capacity());
+    assertEquals(1, new PcmRingBuffer(1).capacity());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectZeroCapacity() {
+    new PcmRingBuffer(0);
+  }
+
+  @Test
+  public void readNothingWhenEmpty() {
+    PcmRingBuffer ring = new PcmRingBuffer(8);
+    short[] buffer = new short[8];
+    assertEquals(0, ring.read(buffer, 0, 8));
+
+    ring.write(samples(1, 3), 0, 3);
+    assertEquals(3, ring.read(buffer, 0, 8));
+    assertEquals(0, ring.read(buffer, 0, 8));
+    assertEquals(0, ring.available());
+  }
+
+  @Test
+  public void writeNothingWhenFull() {
+    PcmRingBuffer ring = new PcmRingBuffer(8);
+    assertEquals(8, ring.write(samples(1, 10), 0, 10));
+    assertEquals(0, ring.write(samples(11, 1), 0, 1));
+    assertEquals(8, ring.available());
+
+    short[] buffer = new short[2];
+    assertEquals(2, ring.read(buffer, 0, 2));
+    // room of samples read only
+    assertEquals(2, ring.write(samples(9, 3), 0, 3));
+    short[] rest = new short[8];
+    assertEquals(8, ring.read(rest, 0, 8));
+    assertArrayEquals(samples(3, 8), rest);
+  }
+
+  @Test
+  public void wrapAround() {
+    PcmRingBuffer ring = new PcmRingBuffer(8);
+    short[] buffer = new short[6];
+    assertEquals(6, ring.write(samples(1, 6), 0, 6));
+    assertEquals(6, ring.read(buffer, 0, 6));
+
+    // 2 samples at end of array, 4 at head
+    assertEquals(6, ring.write(samples(7, 6), 0, 6));
+    assertEquals(6, ring.read(buffer, 0, 6));
+    assertArrayEquals(samples(7, 6), buffer);
+  }
+
+  @Test
+  public void writeAndReadAtOffsets() {
+    PcmRingBuffer ring = new PcmRingBuffer(4);
+    short[] source = samples(1, 6);
+    assertEquals(3, ring.write(source, 2, 3));
+    short[] buffer = new short[5];
+    assertEquals(3, ring.read(buffer, 1, 4));
+    assertArrayEquals(new short[] {0, 3, 4, 5, 0}, buffer);
+  }
+
+  @Test
+  public void clearDropsUnread() {
+    PcmRingBuffer ring = new PcmRingBuffer(8);
+    ring.write(samples(1, 5), 0, 5);
+    ring.clear();
+    assertEquals(0, ring.available());
+    assertEquals(8, ring.write(samples(1, 8), 0, 8));
+  }
+
+  @Test
+  public void keepOrderBetweenTwoThreads() throws Exception {
+    final PcmRingBuffer ring = new PcmRingBuffer(256);
+    final int total = 1000000;
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    Thread producer = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        short[] block = new short[37];
+        int next = 0;
+        while (next < total && failure.get() == null) {
+          int length = Math.min(block.length, total - next);
+          for (int i = 0; i < length; i++) {
+            block[i] = (short) (next + i);
+          }
+          int written = 0;
+          while (written < length) {
+            int count = ring.write(block, written, length - written);
+            if (count == 0) {
+              // full, let consumer run as player waits for room
+              if (failure.get() != null) return;
+              Thread.yield();
+            }
+            written += count;
+          }
+          next += length;
+        }
+      }
+    }, "producer");
+    Thread consumer = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        short[] block = new short[29];
+        int expected = 0;
+        while (expected < total) {
+          int count = ring.read(block, 0, block.length);
+          if (count == 0) Thread.yield();
+          for (int i = 0; i < count; i++, expected++) {
+            if (block[i] != (short) expected) {
+              failure.set("sample " + expected + " read as " + block[i]);
+              return;
+            }
+          }
+        }
+      }
+    }, "consumer");
+    producer.start();
+    consumer.start();
+    consumer.join(30000);
+    failure.compareAndSet(null, consumer.isAlive() ? "timeout" : null);
+    producer.join(1000);
+    assertEquals(null, failure.get());
+    assertFalse(producer.isAlive());
+    assertEquals(0, ring.available());
+  }
+
+  private static short[] samples(int first, int count) {
+    short[] samples = new short[count];
+    for (int i = 0; i < count; i++) {
+      samples[i] = (short) (first + i);
+    }
+    return samples;
+  }
+
+}
@@ -0,0 +1,128 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link PlayQueue}.
+ *
+ * @author xnnyygn
+ */
+public class PlayQueueTest {
+
+  @Test
+  public void readWritten() throws Exception {
+    PlayQueue queue = new PlayQueue();
+    queue.setTracks(new int[] {3, 5, 7}, 3, 1);
+    queue.setShuffle(true);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    queue.writeTo(new DataOutputStream(bytes));
+
+    PlayQueue read = new PlayQueue();
+    read.readFrom(input(bytes.toByteArray()), bytes.size());
+    assertEquals(3, read.size());
+    assertEquals(5, read.getCurrentId());
+    assertTrue(read.isShuffle());
+  }
+
+  @Test
+  public void readEmpty() throws Exception {
+    byte[] bytes = queue(0, -1);
+    PlayQueue queue = new PlayQueue();
+    queue.readFrom(input(bytes), bytes.length);
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void rejectNoCursor() throws Exception {
+    assertCorrupted(queue(2, -1));
+  }
+
+  @Test
+  public void rejectCursorBeyondSize() throws Exception {
+    assertCorrupted(queue(2, 2));
+  }
+
+  @Test
+  public void rejectSizeBeyondLength() throws Exception {
+    // would allocate 8 GB
+    assertCorrupted(queue(Integer.MAX_VALUE, 0));
+  }
+
+  @Test
+  public void peekAcceptedKeepsCursorInShuffle() {
+    PlayQueue queue = new PlayQueue(new Random(1));
+    queue.setTracks(PlayQueue.range(8), 8, 0);
+    queue.setShuffle(true);
+    PlayQueue.Filter odd = new PlayQueue.Filter() {
+
+      @Override
+      public boolean accept(int position) {
+        return position % 2 == 1;
+      }
+    };
+    int next = queue.peekNext(false, odd);
+    assertEquals(0, queue.getCursor());
+    assertEquals(1, next % 2);
+    assertTrue(queue.moveToNext(false));
+    assertTrue(queue.moveToAccepted(false, odd));
+    assertEquals(next, queue.getCursor());
+  }
+
+  @Test
+  public void acceptNoneOfQueue() {
+    PlayQueue queue = new PlayQueue();
+    queue.setTracks(PlayQueue.range(3), 3, 1);
+    PlayQueue.Filter none = new PlayQueue.Filter() {
+
+      @Override
+      public boolean accept(int position) {
+        return false;
+      }
+    };
+    assertEquals(-1, queue.peekNext(true, none));
+    assertEquals(1, queue.getCursor());
+    assertFalse(queue.moveToAccepted(true, none));
+  }
+
+  private static void assertCorrupted(byte[] bytes) {
+    try {
+      new PlayQueue().readFrom(input(bytes), bytes.length);
+      fail("corrupted queue read");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Queue of ids 1 to size, ids written only if size is small.
+   */
+  private static byte[] queue(int size, int cursor) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(1);
+    out.writeInt(size);
+    out.writeInt(cursor);
+    out.writeBoolean(false);
+    for (int i = 0; i < Math.min(size, 16); i++) {
+      out.writeInt(i + 1);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static DataInputStream input(byte[] bytes) {
+    return new DataInputStream(new ByteArrayInputStream(bytes));
+  }
+
+}
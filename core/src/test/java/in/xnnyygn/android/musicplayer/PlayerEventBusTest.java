@@ -0,0 +1,161 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link PlayerEventBus} and {@link PlaybackClock}.
+ *
+ * @author xnnyygn
+ */
+public class PlayerEventBusTest {
+
+  private final QueueExecutor mExecutor = new QueueExecutor();
+  private final PlayerEventBus mBus = new PlayerEventBus();
+
+  @Test
+  public void dispatchLatestOnRegistration() {
+    Music music = new Music(1, "a", "/a.mp3", null, null, 0, 0L, 0L, 1000,
+        null, 0L);
+    mBus.publishTrack(music);
+    mBus.publishStatus(PlayerStatus.PLAYING);
+
+    RecordingListener listener = new RecordingListener();
+    mBus.addListener(listener, mExecutor);
+    assertEquals(1, mExecutor.runAll());
+    assertEquals("[track a, status 1, clock 0]", listener.events.toString());
+  }
+
+  @Test
+  public void coalesceBurstOncePerRegistration() {
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    mBus.addListener(first, mExecutor);
+    mBus.addListener(second, mExecutor);
+    mExecutor.runAll();
+    first.events.clear();
+    second.events.clear();
+
+    for (int i = 0; i < 100; i++) {
+      mBus.publishStatus(i % 2 == 0 ? PlayerStatus.PLAYING
+          : PlayerStatus.PAUSED);
+    }
+    mBus.publishStatus(PlayerStatus.COMPLETED);
+    assertEquals(2, mExecutor.runAll());
+    assertEquals("[status 5]", first.events.toString());
+    assertEquals("[status 5]", second.events.toString());
+
+    // nothing pending after dispatch
+    assertEquals(0, mExecutor.runAll());
+  }
+
+  @Test
+  public void removeListenerInCallback() {
+    final RecordingListener second = new RecordingListener();
+    RecordingListener first = new RecordingListener() {
+
+      @Override
+      public void onTrackChanged(Music music) {
+        super.onTrackChanged(music);
+        mBus.removeListener(this);
+        mBus.removeListener(second);
+      }
+
+    };
+    mBus.addListener(first, mExecutor);
+    mBus.addListener(second, mExecutor);
+    mExecutor.runAll();
+
+    // no callback after removal, even of same dispatch
+    assertEquals("[track null]", first.events.toString());
+    assertEquals(0, second.events.size());
+
+    mBus.publishError(null);
+    assertEquals(0, mExecutor.runAll());
+    assertEquals(1, first.events.size());
+  }
+
+  @Test
+  public void extrapolateClock() {
+    PlaybackClock clock =
+        new PlaybackClock(PlayerStatus.PLAYING, 5000, 1000, 10000L, 1f);
+    assertEquals(1000, clock.getPosition(9000L));
+    assertEquals(1000, clock.getPosition(10000L));
+    assertEquals(3000, clock.getPosition(12000L));
+    assertEquals(5000, clock.getPosition(20000L));
+
+    PlaybackClock paused =
+        new PlaybackClock(PlayerStatus.PAUSED, 5000, 1000, 10000L, 0f);
+    assertEquals(1000, paused.getPosition(20000L));
+    assertEquals(PlayerStatus.INIT, PlaybackClock.STOPPED.getStatus());
+    assertEquals(0, PlaybackClock.STOPPED.getPosition(20000L));
+  }
+
+  /**
+   * Executor running commands only when asked.
+   *
+   * @author xnnyygn
+   */
+  private static class QueueExecutor implements Executor {
+
+    private final LinkedList<Runnable> commands = new LinkedList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      commands.add(command);
+    }
+
+    /**
+     * Run commands including ones submitted meanwhile.
+     *
+     * @return count of commands run
+     */
+    int runAll() {
+      int count = 0;
+      while (!commands.isEmpty()) {
+        commands.removeFirst().run();
+        count++;
+      }
+      return count;
+    }
+
+  }
+
+  /**
+   * Listener recording events as strings.
+   *
+   * @author xnnyygn
+   */
+  private static class RecordingListener implements PlayerEventBus.Listener {
+
+    final List<String> events = new ArrayList<String>();
+
+    @Override
+    public void onTrackChanged(Music music) {
+      events.add("track " + (music == null ? null : music.getTitle()));
+    }
+
+    @Override
+    public void onStatusChanged(int status) {
+      events.add("status " + status);
+    }
+
+    @Override
+    public void onClockChanged(PlaybackClock clock) {
+      events.add("clock " + clock.getStatus());
+    }
+
+    @Override
+    public void onError(Music music) {
+      events.add("error");
+    }
+
+  }
+
+}
@@ -0,0 +1,184 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link Playlist} and {@link PlaylistWriter}.
+ *
+ * @author xnnyygn
+ */
+public class PlaylistTest {
+
+  /**
+   * Resolver of paths in map.
+   *
+   * @author xnnyygn
+   */
+  private static class MapResolver implements Playlist.Resolver {
+
+    final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    @Override
+    public int findId(String path) {
+      Integer id = ids.get(path);
+      return id != null ? id : Music.NO_ID;
+    }
+
+  }
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void formatOfNameAndMimeType() {
+    assertEquals(Playlist.FORMAT_M3U, Playlist.formatOf("a.M3U8"));
+    assertEquals(Playlist.FORMAT_PLS, Playlist.formatOf("a.pls"));
+    assertEquals(-1, Playlist.formatOf("a.txt"));
+    assertEquals(Playlist.FORMAT_M3U,
+        Playlist.formatOfMimeType("audio/x-mpegurl"));
+    assertEquals(Playlist.FORMAT_PLS,
+        Playlist.formatOfMimeType("audio/x-scpls"));
+    assertEquals(-1, Playlist.formatOfMimeType("audio/mpeg"));
+    assertEquals(-1, Playlist.formatOfMimeType(null));
+  }
+
+  @Test
+  public void openByMimeTypeOrHeader() throws IOException {
+    File plain = write("list", "/music/a.mp3\n/music/b.mp3\n");
+    assertEquals(2, Playlist.open(plain, "audio/mpegurl").size());
+
+    File m3u = write("download", "\ufeff\n#EXTM3U\n/music/a.mp3\n");
+    assertEquals(1, Playlist.open(m3u).size());
+
+    File pls =
+        write("download.bin", "[Playlist]\nFile1=/music/a.mp3\n"
+            + "File2=/music/b.mp3\nNumberOfEntries=2\n");
+    assertEquals(2, Playlist.open(pls, "application/octet-stream").size());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectNotPlaylist() throws IOException {
+    Playlist.open(write("notes", "/music/a.mp3\n"));
+  }
+
+  @Test
+  public void writeAndReadM3u() throws IOException {
+    writeAndRead("list.m3u", Playlist.FORMAT_M3U);
+  }
+
+  @Test
+  public void writeAndReadPls() throws IOException {
+    writeAndRead("list.pls", Playlist.FORMAT_PLS);
+  }
+
+  @Test
+  public void resolveRelativePathsAndReportMissing() throws IOException {
+    File dir = mFolder.newFolder("lists");
+    File file = new File(dir, "list.m3u");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(("#EXTM3U\n../music/a.mp3\nsub/./b.mp3\nfile:///music/"
+        + "caf%C3%A9.mp3\n/music/missing.mp3\n").getBytes("UTF-8"));
+    out.close();
+
+    String root = mFolder.getRoot().getAbsolutePath();
+    MapResolver resolver = new MapResolver();
+    resolver.ids.put(root + "/music/a.mp3", 1);
+    resolver.ids.put(root + "/lists/sub/b.mp3", 2);
+    resolver.ids.put("/music/caf\u00e9.mp3", 3);
+
+    Playlist playlist = Playlist.open(file);
+    assertArrayEquals(new int[] {1, 2}, playlist.resolve(0, 2, resolver));
+    assertArrayEquals(new int[] {3, Music.NO_ID},
+        playlist.resolve(2, Playlist.BATCH_SIZE, resolver));
+    assertEquals(Collections.singletonList("/music/missing.mp3"),
+        playlist.getMissing());
+  }
+
+  @Test
+  public void skipEntriesNotInLibrary() throws IOException {
+    File file =
+        write("list.m3u", "#EXTM3U\n/music/a.mp3\n/music/gone1.mp3\n"
+            + "/music/gone2.mp3\n/music/b.mp3\n/music/gone3.mp3\n");
+    MapResolver resolver = new MapResolver();
+    resolver.ids.put("/music/a.mp3", 1);
+    resolver.ids.put("/music/b.mp3", 2);
+    Playlist playlist = Playlist.open(file);
+    int[] ids = playlist.resolve(0, Playlist.BATCH_SIZE, resolver);
+    assertEquals(3, playlist.getMissing().size());
+
+    final PlayQueue queue = new PlayQueue();
+    queue.setTracks(ids, ids.length, 0);
+    PlayQueue.Filter inLibrary = new PlayQueue.Filter() {
+
+      @Override
+      public boolean accept(int position) {
+        return queue.getId(position) != Music.NO_ID;
+      }
+    };
+    // next music prepared ahead is past missing entries
+    assertEquals(3, queue.peekNext(false, inLibrary));
+    assertEquals(0, queue.getCursor());
+
+    queue.moveToNext(false);
+    assertTrue(queue.moveToAccepted(false, inLibrary));
+    assertEquals(2, queue.getCurrentId());
+
+    // nothing after last music unless wrapping
+    queue.moveToNext(false);
+    assertFalse(queue.moveToAccepted(false, inLibrary));
+    assertEquals(-1, queue.peekNext(false, inLibrary));
+    assertTrue(queue.moveToAccepted(true, inLibrary));
+    assertEquals(1, queue.getCurrentId());
+  }
+
+  private void writeAndRead(String name, int format) throws IOException {
+    File file = new File(mFolder.getRoot(), name);
+    PlaylistWriter writer =
+        new PlaylistWriter(new FileOutputStream(file), format);
+    int count = 1000;
+    MapResolver resolver = new MapResolver();
+    for (int i = 0; i < count; i++) {
+      String path = "/music/track " + i + " \u00e9.mp3";
+      writer.write(path, i % 2 == 0 ? "Track " + i : null, i % 3 == 0 ? -1
+          : i);
+      resolver.ids.put(path, i);
+    }
+    writer.close();
+
+    Playlist playlist = Playlist.open(file);
+    assertEquals(count, playlist.size());
+    int[] ids = playlist.resolve(Playlist.batchOf(700), Playlist.BATCH_SIZE,
+        resolver);
+    assertEquals(Playlist.BATCH_SIZE, ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(Playlist.batchOf(700) + i, ids[i]);
+    }
+    assertEquals(0, playlist.getMissing().size());
+  }
+
+  private File write(String name, String content) throws IOException {
+    File file = new File(mFolder.getRoot(), name);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+}
@@ -0,0 +1,108 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link SearchIndex}.
+ *
+ * @author xnnyygn
+ */
+public class SearchIndexTest {
+
+  /**
+   * Frame budget at 60 fps.
+   */
+  private static final long FRAME_NANOS = 16000000L;
+
+  private static final String[] WORDS = {"love", "night", "blue", "river",
+      "song", "light", "heart", "road", "rain", "fire", "dream", "home"};
+
+  @Test
+  public void searchPrefixAndSubstring() {
+    SearchIndex index = new SearchIndex();
+    index.add(music(0, "Blue River", "Artist"));
+    index.add(music(1, "Night Song", "Artist"));
+    index.add(music(2, "Caf\u00e9 Night", "Other"));
+
+    assertArrayEquals(new int[] {0}, index.search("b", 10));
+    assertArrayEquals(new int[] {1, 2}, index.search("ni", 10));
+    assertArrayEquals(new int[] {0}, index.search("iver", 10));
+    assertArrayEquals(new int[] {2}, index.search("cafe", 10));
+    assertArrayEquals(new int[] {2}, index.search("night oth", 10));
+    assertArrayEquals(new int[0], index.search("river night", 10));
+  }
+
+  @Test
+  public void updateAndRemove() {
+    SearchIndex index = new SearchIndex();
+    index.add(music(0, "Blue River", "Artist"));
+    index.add(music(1, "Night Song", "Artist"));
+    index.add(music(0, "Red River", "Artist"));
+
+    assertArrayEquals(new int[0], index.search("blue", 10));
+    assertArrayEquals(new int[] {0}, index.search("red", 10));
+    index.remove(1);
+    assertArrayEquals(new int[0], index.search("song", 10));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void searchAfterPurge() {
+    SearchIndex index = new SearchIndex();
+    for (int i = 0; i < 100; i++) {
+      index.add(music(i, "Song " + i, "Artist"));
+    }
+    // purged once a quarter deleted
+    for (int i = 0; i < 100; i += 2) {
+      index.remove(i);
+    }
+    assertEquals(50, index.size());
+    assertArrayEquals(new int[] {1, 11, 13, 15, 17, 19},
+        index.search("1 song", 20));
+    assertArrayEquals(new int[] {21}, index.search("song 21", 20));
+  }
+
+  @Test
+  public void searchWithinFrameBudget() {
+    SearchIndex index = new SearchIndex();
+    Random random = new Random(1);
+    for (int i = 0; i < 100000; i++) {
+      index.add(music(i, words(random), words(random)));
+    }
+    String[] queries = {"l", "ni", "ver", "blue riv", "dream home rain"};
+    long worst = 0;
+    for (int round = 0; round < 20; round++) {
+      for (String query : queries) {
+        long start = System.nanoTime();
+        index.search(query, 500);
+        long elapsed = System.nanoTime() - start;
+        // first rounds warm up
+        if (round >= 10) worst = Math.max(worst, elapsed);
+      }
+    }
+    assertTrue("worst search " + worst / 1000 + "us",
+        worst < FRAME_NANOS);
+  }
+
+  private static Music music(int id, String title, String artist) {
+    return new Music(id, title, "/sdcard/Music/" + title + ".mp3", artist,
+        null, 0, 0, 0, 0, null, ContentHasher.UNKNOWN);
+  }
+
+  private static String words(Random random) {
+    StringBuilder builder = new StringBuilder();
+    int words = 1 + random.nextInt(3);
+    for (int i = 0; i < words; i++) {
+      if (i > 0) builder.append(' ');
+      builder.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,96 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link SeekTable}.
+ *
+ * @author xnnyygn
+ */
+public class SeekTableTest {
+
+  private static final int SAMPLE_RATE = 44100;
+  private static final int SAMPLES_PER_FRAME = 1152;
+
+  /**
+   * Duration of one frame, times are rounded down to milliseconds.
+   */
+  private static final double FRAME_MILLIS = 27;
+
+  @Test
+  public void readWritten() {
+    SeekTable table = table(new long[] {0, 41800, 83600}, 300);
+    SeekTable read = SeekTable.fromByteArray(table.toByteArray());
+
+    assertNotNull(read);
+    assertTrue(read.isAccurate());
+    assertEquals(300, read.getFrameCount());
+    assertEquals(3, read.getEntryCount());
+    assertEquals(83600, read.getEntryOffset(2));
+    assertEquals(200, read.getEntryFrame(2));
+  }
+
+  @Test
+  public void rejectTruncated() {
+    byte[] bytes = table(new long[] {0, 41800, 83600}, 300).toByteArray();
+    assertNull(SeekTable.fromByteArray(Arrays.copyOf(bytes,
+        bytes.length - 1)));
+  }
+
+  @Test
+  public void rejectCountBeyondBytes() {
+    // flags, sample rate 44100, samples 1152, frames 10, count 1000
+    byte[] bytes =
+        {1, (byte) 0xc4, (byte) 0xd8, 2, (byte) 0x80, 9, 10, (byte) 0xe8,
+            7, 0, 0};
+    assertNull(SeekTable.fromByteArray(bytes));
+  }
+
+  @Test
+  public void rejectZeroSampleRate() {
+    byte[] bytes = {1, 0, (byte) 0x80, 9, 10, 0};
+    assertNull(SeekTable.fromByteArray(bytes));
+  }
+
+  @Test
+  public void estimateConstantBitrateSeekOfCbr() {
+    SeekTable table = table(new long[] {0, 41800, 83600, 125400}, 400);
+    int time = table.getTimeOfFrame(250);
+    assertEquals(time, table.estimateConstantBitrateSeek(0, time),
+        FRAME_MILLIS);
+  }
+
+  @Test
+  public void estimateConstantBitrateSeekOfVbr() {
+    // quiet intro of low bitrate, player seeks far short of target, to
+    // frame 130 at 25000 bytes
+    SeekTable table = table(new long[] {0, 10000, 60000, 110000}, 300);
+    int time = table.getTimeOfFrame(250);
+    assertEquals(table.getTimeOfFrame(130),
+        table.estimateConstantBitrateSeek(0, time), FRAME_MILLIS);
+
+    // from frame 100 on, bitrate is constant
+    assertEquals(time, table.estimateConstantBitrateSeek(100, time),
+        FRAME_MILLIS);
+  }
+
+  /**
+   * Accurate VBR table of one entry per 100 frames.
+   */
+  private static SeekTable table(long[] offsets, int frameCount) {
+    int[] frames = new int[offsets.length];
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = i * 100;
+    }
+    return new SeekTable(true, true, SAMPLE_RATE, SAMPLES_PER_FRAME,
+        frameCount, frames, offsets, offsets.length);
+  }
+
+}
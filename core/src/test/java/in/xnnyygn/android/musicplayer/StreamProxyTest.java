@@ -0,0 +1,125 @@
+package in.xnnyygn.android.musicplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link StreamProxy} serving a local HTTP server.
+ *
+ * @author xnnyygn
+ */
+public class StreamProxyTest {
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private TestHttpServer mServer;
+  private StreamProxy mProxy;
+
+  @Before
+  public void setUp() throws Exception {
+    mServer =
+        new TestHttpServer(TestHttpServer.bodyOf(ChunkCache.CHUNK_SIZE + 5000));
+    mProxy =
+        new StreamProxy(new ChunkCache(new File(mFolder.getRoot(), "cache"),
+            ChunkCache.CHUNK_SIZE * 16));
+    mProxy.start();
+  }
+
+  @After
+  public void tearDown() {
+    mProxy.close();
+    mServer.stop();
+  }
+
+  @Test
+  public void isStream() {
+    assertTrue(StreamProxy.isStream("http://example.com/a.mp3"));
+    assertTrue(StreamProxy.isStream("https://example.com/a.mp3"));
+    assertFalse(StreamProxy.isStream("/sdcard/Music/a.mp3"));
+  }
+
+  @Test
+  public void serveWholeStream() throws Exception {
+    HttpURLConnection connection = open(mProxy.urlOf(mServer.urlOf("/a")));
+    assertEquals(200, connection.getResponseCode());
+    assertArrayEquals(mServer.body, read(connection));
+  }
+
+  @Test
+  public void serveRangeAcrossChunks() throws Exception {
+    int start = ChunkCache.CHUNK_SIZE - 100;
+    int end = ChunkCache.CHUNK_SIZE + 99;
+    HttpURLConnection connection = open(mProxy.urlOf(mServer.urlOf("/a")));
+    connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+    assertEquals(206, connection.getResponseCode());
+    assertEquals("bytes " + start + "-" + end + "/" + mServer.body.length,
+        connection.getHeaderField("Content-Range"));
+    assertArrayEquals(Arrays.copyOfRange(mServer.body, start, end + 1),
+        read(connection));
+  }
+
+  @Test
+  public void rejectRangePastEnd() throws Exception {
+    HttpURLConnection connection = open(mProxy.urlOf(mServer.urlOf("/a")));
+    connection.setRequestProperty("Range", "bytes=" + mServer.body.length
+        + "-");
+    assertEquals(416, connection.getResponseCode());
+  }
+
+  @Test
+  public void evictSourceRegisteredFirst() throws Exception {
+    String first = mProxy.urlOf(mServer.urlOf("/0"));
+    String last = null;
+    for (int i = 1; i <= StreamProxy.MAX_SOURCES; i++) {
+      last = mProxy.urlOf(mServer.urlOf("/" + i));
+    }
+    assertEquals(404, open(first).getResponseCode());
+    assertEquals(200, open(last).getResponseCode());
+
+    // registered again on next prepare
+    assertEquals(first, mProxy.urlOf(mServer.urlOf("/0")));
+    assertEquals(200, open(first).getResponseCode());
+  }
+
+  private static HttpURLConnection open(String url) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(5000);
+    connection.setReadTimeout(5000);
+    return connection;
+  }
+
+  private static byte[] read(HttpURLConnection connection)
+      throws IOException {
+    InputStream in = connection.getInputStream();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server on loopback serving one body at any path, answering Range
+ * requests of form bytes=start-end unless told to ignore them.
+ *
+ * @author xnnyygn
+ */
+class TestHttpServer {
+
+  final byte[] body;
+  final AtomicInteger requests = new AtomicInteger();
+  volatile boolean ignoreRange;
+  private final HttpServer mServer;
+
+  TestHttpServer(byte[] body) throws IOException {
+    this.body = body;
+    mServer =
+        HttpServer.create(new InetSocketAddress(
+            InetAddress.getByName("127.0.0.1"), 0), 0);
+    mServer.createContext("/", new HttpHandler() {
+
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        serve(exchange);
+      }
+    });
+    mServer.start();
+  }
+
+  /**
+   * Create body of bytes derived from their offsets.
+   */
+  static byte[] bodyOf(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (i * 31 + i / 251);
+    }
+    return bytes;
+  }
+
+  String urlOf(String path) {
+    return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+  }
+
+  void stop() {
+    mServer.stop(0);
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    int start = 0;
+    int end = body.length - 1;
+    boolean ranged = range != null && !ignoreRange;
+    if (ranged) {
+      int dash = range.indexOf('-');
+      start = Integer.parseInt(range.substring("bytes=".length(), dash));
+      end = Math.min(end, Integer.parseInt(range.substring(dash + 1)));
+      if (start >= body.length) {
+        exchange.sendResponseHeaders(416, -1);
+        exchange.close();
+        return;
+      }
+      exchange.getResponseHeaders().set("Content-Range",
+          "bytes " + start + "-" + end + "/" + body.length);
+    }
+    exchange.sendResponseHeaders(ranged ? 206 : 200, end - start + 1);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body, start, end - start + 1);
+    } finally {
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,499 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * Loader of album artworks shared in process.
+ * <p>
+ * Artwork of music is the picture embedded in ID3v2 tag, or an image file
+ * like cover.jpg in directory of music. Artwork is extracted and decoded once
+ * per music and size, downsampled while decoding and scaled to size, then
+ * written to disk cache as a thumbnail. Thumbnails are kept in a memory cache
+ * bounded by bytes of bitmaps, least recently used first evicted. Musics
+ * without artwork are cached too, so that they are not extracted again.
+ * <p>
+ * Requests of same artwork are merged, request is cancelled when no target
+ * waits for it, e.g. all rows requesting it are recycled for other musics.
+ * Requests are jobs of {@link JobScheduler} at visible priority, trimming of
+ * disk cache at library priority.
+ * <p>
+ * Loader should be called on main thread, targets are called on main thread.
+ *
+ * @author xnnyygn
+ */
+public class ArtworkLoader {
+
+  /**
+   * Target of artwork.
+   *
+   * @author xnnyygn
+   */
+  public interface Target {
+
+    /**
+     * Called when artwork loaded.
+     *
+     * @param bitmap artwork, null if music has no artwork
+     */
+    void onArtworkLoaded(Bitmap bitmap);
+
+  }
+
+  private static final String LOG_TAG = "artwork";
+  private static final String CACHE_DIR_NAME = "artwork";
+  private static final String JOB_PREFIX = "artwork:";
+  private static final long MAX_DISK_CACHE_BYTES = 32L * 1024 * 1024;
+  private static final int JPEG_QUALITY = 85;
+
+  /**
+   * Bytes counted for music without artwork in memory cache.
+   */
+  private static final int NO_ARTWORK_BYTES = 64;
+
+  /**
+   * Names of image files in directory taken as artwork, in lower case.
+   */
+  private static final String[] FOLDER_IMAGE_NAMES = {"cover.jpg",
+      "folder.jpg", "front.jpg", "albumart.jpg", "cover.png", "folder.png"};
+  private static final int MAX_FOLDER_IMAGES = 64;
+
+  private static ArtworkLoader sInstance;
+
+  /**
+   * Loading of one artwork.
+   *
+   * @author xnnyygn
+   */
+  private class Request extends JobScheduler.Job {
+
+    final String key;
+    final Music music;
+    final int size;
+    final List<Target> targets = new ArrayList<Target>(2);
+
+    Request(String key, Music music, int size) {
+      this.key = key;
+      this.music = music;
+      this.size = size;
+    }
+
+    @Override
+    public void run() {
+      Bitmap bitmap = null;
+      boolean cacheable = true;
+      try {
+        bitmap = loadArtwork(this);
+      } catch (RuntimeException e) {
+        // e.g. corrupted tag, shown as no artwork
+        Log.w(LOG_TAG, "failed to load artwork of " + music.getPath()
+            + ", nested exception is " + e);
+      } catch (OutOfMemoryError e) {
+        // picture read up to 8MB, may load once memory freed
+        Log.w(LOG_TAG, "failed to load artwork of " + music.getPath()
+            + ", nested exception is " + e);
+        cacheable = false;
+      }
+      final Bitmap result = bitmap;
+      final boolean cache = cacheable;
+      mHandler.post(new Runnable() {
+
+        @Override
+        public void run() {
+          onRequestFinished(Request.this, result, cache);
+        }
+      });
+    }
+
+  }
+
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final File mCacheDir;
+  private final JobScheduler mScheduler = JobScheduler.getInstance();
+
+  private final long mMaxMemoryBytes;
+  private long mMemoryBytes;
+
+  /**
+   * Memory cache, null value for music without artwork.
+   */
+  private final LinkedHashMap<String, Bitmap> mMemoryCache =
+      new LinkedHashMap<String, Bitmap>(64, 0.75f, true);
+  private final Map<String, Request> mRequests = new HashMap<String, Request>();
+  private final Map<Target, Request> mPendingTargets =
+      new HashMap<Target, Request>();
+
+  /**
+   * Artwork file found in directory, null value for directory without one.
+   * Accessed by loading threads.
+   */
+  private final Map<String, File> mFolderImages =
+      new LinkedHashMap<String, File>(MAX_FOLDER_IMAGES * 2, 0.75f, true) {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, File> eldest) {
+      return size() > MAX_FOLDER_IMAGES;
+    }
+  };
+
+  private long mDiskBytes = -1;
+
+  private final ThreadLocal<Id3TagReader> mTagReader =
+      new ThreadLocal<Id3TagReader>() {
+
+        @Override
+        protected Id3TagReader initialValue() {
+          return new Id3TagReader();
+        }
+      };
+
+  private ArtworkLoader(File cacheDir) {
+    mCacheDir = cacheDir;
+    mMaxMemoryBytes = Runtime.getRuntime().maxMemory() / 8;
+    mScheduler.submit(JOB_PREFIX + "trim", JobScheduler.PRIORITY_LIBRARY,
+        new JobScheduler.Job() {
+
+          @Override
+          public void run() {
+            trimDiskCache();
+          }
+        });
+  }
+
+  /**
+   * Get loader.
+   *
+   * @param context context
+   * @return loader
+   */
+  public static synchronized ArtworkLoader getInstance(Context context) {
+    if (sInstance == null) {
+      File cacheDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+      cacheDir.mkdirs();
+      sInstance = new ArtworkLoader(cacheDir);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Load artwork into image view, previous request of view is cancelled.
+   * Default image is shown while loading and if music has no artwork.
+   *
+   * @param music music
+   * @param size max width and height in pixels
+   * @param view image view
+   * @param defaultResId resource of default image
+   */
+  public void load(Music music, int size, final ImageView view,
+      final int defaultResId) {
+    Target target = (Target) view.getTag();
+    if (target == null) {
+      target = new Target() {
+
+        @Override
+        public void onArtworkLoaded(Bitmap bitmap) {
+          if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+          } else {
+            view.setImageResource(defaultResId);
+          }
+        }
+      };
+      view.setTag(target);
+    }
+    cancel(target);
+    String key = keyOf(music, size);
+    if (!mMemoryCache.containsKey(key)) view.setImageResource(defaultResId);
+    load(music, size, target);
+  }
+
+  /**
+   * Cancel loading into image view and show default image.
+   *
+   * @param view image view
+   * @param defaultResId resource of default image
+   */
+  public void cancel(ImageView view, int defaultResId) {
+    Target target = (Target) view.getTag();
+    if (target != null) cancel(target);
+    view.setImageResource(defaultResId);
+  }
+
+  /**
+   * Load artwork, target is called immediately if cached.
+   *
+   * @param music music
+   * @param size max width and height in pixels
+   * @param target target
+   */
+  public void load(Music music, int size, Target target) {
+    cancel(target);
+    String key = keyOf(music, size);
+    if (mMemoryCache.containsKey(key)) {
+      target.onArtworkLoaded(mMemoryCache.get(key));
+      return;
+    }
+
+    Request request = mRequests.get(key);
+    if (request == null) {
+      request = new Request(key, music, size);
+      mRequests.put(key, request);
+      mScheduler.submit(JOB_PREFIX + key, JobScheduler.PRIORITY_VISIBLE,
+          request);
+    }
+    request.targets.add(target);
+    mPendingTargets.put(target, request);
+  }
+
+  /**
+   * Cancel loading for target, request is cancelled if no other target.
+   *
+   * @param target target
+   */
+  public void cancel(Target target) {
+    Request request = mPendingTargets.remove(target);
+    if (request == null) return;
+
+    request.targets.remove(target);
+    if (request.targets.isEmpty()) {
+      mScheduler.cancel(JOB_PREFIX + request.key);
+      request.cancel();
+      mRequests.remove(request.key);
+    }
+  }
+
+  private void onRequestFinished(Request request, Bitmap bitmap,
+      boolean cache) {
+    if (request.isCancelled()) return;
+
+    mRequests.remove(request.key);
+    if (cache) putMemoryCache(request.key, bitmap);
+    for (Target target : request.targets) {
+      mPendingTargets.remove(target);
+      target.onArtworkLoaded(bitmap);
+    }
+  }
+
+  private void putMemoryCache(String key, Bitmap bitmap) {
+    Bitmap old = mMemoryCache.put(key, bitmap);
+    mMemoryBytes += bytesOf(bitmap);
+    if (old != null) mMemoryBytes -= bytesOf(old);
+
+    Iterator<Map.Entry<String, Bitmap>> iterator =
+        mMemoryCache.entrySet().iterator();
+    while (mMemoryBytes > mMaxMemoryBytes && iterator.hasNext()) {
+      mMemoryBytes -= bytesOf(iterator.next().getValue());
+      iterator.remove();
+    }
+  }
+
+  private static int bytesOf(Bitmap bitmap) {
+    // getByteCount not available before API 12
+    return bitmap != null ? bitmap.getRowBytes() * bitmap.getHeight()
+        : NO_ARTWORK_BYTES;
+  }
+
+  /**
+   * Key of artwork, last modified is included so that artwork is loaded
+   * again after file changed.
+   */
+  private static String keyOf(Music music, int size) {
+    return music.getId() + "_" + size + "_"
+        + Long.toHexString(music.getLastModified());
+  }
+
+  /**
+   * Load artwork from disk cache, or extract and write to disk cache. Called
+   * in loading thread.
+   *
+   * @return artwork, null if no artwork
+   */
+  private Bitmap loadArtwork(Request request) {
+    File cacheFile = new File(mCacheDir, request.key);
+    if (cacheFile.exists()) {
+      cacheFile.setLastModified(System.currentTimeMillis());
+      // empty file for music without artwork
+      if (cacheFile.length() == 0) return null;
+      Bitmap bitmap = BitmapFactory.decodeFile(cacheFile.getPath());
+      if (bitmap != null) return bitmap;
+      Log.w(LOG_TAG, "failed to decode cached artwork " + cacheFile);
+    }
+    if (request.isCancelled()) return null;
+
+    Bitmap bitmap = extractArtwork(request.music, request.size);
+    if (request.isCancelled()) return bitmap;
+    writeDiskCache(cacheFile, bitmap);
+    return bitmap;
+  }
+
+  private Bitmap extractArtwork(Music music, int size) {
+    File file = new File(music.getPath());
+    try {
+      byte[] picture = mTagReader.get().readPicture(file);
+      if (picture != null) {
+        Bitmap bitmap = decode(picture, null, size);
+        if (bitmap != null) return bitmap;
+      }
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "failed to read picture of " + file
+          + ", nested exception is " + e);
+    }
+
+    File image = findFolderImage(file.getParentFile());
+    return image != null ? decode(null, image.getPath(), size) : null;
+  }
+
+  private File findFolderImage(File dir) {
+    if (dir == null) return null;
+    String path = dir.getPath();
+    synchronized (mFolderImages) {
+      if (mFolderImages.containsKey(path)) return mFolderImages.get(path);
+    }
+
+    File image = null;
+    String[] names = dir.list();
+    if (names != null) {
+      int best = FOLDER_IMAGE_NAMES.length;
+      for (String name : names) {
+        String lowerCase = name.toLowerCase();
+        for (int i = 0; i < best; i++) {
+          if (FOLDER_IMAGE_NAMES[i].equals(lowerCase)) {
+            image = new File(dir, name);
+            best = i;
+            break;
+          }
+        }
+      }
+    }
+    synchronized (mFolderImages) {
+      mFolderImages.put(path, image);
+    }
+    return image;
+  }
+
+  /**
+   * Decode image from data or file, downsampled while decoding and scaled so
+   * that width and height are not larger than size.
+   */
+  private static Bitmap decode(byte[] data, String path, int size) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    decode(data, path, options);
+    int width = options.outWidth;
+    int height = options.outHeight;
+    if (width <= 0 || height <= 0) return null;
+
+    // largest power of 2 keeping both sides not smaller than size
+    int sampleSize = 1;
+    while (width / (sampleSize * 2) >= size
+        && height / (sampleSize * 2) >= size) {
+      sampleSize *= 2;
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize;
+    options.inPreferredConfig = Bitmap.Config.RGB_565;
+    Bitmap bitmap = decode(data, path, options);
+    if (bitmap == null) return null;
+
+    int max = Math.max(bitmap.getWidth(), bitmap.getHeight());
+    if (max <= size) return bitmap;
+    Bitmap scaled =
+        Bitmap.createScaledBitmap(bitmap, bitmap.getWidth() * size / max,
+            bitmap.getHeight() * size / max, true);
+    if (scaled != bitmap) bitmap.recycle();
+    return scaled;
+  }
+
+  private static Bitmap decode(byte[] data, String path,
+      BitmapFactory.Options options) {
+    return data != null ? BitmapFactory.decodeByteArray(data, 0, data.length,
+        options) : BitmapFactory.decodeFile(path, options);
+  }
+
+  private void writeDiskCache(File file, Bitmap bitmap) {
+    File tmpFile = new File(file.getPath() + ".tmp");
+    try {
+      FileOutputStream out = new FileOutputStream(tmpFile);
+      try {
+        if (bitmap != null) {
+          bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(file)) {
+        tmpFile.delete();
+        return;
+      }
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "failed to write artwork cache " + file
+          + ", nested exception is " + e);
+      tmpFile.delete();
+      return;
+    }
+
+    boolean trim;
+    synchronized (this) {
+      trim = mDiskBytes >= 0
+          && (mDiskBytes += file.length()) > MAX_DISK_CACHE_BYTES;
+    }
+    if (trim) trimDiskCache();
+  }
+
+  /**
+   * Delete least recently used thumbnails until disk cache is 3/4 of max.
+   */
+  private void trimDiskCache() {
+    File[] files = mCacheDir.listFiles();
+    if (files == null) return;
+
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total > MAX_DISK_CACHE_BYTES) {
+      Arrays.sort(files, new Comparator<File>() {
+
+        @Override
+        public int compare(File lhs, File rhs) {
+          long l = lhs.lastModified();
+          long r = rhs.lastModified();
+          return l < r ? -1 : (l == r ? 0 : 1);
+        }
+      });
+      int deleted = 0;
+      for (int i = 0; i < files.length
+          && total > MAX_DISK_CACHE_BYTES * 3 / 4; i++) {
+        long length = files[i].length();
+        if (files[i].delete()) {
+          total -= length;
+          deleted++;
+        }
+      }
+      Log.i(LOG_TAG, deleted + " cached artwork(s) deleted");
+    }
+    synchronized (this) {
+      mDiskBytes = total;
+    }
+  }
+
+}
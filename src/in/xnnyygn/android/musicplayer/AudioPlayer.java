@@ -0,0 +1,124 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Player of one music at a time, the part of {@link android.media.MediaPlayer}
+ * service drives, so that service and {@link MediaPlayerPool} do not depend
+ * on engine.
+ * <p>
+ * Methods follow media player of same names and are called on thread
+ * creating player, listeners are called on looper of that thread too.
+ *
+ * @author xnnyygn
+ * @see MediaPlayerAdapter
+ * @see PcmPlayer
+ */
+public interface AudioPlayer {
+
+  /**
+   * Listener of preparation done.
+   *
+   * @author xnnyygn
+   */
+  interface OnPreparedListener {
+
+    void onPrepared(AudioPlayer player);
+
+  }
+
+  /**
+   * Listener of errors.
+   *
+   * @author xnnyygn
+   */
+  interface OnErrorListener {
+
+    /**
+     * Called on error, player should be reset.
+     *
+     * @param player player
+     * @param what type of error as of media player
+     * @param extra code of error
+     * @return true if handled
+     */
+    boolean onError(AudioPlayer player, int what, int extra);
+
+  }
+
+  /**
+   * Listener of music played to end.
+   *
+   * @author xnnyygn
+   */
+  interface OnCompletionListener {
+
+    void onCompletion(AudioPlayer player);
+
+  }
+
+  /**
+   * Listener of seek done.
+   *
+   * @author xnnyygn
+   */
+  interface OnSeekCompleteListener {
+
+    void onSeekComplete(AudioPlayer player);
+
+  }
+
+  void setOnPreparedListener(OnPreparedListener listener);
+
+  void setOnErrorListener(OnErrorListener listener);
+
+  void setOnCompletionListener(OnCompletionListener listener);
+
+  void setOnSeekCompleteListener(OnSeekCompleteListener listener);
+
+  void setDataSource(String path) throws IOException;
+
+  /**
+   * Set data source of part of file. Caller may close file descriptor after.
+   *
+   * @param fd file descriptor
+   * @param offset offset in bytes
+   * @param length length in bytes
+   * @throws IOException if failed to open
+   */
+  void setDataSource(FileDescriptor fd, long offset, long length)
+      throws IOException;
+
+  void prepareAsync();
+
+  void start();
+
+  void pause();
+
+  void stop();
+
+  boolean isPlaying();
+
+  void seekTo(int position);
+
+  int getDuration();
+
+  int getCurrentPosition();
+
+  /**
+   * Set player started by this player once it completes, no effect before
+   * API 16 for media player.
+   *
+   * @param next next player of same engine, null to unlink
+   */
+  void setNextPlayer(AudioPlayer next);
+
+  /**
+   * Reset to idle, returns without waiting for decoder to stop.
+   */
+  void reset();
+
+  void release();
+
+}
@@ -0,0 +1,100 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.FileObserver;
+
+/**
+ * Source of file system events backed by {@link FileObserver}, one observer
+ * per directory. Observers are kept referenced, observer collected stops
+ * watching.
+ *
+ * @author xnnyygn
+ */
+public class FileObserverSource implements LibraryWatcher.Source {
+
+  private static final int MASK = FileObserver.CREATE | FileObserver.DELETE
+      | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+      | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF
+      | FileObserver.MOVE_SELF;
+
+  /**
+   * IN_Q_OVERFLOW of inotify, not defined by FileObserver.
+   */
+  private static final int EVENT_Q_OVERFLOW = 0x4000;
+
+  /**
+   * Observer of one directory.
+   *
+   * @author xnnyygn
+   */
+  private static class DirectoryObserver extends FileObserver {
+
+    private final File mDir;
+    private final LibraryWatcher mWatcher;
+
+    DirectoryObserver(File dir, LibraryWatcher watcher) {
+      super(dir.getAbsolutePath(), MASK);
+      mDir = dir;
+      mWatcher = watcher;
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+      if ((event & EVENT_Q_OVERFLOW) != 0) {
+        mWatcher.onEvent(mDir, null, LibraryWatcher.EVENT_OVERFLOW);
+        return;
+      }
+
+      // event may carry flags, e.g. IN_ISDIR
+      switch (event & FileObserver.ALL_EVENTS) {
+        case FileObserver.CREATE:
+        case FileObserver.MOVED_TO:
+        case FileObserver.CLOSE_WRITE:
+          mWatcher.onEvent(mDir, path, LibraryWatcher.EVENT_CREATED);
+          break;
+        case FileObserver.DELETE:
+        case FileObserver.MOVED_FROM:
+          mWatcher.onEvent(mDir, path, LibraryWatcher.EVENT_DELETED);
+          break;
+        case FileObserver.DELETE_SELF:
+        case FileObserver.MOVE_SELF:
+          mWatcher.onEvent(mDir.getParentFile(), mDir.getName(),
+              LibraryWatcher.EVENT_DELETED);
+          break;
+      }
+    }
+
+  }
+
+  private final Map<String, DirectoryObserver> mObservers =
+      new HashMap<String, DirectoryObserver>();
+
+  @Override
+  public synchronized boolean watch(File dir, LibraryWatcher watcher) {
+    String path = dir.getAbsolutePath();
+    if (mObservers.containsKey(path)) return true;
+
+    DirectoryObserver observer = new DirectoryObserver(dir, watcher);
+    observer.startWatching();
+    mObservers.put(path, observer);
+    return true;
+  }
+
+  @Override
+  public synchronized void unwatch(File dir) {
+    DirectoryObserver observer = mObservers.remove(dir.getAbsolutePath());
+    if (observer != null) observer.stopWatching();
+  }
+
+  @Override
+  public synchronized void close() {
+    for (DirectoryObserver observer : mObservers.values()) {
+      observer.stopWatching();
+    }
+    mObservers.clear();
+  }
+
+}
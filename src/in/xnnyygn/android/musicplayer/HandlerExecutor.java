@@ -0,0 +1,32 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Executor posting tasks to looper, used to dispatch core callbacks on
+ * Android threads.
+ *
+ * @author xnnyygn
+ */
+public class HandlerExecutor implements Executor {
+
+  private final Handler mHandler;
+
+  /**
+   * Create executor.
+   *
+   * @param looper looper to run tasks on
+   */
+  public HandlerExecutor(Looper looper) {
+    mHandler = new Handler(looper);
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    mHandler.post(command);
+  }
+
+}
@@ -0,0 +1,275 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Paged view over library index for list adapter.
+ * <p>
+ * Musics are decoded page by page in background and kept in a bounded page
+ * cache, least recently used page evicted first, so memory does not grow
+ * with library size. Alphabetical sections and total duration are computed
+ * in background once per index. All methods should be called on main
+ * thread, listener is called on main thread.
+ *
+ * @author xnnyygn
+ */
+public class LibraryPager {
+
+  /**
+   * Listener of pager.
+   *
+   * @author xnnyygn
+   */
+  public interface Listener {
+
+    /**
+     * Called when a page requested is loaded.
+     */
+    void onPageLoaded();
+
+    /**
+     * Called when sections and total duration are computed.
+     */
+    void onSectionsLoaded();
+
+  }
+
+  private static final String LOG_TAG = "pager";
+  private static final int PAGE_SIZE = 64;
+  private static final int MAX_PAGES = 16;
+  private static final String SECTION_OTHER = "#";
+
+  private final Handler mHandler = new Handler();
+  private final Listener mListener;
+  private final ExecutorService mLoader = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "pager");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private LibraryIndex mIndex;
+
+  /**
+   * Increased when index changed, results loaded for old index are dropped.
+   */
+  private int mGeneration;
+
+  private final Map<Integer, Music[]> mPages =
+      new LinkedHashMap<Integer, Music[]>(MAX_PAGES * 2, 0.75f, true) {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, Music[]> eldest) {
+      return size() > MAX_PAGES;
+    }
+  };
+  private final Set<Integer> mLoadingPages = new HashSet<Integer>();
+
+  private String[] mSections = new String[0];
+  private int[] mSectionPositions = new int[0];
+  private long mTotalDuration;
+
+  public LibraryPager(Listener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Set index to page over, pages and sections of old index are dropped.
+   *
+   * @param index index, null for none
+   */
+  public void setIndex(LibraryIndex index) {
+    if (index == mIndex) return;
+
+    mIndex = index;
+    mGeneration++;
+    mPages.clear();
+    mLoadingPages.clear();
+    mSections = new String[0];
+    mSectionPositions = new int[0];
+    mTotalDuration = 0;
+    if (index != null) loadSections(index);
+  }
+
+  /**
+   * Get music at specified position, start loading its page if not loaded.
+   *
+   * @param position position
+   * @return music, null if loading
+   */
+  public Music getMusic(int position) {
+    int page = position / PAGE_SIZE;
+    int offset = position % PAGE_SIZE;
+
+    // prefetch page in direction of scroll
+    requestPage(offset < PAGE_SIZE / 2 ? page - 1 : page + 1);
+    Music[] musics = mPages.get(page);
+    if (musics == null) {
+      requestPage(page);
+      return null;
+    }
+    return musics[offset];
+  }
+
+  private void requestPage(final int page) {
+    final LibraryIndex index = mIndex;
+    if (index == null || page < 0 || page * PAGE_SIZE >= index.size()
+        || mPages.containsKey(page) || !mLoadingPages.add(page)) {
+      return;
+    }
+
+    final int generation = mGeneration;
+    mLoader.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        int start = page * PAGE_SIZE;
+        final Music[] musics =
+            new Music[Math.min(PAGE_SIZE, index.size() - start)];
+        for (int i = 0; i < musics.length; i++) {
+          try {
+            musics[i] = index.getMusic(start + i);
+          } catch (IllegalStateException e) {
+            // shown as loading until index is written again by scan
+            Log.w(LOG_TAG, "failed to decode music at " + (start + i)
+                + ", nested exception is " + e);
+          }
+        }
+        mHandler.post(new Runnable() {
+
+          @Override
+          public void run() {
+            if (generation != mGeneration) return;
+            mLoadingPages.remove(page);
+            mPages.put(page, musics);
+            mListener.onPageLoaded();
+          }
+        });
+      }
+    });
+  }
+
+  private void loadSections(final LibraryIndex index) {
+    final int generation = mGeneration;
+    mLoader.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        long start = System.currentTimeMillis();
+        final List<String> sections = new ArrayList<String>();
+        final int[] positions = new int[index.size()];
+        int count = 0;
+        String last = null;
+        long totalDuration = 0;
+        for (int i = 0; i < index.size(); i++) {
+          totalDuration += index.getDuration(i);
+          String section;
+          try {
+            section = sectionOf(index.getTitle(i));
+          } catch (IllegalStateException e) {
+            section = SECTION_OTHER; // corrupted record
+          }
+          if (!section.equals(last)) {
+            sections.add(section);
+            positions[count++] = i;
+            last = section;
+          }
+        }
+        final int sectionCount = count;
+        final long total = totalDuration;
+        Log.d(LOG_TAG, sectionCount + " section(s) computed in "
+            + (System.currentTimeMillis() - start) + "ms");
+        mHandler.post(new Runnable() {
+
+          @Override
+          public void run() {
+            if (generation != mGeneration) return;
+            mSections = sections.toArray(new String[sectionCount]);
+            mSectionPositions = new int[sectionCount];
+            System.arraycopy(positions, 0, mSectionPositions, 0, sectionCount);
+            mTotalDuration = total;
+            mListener.onSectionsLoaded();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Get section of title, upper case of first letter if latin letter, other
+   * section otherwise.
+   *
+   * @param title title
+   * @return section
+   */
+  private static String sectionOf(String title) {
+    if (title.length() == 0) return SECTION_OTHER;
+    char c = Character.toUpperCase(title.charAt(0));
+    return c >= 'A' && c <= 'Z' ? String.valueOf(c) : SECTION_OTHER;
+  }
+
+  /**
+   * Get total duration of musics in index.
+   *
+   * @return total duration in milliseconds, 0 if not computed yet
+   */
+  public long getTotalDuration() {
+    return mTotalDuration;
+  }
+
+  public Object[] getSections() {
+    return mSections;
+  }
+
+  /**
+   * Get first position of section.
+   *
+   * @param section section
+   * @return position
+   */
+  public int getPositionForSection(int section) {
+    if (mSectionPositions.length == 0) return 0;
+    int i = Math.max(0, Math.min(section, mSectionPositions.length - 1));
+    return mSectionPositions[i];
+  }
+
+  /**
+   * Get section of position.
+   *
+   * @param position position
+   * @return section
+   */
+  public int getSectionForPosition(int position) {
+    int i = Arrays.binarySearch(mSectionPositions, position);
+    // insertion point - 1 if not found
+    return i >= 0 ? i : Math.max(0, -i - 2);
+  }
+
+  /**
+   * Stop loading, pager cannot be used after.
+   */
+  public void shutdown() {
+    mLoader.shutdownNow();
+    mHandler.removeCallbacksAndMessages(null);
+    mGeneration++;
+  }
+
+}
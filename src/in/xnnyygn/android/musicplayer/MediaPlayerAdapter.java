@@ -0,0 +1,149 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.media.MediaPlayer;
+import android.os.Build;
+
+/**
+ * {@link AudioPlayer} of {@link MediaPlayer}, callbacks of media player are
+ * passed on with this adapter as player.
+ *
+ * @author xnnyygn
+ */
+public class MediaPlayerAdapter implements AudioPlayer,
+    MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener,
+    MediaPlayer.OnCompletionListener, MediaPlayer.OnSeekCompleteListener {
+
+  private final MediaPlayer mMediaPlayer = new MediaPlayer();
+  private OnPreparedListener mOnPreparedListener;
+  private OnErrorListener mOnErrorListener;
+  private OnCompletionListener mOnCompletionListener;
+  private OnSeekCompleteListener mOnSeekCompleteListener;
+
+  /**
+   * Create adapter of a new media player.
+   */
+  public MediaPlayerAdapter() {
+    mMediaPlayer.setOnPreparedListener(this);
+    mMediaPlayer.setOnErrorListener(this);
+    mMediaPlayer.setOnCompletionListener(this);
+    mMediaPlayer.setOnSeekCompleteListener(this);
+  }
+
+  @Override
+  public void setOnPreparedListener(OnPreparedListener listener) {
+    mOnPreparedListener = listener;
+  }
+
+  @Override
+  public void setOnErrorListener(OnErrorListener listener) {
+    mOnErrorListener = listener;
+  }
+
+  @Override
+  public void setOnCompletionListener(OnCompletionListener listener) {
+    mOnCompletionListener = listener;
+  }
+
+  @Override
+  public void setOnSeekCompleteListener(OnSeekCompleteListener listener) {
+    mOnSeekCompleteListener = listener;
+  }
+
+  @Override
+  public void setDataSource(String path) throws IOException {
+    mMediaPlayer.setDataSource(path);
+  }
+
+  @Override
+  public void setDataSource(FileDescriptor fd, long offset, long length)
+      throws IOException {
+    mMediaPlayer.setDataSource(fd, offset, length);
+  }
+
+  @Override
+  public void prepareAsync() {
+    mMediaPlayer.prepareAsync();
+  }
+
+  @Override
+  public void start() {
+    mMediaPlayer.start();
+  }
+
+  @Override
+  public void pause() {
+    mMediaPlayer.pause();
+  }
+
+  @Override
+  public void stop() {
+    mMediaPlayer.stop();
+  }
+
+  @Override
+  public boolean isPlaying() {
+    return mMediaPlayer.isPlaying();
+  }
+
+  @Override
+  public void seekTo(int position) {
+    mMediaPlayer.seekTo(position);
+  }
+
+  @Override
+  public int getDuration() {
+    return mMediaPlayer.getDuration();
+  }
+
+  @Override
+  public int getCurrentPosition() {
+    return mMediaPlayer.getCurrentPosition();
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  public void setNextPlayer(AudioPlayer next) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      mMediaPlayer.setNextMediaPlayer(next == null ? null
+          : ((MediaPlayerAdapter) next).mMediaPlayer);
+    }
+  }
+
+  @Override
+  public void reset() {
+    mMediaPlayer.reset();
+  }
+
+  @Override
+  public void release() {
+    mMediaPlayer.release();
+  }
+
+  @Override
+  public void onPrepared(MediaPlayer mp) {
+    if (mOnPreparedListener != null) mOnPreparedListener.onPrepared(this);
+  }
+
+  @Override
+  public boolean onError(MediaPlayer mp, int what, int extra) {
+    return mOnErrorListener != null
+        && mOnErrorListener.onError(this, what, extra);
+  }
+
+  @Override
+  public void onCompletion(MediaPlayer mp) {
+    if (mOnCompletionListener != null) mOnCompletionListener.onCompletion(this);
+  }
+
+  @Override
+  public void onSeekComplete(MediaPlayer mp) {
+    if (mOnSeekCompleteListener != null) {
+      mOnSeekCompleteListener.onSeekComplete(this);
+    }
+  }
+
+}
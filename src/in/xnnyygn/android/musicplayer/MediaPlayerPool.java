@@ -0,0 +1,102 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Bounded pool of players.
+ * <p>
+ * Each player holds decoder and buffers once prepared, so count of players
+ * in use, that is, current player plus players prepared ahead, never
+ * exceeds max players. Players returned are reset and kept for reuse.
+ * Players created are all {@link MediaPlayerAdapter} or all
+ * {@link PcmPlayer}.
+ *
+ * @author xnnyygn
+ */
+public class MediaPlayerPool {
+
+  private static final String LOG_TAG = "playerpool";
+
+  private final int mMaxPlayers;
+  private final boolean mPcmEngine;
+  private final AudioPlayer.OnPreparedListener mOnPreparedListener;
+  private final AudioPlayer.OnErrorListener mOnErrorListener;
+  private final AudioPlayer.OnCompletionListener mOnCompletionListener;
+  private final AudioPlayer.OnSeekCompleteListener mOnSeekCompleteListener;
+  private final List<AudioPlayer> mIdlePlayers = new ArrayList<AudioPlayer>();
+  private int mPlayerCount = 0;
+
+  /**
+   * Create pool.
+   *
+   * @param maxPlayers max count of players
+   * @param pcmEngine true to create {@link PcmPlayer}, which should be
+   *        supported
+   * @param onPreparedListener listener set to all players created
+   * @param onErrorListener listener set to all players created
+   * @param onCompletionListener listener set to all players created
+   * @param onSeekCompleteListener listener set to all players created
+   */
+  public MediaPlayerPool(int maxPlayers, boolean pcmEngine,
+      AudioPlayer.OnPreparedListener onPreparedListener,
+      AudioPlayer.OnErrorListener onErrorListener,
+      AudioPlayer.OnCompletionListener onCompletionListener,
+      AudioPlayer.OnSeekCompleteListener onSeekCompleteListener) {
+    mMaxPlayers = maxPlayers;
+    mPcmEngine = pcmEngine;
+    mOnPreparedListener = onPreparedListener;
+    mOnErrorListener = onErrorListener;
+    mOnCompletionListener = onCompletionListener;
+    mOnSeekCompleteListener = onSeekCompleteListener;
+  }
+
+  /**
+   * Acquire a player in idle state.
+   *
+   * @return player, null if max players in use
+   */
+  public AudioPlayer acquire() {
+    if (!mIdlePlayers.isEmpty()) {
+      return mIdlePlayers.remove(mIdlePlayers.size() - 1);
+    }
+    if (mPlayerCount >= mMaxPlayers) {
+      Log.d(LOG_TAG, "max players " + mMaxPlayers + " in use");
+      return null;
+    }
+
+    Log.i(LOG_TAG, "create " + (mPcmEngine ? "pcm player" : "media player"));
+    AudioPlayer player =
+        mPcmEngine ? new PcmPlayer() : new MediaPlayerAdapter();
+    player.setOnPreparedListener(mOnPreparedListener);
+    player.setOnErrorListener(mOnErrorListener);
+    player.setOnCompletionListener(mOnCompletionListener);
+    player.setOnSeekCompleteListener(mOnSeekCompleteListener);
+    mPlayerCount++;
+    return player;
+  }
+
+  /**
+   * Reset player and return it to pool.
+   *
+   * @param player player acquired from this pool
+   */
+  public void recycle(AudioPlayer player) {
+    player.reset();
+    mIdlePlayers.add(player);
+  }
+
+  /**
+   * Release idle players, players in use should be recycled before.
+   */
+  public void releaseAll() {
+    for (AudioPlayer player : mIdlePlayers) {
+      player.release();
+    }
+    mPlayerCount -= mIdlePlayers.size();
+    mIdlePlayers.clear();
+  }
+
+}
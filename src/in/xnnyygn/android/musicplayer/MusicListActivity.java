@@ -1,14 +1,25 @@
 package in.xnnyygn.android.musicplayer;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -16,67 +27,524 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 public class MusicListActivity extends Activity implements
     AdapterView.OnItemClickListener {
 
   private static final String LOG_TAG = "activity.musiclist";
+  private static final String ENV_SECONDARY_STORAGE = "SECONDARY_STORAGE";
+  private static final int MAX_SEARCH_RESULTS = 500;
+
+  /**
+   * Delay of search after last keystroke.
+   */
+  private static final long SEARCH_DELAY = 150;
+
+  /**
+   * Scanner shared by activity instances, keep directory snapshots between
+   * scans.
+   */
+  private static final LibraryScanner sScanner = new LibraryScanner();
+
+  /**
+   * Analyzer shared by activity instances, computes durations after scan.
+   */
+  private static final LibraryAnalyzer sAnalyzer = new LibraryAnalyzer();
+
   private MusicListAdapter mAdapter;
+  private Handler mHandler = new Handler();
+
+  private MusicPlayerService mMusicPlayerService;
+  private ServiceConnection mConnection = new ServiceConnection() {
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+      Log.d(LOG_TAG, "onServiceDisconnectd called");
+      mMusicPlayerService = null;
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+      Log.d(LOG_TAG, "onServiceConnected called");
+      mMusicPlayerService =
+          ((MusicPlayerService.LocalBinder) service).getService();
+      playPendingPlaylist();
+      playPendingStream();
+    }
+  };
+
+  /**
+   * Playlist opened from view intent, played once service bound.
+   */
+  private Playlist mPendingPlaylist;
+
+  /**
+   * Url of stream from view intent, played once service bound.
+   */
+  private String mPendingStream;
+
+  private File mIndexFile;
+
+  /**
+   * Watcher of directories scanned, applies changes to index through updater
+   * while activity lives.
+   */
+  private LibraryWatcher mWatcher;
+  private LibraryUpdater mUpdater;
+
+  private LibraryUpdater.Listener mUpdaterListener =
+      new LibraryUpdater.Listener() {
+
+        @Override
+        public void onIndexUpdated() {
+          mHandler.post(mReloadTask);
+          mHandler.post(mAnalyzeTask);
+        }
+      };
+
+  private Runnable mAnalyzeTask = new Runnable() {
+
+    @Override
+    public void run() {
+      LibraryIndex index = MusicCatalog.getInstance().getIndex();
+      if (index != null) {
+        sAnalyzer.analyze(mIndexFile, index, mAnalyzerListener);
+      }
+    }
+  };
+
+  private LibraryAnalyzer.Listener mAnalyzerListener =
+      new LibraryAnalyzer.Listener() {
+
+        @Override
+        public void onIndexUpdated(boolean finished) {
+          mHandler.post(mReloadTask);
+        }
+      };
+
+  private Runnable mReloadTask = new Runnable() {
+
+    @Override
+    public void run() {
+      if (MusicCatalog.getInstance().reload()) mAdapter.updateIndex();
+    }
+  };
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_music_list);
 
-    File musicDir =
-        new File(Environment.getExternalStorageDirectory(), "/xy/music/test");
-    Log.i(LOG_TAG, "list music from dir " + musicDir);
-    if (musicDir.exists()) {
-      ListView musicList = (ListView) findViewById(R.id.lvMusicList);
-      mAdapter = new MusicListAdapter(listMp3(musicDir));
-      musicList.setAdapter(mAdapter);
-      musicList.setOnItemClickListener(this);
+    ListView musicList = (ListView) findViewById(R.id.lvMusicList);
+    mAdapter = new MusicListAdapter();
+    musicList.setAdapter(mAdapter);
+    musicList.setOnItemClickListener(this);
+    openPlaylist(getIntent());
+
+    EditText search = (EditText) findViewById(R.id.etSearch);
+    search.addTextChangedListener(new TextWatcher() {
+
+      @Override
+      public void onTextChanged(CharSequence s, int start, int before,
+          int count) {
+      }
+
+      @Override
+      public void beforeTextChanged(CharSequence s, int start, int count,
+          int after) {
+      }
+
+      @Override
+      public void afterTextChanged(Editable s) {
+        mAdapter.setQuery(s.toString());
+      }
+    });
+
+    // render from index immediately, then reconcile with disk
+    mIndexFile = new File(getFilesDir(), LibraryIndex.FILE_NAME);
+    LibraryIndex index = MusicCatalog.getInstance().load(mIndexFile);
+    mAdapter.updateIndex();
+    mUpdater = new LibraryUpdater(mIndexFile, mUpdaterListener);
+    mWatcher = new LibraryWatcher(new FileObserverSource(), mUpdater);
+
+    List<File> roots = listMusicRoots();
+    Log.i(LOG_TAG, "scan music from roots " + roots);
+    PlaybackMetrics.getInstance().setStorageRoots(roots);
+    // analyze after scan, not competing for storage
+    sAnalyzer.cancel();
+    sScanner.scan(roots, index, new ReconcileListener(index));
+  }
+
+  /**
+   * Reconcile scan result with library index.
+   * <p>
+   * Without index, musics found are given ids in order found and shown while
+   * scanning. With index, scan result is compared with index, index is
+   * rewritten and reloaded only if library changed.
+   * 
+   * @author xnnyygn
+   */
+  private class ReconcileListener implements LibraryScanner.Listener {
+
+    private final LibraryIndex index;
+    private final List<Music> scanned = new ArrayList<Music>();
+    private final long startedAt = SystemClock.elapsedRealtime();
+
+    ReconcileListener(LibraryIndex index) {
+      this.index = index;
+    }
+
+    @Override
+    public void onMusicFound(final List<Music> musics) {
+      synchronized (scanned) {
+        if (index != null) {
+          scanned.addAll(musics);
+          return;
+        }
+
+        // provisional id is position, post in order of ids
+        for (Music music : musics) {
+          music.setId(scanned.size());
+          scanned.add(music);
+        }
+        mHandler.post(new Runnable() {
+
+          @Override
+          public void run() {
+            MusicCatalog.getInstance().addProvisionalMusics(musics);
+            mAdapter.notifyDataSetChanged();
+          }
+        });
+      }
+    }
+
+    @Override
+    public void onScanFinished(int total, boolean changed) {
+      Log.i(LOG_TAG, "scan finished, " + total + " music(s) found");
+      PlaybackMetrics.getInstance().recordScan(
+          SystemClock.elapsedRealtime() - startedAt, total);
+      // watch after scan, changes since listing are caught by next scan.
+      // Directories are collected here and observers started by watcher
+      // thread, so that main thread does nothing per directory
+      mWatcher.watch(sScanner.getDirectories());
+      if (index != null && (!changed || reconcile())) {
+        Log.i(LOG_TAG, "library not changed");
+        mHandler.post(mAnalyzeTask);
+        return;
+      }
+
+      Collections.sort(scanned, Music.TITLE_ORDER);
+      try {
+        LibraryIndex.write(mIndexFile, scanned,
+            index != null ? index.getNextId() : 0);
+      } catch (IOException e) {
+        Log.w(LOG_TAG, "failed to write library index, nested exception is "
+            + e, e);
+        return;
+      }
+      List<List<Music>> duplicates = LibraryIndex.findDuplicates(scanned);
+      if (!duplicates.isEmpty()) {
+        Log.i(LOG_TAG, duplicates.size() + " group(s) of duplicate musics");
+      }
+
+      mHandler.post(mReloadTask);
+      mHandler.post(mAnalyzeTask);
+    }
+
+    /**
+     * Reconcile scanned musics with index. If a record of index is
+     * corrupted, scanned musics get new ids and index is written again.
+     *
+     * @return true if same as index
+     */
+    private boolean reconcile() {
+      try {
+        return index.reconcile(scanned);
+      } catch (IllegalStateException e) {
+        Log.w(LOG_TAG, "failed to reconcile library index, nested exception is "
+            + e);
+        int nextId = index.getNextId();
+        for (Music music : scanned) {
+          music.setId(nextId++);
+        }
+        return false;
+      }
     }
+
+  }
+
+  @Override
+  protected void onStart() {
+    super.onStart();
+
+    // bind to set play queue when music chosen
+    boolean bound =
+        bindService(new Intent(this, MusicPlayerService.class), mConnection,
+            BIND_AUTO_CREATE);
+    Log.d(LOG_TAG, "bind service, result " + bound);
   }
 
-  private List<File> listMp3(File rootDir) {
-    List<File> files = new ArrayList<File>();
-    for (File file : rootDir.listFiles()) {
-      if (file.isFile()
-          && file.getName().toLowerCase(Locale.getDefault()).endsWith(".mp3")) {
-        files.add(file);
+  @Override
+  protected void onStop() {
+    super.onStop();
+
+    Log.d(LOG_TAG, "unbind service");
+    unbindService(mConnection);
+    mMusicPlayerService = null;
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    sScanner.cancel();
+    sAnalyzer.cancel();
+    mWatcher.stop();
+    mUpdater.shutdown();
+    mHandler.removeCallbacksAndMessages(null);
+    mAdapter.shutdown();
+  }
+
+  /**
+   * Open playlist file of view intent in background, or play stream of view
+   * intent, if any.
+   * 
+   * @param intent intent
+   */
+  private void openPlaylist(Intent intent) {
+    if (!Intent.ACTION_VIEW.equals(intent.getAction())
+        || intent.getData() == null) {
+      return;
+    }
+    String url = intent.getData().toString();
+    if (StreamProxy.isStream(url)) {
+      mPendingStream = url;
+      playPendingStream();
+      return;
+    }
+    if (!"file".equals(intent.getData().getScheme())) return;
+    final File file = new File(intent.getData().getPath());
+    final String mimeType = intent.getType();
+    new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          final Playlist playlist = Playlist.open(file, mimeType);
+          mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+              mPendingPlaylist = playlist;
+              playPendingPlaylist();
+            }
+          });
+        } catch (IOException e) {
+          Log.w(LOG_TAG, "failed to open playlist " + file
+              + ", nested exception is " + e);
+        }
+      }
+    }, "playlist").start();
+  }
+
+  private void playPendingPlaylist() {
+    if (mPendingPlaylist == null || mMusicPlayerService == null) return;
+    if (mPendingPlaylist.size() > 0) {
+      Log.i(LOG_TAG, "play playlist " + mPendingPlaylist.getFile());
+      mMusicPlayerService.play(mPendingPlaylist, 0);
+    }
+    mPendingPlaylist = null;
+  }
+
+  private void playPendingStream() {
+    if (mPendingStream == null || mMusicPlayerService == null) return;
+    Log.i(LOG_TAG, "play stream " + mPendingStream);
+    mMusicPlayerService.playStream(mPendingStream);
+    mPendingStream = null;
+  }
+
+  /**
+   * List mounted storage roots, including secondary storages.
+   * 
+   * @return roots
+   */
+  private List<File> listMusicRoots() {
+    List<File> roots = new ArrayList<File>();
+    if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+      roots.add(Environment.getExternalStorageDirectory());
+    }
+
+    String secondaryStorage = System.getenv(ENV_SECONDARY_STORAGE);
+    if (secondaryStorage != null) {
+      for (String path : secondaryStorage.split(File.pathSeparator)) {
+        File root = new File(path);
+        if (path.length() > 0 && root.isDirectory() && !roots.contains(root)) {
+          roots.add(root);
+        }
       }
     }
-    return files;
+    return roots;
+  }
+
+  /**
+   * Views of list item.
+   * 
+   * @author xnnyygn
+   */
+  private static class ViewHolder {
+
+    ImageView artwork;
+    TextView title;
+    TextView subtitle;
+
   }
 
-  private class MusicListAdapter extends BaseAdapter {
+  /**
+   * Adapter of musics in catalog, notified when catalog changed. Musics in
+   * index are read through pager, provisional musics are read from catalog.
+   * If query set, only search results are shown, searched in background once
+   * typing pauses.
+   * 
+   * @author xnnyygn
+   */
+  private class MusicListAdapter extends BaseAdapter implements
+      SectionIndexer, LibraryPager.Listener {
+
+    private final LibraryPager pager = new LibraryPager(this);
+    private final ArtworkLoader artworkLoader = ArtworkLoader
+        .getInstance(MusicListActivity.this);
+    private final int artworkSize = getResources().getDimensionPixelSize(
+        R.dimen.artwork_thumbnail);
+    private String query = "";
+    private final ExecutorService searcher = Executors
+        .newSingleThreadExecutor(new ThreadFactory() {
 
-    private final List<Music> musics;
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "searcher");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
 
-    public MusicListAdapter(List<File> files) {
-      super();
+    /**
+     * Increased when query changed, results of old query are dropped.
+     */
+    private int searchGeneration;
+    private final Runnable searchTask = new Runnable() {
 
-      musics = new ArrayList<Music>();
-      for (File f : files) {
-        musics.add(new Music(f));
+      @Override
+      public void run() {
+        search();
       }
+    };
+
+    /**
+     * Ids of musics matched, null if no query.
+     */
+    private int[] results;
+
+    /**
+     * Take index of catalog and notify.
+     */
+    public void updateIndex() {
+      pager.setIndex(MusicCatalog.getInstance().getIndex());
+      setQuery(query);
+    }
+
+    /**
+     * Search and show results, show all musics if query is empty.
+     * 
+     * @param query query
+     */
+    public void setQuery(String query) {
+      this.query = query;
+      searchGeneration++;
+      mHandler.removeCallbacks(searchTask);
+      if (query.trim().length() == 0) {
+        results = null;
+        notifyDataSetChanged();
+      } else {
+        // results of last query shown until new ones found
+        mHandler.postDelayed(searchTask, SEARCH_DELAY);
+      }
+    }
+
+    private void search() {
+      final String query = this.query;
+      final int generation = searchGeneration;
+      searcher.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          final int[] found =
+              MusicCatalog.getInstance().search(query, MAX_SEARCH_RESULTS);
+          mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+              if (generation != searchGeneration) return;
+              results = found;
+              notifyDataSetChanged();
+            }
+          });
+        }
+      });
+    }
+
+    /**
+     * Get ids of search results shown.
+     * 
+     * @return ids, null if all musics are shown
+     */
+    public int[] getResults() {
+      return results;
+    }
+
+    /**
+     * Get id of music without decoding it.
+     * 
+     * @param position position
+     * @return id
+     */
+    public int getId(int position) {
+      if (results != null) return results[position];
+      LibraryIndex index = MusicCatalog.getInstance().getIndex();
+      return index != null ? index.getId(position) : MusicCatalog
+          .getInstance().getMusicAt(position).getId();
+    }
+
+    public void shutdown() {
+      pager.shutdown();
+      searcher.shutdownNow();
     }
 
     @Override
     public int getCount() {
-      return musics.size();
+      return results != null ? results.length : MusicCatalog.getInstance()
+          .size();
     }
 
     @Override
     public Object getItem(int position) {
-      return musics.get(position);
+      return getMusic(position);
     }
 
+    /**
+     * Get music.
+     * 
+     * @param position position
+     * @return music, null if loading
+     */
     public Music getMusic(int position) {
-      return (Music) getItem(position);
+      MusicCatalog catalog = MusicCatalog.getInstance();
+      if (results != null) return catalog.getMusic(results[position]);
+      return catalog.getIndex() != null ? pager.getMusic(position) : catalog
+          .getMusicAt(position);
     }
 
     @Override
@@ -86,33 +554,127 @@ public class MusicListActivity extends Activity implements
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
+      ViewHolder holder;
       if (convertView == null) {
         convertView =
             getLayoutInflater().inflate(R.layout.listitem_music, parent, false);
+        holder = new ViewHolder();
+        holder.artwork = (ImageView) convertView.findViewById(R.id.ivArtwork);
+        holder.title = (TextView) convertView.findViewById(R.id.tvMusicTitle);
+        holder.subtitle = (TextView) convertView.findViewById(R.id.tvMusicPath);
+        convertView.setTag(holder);
+      } else {
+        holder = (ViewHolder) convertView.getTag();
       }
 
       Music music = getMusic(position);
-      TextView musicTitle =
-          (TextView) convertView.findViewById(R.id.tvMusicTitle);
-      musicTitle.setText(music.getTitle());
-
-      TextView musicPath =
-          (TextView) convertView.findViewById(R.id.tvMusicPath);
-      musicPath.setText(music.getPath());
+      if (music == null) {
+        // bound again once page loaded
+        artworkLoader.cancel(holder.artwork, R.drawable.ic_launcher);
+        holder.title.setText("");
+        holder.subtitle.setText("");
+      } else {
+        artworkLoader.load(music, artworkSize, holder.artwork,
+            R.drawable.ic_launcher);
+        if (music.getSeekTable() == null) {
+          // duration of rows shown first
+          JobScheduler.getInstance().prioritize(
+              LibraryAnalyzer.jobKey(music.getId()),
+              JobScheduler.PRIORITY_VISIBLE);
+        }
+        holder.title.setText(music.getTitle());
+        holder.subtitle.setText(subtitleOf(music));
+      }
       return convertView;
     }
 
+    /**
+     * Get artist, or name of directory if artist unknown, and duration if
+     * known.
+     */
+    private String subtitleOf(Music music) {
+      String subtitle = music.getArtist();
+      if (subtitle == null) {
+        String path = music.getPath();
+        int end = path.lastIndexOf(File.separatorChar);
+        subtitle =
+            end <= 0 ? path : path.substring(
+                path.lastIndexOf(File.separatorChar, end - 1) + 1, end);
+      }
+      return music.getDuration() > 0 ? subtitle + "  "
+          + formatDuration(music.getDuration()) : subtitle;
+    }
+
+    @Override
+    public void onPageLoaded() {
+      notifyDataSetChanged();
+    }
+
+    @Override
+    public void onSectionsLoaded() {
+      notifyDataSetChanged();
+      setTitle(getString(R.string.title_library, MusicCatalog.getInstance()
+          .size(),
+          formatDuration(pager.getTotalDuration())));
+    }
+
+    @Override
+    public Object[] getSections() {
+      return results != null ? new Object[0] : pager.getSections();
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+      return pager.getPositionForSection(section);
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+      return pager.getSectionForPosition(position);
+    }
+
+  }
+
+  /**
+   * Format duration as h:mm:ss, or m:ss if shorter than an hour.
+   * 
+   * @param millis duration in milliseconds
+   * @return formatted duration
+   */
+  private static String formatDuration(long millis) {
+    long seconds = millis / 1000;
+    long hours = seconds / 3600;
+    long minutes = seconds / 60 % 60;
+    StringBuilder builder = new StringBuilder(8);
+    if (hours > 0) {
+      builder.append(hours).append(':');
+      if (minutes < 10) builder.append('0');
+    }
+    builder.append(minutes).append(':');
+    if (seconds % 60 < 10) builder.append('0');
+    return builder.append(seconds % 60).toString();
   }
 
   @Override
   public void onItemClick(AdapterView<?> parent, View view, int position,
       long id) {
     if (mAdapter == null) return; // never happen
-    Music music = mAdapter.getMusic(position);
-    Log.i(LOG_TAG, "choose music " + music);
+    int musicId = mAdapter.getId(position);
+    Log.i(LOG_TAG, "choose music " + musicId);
+    if (mMusicPlayerService != null) {
+      // play with list as queue, player activity will find it playing
+      int[] results = mAdapter.getResults();
+      if (results != null) {
+        mMusicPlayerService.play(results.clone(), results.length, position);
+      } else {
+        MusicCatalog catalog = MusicCatalog.getInstance();
+        mMusicPlayerService.playLibrary(catalog.getIndex(), catalog.size(),
+            position, musicId);
+      }
+    }
 
     Intent intent = new Intent(this, MusicPlayerActivity.class);
-    intent.putExtra(MusicPlayerActivity.EXTRA_MUSIC, music);
+    intent.putExtra(MusicPlayerActivity.EXTRA_MUSIC_ID, musicId);
     startActivity(intent);
   }
 
@@ -1,19 +1,27 @@
 package in.xnnyygn.android.musicplayer;
 
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -21,30 +29,64 @@ import android.widget.Toast;
 public class MusicPlayerActivity extends Activity implements
     View.OnClickListener, SeekBar.OnSeekBarChangeListener {
 
-  public static final String EXTRA_MUSIC = "music";
+  public static final String EXTRA_MUSIC_ID = "musicId";
   public static final String EXTRA_SOURCE = "source";
   public static final int SOURCE_MUSIC_LIST = 0;
   public static final int SOURCE_NOTIFICATION = 1;
   private static final String LOG_TAG = "activity.musicplayer";
-  private static final long INTERVAL_UPDATE_PROGRESS = 500;
+  private static final long INTERVAL_FRAME = 16;
 
   private boolean mLooping;
 
   private Button mPlayOrPauseButton;
   private ImageButton mLoopingButton;
   private TextView mMusicTitleTextView;
+  private ImageView mArtworkImageView;
   private SeekBar mMusicPositionSeekBar;
+  private WaveformView mWaveformView;
+  private int mWaveformMusicId = Music.NO_ID;
   private Handler mHandler = new Handler();
 
-  private Runnable mUpdateProgressTask = new Runnable() {
+  /**
+   * Clock from service, replaced on status update or seek.
+   */
+  private PlaybackClock mClock = PlaybackClock.STOPPED;
+  private boolean mTracking;
+
+  private Runnable mFrameTask = new Runnable() {
 
     @Override
     public void run() {
-      Log.d(LOG_TAG, "update seekbar from task");
-      updateMusicPositionSeekBar();
+      renderClock();
+    }
+  };
+
+  private WaveformLoader.Target mWaveformTarget = new WaveformLoader.Target() {
+
+    @Override
+    public void onWaveformLoaded(Waveform waveform) {
+      mWaveformView.setWaveform(waveform);
+      mWaveformView.setVisibility(waveform != null ? View.VISIBLE : View.GONE);
     }
   };
 
+  private WaveformView.OnScrubListener mScrubListener =
+      new WaveformView.OnScrubListener() {
+
+        @Override
+        public void onScrubStarted() {
+          mTracking = true;
+          mHandler.removeCallbacks(mFrameTask);
+        }
+
+        @Override
+        public void onScrubFinished(float progress) {
+          mTracking = false;
+          if (mMusicPlayerService == null) return;
+          mMusicPlayerService.seekTo((int) (progress * mClock.getDuration()));
+        }
+      };
+
   private MusicPlayerService mMusicPlayerService;
   private ServiceConnection mConnection = new ServiceConnection() {
 
@@ -63,16 +105,37 @@ public class MusicPlayerActivity extends Activity implements
     }
   };
 
-  private BroadcastReceiver mPlayerStatusReceiver = new BroadcastReceiver() {
-
-    @Override
-    public void onReceive(Context context, Intent intent) {
-      int playerStatus =
-          intent.getExtras().getInt(MusicPlayerService.EXTRA_STATUS, -1);
-      Log.d(LOG_TAG, "receive player status " + playerStatus);
-      onPlayerStatusUpdated(playerStatus);
-    }
-  };
+  private PlayerEventBus.Listener mPlayerListener =
+      new PlayerEventBus.Listener() {
+
+        @Override
+        public void onTrackChanged(Music music) {
+          // music may change when playing in sequence
+          if (music != null) updateStaticView(music);
+        }
+
+        @Override
+        public void onStatusChanged(int status) {
+          Log.d(LOG_TAG, "receive player status " + status);
+          onPlayerStatusUpdated(status);
+        }
+
+        @Override
+        public void onClockChanged(PlaybackClock clock) {
+          Log.d(LOG_TAG, "receive clock " + clock);
+          mClock = clock;
+          mHandler.removeCallbacks(mFrameTask);
+          renderClock();
+        }
+
+        @Override
+        public void onError(Music music) {
+          if (music == null) return;
+          Toast.makeText(MusicPlayerActivity.this,
+              "failed to play music [" + music.getTitle() + "]",
+              Toast.LENGTH_SHORT).show();
+        }
+      };
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -87,20 +150,23 @@ public class MusicPlayerActivity extends Activity implements
 
     findViewById(R.id.btnBackward).setOnClickListener(this);
     findViewById(R.id.btnForward).setOnClickListener(this);
+    findViewById(R.id.btnPrevious).setOnClickListener(this);
+    findViewById(R.id.btnNext).setOnClickListener(this);
 
     mMusicPositionSeekBar = (SeekBar) findViewById(R.id.sbMusicPosition);
     mMusicPositionSeekBar.setOnSeekBarChangeListener(this);
 
+    mWaveformView = (WaveformView) findViewById(R.id.wvWaveform);
+    mWaveformView.setOnScrubListener(mScrubListener);
+
     mMusicTitleTextView = (TextView) findViewById(R.id.tvMusicTitle);
+    mArtworkImageView = (ImageView) findViewById(R.id.ivArtwork);
   }
 
   @Override
   protected void onStart() {
     super.onStart();
 
-    registerReceiver(mPlayerStatusReceiver, new IntentFilter(
-        MusicPlayerService.ACTION_STATUS_UPDATE));
-
     Intent intent = new Intent(this, MusicPlayerService.class);
     startService(intent);
 
@@ -112,9 +178,12 @@ public class MusicPlayerActivity extends Activity implements
   protected void onStop() {
     super.onStop();
     // stop updating when activity is hidden
-    mHandler.removeCallbacks(mUpdateProgressTask);
+    mHandler.removeCallbacks(mFrameTask);
+    WaveformLoader.getInstance(this).cancel(mWaveformTarget);
 
-    unregisterReceiver(mPlayerStatusReceiver);
+    if (mMusicPlayerService != null) {
+      mMusicPlayerService.getEventBus().removeListener(mPlayerListener);
+    }
 
     Log.d(LOG_TAG, "unbind service");
     unbindService(mConnection);
@@ -135,20 +204,86 @@ public class MusicPlayerActivity extends Activity implements
       case R.id.btnForward:
         step(+5);
         break;
+      case R.id.btnPrevious:
+        mMusicPlayerService.previous();
+        break;
+      case R.id.btnNext:
+        mMusicPlayerService.next();
+        break;
+    }
+  }
+
+  @Override
+  public boolean onCreateOptionsMenu(Menu menu) {
+    getMenuInflater().inflate(R.menu.option_menu_activity_music_player, menu);
+    return super.onCreateOptionsMenu(menu);
+  }
+
+  @Override
+  public boolean onPrepareOptionsMenu(Menu menu) {
+    if (mMusicPlayerService != null) {
+      menu.findItem(R.id.mnuShuffle).setChecked(
+          mMusicPlayerService.isShuffle());
+      menu.findItem(R.id.mnuRepeatAll).setChecked(
+          mMusicPlayerService.getPlayMode() == MusicPlayerService.PLAY_MODE_REPEAT_ALL);
+    }
+    return super.onPrepareOptionsMenu(menu);
+  }
+
+  @Override
+  public boolean onOptionsItemSelected(MenuItem item) {
+    if (mMusicPlayerService == null) return false;
+
+    switch (item.getItemId()) {
+      case R.id.mnuShuffle:
+        mMusicPlayerService.setShuffle(!item.isChecked());
+        return true;
+      case R.id.mnuRepeatAll:
+        boolean repeatAll = !item.isChecked();
+        mLooping = false;
+        updateLoopingButtonBackground();
+        mMusicPlayerService.setPlayMode(repeatAll
+            ? MusicPlayerService.PLAY_MODE_REPEAT_ALL
+            : MusicPlayerService.PLAY_MODE_SEQUENCE);
+        return true;
+      case R.id.mnuSavePlaylist:
+        savePlaylist();
+        return true;
     }
+    return super.onOptionsItemSelected(item);
   }
 
+  /**
+   * Save queue as M3U playlist in public playlists directory, named by time
+   * saved.
+   */
+  private void savePlaylist() {
+    String name =
+        "queue-"
+            + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                .format(new Date()) + ".m3u";
+    File file =
+        new File(Environment
+            .getExternalStoragePublicDirectory(Environment.DIRECTORY_PLAYLISTS),
+            name);
+    mMusicPlayerService.saveQueueAs(file);
+    Toast.makeText(this, getString(R.string.toast_save_playlist, file),
+        Toast.LENGTH_SHORT).show();
+  }
+
+  /**
+   * Seek by percent of duration.
+   * 
+   * @param delta percent
+   */
   private void step(int delta) {
-    int duration = mMusicPlayerService.getDuration();
+    int duration = mClock.getDuration();
     int position =
-        (mMusicPositionSeekBar.getProgress() + delta) * duration
-            / mMusicPositionSeekBar.getMax();
+        mClock.getPosition(SystemClock.uptimeMillis()) + delta * duration / 100;
     if (position < 0) position = 0;
     if (position > duration) position = duration;
 
     mMusicPlayerService.seekTo(position);
-    Log.d(LOG_TAG, "update seekbar from button");
-    doUpdateMusicPositionSeekBar();
   }
 
   /**
@@ -158,7 +293,7 @@ public class MusicPlayerActivity extends Activity implements
     mLooping = !mLooping;
     mMusicPlayerService.setPlayMode(mLooping
         ? MusicPlayerService.PLAY_MODE_LOOPING
-        : MusicPlayerService.PLAY_MODE_SINGLE);
+        : MusicPlayerService.PLAY_MODE_SEQUENCE);
     updateLoopingButtonBackground();
   }
 
@@ -174,17 +309,25 @@ public class MusicPlayerActivity extends Activity implements
    * @see MusicPlayerService#resume()
    */
   private void playOrPause() {
-    switch (mMusicPlayerService.getCurrentStatus()) {
-      case MusicPlayerService.STATUS_PAUSED:
-      case MusicPlayerService.STATUS_INIT:
-        mMusicPlayerService.resume();
-        break;
-      case MusicPlayerService.STATUS_PLAYING:
-        mMusicPlayerService.pause();
-        break;
+    if (isPlayingOrWillPlay(mMusicPlayerService.getCurrentStatus())) {
+      mMusicPlayerService.pause();
+    } else {
+      mMusicPlayerService.resume();
     }
   }
 
+  /**
+   * Test if player is playing or preparing to play.
+   * 
+   * @param playerStatus player status
+   * @return true if playing or will play
+   */
+  private boolean isPlayingOrWillPlay(int playerStatus) {
+    return playerStatus == MusicPlayerService.STATUS_PLAYING
+        || (playerStatus == MusicPlayerService.STATUS_PREPARING && mMusicPlayerService
+            .isPlayWhenReady());
+  }
+
   @Override
   public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
   }
@@ -192,35 +335,45 @@ public class MusicPlayerActivity extends Activity implements
   @Override
   public void onStartTrackingTouch(SeekBar seekBar) {
     // stop updating when tracking
-    mHandler.removeCallbacks(mUpdateProgressTask);
+    mTracking = true;
+    mHandler.removeCallbacks(mFrameTask);
   }
 
   @Override
   public void onStopTrackingTouch(SeekBar seekBar) {
+    mTracking = false;
     int position =
-        seekBar.getProgress() * mMusicPlayerService.getDuration()
-            / seekBar.getMax();
+        (int) ((long) seekBar.getProgress() * mClock.getDuration() / seekBar
+            .getMax());
     mMusicPlayerService.seekTo(position);
-
-    Log.d(LOG_TAG, "update seekbar from tracking");
-    updateMusicPositionSeekBar();
   }
 
   /**
    * On music player music connected.
    */
   private void onServiceConnected() {
+    // latest track, status and clock are dispatched on registration
+    mMusicPlayerService.getEventBus().addListener(mPlayerListener,
+        new HandlerExecutor(Looper.getMainLooper()));
+
     Bundle bundle = getIntent().getExtras();
     int source = bundle.getInt(EXTRA_SOURCE);
     Music currentMusic = mMusicPlayerService.getCurrentMusic();
 
     if (source == SOURCE_MUSIC_LIST) {
-      Music musicToPlay = (Music) bundle.getSerializable(EXTRA_MUSIC);
-      if (currentMusic == null || !currentMusic.equals(musicToPlay)) {
-        playMusic(musicToPlay);
-      } else {
-        updateView(musicToPlay);
+      int id = bundle.getInt(EXTRA_MUSIC_ID, Music.NO_ID);
+      if (currentMusic != null && currentMusic.getId() == id) {
+        updateView(currentMusic);
+        return;
       }
+
+      Music musicToPlay = MusicCatalog.getInstance().getMusic(id);
+      if (musicToPlay == null) {
+        Log.w(LOG_TAG, "music " + id + " not in catalog");
+        finish();
+        return;
+      }
+      playMusic(musicToPlay);
     } else {
       updateView(currentMusic);
     }
@@ -228,13 +381,8 @@ public class MusicPlayerActivity extends Activity implements
 
   private void playMusic(Music musicToPlay) {
     updateStaticView(musicToPlay);
-    if (!mMusicPlayerService.play(musicToPlay)) {
-      // failed to play
-      Toast.makeText(this,
-          "failed to play music [" + musicToPlay.getTitle() + "]",
-          Toast.LENGTH_SHORT).show();
-      finish();
-    }
+    // failure is notified by STATUS_ERROR
+    mMusicPlayerService.play(musicToPlay.getId());
   }
 
   /**
@@ -245,8 +393,6 @@ public class MusicPlayerActivity extends Activity implements
   private void updateView(Music music) {
     updateStaticView(music);
 
-    onPlayerStatusUpdated(mMusicPlayerService.getCurrentStatus());
-
     // update looping button
     mLooping =
         mMusicPlayerService.getPlayMode() == MusicPlayerService.PLAY_MODE_LOOPING;
@@ -260,38 +406,38 @@ public class MusicPlayerActivity extends Activity implements
    */
   private void updateStaticView(Music music) {
     mMusicTitleTextView.setText(music.getTitle());
-  }
-
-  /**
-   * Update music position seek bar.
-   */
-  private void updateMusicPositionSeekBar() {
-    switch (mMusicPlayerService.getCurrentStatus()) {
-      case MusicPlayerService.STATUS_INIT:
-        Log.i(LOG_TAG, "player status INIT, set progress to 0");
-        mMusicPositionSeekBar.setProgress(0);
-        break;
-      case MusicPlayerService.STATUS_PAUSED:
-        Log.i(LOG_TAG, "player pasued, just update progress");
-        doUpdateMusicPositionSeekBar();
-        break;
-      case MusicPlayerService.STATUS_PLAYING:
-        Log.d(LOG_TAG, "updating progress");
-        doUpdateMusicPositionSeekBar();
-        mHandler.postDelayed(mUpdateProgressTask, INTERVAL_UPDATE_PROGRESS);
-        break;
+    ArtworkLoader.getInstance(this).load(music,
+        getResources().getDimensionPixelSize(R.dimen.artwork_large),
+        mArtworkImageView, R.drawable.ic_launcher);
+    if (mWaveformMusicId != music.getId()) {
+      // hidden until waveform of new music loaded
+      mWaveformMusicId = music.getId();
+      mWaveformView.setVisibility(View.GONE);
     }
+    WaveformLoader.getInstance(this).load(music, mWaveformTarget);
   }
 
   /**
-   * Update music position seek bar.
+   * Render position extrapolated from clock, repeat every frame while clock
+   * is running.
    */
-  private void doUpdateMusicPositionSeekBar() {
-    int progress =
-        mMusicPlayerService.getCurrentPosition()
-            * mMusicPositionSeekBar.getMax()
-            / mMusicPlayerService.getDuration();
-    mMusicPositionSeekBar.setProgress(progress);
+  private void renderClock() {
+    if (mTracking) return;
+
+    int duration = mClock.getDuration();
+    if (duration <= 0) {
+      // not prepared yet
+      mMusicPositionSeekBar.setProgress(0);
+      mWaveformView.setProgress(0);
+      return;
+    }
+    long position = mClock.getPosition(SystemClock.uptimeMillis());
+    mMusicPositionSeekBar.setProgress((int) (position
+        * mMusicPositionSeekBar.getMax() / duration));
+    mWaveformView.setProgress((float) position / duration);
+    if (mClock.isRunning() && position < duration) {
+      mHandler.postDelayed(mFrameTask, INTERVAL_FRAME);
+    }
   }
 
   /**
@@ -300,19 +446,10 @@ public class MusicPlayerActivity extends Activity implements
    * @param playerStatus current player status
    */
   private void onPlayerStatusUpdated(int playerStatus) {
-    switch (playerStatus) {
-      case MusicPlayerService.STATUS_PLAYING:
-        mPlayOrPauseButton.setBackgroundResource(R.drawable.bg_btn_pause);
-        break;
-      case MusicPlayerService.STATUS_INIT:
-      case MusicPlayerService.STATUS_PAUSED:
-        mPlayOrPauseButton.setBackgroundResource(R.drawable.bg_btn_play);
-        break;
-    }
+    if (mMusicPlayerService == null) return; // not connected yet
 
-    Log.d(LOG_TAG, "update seekbar from callback");
-    mHandler.removeCallbacks(mUpdateProgressTask);
-    updateMusicPositionSeekBar();
+    mPlayOrPauseButton.setBackgroundResource(isPlayingOrWillPlay(playerStatus)
+        ? R.drawable.bg_btn_pause : R.drawable.bg_btn_play);
   }
 
 }
@@ -1,17 +1,53 @@
 package in.xnnyygn.android.musicplayer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.annotation.TargetApi;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
-import android.media.MediaPlayer;
+import android.graphics.Bitmap;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-public class MusicPlayerService extends Service implements
-    MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener,
-    MediaPlayer.OnCompletionListener {
+/**
+ * Music player service.
+ * <p>
+ * Media players are created and driven on a playback thread only, public
+ * methods post commands to it and never block. Pending seeks collapse to
+ * latest target, seek requested while another is in progress is issued
+ * once that completes, and play requests pending are dropped by a later
+ * one, so a burst of input costs one or two operations on player. Status,
+ * clock, current music and play mode are published by playback thread and
+ * readable from any thread, notification is updated on main thread.
+ *
+ * @author xnnyygn
+ */
+public class MusicPlayerService extends Service implements Handler.Callback,
+    AudioPlayer.OnPreparedListener, AudioPlayer.OnErrorListener,
+    AudioPlayer.OnCompletionListener, AudioPlayer.OnSeekCompleteListener {
 
   /**
    * Local binder.
@@ -34,34 +70,397 @@ public class MusicPlayerService extends Service implements
   public static final String ACTION_STATUS_UPDATE =
       "in.xnnyygn.android.musicplayer.action.STATUS_UPDATE";
   public static final String EXTRA_STATUS = "playerStatus";
-  public static final int STATUS_INIT = 0;
-  public static final int STATUS_PLAYING = 1;
-  public static final int STATUS_PAUSED = 2;
+
+  /**
+   * Extra of start intent, true to receive status as broadcast of
+   * {@link #ACTION_STATUS_UPDATE}, for consumers outside process.
+   */
+  public static final String EXTRA_BROADCAST_STATUS = "broadcastStatus";
+  public static final int STATUS_INIT = PlayerStatus.INIT;
+  public static final int STATUS_PLAYING = PlayerStatus.PLAYING;
+  public static final int STATUS_PAUSED = PlayerStatus.PAUSED;
+  public static final int STATUS_PREPARING = PlayerStatus.PREPARING;
+  public static final int STATUS_PREPARED = PlayerStatus.PREPARED;
+  public static final int STATUS_COMPLETED = PlayerStatus.COMPLETED;
+  public static final int STATUS_ERROR = PlayerStatus.ERROR;
   public static final int PLAY_MODE_SINGLE = 0;
   public static final int PLAY_MODE_LOOPING = 1;
+  public static final int PLAY_MODE_SEQUENCE = 2;
+  public static final int PLAY_MODE_REPEAT_ALL = 3;
 
   private static final String LOG_TAG = "service";
   private static final int NOTIFICATION_ID = 955;
+  private static final String FILE_QUEUE = "queue.dat";
+  private static final String FILE_JOURNAL = "state.journal";
+  private static final String DIR_STREAM_CACHE = "stream";
+  private static final long STREAM_CACHE_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * Interval of position checkpoints while playing.
+   */
+  private static final long INTERVAL_CHECKPOINT = 5000;
+
+  /**
+   * Time budget to prepare music restored from journal, player is reset if
+   * prepared later.
+   */
+  private static final long RESTORE_TIMEOUT = 3000;
+
+  /**
+   * Max error in milliseconds of seek by player in VBR file, player is
+   * prepared from frame if error estimated is larger.
+   */
+  private static final int SEEK_TOLERANCE = 500;
+  private static final String LOG_TAG_METRICS = "metrics";
+  private static final long INTERVAL_LOG_METRICS = 10 * 60 * 1000;
+
+  /**
+   * Current player and player prepared for next music.
+   */
+  private static final int MAX_PREPARED_PLAYERS = 2;
+
+  // commands handled on playback thread
+  private static final int CMD_INIT = 1;
+  private static final int CMD_PLAY = 2;
+  private static final int CMD_PLAY_CURRENT = 3;
+  private static final int CMD_NEXT = 4;
+  private static final int CMD_PREVIOUS = 5;
+  private static final int CMD_PAUSE = 6;
+  private static final int CMD_RESUME = 7;
+  private static final int CMD_SEEK = 8;
+  private static final int CMD_SET_PLAY_MODE = 9;
+  private static final int CMD_SET_SHUFFLE = 10;
+  private static final int CMD_RELEASE = 11;
+  private static final int CMD_RESTORE = 12;
+  private static final int CMD_RESTORE_TIMEOUT = 13;
+  private static final int CMD_APPLY_DSP = 14;
+
+  /**
+   * Play command, time of request is taken when called for time to first
+   * audio.
+   *
+   * @author xnnyygn
+   */
+  private static class PlayRequest {
+
+    /**
+     * Ids of new queue, null to play music of id only.
+     */
+    final int[] ids;
+    final int size;
+    final int position;
+    final int id;
+
+    /**
+     * Playlist of ids, null if queue is not a playlist.
+     */
+    final Playlist playlist;
+
+    /**
+     * True if queue is whole library, ids are read from index on playback
+     * thread.
+     */
+    final boolean library;
+    final LibraryIndex index;
+    final long requestedAt = SystemClock.elapsedRealtime();
+
+    PlayRequest(int[] ids, int size, int position, int id, Playlist playlist) {
+      this.ids = ids;
+      this.size = size;
+      this.position = position;
+      this.id = id;
+      this.playlist = playlist;
+      this.library = false;
+      this.index = null;
+    }
 
-  private MediaPlayer mMediaPlayer;
+    PlayRequest(LibraryIndex index, int size, int position, int id) {
+      this.ids = null;
+      this.size = size;
+      this.position = position;
+      this.id = id;
+      this.playlist = null;
+      this.library = true;
+      this.index = index;
+    }
+
+    /**
+     * Get ids of new queue.
+     * 
+     * @return ids, null to play music of id only
+     */
+    int[] getIds() {
+      if (!library) return ids;
+      // ids of provisional musics are positions
+      return index != null ? index.getIds() : PlayQueue.range(size);
+    }
+
+  }
+
+  private Handler mPlaybackHandler;
+
+  /**
+   * Id of music requested to play last, not played yet maybe.
+   */
+  private volatile int mRequestedId = Music.NO_ID;
+
+  private MediaPlayerPool mPlayerPool;
+
+  /**
+   * Players of this service are {@link PcmPlayer}, decided once created.
+   */
+  private boolean mPcmEngine;
+
+  /**
+   * Gains of preamp and equalizer bands in dB, applied to pcm players.
+   */
+  private volatile float mPreampDb;
+  private final float[] mEqualizerGains =
+      new float[EqualizerStage.DEFAULT_BANDS.length];
+  private AudioPlayer mPlayer;
   private IBinder mBinder = new LocalBinder();
-  private int mStartId;
 
-  private Music mCurrentMusic;
-  private int mCurrentStatus = STATUS_INIT;
-  private int mPlayMode = PLAY_MODE_SINGLE;
+  private volatile Music mCurrentMusic;
+  private volatile int mCurrentStatus = STATUS_INIT;
+  private final PlayerEventBus mEventBus = new PlayerEventBus();
+
+  /**
+   * Broadcast status, off unless requested by start intent.
+   */
+  private boolean mBroadcastStatus;
+
+  /**
+   * Clock anchored at last state change or seek.
+   */
+  private volatile PlaybackClock mClock = PlaybackClock.STOPPED;
+  private volatile int mPlayMode = PLAY_MODE_SEQUENCE;
+  private volatile boolean mShuffle;
+
+  /**
+   * Version of queue file, queue file of other version is dropped.
+   */
+  private static final int QUEUE_FILE_VERSION = 4;
+
+  /**
+   * Last version of queue file without urls of streams, still read, streams
+   * queued are dropped.
+   */
+  private static final int QUEUE_FILE_VERSION_NO_STREAMS = 3;
+
+  /**
+   * Last version of queue file without playlist, still read.
+   */
+  private static final int QUEUE_FILE_VERSION_NO_PLAYLIST = 2;
+
+  /**
+   * Queue of music ids in catalog.
+   */
+  private PlayQueue mQueue = new PlayQueue();
+  private ExecutorService mQueueWriter;
+
+  /**
+   * Playlist queued, ids of its entries are resolved in batches when
+   * reached, see {@link #resolveId(int)}. Null if queue is not a playlist,
+   * not opened yet if only file is known after restart.
+   */
+  private Playlist mPlaylist;
+  private File mPlaylistFile;
+
+  /**
+   * Filter of queue entries in catalog, entries of playlist not in library
+   * are passed over. Called on playback thread.
+   */
+  private final PlayQueue.Filter mPlayableFilter = new PlayQueue.Filter() {
+
+    @Override
+    public boolean accept(int position) {
+      return MusicCatalog.getInstance().getMusic(resolveId(position)) != null;
+    }
+  };
+
+  /**
+   * Journal of current music, position, cursor and play mode, written far
+   * more often than queue file.
+   */
+  private StateJournal mJournal;
+
+  /**
+   * Proxy serving musics of http urls to players through cache, accessed on
+   * playback thread.
+   */
+  private StreamProxy mStreamProxy;
+
+  /**
+   * Preparing music restored from journal, not requested by user.
+   */
+  private boolean mRestoring;
+
+  /**
+   * Music restored from journal not prepared within time budget, player is
+   * reset once prepared.
+   */
+  private boolean mRestoreExpired;
+
+  /**
+   * Player prepared ahead for next music in queue, null if none.
+   */
+  private AudioPlayer mNextPlayer;
+  private Music mNextMusic;
+  private boolean mNextPrepared;
+
+  /**
+   * Music requested while preparing, prepared after current preparation
+   * completes.
+   */
+  private Music mPendingMusic;
+
+  /**
+   * Start playing once prepared.
+   */
+  private volatile boolean mPlayWhenReady;
+
+  /**
+   * Seek requested while preparing, -1 if none.
+   */
+  private int mPendingSeek = -1;
+
+  /**
+   * Position of seek in progress, -1 if none. Player reports old position
+   * until seek completes.
+   */
+  private int mSeekingTo = -1;
+
+  /**
+   * Seek requested while another seek in progress, issued once that
+   * completes, -1 if none.
+   */
+  private int mQueuedSeek = -1;
+
+  /**
+   * Position of first frame of data source, player is prepared from a frame
+   * in middle of file to seek in VBR file without TOC. 0 if prepared from
+   * file head.
+   */
+  private int mPositionBase;
+
+  /**
+   * Preparing from a frame in middle of file for seek.
+   */
+  private boolean mReopening;
+  private final Mp3FrameScanner mFrameScanner = new Mp3FrameScanner(
+      16 * 1024);
+
+  private final PlaybackMetrics mMetrics = PlaybackMetrics.getInstance();
+
+  /**
+   * Time in elapsed realtime when play requested, 0 if audio started or
+   * paused since.
+   */
+  private long mPlayRequestedAt;
+
+  /**
+   * Music prepared on current player.
+   */
+  private Music mPreparingMusic;
+  private long mPrepareStartedAt;
+  private long mNextPrepareStartedAt;
+  private long mSeekStartedAt;
+
+  /**
+   * Notification of current music is shown and service is in foreground.
+   * Accessed on main thread.
+   */
+  private boolean mForeground;
+
+  /**
+   * Artwork of current music shown in notification, null if none or loading.
+   */
+  private Bitmap mArtwork;
+  private ArtworkLoader.Target mArtworkTarget = new ArtworkLoader.Target() {
+
+    @Override
+    public void onArtworkLoaded(Bitmap bitmap) {
+      mArtwork = bitmap;
+      if (bitmap != null && mForeground) sendForegroundNotification();
+    }
+  };
+
+  /**
+   * Handler of main thread.
+   */
+  private Handler mHandler = new Handler();
+  private Runnable mForegroundTask = new Runnable() {
+
+    @Override
+    public void run() {
+      sendForegroundNotification();
+    }
+  };
+  private Runnable mUpdateNotificationTask = new Runnable() {
+
+    @Override
+    public void run() {
+      // music changed while paused, foreground kept till stopped
+      if (mForeground) sendForegroundNotification();
+    }
+  };
+  private Runnable mStopForegroundTask = new Runnable() {
+
+    @Override
+    public void run() {
+      stopForeground(true);
+      mForeground = false;
+    }
+  };
+  private Runnable mCheckpointTask = new Runnable() {
+
+    @Override
+    public void run() {
+      // posted to playback thread
+      checkpoint();
+      mPlaybackHandler.postDelayed(this, INTERVAL_CHECKPOINT);
+    }
+  };
+  private Runnable mLogMetricsTask = new Runnable() {
+
+    @Override
+    public void run() {
+      Log.i(LOG_TAG_METRICS, mMetrics.toCompactString());
+      mHandler.postDelayed(this, INTERVAL_LOG_METRICS);
+    }
+  };
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    Log.v(LOG_TAG, "onCreate called");
+
+    mQueueWriter = Executors.newSingleThreadExecutor();
+    mJournal = new StateJournal(new File(getFilesDir(), FILE_JOURNAL));
+    mJournal.open();
+    MusicCatalog.getInstance().load(
+        new File(getFilesDir(), LibraryIndex.FILE_NAME));
+    // queue restored before any command, current music known when bound
+    restoreQueue();
+    HandlerThread thread =
+        new HandlerThread("playback", Process.THREAD_PRIORITY_AUDIO);
+    thread.start();
+    mPlaybackHandler = new Handler(thread.getLooper(), this);
+    mPcmEngine =
+        getResources().getBoolean(R.bool.config_pcm_engine)
+            && PcmPlayer.isSupported();
+    Log.i(LOG_TAG, "use " + (mPcmEngine ? "pcm" : "media player") + " engine");
+    mPlaybackHandler.sendEmptyMessage(CMD_INIT);
+    sendRestore();
+    mHandler.postDelayed(mLogMetricsTask, INTERVAL_LOG_METRICS);
+  }
 
   @Override
   public int onStartCommand(Intent intent, int flags, int startId) {
     Log.d(LOG_TAG, "onStartCommand called");
-    mStartId = startId;
-
-    if (mMediaPlayer == null) {
-      Log.i(LOG_TAG, "create media player");
-      mMediaPlayer = new MediaPlayer();
-      mMediaPlayer.setOnPreparedListener(this);
-      mMediaPlayer.setOnErrorListener(this);
-      mMediaPlayer.setOnCompletionListener(this);
+    if (intent != null && intent.hasExtra(EXTRA_BROADCAST_STATUS)) {
+      mBroadcastStatus = intent.getBooleanExtra(EXTRA_BROADCAST_STATUS, false);
+      Log.i(LOG_TAG, "set broadcast status to " + mBroadcastStatus);
     }
     return super.onStartCommand(intent, flags, startId); // return STICKY
   }
@@ -88,71 +487,293 @@ public class MusicPlayerService extends Service implements
   public void onDestroy() {
     Log.v(LOG_TAG, "onDestroy called");
 
+    // after commands pending, playback thread quits then
+    mPlaybackHandler.sendEmptyMessage(CMD_RELEASE);
+    mHandler.removeCallbacks(mLogMetricsTask);
+    mHandler.removeCallbacks(mForegroundTask);
+    mHandler.removeCallbacks(mUpdateNotificationTask);
+    Log.i(LOG_TAG_METRICS, mMetrics.toCompactString());
+
+    Log.d(LOG_TAG, "stop foreground and remove notification");
+    stopForeground(true); // also remove notification
+    mForeground = false;
+    super.onDestroy();
+  }
+
+  @Override
+  public boolean handleMessage(Message msg) {
+    switch (msg.what) {
+      case CMD_INIT:
+        mPlayerPool =
+            new MediaPlayerPool(MAX_PREPARED_PLAYERS, mPcmEngine, this, this,
+                this, this);
+        // player posts its events to looper of thread creating it
+        mPlayer = mPlayerPool.acquire();
+        startStreamProxy();
+        break;
+      case CMD_PLAY:
+        handlePlay((PlayRequest) msg.obj);
+        break;
+      case CMD_PLAY_CURRENT:
+        playQueueMusic(SystemClock.elapsedRealtime());
+        break;
+      case CMD_NEXT:
+        handleNext();
+        break;
+      case CMD_PREVIOUS:
+        handlePrevious();
+        break;
+      case CMD_PAUSE:
+        handlePause();
+        break;
+      case CMD_RESUME:
+        handleResume();
+        break;
+      case CMD_SEEK:
+        handleSeek(msg.arg1);
+        break;
+      case CMD_SET_PLAY_MODE:
+        handleSetPlayMode(msg.arg1);
+        break;
+      case CMD_SET_SHUFFLE:
+        handleSetShuffle(msg.arg1 != 0);
+        break;
+      case CMD_RELEASE:
+        release();
+        break;
+      case CMD_RESTORE:
+        handleRestore(msg.arg1);
+        break;
+      case CMD_RESTORE_TIMEOUT:
+        handleRestoreTimeout();
+        break;
+      case CMD_APPLY_DSP:
+        applyDsp(mPlayer);
+        applyDsp(mNextPlayer);
+        break;
+      default:
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Stop and release media players, quit playback thread.
+   */
+  private void release() {
     Log.i(LOG_TAG, "stop and release media player");
-    if (mMediaPlayer.isPlaying()) {
-      mMediaPlayer.stop();
+    cancelNext();
+    if (isPrepared()) checkpoint();
+    if (mPlayer.isPlaying()) {
+      mPlayer.stop();
     }
-    // set to INIT status to prevent future call
     updateStatus(STATUS_INIT);
 
-    mMediaPlayer.release();
+    mPlayerPool.recycle(mPlayer);
+    mPlayerPool.releaseAll();
+    mQueueWriter.shutdown(); // pending write will complete
+    mJournal.close();
+    mStreamProxy.close();
+    Looper.myLooper().quit();
+  }
 
-    Log.d(LOG_TAG, "stop foreground and remove notification");
-    stopForeground(true); // also remove notification
-    super.onDestroy();
+  private void startStreamProxy() {
+    mStreamProxy =
+        new StreamProxy(new ChunkCache(new File(getCacheDir(),
+            DIR_STREAM_CACHE), STREAM_CACHE_SIZE));
+    try {
+      mStreamProxy.start();
+    } catch (IOException e) {
+      // players stream urls by themselves
+      Log.w(LOG_TAG, "failed to start stream proxy, nested exception is " + e);
+    }
   }
 
   /**
-   * Pause player.
+   * Get data source of music for player, local url of proxy if music is
+   * remote.
+   * 
+   * @param music music
+   * @return path or url
+   */
+  private String dataSourceOf(Music music) {
+    String path = music.getPath();
+    return StreamProxy.isStream(path) ? mStreamProxy.urlOf(path) : path;
+  }
+
+  /**
+   * Send command replacing pending commands of same kind.
+   */
+  private void sendLatest(int what, int arg1, Object obj) {
+    mPlaybackHandler.removeMessages(what);
+    mPlaybackHandler.sendMessage(mPlaybackHandler.obtainMessage(what, arg1,
+        0, obj));
+  }
+
+  /**
+   * Pause player. If preparing, music will not start once prepared. Pause
+   * or resume pending is replaced.
    * 
    * @see #STATUS_PLAYING
-   * @see MediaPlayer#pause()
-   * @see #updateAndBroadcastStatus(int)
    */
   public void pause() {
-    if (mCurrentStatus != STATUS_PLAYING) {
-      Log.i(LOG_TAG, "not playing, cannot pause");
-      return;
-    }
-
-    Log.i(LOG_TAG, "player pause");
-    mMediaPlayer.pause();
-    updateAndBroadcastStatus(STATUS_PAUSED);
+    mPlaybackHandler.removeMessages(CMD_RESUME);
+    sendLatest(CMD_PAUSE, 0, null);
   }
 
   /**
-   * Resume player.
+   * Resume player. If preparing, music will start once prepared. If idle or
+   * error, current music will be prepared again. Pause or resume pending is
+   * replaced.
    * 
-   * @see #STATUS_INIT
+   * @see #STATUS_PREPARED
    * @see #STATUS_PAUSED
-   * @see MediaPlayer#start()
-   * @see #updateAndBroadcastStatus(int)
+   * @see #STATUS_COMPLETED
    */
   public void resume() {
-    Log.i(LOG_TAG, "player resume");
-    mMediaPlayer.start();
+    mPlaybackHandler.removeMessages(CMD_PAUSE);
+    sendLatest(CMD_RESUME, 0, null);
+  }
+
+  /**
+   * Pause player.
+   * 
+   * @see AudioPlayer#pause()
+   * @see #updateAndPublishStatus(int)
+   */
+  private void handlePause() {
+    switch (mCurrentStatus) {
+      case STATUS_PREPARING:
+        Log.i(LOG_TAG, "preparing, do not start once prepared");
+        mPlayWhenReady = false;
+        mPlayRequestedAt = 0;
+        updateAndPublishStatus(STATUS_PREPARING);
+        break;
+      case STATUS_PLAYING:
+        Log.i(LOG_TAG, "player pause");
+        mPlayer.pause();
+        updateAndPublishStatus(STATUS_PAUSED);
+        break;
+      default:
+        Log.i(LOG_TAG, "not playing, cannot pause");
+    }
+  }
+
+  /**
+   * Resume player.
+   * 
+   * @see AudioPlayer#start()
+   * @see #updateAndPublishStatus(int)
+   */
+  private void handleResume() {
+    if (mCurrentStatus == STATUS_COMPLETED && mPositionBase > 0) {
+      // data source starts in middle of file, prepare from head again
+      playMusic(mCurrentMusic, SystemClock.elapsedRealtime());
+      return;
+    }
+    switch (mCurrentStatus) {
+      case STATUS_PREPARING:
+        Log.i(LOG_TAG, "preparing, start once prepared");
+        endRestore();
+        mPlayWhenReady = true;
+        updateAndPublishStatus(STATUS_PREPARING);
+        break;
+      case STATUS_PREPARED:
+      case STATUS_PAUSED:
+      case STATUS_COMPLETED:
+        Log.i(LOG_TAG, "player resume");
+        mPlayer.start();
+        if (mPlayRequestedAt > 0) {
+          mMetrics.recordTimeToFirstAudio(SystemClock.elapsedRealtime()
+              - mPlayRequestedAt, mCurrentMusic);
+          mPlayRequestedAt = 0;
+        }
+        updateAndPublishStatus(STATUS_PLAYING);
+        mHandler.post(mForegroundTask);
+        break;
+      case STATUS_INIT:
+      case STATUS_ERROR:
+        if (mCurrentMusic != null) {
+          playMusic(mCurrentMusic, SystemClock.elapsedRealtime());
+        }
+        break;
+    }
+  }
+
+  /**
+   * Test if player will start once prepared.
+   * 
+   * @return true if will start
+   */
+  public boolean isPlayWhenReady() {
+    return mPlayWhenReady;
+  }
 
-    updateAndBroadcastStatus(STATUS_PLAYING);
+  /**
+   * Get event bus of player events.
+   * 
+   * @return event bus
+   */
+  public PlayerEventBus getEventBus() {
+    return mEventBus;
   }
 
   /**
-   * Update player status and broadcast it.
+   * Update player status and publish it, broadcast it only if requested.
    * 
    * @param status new status
    * @see #ACTION_STATUS_UPDATE
    * @see #EXTRA_STATUS
    */
-  private void updateAndBroadcastStatus(int status) {
+  private void updateAndPublishStatus(int status) {
     updateStatus(status);
 
-    Log.d(LOG_TAG, "broadcast status " + status);
-    Intent intent = new Intent(ACTION_STATUS_UPDATE);
-    intent.putExtra(EXTRA_STATUS, status);
-    sendBroadcast(intent);
+    mEventBus.publishStatus(status);
+    if (status == STATUS_ERROR) mEventBus.publishError(mCurrentMusic);
+    if (mBroadcastStatus) {
+      Log.d(LOG_TAG, "broadcast status " + status);
+      Intent intent = new Intent(ACTION_STATUS_UPDATE);
+      intent.putExtra(EXTRA_STATUS, status);
+      sendBroadcast(intent);
+    }
+  }
+
+  private void setCurrentMusic(final Music music) {
+    if (music != mCurrentMusic) {
+      mHandler.post(new Runnable() {
+
+        @Override
+        public void run() {
+          loadArtwork(music);
+        }
+      });
+    }
+    mCurrentMusic = music;
+    mJournal.record(StateJournal.KIND_TRACK, music != null ? music.getId()
+        : Music.NO_ID);
+    mEventBus.publishTrack(music);
+  }
+
+  /**
+   * Load artwork for notification on main thread, large icon not supported
+   * before API 11.
+   */
+  private void loadArtwork(Music music) {
+    mArtwork = null;
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) return;
+
+    ArtworkLoader loader = ArtworkLoader.getInstance(this);
+    if (music == null) {
+      loader.cancel(mArtworkTarget);
+      return;
+    }
+    loader.load(music,
+        getResources().getDimensionPixelSize(R.dimen.artwork_notification),
+        mArtworkTarget);
   }
 
   /**
-   * Update status.
+   * Update status and anchor clock at current position.
    * 
    * @param status
    */
@@ -160,56 +781,321 @@ public class MusicPlayerService extends Service implements
     Log.i(LOG_TAG, "update status to " + status);
 
     mCurrentStatus = status;
+    anchorClock(getCurrentPosition());
+    // waveform generation yields storage to preparing and playing player
+    WaveformLoader.getInstance(this).setPlaybackState(
+        status == STATUS_PREPARING, status == STATUS_PLAYING);
+    // background jobs share storage with music played from file, jobs do
+    // not tell volume they read, so any file counts as same storage
+    JobScheduler.getInstance().setThrottled(
+        status == STATUS_PLAYING && mCurrentMusic != null
+            && !StreamProxy.isStream(mCurrentMusic.getPath()));
+    mPlaybackHandler.removeCallbacks(mCheckpointTask);
+    if (status == STATUS_PLAYING) {
+      mPlaybackHandler.postDelayed(mCheckpointTask, INTERVAL_CHECKPOINT);
+    }
   }
 
   /**
-   * Get current status.
+   * Anchor clock at specified position now, called on discontinuity only,
+   * that is, state change or seek.
    * 
-   * @return current status
+   * @param position position
    */
-  public int getCurrentStatus() {
-    return mCurrentStatus;
+  private void anchorClock(int position) {
+    mClock =
+        new PlaybackClock(mCurrentStatus, getDuration(), position,
+            SystemClock.uptimeMillis(), mCurrentStatus == STATUS_PLAYING ? 1f
+                : 0f);
+    mEventBus.publishClock(mClock);
+    // position of music stopped is kept for restore
+    if (mCurrentStatus != STATUS_INIT) checkpoint();
   }
 
   /**
-   * Get music duration.
-   * 
-   * @return duration
-   * @see MediaPlayer#getDuration()
+   * Record current position in journal.
    */
-  public int getDuration() {
-    return mMediaPlayer.getDuration();
+  private void checkpoint() {
+    mJournal.record(StateJournal.KIND_POSITION, getCurrentPosition());
   }
 
   /**
-   * Get current position.
+   * Get playback clock, position between state changes should be
+   * extrapolated from it.
    * 
-   * @return current position
-   * @see MediaPlayer#getCurrentPosition()
+   * @return clock
    */
-  public int getCurrentPosition() {
-    return mMediaPlayer.getCurrentPosition();
+  public PlaybackClock getPlaybackClock() {
+    return mClock;
   }
 
   /**
-   * Seek to specified position.
+   * Get current status.
    * 
-   * @param position position
-   * @see MediaPlayer#seekTo(int)
+   * @return current status
    */
-  public void seekTo(int position) {
-    Log.i(LOG_TAG, "player seek to " + position);
-    mMediaPlayer.seekTo(position);
+  public int getCurrentStatus() {
+    return mCurrentStatus;
   }
 
   /**
-   * Set play mode.
+   * Test if media player is prepared.
    * 
-   * @param playMode play mode
+   * @return true if prepared
+   * @see PlayerStatus#isPrepared(int)
    */
-  public void setPlayMode(int playMode) {
-    Log.i(LOG_TAG, "set play mode to " + playMode);
-    mPlayMode = playMode;
+  private boolean isPrepared() {
+    return PlayerStatus.isPrepared(mCurrentStatus);
+  }
+
+  /**
+   * Get music duration.
+   * 
+   * @return duration, 0 if not prepared
+   * @see AudioPlayer#getDuration()
+   */
+  private int getDuration() {
+    if (mPositionBase > 0) {
+      // player knows duration after first frame of data source only
+      return mCurrentMusic.getSeekTable().getDuration();
+    }
+    return isPrepared() ? mPlayer.getDuration() : 0;
+  }
+
+  /**
+   * Get current position, other threads get position from clock.
+   * 
+   * @return current position, pending seek position if preparing
+   * @see AudioPlayer#getCurrentPosition()
+   */
+  private int getCurrentPosition() {
+    if (isPrepared()) {
+      if (mQueuedSeek >= 0) return mQueuedSeek;
+      return mSeekingTo >= 0 ? mSeekingTo : mPositionBase
+          + mPlayer.getCurrentPosition();
+    }
+    if (mCurrentStatus != STATUS_PREPARING) return 0;
+    return mPendingSeek > 0 ? mPendingSeek : mPositionBase;
+  }
+
+  /**
+   * Seek to specified position. If preparing, seek once prepared. Seek
+   * pending is replaced.
+   * 
+   * @param position position
+   */
+  public void seekTo(int position) {
+    sendLatest(CMD_SEEK, position, null);
+  }
+
+  /**
+   * Seek to specified position, or queue it if another seek in progress.
+   * 
+   * @param position position
+   * @see AudioPlayer#seekTo(int)
+   */
+  private void handleSeek(int position) {
+    if (mCurrentStatus == STATUS_PREPARING) {
+      Log.i(LOG_TAG, "preparing, seek to " + position + " once prepared");
+      mPendingSeek = position;
+      anchorClock(position);
+    } else if (isPrepared()) {
+      if (mSeekingTo >= 0) {
+        Log.d(LOG_TAG, "seeking, seek to " + position + " once completed");
+        mQueuedSeek = position;
+        anchorClock(position);
+        return;
+      }
+      mSeekStartedAt = SystemClock.elapsedRealtime();
+      if (needsReopen(position)) {
+        mPlayWhenReady = mCurrentStatus == STATUS_PLAYING;
+        if (reopenAt(position)) return;
+      }
+      position = seekPlayer(position);
+      mSeekingTo = position;
+      anchorClock(position);
+    }
+  }
+
+  /**
+   * Seek player in data source, position before start of data source is
+   * clamped to it, e.g. if prepared from frame and preparing again failed.
+   * 
+   * @param position position
+   * @return position seeking to
+   */
+  private int seekPlayer(int position) {
+    if (position < mPositionBase) {
+      Log.w(LOG_TAG, "seek to " + position + " before data source, seek to "
+          + mPositionBase);
+      position = mPositionBase;
+    }
+    Log.i(LOG_TAG, "player seek to " + position);
+    mPlayer.seekTo(position - mPositionBase);
+    return position;
+  }
+
+  /**
+   * Test if player should be prepared from frame to seek accurately, that
+   * is, current music is VBR without TOC, where player estimates offset by
+   * bitrate of first frame, and position estimated is off by more than
+   * {@link #SEEK_TOLERANCE}, or position is before start of data source.
+   * 
+   * @param position position
+   */
+  private boolean needsReopen(int position) {
+    SeekTable table = mCurrentMusic.getSeekTable();
+    if (table == null || !table.isAccurate() || !table.isVbr()
+        || StreamProxy.isStream(mCurrentMusic.getPath())) {
+      return false;
+    }
+    if (position < mPositionBase) return true;
+    int reached =
+        table.estimateConstantBitrateSeek(table.getFrameAt(mPositionBase),
+            position);
+    return Math.abs(reached - position) > SEEK_TOLERANCE;
+  }
+
+  private static void closeQuietly(FileInputStream in) {
+    if (in == null) return;
+    try {
+      in.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * Prepare player from frame at specified position, located by seek table.
+   * 
+   * @param position position
+   * @return true if preparation started
+   */
+  private boolean reopenAt(int position) {
+    SeekTable table = mCurrentMusic.getSeekTable();
+    int frame = table.getFrameAt(position);
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(mCurrentMusic.getPath());
+      long offset = mFrameScanner.locate(in.getChannel(), table, frame);
+      long length = in.getChannel().size() - offset;
+      // next player must not be switched to while this one prepares
+      cancelNext();
+      mPlayer.reset();
+      try {
+        // file descriptor is duplicated by player
+        mPlayer.setDataSource(in.getFD(), offset, length);
+        mPlayer.prepareAsync();
+      } catch (Exception e) {
+        Log.w(LOG_TAG, "failed to prepare from frame " + frame + " of "
+            + mCurrentMusic.getPath() + ", nested exception is " + e);
+        return prepare(mCurrentMusic); // player reset already
+      }
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "failed to locate frame " + frame + " of "
+          + mCurrentMusic.getPath() + ", nested exception is " + e);
+      return false;
+    } finally {
+      closeQuietly(in);
+    }
+
+    Log.i(LOG_TAG, "prepare from frame " + frame + " to seek to " + position);
+    mSeekingTo = -1;
+    mQueuedSeek = -1;
+    mPositionBase = table.getTimeOfFrame(frame);
+    mReopening = true;
+    mPreparingMusic = mCurrentMusic;
+    mPrepareStartedAt = SystemClock.elapsedRealtime();
+    updateAndPublishStatus(STATUS_PREPARING);
+    return true;
+  }
+
+  /**
+   * Set play mode.
+   * 
+   * @param playMode play mode
+   */
+  public void setPlayMode(int playMode) {
+    mPlayMode = playMode; // read back at once
+    sendLatest(CMD_SET_PLAY_MODE, playMode, null);
+  }
+
+  private void handleSetPlayMode(int playMode) {
+    Log.i(LOG_TAG, "set play mode to " + playMode);
+    mPlayMode = playMode;
+    saveQueue();
+    if (isPrepared()) prepareNext();
+  }
+
+  /**
+   * Turn shuffle on or off.
+   * 
+   * @param shuffle shuffle
+   */
+  public void setShuffle(boolean shuffle) {
+    mShuffle = shuffle; // read back at once
+    sendLatest(CMD_SET_SHUFFLE, shuffle ? 1 : 0, null);
+  }
+
+  private void handleSetShuffle(boolean shuffle) {
+    Log.i(LOG_TAG, "set shuffle to " + shuffle);
+    mQueue.setShuffle(shuffle);
+    saveQueue();
+    if (isPrepared()) prepareNext();
+  }
+
+  public boolean isShuffle() {
+    return mShuffle;
+  }
+
+  /**
+   * Test if players decode to PCM, so that preamp and equalizer apply.
+   * 
+   * @return true if pcm engine
+   */
+  public boolean isPcmEngine() {
+    return mPcmEngine;
+  }
+
+  /**
+   * Set gain of preamp, no effect unless pcm engine.
+   * 
+   * @param db gain in dB
+   */
+  public void setPreampDb(float db) {
+    mPreampDb = db;
+    sendLatest(CMD_APPLY_DSP, 0, null);
+  }
+
+  /**
+   * Set gain of equalizer band, no effect unless pcm engine.
+   * 
+   * @param band band of {@link EqualizerStage#DEFAULT_BANDS}
+   * @param db gain in dB
+   */
+  public void setEqualizerGainDb(int band, float db) {
+    synchronized (mEqualizerGains) {
+      mEqualizerGains[band] = db;
+    }
+    sendLatest(CMD_APPLY_DSP, 0, null);
+  }
+
+  /**
+   * Apply gains of preamp and equalizer to player.
+   * 
+   * @param player player, null or media player ignored
+   */
+  private void applyDsp(AudioPlayer player) {
+    if (!(player instanceof PcmPlayer)) return;
+
+    PcmPlayer pcmPlayer = (PcmPlayer) player;
+    pcmPlayer.getPreamp().setGainDb(mPreampDb);
+    EqualizerStage equalizer = pcmPlayer.getEqualizer();
+    synchronized (mEqualizerGains) {
+      for (int band = 0; band < mEqualizerGains.length; band++) {
+        equalizer.setGainDb(band, mEqualizerGains[band]);
+      }
+    }
   }
 
   /**
@@ -222,43 +1108,468 @@ public class MusicPlayerService extends Service implements
   }
 
   /**
-   * Play music.
+   * Queue musics and play music at specified position. Failure is notified
+   * by {@link #STATUS_ERROR}.
    * 
-   * @param music music to play, should not be null
-   * @return true if success, otherwise false
+   * @param ids ids of musics in catalog, owned by queue after call
+   * @param size count of ids used
+   * @param position position of music to play
+   * @see #PLAY_MODE_SEQUENCE
    */
-  public boolean play(Music music) {
-    mCurrentMusic = music;
-    mMediaPlayer.reset();
-    Log.i(LOG_TAG, "schedule to play music " + music.getPath());
+  public void play(int[] ids, int size, int position) {
+    mRequestedId = ids[position];
+    sendPlay(new PlayRequest(ids, size, position, ids[position], null));
+  }
+
+  /**
+   * Queue all musics of library in order and play music at specified
+   * position. Ids are read from index on playback thread, so that tap on
+   * list of any size costs nothing on caller thread.
+   * 
+   * @param index index of catalog, null if musics are provisional
+   * @param size count of musics in library
+   * @param position position of music to play
+   * @param id id of music to play
+   * @see MusicCatalog#getIndex()
+   */
+  public void playLibrary(LibraryIndex index, int size, int position, int id) {
+    mRequestedId = id;
+    sendPlay(new PlayRequest(index, size, position, id));
+  }
+
+  /**
+   * Queue entries of playlist and play entry at specified position. Entries
+   * are resolved to musics of library when playback reaches them, entries
+   * not in library fail with {@link #STATUS_ERROR}.
+   * 
+   * @param playlist playlist opened
+   * @param position position of entry to play
+   */
+  public void play(Playlist playlist, int position) {
+    mRequestedId = Music.NO_ID;
+    sendPlay(new PlayRequest(playlist.createIds(), playlist.size(), position,
+        Playlist.UNRESOLVED, playlist));
+  }
+
+  /**
+   * Play music, prepare asynchronously and start once prepared. Music not
+   * in queue is queued alone. Music requested last is not requested again.
+   * <p>
+   * If another music is preparing, the music is prepared after that, a
+   * later call supersedes music queued before.
+   * 
+   * @param id id of music in catalog
+   */
+  public void play(int id) {
+    if (id == mRequestedId) return; // e.g. queued by list already
+    mRequestedId = id;
+    sendPlay(new PlayRequest(null, 1, 0, id, null));
+  }
+
+  /**
+   * Play remote stream alone, added to catalog as a stream. Stream is served
+   * to player through proxy, see {@link StreamProxy}.
+   * 
+   * @param url http or https url
+   * @see MusicCatalog#addStream(String)
+   */
+  public void playStream(String url) {
+    play(MusicCatalog.getInstance().addStream(url));
+  }
+
+  /**
+   * Send play command, commands pending which it supersedes are dropped.
+   */
+  private void sendPlay(PlayRequest request) {
+    mPlaybackHandler.removeMessages(CMD_NEXT);
+    mPlaybackHandler.removeMessages(CMD_PREVIOUS);
+    mPlaybackHandler.removeMessages(CMD_PLAY_CURRENT);
+    mPlaybackHandler.removeMessages(CMD_SEEK);
+    mPlaybackHandler.removeMessages(CMD_PAUSE);
+    mPlaybackHandler.removeMessages(CMD_RESUME);
+    sendLatest(CMD_PLAY, 0, request);
+  }
+
+  private void handlePlay(PlayRequest request) {
+    int[] ids = request.getIds();
+    if (ids != null) {
+      mQueue.setTracks(ids, request.size, request.position);
+      setPlaylist(request.playlist);
+      saveQueue();
+      prioritizeQueue();
+    } else if (mQueue.getCurrentId() != request.id) {
+      Log.d(LOG_TAG, "music not in queue, queue music only");
+      mQueue.setTracks(new int[] {request.id}, 1, 0);
+      setPlaylist(null);
+      saveQueue();
+    }
+    playQueueMusic(request.requestedAt);
+  }
+
+  /**
+   * Raise priority of analysis of musics in queue, so that their durations
+   * are known before library.
+   */
+  private void prioritizeQueue() {
+    List<String> keys = new ArrayList<String>(mQueue.size());
+    for (int i = 0; i < mQueue.size(); i++) {
+      int id = mQueue.getId(i);
+      if (id < 0) continue; // entry of playlist not resolved
+      keys.add(LibraryAnalyzer.jobKey(id));
+    }
+    JobScheduler.getInstance().prioritizeAll(keys,
+        JobScheduler.PRIORITY_QUEUE);
+  }
+
+  private void setPlaylist(Playlist playlist) {
+    mPlaylist = playlist;
+    mPlaylistFile = playlist != null ? playlist.getFile() : null;
+  }
+
+  /**
+   * Get id at position of queue, resolve batch of playlist containing it if
+   * not resolved yet.
+   * 
+   * @param position position in queue
+   * @return id, {@link Music#NO_ID} if not in library
+   */
+  private int resolveId(int position) {
+    int id = mQueue.getId(position);
+    if (id != Playlist.UNRESOLVED) return id;
+    if (mPlaylistFile == null) return Music.NO_ID;
+
+    int from = Playlist.batchOf(position);
     try {
-      mMediaPlayer.setDataSource(music.getPath());
-      mMediaPlayer.prepare();
+      if (mPlaylist == null) mPlaylist = Playlist.open(mPlaylistFile);
+      int[] ids =
+          mPlaylist.resolve(from, Playlist.BATCH_SIZE, MusicCatalog
+              .getInstance());
+      for (int i = 0; i < ids.length; i++) {
+        if (mQueue.getId(from + i) == Playlist.UNRESOLVED) {
+          mQueue.setId(from + i, ids[i]);
+        }
+      }
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "failed to resolve playlist " + mPlaylistFile
+          + ", nested exception is " + e);
+      mQueue.setId(position, Music.NO_ID);
+      return Music.NO_ID;
+    }
+    List<String> missing = mPlaylist.getMissing();
+    if (!missing.isEmpty()) {
+      Log.i(LOG_TAG, missing.size() + " playlist entries not in library, "
+          + missing.subList(Math.max(0, missing.size() - 10), missing.size()));
+    }
+    saveQueue();
+    return mQueue.getId(position);
+  }
+
+  /**
+   * Play next music in queue, if any. Each call moves one music, music
+   * moved to last is prepared only.
+   */
+  public void next() {
+    mPlaybackHandler.sendEmptyMessage(CMD_NEXT);
+  }
+
+  /**
+   * Play previous music in queue, if any.
+   * 
+   * @see #next()
+   */
+  public void previous() {
+    mPlaybackHandler.sendEmptyMessage(CMD_PREVIOUS);
+  }
+
+  private void handleNext() {
+    if (mNextPlayer != null && mNextPrepared && isPrepared()
+        && !mPlaybackHandler.hasMessages(CMD_PLAY_CURRENT)) {
+      // switch to player prepared ahead, current one may not be started
+      boolean playing = mCurrentStatus == STATUS_PLAYING;
+      if (playing) mPlayer.pause();
+      advanceToNext(false, playing);
+      return;
+    }
+    if (!mQueue.moveToNext(mPlayMode == PLAY_MODE_REPEAT_ALL)) return;
+    saveQueue();
+    playQueueMusicLater();
+  }
+
+  private void handlePrevious() {
+    if (!mQueue.moveToPrevious(mPlayMode == PLAY_MODE_REPEAT_ALL)) return;
+    saveQueue();
+    playQueueMusicLater();
+  }
+
+  /**
+   * Play current music of queue after commands pending, so that a burst of
+   * moves in queue prepares only the music moved to last.
+   */
+  private void playQueueMusicLater() {
+    mPlaybackHandler.removeMessages(CMD_PLAY_CURRENT);
+    mPlaybackHandler.sendEmptyMessage(CMD_PLAY_CURRENT);
+  }
+
+  private boolean playQueueMusic(long requestedAt) {
+    int cursor = mQueue.getCursor();
+    boolean found =
+        mQueue.moveToAccepted(mPlayMode == PLAY_MODE_REPEAT_ALL,
+            mPlayableFilter);
+    if (mQueue.getCursor() != cursor) {
+      Log.i(LOG_TAG, "skip entries not in library from " + cursor + " to "
+          + mQueue.getCursor());
+      saveQueue();
+    }
+    if (!found) {
+      Log.w(LOG_TAG, "no music of queue from " + cursor + " in catalog");
+      updateAndPublishStatus(STATUS_ERROR);
+      return false;
+    }
+    return playMusic(MusicCatalog.getInstance().getMusic(
+        mQueue.getCurrentId()), requestedAt);
+  }
+
+  /**
+   * Play music, prepare asynchronously and start once prepared. If another
+   * music is preparing, the music is prepared after that.
+   * 
+   * @param music music
+   * @param requestedAt time of request in elapsed realtime
+   * @return true if success, otherwise false
+   */
+  private boolean playMusic(Music music, long requestedAt) {
+    cancelNext();
+    endRestore();
+
+    setCurrentMusic(music);
+    mPlayWhenReady = true;
+    mPendingSeek = -1;
+    mPlayRequestedAt = requestedAt;
+
+    if (mCurrentStatus == STATUS_PREPARING) {
+      // media player cannot be reset safely while preparing
+      Log.i(LOG_TAG, "preparing, schedule music " + music.getPath());
+      mPendingMusic = music;
       return true;
+    }
+    return prepare(music);
+  }
+
+  /**
+   * Prepare music asynchronously.
+   * 
+   * @param music music
+   * @return true if preparation started
+   * @see AudioPlayer#prepareAsync()
+   */
+  private boolean prepare(Music music) {
+    mPlayer.reset();
+    mSeekingTo = -1;
+    mQueuedSeek = -1;
+    mPositionBase = 0;
+    mReopening = false;
+    Log.i(LOG_TAG, "prepare music " + music.getPath());
+    applyDsp(mPlayer);
+    try {
+      mPlayer.setDataSource(dataSourceOf(music));
+      mPlayer.prepareAsync();
     } catch (Exception e) {
       Log.w(LOG_TAG, "failed to play music " + music.getPath()
           + ", nested exception is " + e, e);
-      
-      // just stop service to prevent future call
-      stopSelf(mStartId);
+      mPlayer.reset();
+      mMetrics.recordError(music);
+      updateAndPublishStatus(STATUS_ERROR);
+      return false;
+    }
+    mPreparingMusic = music;
+    mPrepareStartedAt = SystemClock.elapsedRealtime();
+    updateAndPublishStatus(STATUS_PREPARING);
+    return true;
+  }
+
+  /**
+   * Get next music in queue.
+   * 
+   * @return next music, null if none or not playing in sequence
+   */
+  private Music getNextMusic() {
+    if (mPlayMode != PLAY_MODE_SEQUENCE && mPlayMode != PLAY_MODE_REPEAT_ALL) {
+      return null;
+    }
+    int position =
+        mQueue.peekNext(mPlayMode == PLAY_MODE_REPEAT_ALL, mPlayableFilter);
+    return position < 0 ? null : MusicCatalog.getInstance().getMusic(
+        mQueue.getId(position));
+  }
+
+  /**
+   * Prepare next music on another player, so that it starts without gap
+   * once current music completes.
+   */
+  private void prepareNext() {
+    Music next = getNextMusic();
+    if (next != null && mNextPlayer != null && next.equals(mNextMusic)) {
+      return; // already prepared or preparing
+    }
+    cancelNext();
+    if (next == null) return;
+
+    AudioPlayer player = mPlayerPool.acquire();
+    if (player == null) return;
+    Log.i(LOG_TAG, "prepare next music " + next.getPath());
+    applyDsp(player);
+    try {
+      player.setDataSource(dataSourceOf(next));
+      player.prepareAsync();
+    } catch (Exception e) {
+      Log.w(LOG_TAG, "failed to prepare next music " + next.getPath()
+          + ", nested exception is " + e);
+      mPlayerPool.recycle(player);
+      mMetrics.recordError(next);
+      return;
+    }
+    mNextPrepareStartedAt = SystemClock.elapsedRealtime();
+    mNextPlayer = player;
+    mNextMusic = next;
+    mNextPrepared = false;
+  }
+
+  /**
+   * Cancel next music prepared and return its player to pool.
+   */
+  private void cancelNext() {
+    if (mNextPlayer == null) return;
+
+    Log.d(LOG_TAG, "cancel next music " + mNextMusic);
+    if (mNextPrepared && isPrepared()) linkNextPlayer(null);
+    mPlayerPool.recycle(mNextPlayer);
+    mNextPlayer = null;
+    mNextMusic = null;
+    mNextPrepared = false;
+  }
+
+  private void onNextPrepared() {
+    Log.i(LOG_TAG, "next music " + mNextMusic + " prepared");
+    mMetrics.recordPrepareLatency(SystemClock.elapsedRealtime()
+        - mNextPrepareStartedAt, mNextMusic);
+    mNextPrepared = true;
+    if (isPrepared()) linkNextPlayer(mNextPlayer);
+  }
+
+  /**
+   * Let player start next player by itself once completed, from API 16.
+   * 
+   * @param next next player, null to unlink
+   */
+  private void linkNextPlayer(AudioPlayer next) {
+    mPlayer.setNextPlayer(next);
+  }
+
+  /**
+   * Switch to next player.
+   * 
+   * @param completed true if current music completed
+   * @param play true to play next music, otherwise it stays prepared
+   */
+  private void advanceToNext(boolean completed, boolean play) {
+    AudioPlayer previous = mPlayer;
+    if (play && (!completed
+        || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)) {
+      // started by media player if linked and completed
+      mNextPlayer.start();
     }
-    return false;
+    mPlayer = mNextPlayer;
+    mPreparingMusic = mNextMusic;
+    mSeekingTo = -1;
+    mQueuedSeek = -1;
+    mPositionBase = 0;
+    setCurrentMusic(mNextMusic);
+    // same entries passed over as when next music was found
+    mQueue.moveToNext(mPlayMode == PLAY_MODE_REPEAT_ALL);
+    mQueue.moveToAccepted(mPlayMode == PLAY_MODE_REPEAT_ALL, mPlayableFilter);
+    saveQueue();
+    mNextPlayer = null;
+    mNextMusic = null;
+    mNextPrepared = false;
+    mPlayerPool.recycle(previous);
+
+    if (play) {
+      Log.i(LOG_TAG, "play next music " + mCurrentMusic + " without gap");
+      updateAndPublishStatus(STATUS_PLAYING);
+      mHandler.post(mForegroundTask);
+    } else {
+      Log.i(LOG_TAG, "next music " + mCurrentMusic + " prepared already");
+      updateAndPublishStatus(STATUS_PREPARED);
+      mHandler.post(mUpdateNotificationTask);
+    }
+    prepareNext();
   }
 
   @Override
-  public void onPrepared(MediaPlayer mp) {
+  public void onPrepared(AudioPlayer mp) {
     Log.v(LOG_TAG, "onPrepared called");
-    Log.i(LOG_TAG, "play music " + mCurrentMusic + " now");
-    updateStatus(STATUS_INIT);
-    resume();
-    sendForegroundNotification();
+    if (mp == mNextPlayer) {
+      onNextPrepared();
+      return;
+    }
+    if (mp != mPlayer) return; // recycled already
+
+    if (mReopening) {
+      mReopening = false;
+      mMetrics.recordSeekLatency(SystemClock.elapsedRealtime()
+          - mSeekStartedAt, mPreparingMusic);
+    } else {
+      mMetrics.recordPrepareLatency(SystemClock.elapsedRealtime()
+          - mPrepareStartedAt, mPreparingMusic);
+    }
+    if (mPendingMusic != null) {
+      // superseded while preparing
+      Music music = mPendingMusic;
+      mPendingMusic = null;
+      prepare(music);
+      return;
+    }
+    if (mRestoreExpired) {
+      mRestoreExpired = false;
+      Log.i(LOG_TAG, "restore expired, reset player");
+      mPlayer.reset();
+      mPendingSeek = -1;
+      updateAndPublishStatus(STATUS_INIT);
+      return;
+    }
+    if (mRestoring) {
+      Log.i(LOG_TAG, "restore music " + mCurrentMusic + " prepared in "
+          + (SystemClock.elapsedRealtime() - mPrepareStartedAt) + "ms");
+      endRestore();
+    }
+
+    int pendingSeek = mPendingSeek;
+    mPendingSeek = -1;
+    if (pendingSeek > 0) {
+      mSeekStartedAt = SystemClock.elapsedRealtime();
+      if (needsReopen(pendingSeek) && reopenAt(pendingSeek)) return;
+      mSeekingTo = seekPlayer(pendingSeek);
+    }
+    updateStatus(STATUS_PREPARED);
+    // link cleared by reset if prepared again from frame
+    if (mNextPrepared) linkNextPlayer(mNextPlayer);
+
+    if (mPlayWhenReady) {
+      Log.i(LOG_TAG, "play music " + mCurrentMusic + " now");
+      handleResume(); // enters foreground
+    } else {
+      // e.g. queue restored, not foreground until played
+      updateAndPublishStatus(STATUS_PREPARED);
+      mHandler.post(mUpdateNotificationTask);
+    }
+    prepareNext();
   }
 
-  @SuppressWarnings("deprecation")
+  /**
+   * Show notification of current music and enter foreground, called on main
+   * thread.
+   */
   private void sendForegroundNotification() {
-    Notification notification =
-        new Notification(R.drawable.ic_launcher, mCurrentMusic.getTitle(),
-            System.currentTimeMillis());
     Intent intent = new Intent(this, MusicPlayerActivity.class);
     intent.putExtra(MusicPlayerActivity.EXTRA_SOURCE,
         MusicPlayerActivity.SOURCE_NOTIFICATION);
@@ -267,9 +1578,39 @@ public class MusicPlayerService extends Service implements
     PendingIntent pendingIntent =
         PendingIntent.getActivity(this, 0, intent,
             PendingIntent.FLAG_UPDATE_CURRENT);
-    notification.setLatestEventInfo(this, "MusicPlayer", "playing "
-        + mCurrentMusic.getTitle(), pendingIntent);
+    String text = "playing " + mCurrentMusic.getTitle();
+    Notification notification =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+            ? buildNotification(text, pendingIntent)
+            : buildLegacyNotification(text, pendingIntent);
     startForeground(NOTIFICATION_ID, notification);
+    mForeground = true;
+  }
+
+  @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+  @SuppressWarnings("deprecation")
+  private Notification buildNotification(String text,
+      PendingIntent pendingIntent) {
+    return new Notification.Builder(this)
+        .setSmallIcon(R.drawable.ic_launcher)
+        .setLargeIcon(mArtwork)
+        .setTicker(mCurrentMusic.getTitle())
+        .setWhen(System.currentTimeMillis())
+        .setContentTitle("MusicPlayer")
+        .setContentText(text)
+        .setContentIntent(pendingIntent)
+        .setOngoing(true)
+        .getNotification();
+  }
+
+  @SuppressWarnings("deprecation")
+  private Notification buildLegacyNotification(String text,
+      PendingIntent pendingIntent) {
+    Notification notification =
+        new Notification(R.drawable.ic_launcher, mCurrentMusic.getTitle(),
+            System.currentTimeMillis());
+    notification.setLatestEventInfo(this, "MusicPlayer", text, pendingIntent);
+    return notification;
   }
 
   /**
@@ -282,24 +1623,348 @@ public class MusicPlayerService extends Service implements
   }
 
   @Override
-  public boolean onError(MediaPlayer mp, int what, int extra) {
-    Log.w(LOG_TAG, String.format("error occured, type %d, code %d, stop self",
-        what, extra));
-    stopSelf(mStartId);
-    return true;
+  public boolean onError(AudioPlayer mp, int what, int extra) {
+    Log.w(LOG_TAG, String.format("error occured, type %d, code %d", what,
+        extra));
+    if (mp == mNextPlayer) {
+      // fallback to prepare next music once current completes
+      mMetrics.recordError(mNextMusic);
+      cancelNext();
+      return true;
+    }
+    if (mp != mPlayer) return true;
+
+    mMetrics.recordError(mPreparingMusic);
+
+    endRestore();
+    cancelNext();
+    mPlayer.reset();
+    mSeekingTo = -1;
+    mQueuedSeek = -1;
+    mPositionBase = 0;
+    mReopening = false;
+    if (mPendingMusic != null) {
+      // failed music superseded already
+      Music music = mPendingMusic;
+      mPendingMusic = null;
+      prepare(music);
+      return true;
+    }
+
+    mPendingSeek = -1;
+    updateAndPublishStatus(STATUS_ERROR);
+    mHandler.removeCallbacks(mForegroundTask);
+    mHandler.removeCallbacks(mUpdateNotificationTask);
+    mHandler.post(mStopForegroundTask);
+    return true; // handled, do not call onCompletion
   }
 
   @Override
-  public void onCompletion(MediaPlayer mp) {
+  public void onSeekComplete(AudioPlayer mp) {
+    Log.v(LOG_TAG, "onSeekComplete called");
+    if (mp != mPlayer || mSeekingTo < 0) return;
+
+    mSeekingTo = -1;
+    mMetrics.recordSeekLatency(SystemClock.elapsedRealtime() - mSeekStartedAt,
+        mCurrentMusic);
+    if (mQueuedSeek >= 0) {
+      int position = mQueuedSeek;
+      mQueuedSeek = -1;
+      handleSeek(position);
+      return;
+    }
+    if (isPrepared()) anchorClock(getCurrentPosition());
+  }
+
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    writer.println("status: " + mCurrentStatus + ", music: " + mCurrentMusic);
+    mMetrics.dump(writer);
+  }
+
+  @Override
+  public void onCompletion(AudioPlayer mp) {
     Log.v(LOG_TAG, "onCompletion called");
+    if (mp != mPlayer) return;
+
+    if (mNextPlayer != null && mNextPrepared) {
+      advanceToNext(true, true);
+      return;
+    }
 
-    updateAndBroadcastStatus(STATUS_INIT);
+    updateAndPublishStatus(STATUS_COMPLETED);
     Log.d(LOG_TAG, "current play mode " + mPlayMode);
     switch (mPlayMode) {
       case PLAY_MODE_LOOPING:
-        resume();
+        handleResume();
+        break;
+      case PLAY_MODE_SEQUENCE:
+      case PLAY_MODE_REPEAT_ALL:
+        // next music not prepared in time
+        handleNext();
         break;
     }
   }
 
+  /**
+   * Save queue and play mode in background, so that they survive service
+   * restart.
+   */
+  private void saveQueue() {
+    mJournal.record(StateJournal.KIND_CURSOR, mQueue.getCursor());
+    mJournal.record(StateJournal.KIND_PLAY_MODE, mPlayMode);
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(QUEUE_FILE_VERSION);
+      out.writeInt(mPlayMode);
+      out.writeUTF(mPlaylistFile != null ? mPlaylistFile.getPath() : "");
+      mQueue.writeTo(out);
+      MusicCatalog.getInstance().writeStreams(mQueue, out);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // never happen
+    }
+
+    final File file = new File(getFilesDir(), FILE_QUEUE);
+    mQueueWriter.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+          FileOutputStream out = new FileOutputStream(tmpFile);
+          try {
+            bytes.writeTo(out);
+          } finally {
+            out.close();
+          }
+          if (!tmpFile.renameTo(file)) throw new IOException("failed to rename");
+        } catch (IOException e) {
+          Log.w(LOG_TAG, "failed to save queue, nested exception is " + e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Save queue as playlist file in background, format by file name, M3U if
+   * none. Entries of playlist queued are resolved as written, entries not in
+   * library are left out.
+   * 
+   * @param file playlist file
+   */
+  public void saveQueueAs(final File file) {
+    mPlaybackHandler.post(new Runnable() {
+
+      @Override
+      public void run() {
+        final int[] ids = new int[mQueue.size()];
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = mQueue.getId(i);
+        }
+        final File playlistFile = mPlaylistFile;
+        mQueueWriter.execute(new Runnable() {
+
+          @Override
+          public void run() {
+            writePlaylist(file, ids, playlistFile);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Write musics of ids as playlist, one entry at a time, called on writer
+   * thread.
+   */
+  private void writePlaylist(File file, int[] ids, File playlistFile) {
+    int format = Playlist.formatOf(file.getName());
+    if (format < 0) format = Playlist.FORMAT_M3U;
+    file.getParentFile().mkdirs();
+    File tmpFile = new File(file.getPath() + ".tmp");
+    MusicCatalog catalog = MusicCatalog.getInstance();
+    Playlist playlist = null;
+    int written = 0;
+    try {
+      PlaylistWriter writer =
+          new PlaylistWriter(new FileOutputStream(tmpFile), format);
+      try {
+        for (int i = 0; i < ids.length; i++) {
+          if (ids[i] == Playlist.UNRESOLVED && playlistFile != null) {
+            if (playlist == null) playlist = Playlist.open(playlistFile);
+            int from = Playlist.batchOf(i);
+            int[] resolved =
+                playlist.resolve(from, Playlist.BATCH_SIZE, catalog);
+            for (int j = 0; j < resolved.length; j++) {
+              if (ids[from + j] == Playlist.UNRESOLVED) {
+                ids[from + j] = resolved[j];
+              }
+            }
+          }
+          Music music = catalog.getMusic(ids[i]);
+          if (music == null) continue;
+          int duration = music.getDuration();
+          writer.write(music.getPath(), music.getTitle(),
+              duration > 0 ? duration / 1000 : -1);
+          written++;
+        }
+      } finally {
+        writer.close();
+      }
+      if (!tmpFile.renameTo(file)) throw new IOException("failed to rename");
+      Log.i(LOG_TAG, "save " + written + " of " + ids.length
+          + " music(s) to playlist " + file);
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "failed to save playlist " + file
+          + ", nested exception is " + e);
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Restore queue and play mode saved, ids stay valid across library changes,
+   * streams are added again by url.
+   */
+  private void restoreQueue() {
+    File file = new File(getFilesDir(), FILE_QUEUE);
+    if (!file.exists()) return;
+
+    try {
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(
+              file)));
+      try {
+        int version = in.readInt();
+        if (version != QUEUE_FILE_VERSION
+            && version != QUEUE_FILE_VERSION_NO_STREAMS
+            && version != QUEUE_FILE_VERSION_NO_PLAYLIST) {
+          Log.i(LOG_TAG, "queue file of old version, drop queue");
+          return;
+        }
+        mPlayMode = in.readInt();
+        if (version != QUEUE_FILE_VERSION_NO_PLAYLIST) {
+          String path = in.readUTF();
+          // opened when an entry not resolved is reached
+          mPlaylistFile = path.length() > 0 ? new File(path) : null;
+        }
+        mQueue.readFrom(in, file.length());
+        if (version == QUEUE_FILE_VERSION) {
+          MusicCatalog.getInstance().readStreams(mQueue, in);
+        } else {
+          dropStreamIds();
+        }
+        mShuffle = mQueue.isShuffle();
+      } finally {
+        in.close();
+      }
+      if (mQueue.isEmpty()) return;
+      applyJournal();
+
+      setCurrentMusic(MusicCatalog.getInstance().getMusic(
+          mQueue.getCurrentId()));
+      Log.i(LOG_TAG, "restore queue of " + mQueue.size() + " music(s)");
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "failed to restore queue, nested exception is " + e);
+      dropQueue();
+    } catch (RuntimeException e) {
+      // corrupted beyond checks of format, e.g. bad play mode
+      Log.w(LOG_TAG, "failed to restore queue, nested exception is " + e);
+      dropQueue();
+    }
+  }
+
+  /**
+   * Replace ids of streams of old queue file with {@link Music#NO_ID}, ids
+   * of streams added in this process may be the same.
+   */
+  private void dropStreamIds() {
+    for (int i = 0; i < mQueue.size(); i++) {
+      if (mQueue.getId(i) <= MusicCatalog.FIRST_STREAM_ID) {
+        mQueue.setId(i, Music.NO_ID);
+      }
+    }
+  }
+
+  private void dropQueue() {
+    mQueue.clear();
+    mPlaylistFile = null;
+    mPlayMode = PLAY_MODE_SEQUENCE;
+    mShuffle = false;
+  }
+
+  /**
+   * Apply cursor and play mode of journal, newer than queue file if process
+   * died before queue file written. Cursor is applied only if it points to
+   * music of journal, shuffle restarts from there then.
+   */
+  private void applyJournal() {
+    mPlayMode = (int) mJournal.get(StateJournal.KIND_PLAY_MODE, mPlayMode);
+    int trackId = (int) mJournal.get(StateJournal.KIND_TRACK, Music.NO_ID);
+    int cursor = (int) mJournal.get(StateJournal.KIND_CURSOR, -1);
+    if (trackId == mQueue.getCurrentId() || cursor < 0
+        || cursor >= mQueue.size() || mQueue.getId(cursor) != trackId) {
+      return;
+    }
+    Log.i(LOG_TAG, "move queue to cursor " + cursor + " of journal");
+    mQueue.moveTo(cursor);
+  }
+
+  /**
+   * Send command to prepare current music at position of journal, if
+   * journal and queue agree on current music.
+   */
+  private void sendRestore() {
+    if (mCurrentMusic == null
+        || mJournal.get(StateJournal.KIND_TRACK, Music.NO_ID) != mCurrentMusic
+            .getId()) {
+      return;
+    }
+    int position = (int) mJournal.get(StateJournal.KIND_POSITION, 0);
+    mPlaybackHandler.sendMessage(mPlaybackHandler.obtainMessage(CMD_RESTORE,
+        position, 0, null));
+  }
+
+  /**
+   * Prepare current music at position without starting it, give up if not
+   * prepared within {@link #RESTORE_TIMEOUT}.
+   * 
+   * @param position position
+   */
+  private void handleRestore(int position) {
+    if (mCurrentMusic == null || mCurrentStatus != STATUS_INIT) {
+      return; // played by user already
+    }
+    Log.i(LOG_TAG, "restore music " + mCurrentMusic + " at " + position);
+    mPlayWhenReady = false;
+    // clock and checkpoint of preparing report position of pending seek
+    mPendingSeek = position;
+    if (!prepare(mCurrentMusic)) {
+      mPendingSeek = -1;
+      return;
+    }
+    mRestoring = true;
+    mPlaybackHandler.sendEmptyMessageDelayed(CMD_RESTORE_TIMEOUT,
+        RESTORE_TIMEOUT);
+  }
+
+  private void handleRestoreTimeout() {
+    if (!mRestoring) return;
+    Log.w(LOG_TAG, "failed to restore music " + mCurrentMusic + " in "
+        + RESTORE_TIMEOUT + "ms");
+    // media player cannot be reset safely while preparing
+    mRestoring = false;
+    mRestoreExpired = true;
+  }
+
+  /**
+   * End restore of music, superseded by user or completed.
+   */
+  private void endRestore() {
+    mRestoring = false;
+    mRestoreExpired = false;
+    mPlaybackHandler.removeMessages(CMD_RESTORE_TIMEOUT);
+  }
+
 }
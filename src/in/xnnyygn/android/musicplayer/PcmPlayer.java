@@ -0,0 +1,795 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Player decoding music to PCM by itself and writing it to
+ * {@link AudioTrack}, so that samples pass through {@link DspChain} of
+ * preamp, equalizer and limiter on the way.
+ * <p>
+ * Decoder thread feeds {@link MediaExtractor} into {@link MediaCodec}, runs
+ * chain on each decoded buffer and writes it into {@link PcmRingBuffer}.
+ * Output thread reads ring and writes to audio track no more than track has
+ * room for, so that neither thread blocks in a write and both see pause,
+ * seek and reset promptly. Nothing is allocated per buffer on either thread.
+ * <p>
+ * Threads, track and ring of one data source make up a session. Reset
+ * signals session to close and returns, a release thread joins its threads
+ * and releases track and decoder. Decoder of next session waits for that
+ * before it starts, so that sessions share chain and buffers one at a time.
+ * Callbacks are posted to looper of thread creating player. Requires API
+ * 16, mono or stereo only.
+ *
+ * @author xnnyygn
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class PcmPlayer implements AudioPlayer {
+
+  private static final String LOG_TAG = "pcmplayer";
+  private static final long TIMEOUT_DEQUEUE_US = 10 * 1000;
+  private static final long TIMEOUT_IDLE = 10;
+
+  /**
+   * Length of ring, rides out decoder stalls on slow storage.
+   */
+  private static final int RING_MILLIS = 500;
+
+  /**
+   * Length of audio track buffer, at least min buffer size.
+   */
+  private static final int TRACK_MILLIS = 100;
+
+  /**
+   * Samples processed and moved at a time, whole frames of mono and stereo.
+   */
+  private static final int BLOCK_SAMPLES = 4096;
+
+  private static final int EVENT_PREPARED = 1;
+  private static final int EVENT_COMPLETION = 2;
+  private static final int EVENT_SEEK_COMPLETE = 3;
+  private static final int EVENT_ERROR = 4;
+
+  /**
+   * Threads and output of one data source, from preparation to reset.
+   *
+   * @author xnnyygn
+   */
+  private class Session {
+
+    final int generation;
+    final String path;
+    final MediaExtractor extractor;
+
+    /**
+     * Release of session before, waited for by decoder thread.
+     */
+    final Thread previous;
+    final Object lock = new Object();
+    Thread decoderThread;
+    Thread outputThread;
+    volatile AudioPlayer next;
+
+    // set by decoder thread before prepared or while output held
+    volatile int sampleRate;
+    volatile int channels;
+    volatile int duration = -1;
+    volatile AudioTrack track;
+    PcmRingBuffer ring;
+    int trackFrames;
+
+    // output thread
+    long writtenFrames;
+
+    /**
+     * Frame of music at head of audio track, moved by seek.
+     */
+    volatile long baseFrame;
+
+    // guarded by lock
+    boolean closing;
+    boolean playing;
+    boolean completed;
+    boolean ended;
+    boolean hold;
+    boolean outputIdle;
+    int seekTo = -1;
+
+    Session(int generation, String path, MediaExtractor extractor,
+        Thread previous) {
+      this.generation = generation;
+      this.path = path;
+      this.extractor = extractor;
+      this.previous = previous;
+    }
+
+    void open() {
+      decoderThread = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+          join(previous);
+          decode();
+        }
+      }, "pcm-decoder");
+      decoderThread.start();
+    }
+
+    /**
+     * Signal threads to stop and start release of them, track and decoder.
+     *
+     * @return release thread
+     */
+    Thread close() {
+      synchronized (lock) {
+        closing = true;
+        lock.notifyAll();
+      }
+      Thread release = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          // output thread is started by decoder thread
+          join(decoderThread);
+          join(outputThread);
+          if (track != null) track.release();
+        }
+      }, "pcm-release");
+      release.start();
+      return release;
+    }
+
+    void play() {
+      synchronized (lock) {
+        if (track == null) throw new IllegalStateException("not prepared");
+        if (completed) {
+          // restart as media player does
+          completed = false;
+          seekTo = 0;
+        }
+        playing = true;
+        if (!hold) track.play();
+        lock.notifyAll();
+      }
+    }
+
+    void pause() {
+      synchronized (lock) {
+        playing = false;
+        if (track != null && !hold) track.pause();
+        lock.notifyAll();
+      }
+    }
+
+    boolean isPlaying() {
+      synchronized (lock) {
+        return playing;
+      }
+    }
+
+    void setPlaying(boolean playing) {
+      synchronized (lock) {
+        this.playing = playing;
+      }
+    }
+
+    void seekTo(int position) {
+      synchronized (lock) {
+        seekTo = Math.max(0, position);
+        completed = false;
+        lock.notifyAll();
+      }
+    }
+
+    int getCurrentPosition() {
+      AudioTrack track = this.track;
+      int sampleRate = this.sampleRate;
+      if (track == null || sampleRate <= 0) return 0;
+      long head = track.getPlaybackHeadPosition() & 0xffffffffL;
+      return (int) ((baseFrame + head) * 1000 / sampleRate);
+    }
+
+    /**
+     * Open decoder and audio track, then decode until closed. Called in
+     * decoder thread.
+     */
+    private void decode() {
+      MediaExtractor extractor = this.extractor;
+      if (extractor == null) extractor = new MediaExtractor();
+      MediaCodec codec = null;
+      try {
+        if (isClosing()) return;
+        if (path != null) extractor.setDataSource(path);
+        MediaFormat format = selectAudioTrack(extractor);
+        if (format.containsKey(MediaFormat.KEY_DURATION)) {
+          duration = (int) (format.getLong(MediaFormat.KEY_DURATION) / 1000);
+        }
+        codec =
+            MediaCodec.createDecoderByType(format
+                .getString(MediaFormat.KEY_MIME));
+        codec.configure(format, null, null, 0);
+        codec.start();
+        openOutput(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+            format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+
+        outputThread = new Thread(new Runnable() {
+
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            try {
+              output();
+            } catch (InterruptedException e) {
+              // closing
+            } catch (RuntimeException e) {
+              Log.w(LOG_TAG,
+                  "failed to write audio track, nested exception is " + e);
+              post(generation, EVENT_ERROR);
+            }
+          }
+        }, "pcm-output");
+        outputThread.start();
+        post(generation, EVENT_PREPARED);
+        decodeLoop(extractor, codec);
+      } catch (InterruptedException e) {
+        // closing
+      } catch (Exception e) {
+        // codec errors are runtime exceptions
+        if (!isClosing()) {
+          Log.w(LOG_TAG, "failed to decode " + path
+              + ", nested exception is " + e);
+          post(generation, EVENT_ERROR);
+        }
+      } finally {
+        if (codec != null) {
+          try {
+            codec.stop();
+          } catch (IllegalStateException e) {
+            // not started
+          }
+          codec.release();
+        }
+        extractor.release();
+      }
+    }
+
+    /**
+     * Create audio track and ring for format, configure chain. Output
+     * thread is not started or held.
+     */
+    private void openOutput(int sampleRate, int channels) throws IOException {
+      // ring keeps whole frames only if channels divide its capacity
+      if (channels != 1 && channels != 2) {
+        throw new IOException(channels + " channels not supported");
+      }
+      int channelConfig =
+          channels == 1 ? AudioFormat.CHANNEL_OUT_MONO
+              : AudioFormat.CHANNEL_OUT_STEREO;
+      int frameSize = channels * 2;
+      int bufferSize =
+          Math.max(AudioTrack.getMinBufferSize(sampleRate, channelConfig,
+              AudioFormat.ENCODING_PCM_16BIT), sampleRate * TRACK_MILLIS
+              / 1000 * frameSize);
+      AudioTrack track =
+          new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+              channelConfig, AudioFormat.ENCODING_PCM_16BIT, bufferSize,
+              AudioTrack.MODE_STREAM);
+      if (this.track != null) this.track.release();
+      this.track = track;
+      trackFrames = bufferSize / frameSize;
+      ring = new PcmRingBuffer(sampleRate * RING_MILLIS / 1000 * channels);
+      writtenFrames = 0;
+      mChain.configure(sampleRate, channels, BLOCK_SAMPLES);
+      this.sampleRate = sampleRate;
+      this.channels = channels;
+    }
+
+    private void decodeLoop(MediaExtractor extractor, MediaCodec codec)
+        throws InterruptedException, IOException {
+      ByteBuffer[] inputBuffers = codec.getInputBuffers();
+      ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      boolean inputDone = false;
+      boolean outputDone = false;
+      while (true) {
+        int seekTo = takeSeek(outputDone);
+        if (seekTo == -2) return; // closing
+        if (seekTo >= 0) {
+          seek(extractor, codec, seekTo);
+          post(generation, EVENT_SEEK_COMPLETE);
+          inputDone = false;
+          outputDone = false;
+        }
+
+        if (!inputDone) {
+          int index = codec.dequeueInputBuffer(TIMEOUT_DEQUEUE_US);
+          if (index >= 0) {
+            int size = extractor.readSampleData(inputBuffers[index], 0);
+            if (size < 0) {
+              codec.queueInputBuffer(index, 0, 0, 0,
+                  MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+              inputDone = true;
+            } else {
+              codec.queueInputBuffer(index, 0, size,
+                  extractor.getSampleTime(), 0);
+              extractor.advance();
+            }
+          }
+        }
+
+        int index = codec.dequeueOutputBuffer(info, TIMEOUT_DEQUEUE_US);
+        if (index >= 0) {
+          if (info.size > 0) {
+            writeSamples(outputBuffers[index], info.offset, info.size);
+          }
+          codec.releaseOutputBuffer(index, false);
+          if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            outputDone = true;
+            synchronized (lock) {
+              ended = true;
+            }
+          }
+        } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+          outputBuffers = codec.getOutputBuffers();
+        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+          MediaFormat format = codec.getOutputFormat();
+          int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+          int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+          if (sampleRate != this.sampleRate || channels != this.channels) {
+            Log.d(LOG_TAG, "output format changed to " + sampleRate + "Hz, "
+                + channels + " channel(s)");
+            holdOutput();
+            try {
+              long frame = baseFrame * sampleRate / this.sampleRate;
+              openOutput(sampleRate, channels);
+              baseFrame = frame;
+            } finally {
+              resumeOutput();
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Take seek requested, wait for one if decoded to end.
+     *
+     * @return position, -1 if none, -2 if closing
+     */
+    private int takeSeek(boolean ended) throws InterruptedException {
+      synchronized (lock) {
+        while (ended && seekTo < 0 && !closing) {
+          lock.wait();
+        }
+        if (closing) return -2;
+        int position = seekTo;
+        seekTo = -1;
+        return position;
+      }
+    }
+
+    /**
+     * Drop samples decoded and queued, move extractor and decoder to
+     * position.
+     */
+    private void seek(MediaExtractor extractor, MediaCodec codec,
+        int position) throws InterruptedException {
+      holdOutput();
+      try {
+        track.flush();
+        ring.clear();
+        writtenFrames = 0;
+        extractor.seekTo(position * 1000L,
+            MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        codec.flush();
+        mChain.reset();
+        long timeUs = extractor.getSampleTime();
+        if (timeUs < 0) timeUs = position * 1000L; // beyond end
+        baseFrame = timeUs * sampleRate / 1000000;
+      } finally {
+        resumeOutput();
+      }
+    }
+
+    /**
+     * Hold output thread out of audio track and ring, and pause track.
+     */
+    private void holdOutput() throws InterruptedException {
+      synchronized (lock) {
+        hold = true;
+        lock.notifyAll();
+        while (!outputIdle && !closing) {
+          lock.wait();
+        }
+        track.pause();
+      }
+    }
+
+    private void resumeOutput() {
+      synchronized (lock) {
+        hold = false;
+        ended = false;
+        if (playing) track.play();
+        lock.notifyAll();
+      }
+    }
+
+    /**
+     * Process decoded buffer of native 16 bit PCM by blocks and write them
+     * into ring, wait while ring is full. Rest of buffer is dropped if seek
+     * requested meanwhile.
+     */
+    private void writeSamples(ByteBuffer buffer, int offset, int size)
+        throws InterruptedException {
+      buffer.order(ByteOrder.nativeOrder());
+      short[] block = mDecoded;
+      int position = offset;
+      int remaining = size / 2;
+      while (remaining > 0) {
+        int length = Math.min(remaining, BLOCK_SAMPLES);
+        for (int i = 0; i < length; i++, position += 2) {
+          block[i] = buffer.getShort(position);
+        }
+        mChain.process(block, 0, length);
+        int written = 0;
+        while (written < length) {
+          int count = ring.write(block, written, length - written);
+          if (count > 0) {
+            written += count;
+          } else if (!awaitRoom()) {
+            return;
+          }
+        }
+        remaining -= length;
+      }
+    }
+
+    /**
+     * Wait a while for output thread to read ring, which it does without
+     * notifying.
+     *
+     * @return false if seek requested or closing
+     */
+    private boolean awaitRoom() throws InterruptedException {
+      synchronized (lock) {
+        if (closing || seekTo >= 0) return false;
+        lock.wait(TIMEOUT_IDLE);
+        return true;
+      }
+    }
+
+    private boolean isClosing() {
+      synchronized (lock) {
+        return closing;
+      }
+    }
+
+    /**
+     * Move samples from ring to audio track while playing, complete once
+     * decoded to end and played out. Called in output thread.
+     */
+    private void output() throws InterruptedException {
+      short[] block = mOutput;
+      boolean draining = false;
+      while (true) {
+        boolean ended;
+        synchronized (lock) {
+          while (!closing && (hold || !playing)) {
+            outputIdle = true;
+            lock.notifyAll();
+            lock.wait();
+          }
+          if (closing) return;
+          outputIdle = false;
+          ended = this.ended;
+        }
+
+        // write no more than room left, so that write never blocks
+        AudioTrack track = this.track;
+        int channels = this.channels;
+        long head = track.getPlaybackHeadPosition() & 0xffffffffL;
+        int room = (int) (trackFrames - (writtenFrames - head));
+        if (room > 0) {
+          int count =
+              ring.read(block, 0, Math.min(block.length / channels, room)
+                  * channels);
+          if (count > 0) {
+            track.write(block, 0, count);
+            writtenFrames += count / channels;
+            draining = false;
+            continue;
+          }
+          if (ended) {
+            if (!draining) {
+              // plays out samples written, then head stops at end
+              track.stop();
+              draining = true;
+            }
+            if (head >= writtenFrames && complete()) {
+              draining = false;
+              AudioPlayer next = this.next;
+              if (next != null) next.start();
+              post(generation, EVENT_COMPLETION);
+              continue;
+            }
+          }
+        }
+        synchronized (lock) {
+          if (!closing && !hold && playing) lock.wait(TIMEOUT_IDLE);
+        }
+      }
+    }
+
+    /**
+     * Mark completed unless seek, pause or reset came meanwhile.
+     */
+    private boolean complete() {
+      synchronized (lock) {
+        if (closing || !playing || hold || seekTo >= 0 || !ended) {
+          return false;
+        }
+        playing = false;
+        completed = true;
+        return true;
+      }
+    }
+
+  }
+
+  private final Handler mHandler = new Handler();
+  private final GainStage mPreamp = new GainStage();
+  private final EqualizerStage mEqualizer = new EqualizerStage();
+  private final DspChain mChain = new DspChain(mPreamp, mEqualizer,
+      new LimiterStage());
+
+  // decoder and output thread of session running
+  private final short[] mDecoded = new short[BLOCK_SAMPLES];
+  private final short[] mOutput = new short[BLOCK_SAMPLES];
+
+  private OnPreparedListener mOnPreparedListener;
+  private OnCompletionListener mOnCompletionListener;
+  private OnSeekCompleteListener mOnSeekCompleteListener;
+  private OnErrorListener mOnErrorListener;
+
+  /**
+   * Generation of data source, events posted for an earlier one are
+   * dropped. Accessed on thread creating player, as are fields below.
+   */
+  private int mGeneration;
+  private String mPath;
+  private MediaExtractor mExtractor;
+  private Session mSession;
+
+  /**
+   * Release of session reset last, null if none.
+   */
+  private Thread mReleasing;
+
+  /**
+   * Test if player can be used on this device.
+   *
+   * @return true if supported
+   */
+  public static boolean isSupported() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+  }
+
+  /**
+   * Get preamp, set from any thread.
+   *
+   * @return preamp
+   */
+  public GainStage getPreamp() {
+    return mPreamp;
+  }
+
+  /**
+   * Get equalizer, set from any thread.
+   *
+   * @return equalizer
+   */
+  public EqualizerStage getEqualizer() {
+    return mEqualizer;
+  }
+
+  @Override
+  public void setOnPreparedListener(OnPreparedListener listener) {
+    mOnPreparedListener = listener;
+  }
+
+  @Override
+  public void setOnCompletionListener(OnCompletionListener listener) {
+    mOnCompletionListener = listener;
+  }
+
+  @Override
+  public void setOnSeekCompleteListener(OnSeekCompleteListener listener) {
+    mOnSeekCompleteListener = listener;
+  }
+
+  @Override
+  public void setOnErrorListener(OnErrorListener listener) {
+    mOnErrorListener = listener;
+  }
+
+  @Override
+  public void setDataSource(String path) throws IOException {
+    checkIdle();
+    mPath = path;
+  }
+
+  /**
+   * Set data source of part of file. Extractor is set at once, since caller
+   * may close file descriptor after.
+   */
+  @Override
+  public void setDataSource(FileDescriptor fd, long offset, long length)
+      throws IOException {
+    checkIdle();
+    MediaExtractor extractor = new MediaExtractor();
+    try {
+      extractor.setDataSource(fd, offset, length);
+    } catch (IOException e) {
+      extractor.release();
+      throw e;
+    }
+    mExtractor = extractor;
+  }
+
+  private void checkIdle() {
+    if (mPath != null || mExtractor != null || mSession != null) {
+      throw new IllegalStateException("data source set already");
+    }
+  }
+
+  @Override
+  public void prepareAsync() {
+    if (mSession != null) {
+      throw new IllegalStateException("preparing or prepared already");
+    }
+    if (mPath == null && mExtractor == null) {
+      throw new IllegalStateException("no data source");
+    }
+    // extractor is released by decoder thread from now on
+    mSession = new Session(mGeneration, mPath, mExtractor, mReleasing);
+    mExtractor = null;
+    mSession.open();
+  }
+
+  @Override
+  public void start() {
+    if (mSession == null) throw new IllegalStateException("not prepared");
+    mSession.play();
+  }
+
+  @Override
+  public void pause() {
+    if (mSession != null) mSession.pause();
+  }
+
+  @Override
+  public void stop() {
+    pause();
+  }
+
+  @Override
+  public boolean isPlaying() {
+    return mSession != null && mSession.isPlaying();
+  }
+
+  @Override
+  public void seekTo(int position) {
+    if (mSession != null) mSession.seekTo(position);
+  }
+
+  @Override
+  public int getDuration() {
+    return mSession == null ? -1 : mSession.duration;
+  }
+
+  @Override
+  public int getCurrentPosition() {
+    return mSession == null ? 0 : mSession.getCurrentPosition();
+  }
+
+  /**
+   * Set player started once this player completes, from output thread.
+   */
+  @Override
+  public void setNextPlayer(AudioPlayer next) {
+    if (mSession != null) mSession.next = next;
+  }
+
+  @Override
+  public void reset() {
+    mGeneration++;
+    if (mSession != null) {
+      mReleasing = mSession.close();
+      mSession = null;
+    }
+    if (mExtractor != null) {
+      mExtractor.release();
+      mExtractor = null;
+    }
+    mPath = null;
+  }
+
+  @Override
+  public void release() {
+    reset();
+  }
+
+  private static void join(Thread thread) {
+    if (thread == null) return;
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static MediaFormat selectAudioTrack(MediaExtractor extractor)
+      throws IOException {
+    for (int i = 0; i < extractor.getTrackCount(); i++) {
+      MediaFormat format = extractor.getTrackFormat(i);
+      String mime = format.getString(MediaFormat.KEY_MIME);
+      if (mime != null && mime.startsWith("audio/")) {
+        extractor.selectTrack(i);
+        return format;
+      }
+    }
+    throw new IOException("no audio track");
+  }
+
+  private void post(final int generation, final int event) {
+    mHandler.post(new Runnable() {
+
+      @Override
+      public void run() {
+        if (generation == mGeneration) dispatch(event);
+      }
+    });
+  }
+
+  private void dispatch(int event) {
+    switch (event) {
+      case EVENT_PREPARED:
+        if (mOnPreparedListener != null) mOnPreparedListener.onPrepared(this);
+        break;
+      case EVENT_COMPLETION:
+        if (mOnCompletionListener != null) {
+          mOnCompletionListener.onCompletion(this);
+        }
+        break;
+      case EVENT_SEEK_COMPLETE:
+        if (mOnSeekCompleteListener != null) {
+          mOnSeekCompleteListener.onSeekComplete(this);
+        }
+        break;
+      case EVENT_ERROR:
+        // session of generation posting is current
+        mSession.setPlaying(false);
+        if (mOnErrorListener != null) {
+          mOnErrorListener.onError(this, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+        }
+        break;
+    }
+  }
+
+}
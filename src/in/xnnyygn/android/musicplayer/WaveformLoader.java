@@ -0,0 +1,568 @@
+package in.xnnyygn.android.musicplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Loader of waveforms shared in process.
+ * <p>
+ * Waveform is generated by decoding the whole music once in a streaming
+ * pass, each decoded buffer is folded into peak and sum of squares of its
+ * bucket and dropped, so neither file nor PCM is held in memory. Generated
+ * waveform is written to disk cache keyed by content hash, so that it
+ * survives moves and renames, or by path and last modified time if hash is
+ * unknown, a few hundred bytes per music.
+ * <p>
+ * Generation runs in one thread of background priority, waits while player
+ * is preparing and, while player is playing, decodes in short slices with
+ * three times as long pauses between, so that it does not compete with
+ * playback for storage. Musics failed to generate are remembered, not tried
+ * again on every view. Decoding requires {@link MediaCodec}, no waveform
+ * before API 16.
+ * <p>
+ * Loader should be called on main thread, targets are called on main thread.
+ *
+ * @author xnnyygn
+ */
+public class WaveformLoader {
+
+  /**
+   * Target of waveform.
+   *
+   * @author xnnyygn
+   */
+  public interface Target {
+
+    /**
+     * Called when waveform loaded.
+     *
+     * @param waveform waveform, null if failed to generate
+     */
+    void onWaveformLoaded(Waveform waveform);
+
+  }
+
+  public static final int BUCKET_COUNT = 256;
+
+  private static final String LOG_TAG = "waveform";
+  private static final String CACHE_DIR_NAME = "waveform";
+  private static final int CACHE_FILE_MAGIC = 0x4d505746; // MPWF
+  private static final int MAX_DISK_CACHE_FILES = 2000;
+  private static final int MAX_MEMORY_CACHE_SIZE = 8;
+  private static final int MAX_FAILED_KEYS = 256;
+  private static final long TIMEOUT_DEQUEUE_US = 10 * 1000;
+  private static final long TIMEOUT_BUSY = 1000;
+
+  /**
+   * Time of decoding between pauses while playing, pause is three times as
+   * long.
+   */
+  private static final long PLAYING_SLICE = 50;
+  private static final int PLAYING_PAUSE_FACTOR = 3;
+
+  private static WaveformLoader sInstance;
+
+  /**
+   * Loading of one waveform.
+   *
+   * @author xnnyygn
+   */
+  private class Request implements Runnable {
+
+    final String key;
+    final Music music;
+    final List<Target> targets = new ArrayList<Target>(2);
+    Future<?> future;
+    volatile boolean cancelled;
+
+    Request(String key, Music music) {
+      this.key = key;
+      this.music = music;
+    }
+
+    @Override
+    public void run() {
+      final Waveform waveform = loadWaveform(this);
+      if (cancelled) return;
+      mHandler.post(new Runnable() {
+
+        @Override
+        public void run() {
+          onRequestFinished(Request.this, waveform);
+        }
+      });
+    }
+
+  }
+
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final File mCacheDir;
+  private final ExecutorService mExecutor = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+          Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, "waveform");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final Map<String, Waveform> mMemoryCache =
+      new LinkedHashMap<String, Waveform>(MAX_MEMORY_CACHE_SIZE * 2, 0.75f,
+          true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, Waveform> eldest) {
+          return size() > MAX_MEMORY_CACHE_SIZE;
+        }
+      };
+  /**
+   * Keys of musics failed to generate.
+   */
+  private final Map<String, Boolean> mFailedKeys =
+      new LinkedHashMap<String, Boolean>(MAX_FAILED_KEYS * 2, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_FAILED_KEYS;
+        }
+      };
+  private final Map<String, Request> mRequests = new HashMap<String, Request>();
+  private final Map<Target, Request> mPendingTargets =
+      new HashMap<Target, Request>();
+
+  private boolean mPlaybackBusy;
+  private volatile boolean mPlaying;
+
+  private WaveformLoader(File cacheDir) {
+    mCacheDir = cacheDir;
+    mExecutor.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        trimDiskCache();
+      }
+    });
+  }
+
+  /**
+   * Get loader.
+   *
+   * @param context context
+   * @return loader
+   */
+  public static synchronized WaveformLoader getInstance(Context context) {
+    if (sInstance == null) {
+      File cacheDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+      cacheDir.mkdirs();
+      sInstance = new WaveformLoader(cacheDir);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Test if waveform can be generated on this device.
+   *
+   * @return true if supported
+   */
+  public static boolean isSupported() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+  }
+
+  /**
+   * Set state of player. Generation waits while player is busy with storage,
+   * e.g. preparing, and backs off while player is playing.
+   *
+   * @param busy busy
+   * @param playing playing
+   */
+  public void setPlaybackState(boolean busy, boolean playing) {
+    synchronized (mCacheDir) {
+      mPlaybackBusy = busy;
+      mPlaying = playing;
+      if (!busy) mCacheDir.notifyAll();
+    }
+  }
+
+  /**
+   * Load waveform of music, previous request of target is cancelled, target
+   * is called immediately if cached.
+   *
+   * @param music music
+   * @param target target
+   */
+  public void load(Music music, Target target) {
+    cancel(target);
+    String key = keyOf(music);
+    Waveform waveform = mMemoryCache.get(key);
+    if (waveform != null || !isSupported() || mFailedKeys.containsKey(key)) {
+      target.onWaveformLoaded(waveform);
+      return;
+    }
+
+    Request request = mRequests.get(key);
+    if (request == null) {
+      request = new Request(key, music);
+      mRequests.put(key, request);
+      request.future = mExecutor.submit(request);
+    }
+    request.targets.add(target);
+    mPendingTargets.put(target, request);
+  }
+
+  /**
+   * Cancel loading for target, generation is cancelled if no other target.
+   *
+   * @param target target
+   */
+  public void cancel(Target target) {
+    Request request = mPendingTargets.remove(target);
+    if (request == null) return;
+
+    request.targets.remove(target);
+    if (request.targets.isEmpty()) {
+      request.cancelled = true;
+      request.future.cancel(false);
+      mRequests.remove(request.key);
+    }
+  }
+
+  private void onRequestFinished(Request request, Waveform waveform) {
+    if (request.cancelled) return;
+
+    mRequests.remove(request.key);
+    if (waveform != null) {
+      mMemoryCache.put(request.key, waveform);
+    } else {
+      mFailedKeys.put(request.key, Boolean.TRUE);
+    }
+    for (Target target : request.targets) {
+      mPendingTargets.remove(target);
+      target.onWaveformLoaded(waveform);
+    }
+  }
+
+  private static String keyOf(Music music) {
+    if (music.getContentHash() != ContentHasher.UNKNOWN) {
+      return Long.toHexString(music.getContentHash());
+    }
+    return music.getPath() + ":" + music.getLastModified();
+  }
+
+  /**
+   * Read waveform from disk cache, or generate and write to disk cache.
+   * Called in loading thread.
+   */
+  private Waveform loadWaveform(Request request) {
+    Music music = request.music;
+    File cacheFile =
+        new File(mCacheDir, music.getContentHash() != ContentHasher.UNKNOWN
+            ? request.key : Integer.toHexString(music.getPath().hashCode())
+                + "_" + Long.toHexString(music.getLastModified()));
+    if (cacheFile.exists()) {
+      Waveform waveform = readDiskCache(cacheFile, request.key);
+      if (waveform != null) {
+        cacheFile.setLastModified(System.currentTimeMillis());
+        return waveform;
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    Waveform waveform;
+    try {
+      waveform = generate(request);
+    } catch (Exception e) {
+      // codec errors are runtime exceptions
+      Log.w(LOG_TAG, "failed to generate waveform of " + music.getPath()
+          + ", nested exception is " + e);
+      return null;
+    }
+    if (waveform == null) return null; // cancelled
+    Log.i(LOG_TAG, "generate waveform of " + music.getPath() + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+    writeDiskCache(cacheFile, request.key, waveform);
+    return waveform;
+  }
+
+  private void waitWhilePlaybackBusy(Request request) {
+    synchronized (mCacheDir) {
+      while (mPlaybackBusy && !request.cancelled) {
+        try {
+          mCacheDir.wait(TIMEOUT_BUSY);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Pause if playing and decoded for a slice since last pause.
+   *
+   * @param sliceStart start time of slice
+   * @return start time of next slice
+   */
+  private long backOffWhilePlaying(Request request, long sliceStart) {
+    long now = SystemClock.elapsedRealtime();
+    long elapsed = now - sliceStart;
+    if (!mPlaying || elapsed < PLAYING_SLICE) {
+      return mPlaying ? sliceStart : now;
+    }
+    synchronized (mCacheDir) {
+      if (mPlaying && !mPlaybackBusy && !request.cancelled) {
+        try {
+          // woken early if player stops being busy
+          mCacheDir.wait(elapsed * PLAYING_PAUSE_FACTOR);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    return SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Decode music and fold samples into buckets.
+   *
+   * @return waveform, null if cancelled
+   * @throws IOException if failed to read
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private Waveform generate(Request request) throws IOException {
+    MediaExtractor extractor = new MediaExtractor();
+    MediaCodec codec = null;
+    try {
+      extractor.setDataSource(request.music.getPath());
+      MediaFormat format = null;
+      for (int i = 0; i < extractor.getTrackCount(); i++) {
+        MediaFormat trackFormat = extractor.getTrackFormat(i);
+        String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+        if (mime != null && mime.startsWith("audio/")) {
+          extractor.selectTrack(i);
+          format = trackFormat;
+          break;
+        }
+      }
+      if (format == null) throw new IOException("no audio track");
+
+      long durationUs =
+          format.containsKey(MediaFormat.KEY_DURATION) ? format
+              .getLong(MediaFormat.KEY_DURATION) : 0;
+      if (durationUs <= 0) durationUs = request.music.getDuration() * 1000L;
+      if (durationUs <= 0) throw new IOException("unknown duration");
+      int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+      int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+
+      codec =
+          MediaCodec.createDecoderByType(format
+              .getString(MediaFormat.KEY_MIME));
+      codec.configure(format, null, null, 0);
+      codec.start();
+      ByteBuffer[] inputBuffers = codec.getInputBuffers();
+      ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+      int[] peaks = new int[BUCKET_COUNT];
+      double[] sums = new double[BUCKET_COUNT];
+      int[] counts = new int[BUCKET_COUNT];
+      boolean inputDone = false;
+      long sliceStart = SystemClock.elapsedRealtime();
+      while (!request.cancelled) {
+        if (!inputDone) {
+          waitWhilePlaybackBusy(request);
+          sliceStart = backOffWhilePlaying(request, sliceStart);
+          int index = codec.dequeueInputBuffer(TIMEOUT_DEQUEUE_US);
+          if (index >= 0) {
+            int size = extractor.readSampleData(inputBuffers[index], 0);
+            if (size < 0) {
+              codec.queueInputBuffer(index, 0, 0, 0,
+                  MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+              inputDone = true;
+            } else {
+              codec.queueInputBuffer(index, 0, size,
+                  extractor.getSampleTime(), 0);
+              extractor.advance();
+            }
+          }
+        }
+
+        int index = codec.dequeueOutputBuffer(info, TIMEOUT_DEQUEUE_US);
+        if (index >= 0) {
+          ByteBuffer buffer = outputBuffers[index];
+          buffer.position(info.offset);
+          buffer.limit(info.offset + info.size);
+          fold(buffer.slice().order(ByteOrder.nativeOrder()).asShortBuffer(),
+              channels, sampleRate, info.presentationTimeUs, durationUs,
+              peaks, sums, counts);
+          codec.releaseOutputBuffer(index, false);
+          if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
+        } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+          outputBuffers = codec.getOutputBuffers();
+        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+          MediaFormat outputFormat = codec.getOutputFormat();
+          channels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+          sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        }
+      }
+      if (request.cancelled) return null;
+      return toWaveform(peaks, sums, counts);
+    } finally {
+      if (codec != null) {
+        try {
+          codec.stop();
+        } catch (IllegalStateException e) {
+          // not started
+        }
+        codec.release();
+      }
+      extractor.release();
+    }
+  }
+
+  /**
+   * Fold 16 bit PCM samples into buckets by presentation time, channels are
+   * folded together.
+   */
+  static void fold(ShortBuffer samples, int channels, int sampleRate,
+      long startUs, long durationUs, int[] peaks, double[] sums, int[] counts) {
+    int frames = samples.remaining() / channels;
+    int i = samples.position();
+    for (int frame = 0; frame < frames; frame++) {
+      long timeUs = startUs + frame * 1000000L / sampleRate;
+      int bucket =
+          (int) Math.min(BUCKET_COUNT - 1, Math.max(0, timeUs * BUCKET_COUNT
+              / durationUs));
+      for (int c = 0; c < channels; c++) {
+        int sample = samples.get(i++);
+        int magnitude = sample < 0 ? -sample : sample;
+        if (magnitude > peaks[bucket]) peaks[bucket] = magnitude;
+        sums[bucket] += (double) sample * sample;
+      }
+      counts[bucket] += channels;
+    }
+  }
+
+  static Waveform toWaveform(int[] peaks, double[] sums, int[] counts) {
+    byte[] peakBytes = new byte[peaks.length];
+    byte[] rmsBytes = new byte[peaks.length];
+    for (int i = 0; i < peaks.length; i++) {
+      peakBytes[i] = (byte) Math.min(255, peaks[i] * 255 / 32767);
+      double rms = counts[i] > 0 ? Math.sqrt(sums[i] / counts[i]) : 0;
+      rmsBytes[i] = (byte) Math.min(255, (int) (rms * 255 / 32767));
+    }
+    return new Waveform(peakBytes, rmsBytes);
+  }
+
+  private static Waveform readDiskCache(File file, String key) {
+    try {
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(
+              file)));
+      try {
+        // file name may be hash of path, key checked for collision
+        if (in.readInt() != CACHE_FILE_MAGIC || !key.equals(in.readUTF())) {
+          return null;
+        }
+        return Waveform.readFrom(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "failed to read waveform cache " + file
+          + ", nested exception is " + e);
+      return null;
+    }
+  }
+
+  private static void writeDiskCache(File file, String key,
+      Waveform waveform) {
+    File tmpFile = new File(file.getPath() + ".tmp");
+    try {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+              tmpFile)));
+      try {
+        out.writeInt(CACHE_FILE_MAGIC);
+        out.writeUTF(key);
+        waveform.writeTo(out);
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(file)) throw new IOException("failed to rename");
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "failed to write waveform cache " + file
+          + ", nested exception is " + e);
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Delete least recently used waveforms if too many.
+   */
+  private void trimDiskCache() {
+    File[] files = mCacheDir.listFiles();
+    if (files == null || files.length <= MAX_DISK_CACHE_FILES) return;
+
+    Arrays.sort(files, new Comparator<File>() {
+
+      @Override
+      public int compare(File lhs, File rhs) {
+        long l = lhs.lastModified();
+        long r = rhs.lastModified();
+        return l < r ? -1 : (l == r ? 0 : 1);
+      }
+    });
+    int count = files.length - MAX_DISK_CACHE_FILES * 3 / 4;
+    for (int i = 0; i < count; i++) {
+      files[i].delete();
+    }
+    Log.i(LOG_TAG, count + " cached waveform(s) deleted");
+  }
+
+}
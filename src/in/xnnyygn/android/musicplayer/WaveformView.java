@@ -0,0 +1,165 @@
+package in.xnnyygn.android.musicplayer;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Waveform scrubber, draws peak and RMS of each bucket as a bar, part
+ * before progress in brighter color. Dragging moves progress, listener is
+ * called when released.
+ *
+ * @author xnnyygn
+ */
+public class WaveformView extends View {
+
+  /**
+   * Listener of scrub.
+   *
+   * @author xnnyygn
+   */
+  public interface OnScrubListener {
+
+    /**
+     * Called when scrub started.
+     */
+    void onScrubStarted();
+
+    /**
+     * Called when scrub finished.
+     *
+     * @param progress progress, 0 - 1
+     */
+    void onScrubFinished(float progress);
+
+  }
+
+  private final Paint mPeakPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint mRmsPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint mPlayedPeakPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint mPlayedRmsPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+  private Waveform mWaveform;
+  private float mProgress;
+  private boolean mScrubbing;
+  private OnScrubListener mOnScrubListener;
+
+  public WaveformView(Context context) {
+    super(context);
+    initPaints();
+  }
+
+  public WaveformView(Context context, AttributeSet attrs) {
+    super(context, attrs);
+    initPaints();
+  }
+
+  private void initPaints() {
+    mPeakPaint.setColor(Color.DKGRAY);
+    mRmsPaint.setColor(Color.GRAY);
+    mPlayedPeakPaint.setColor(Color.LTGRAY);
+    mPlayedRmsPaint.setColor(Color.WHITE);
+  }
+
+  /**
+   * Set waveform.
+   *
+   * @param waveform waveform, null to clear
+   */
+  public void setWaveform(Waveform waveform) {
+    mWaveform = waveform;
+    invalidate();
+  }
+
+  public Waveform getWaveform() {
+    return mWaveform;
+  }
+
+  /**
+   * Set progress, ignored while scrubbing.
+   *
+   * @param progress progress, 0 - 1
+   */
+  public void setProgress(float progress) {
+    if (mScrubbing || progress == mProgress) return;
+    mProgress = progress;
+    invalidate();
+  }
+
+  public void setOnScrubListener(OnScrubListener listener) {
+    mOnScrubListener = listener;
+  }
+
+  @Override
+  public boolean onTouchEvent(MotionEvent event) {
+    if (mWaveform == null) return false;
+
+    switch (event.getAction()) {
+      case MotionEvent.ACTION_DOWN:
+        mScrubbing = true;
+        setPressed(true);
+        if (mOnScrubListener != null) mOnScrubListener.onScrubStarted();
+        moveTo(event.getX());
+        return true;
+      case MotionEvent.ACTION_MOVE:
+        moveTo(event.getX());
+        return true;
+      case MotionEvent.ACTION_UP:
+        moveTo(event.getX());
+        finishScrub(true);
+        return true;
+      case MotionEvent.ACTION_CANCEL:
+        finishScrub(false);
+        return true;
+    }
+    return false;
+  }
+
+  private void moveTo(float x) {
+    int width = getWidth() - getPaddingLeft() - getPaddingRight();
+    if (width <= 0) return;
+    mProgress = Math.max(0f, Math.min(1f, (x - getPaddingLeft()) / width));
+    invalidate();
+  }
+
+  private void finishScrub(boolean seek) {
+    mScrubbing = false;
+    setPressed(false);
+    if (seek && mOnScrubListener != null) {
+      mOnScrubListener.onScrubFinished(mProgress);
+    }
+  }
+
+  @Override
+  protected void onDraw(Canvas canvas) {
+    super.onDraw(canvas);
+    if (mWaveform == null) return;
+
+    int left = getPaddingLeft();
+    int top = getPaddingTop();
+    float width = getWidth() - left - getPaddingRight();
+    float height = getHeight() - top - getPaddingBottom();
+    int count = mWaveform.getBucketCount();
+    if (width <= 0 || height <= 0 || count == 0) return;
+
+    // symmetric bars around center line, RMS drawn over peak
+    float barWidth = width / count;
+    float center = top + height / 2;
+    float scale = height / 2 / 255;
+    int played = (int) (mProgress * count);
+    for (int i = 0; i < count; i++) {
+      float x = left + i * barWidth;
+      float peak = Math.max(1, mWaveform.getPeak(i) * scale);
+      float rms = Math.max(1, mWaveform.getRms(i) * scale);
+      canvas.drawRect(x, center - peak, x + barWidth, center + peak,
+          i < played ? mPlayedPeakPaint : mPeakPaint);
+      canvas.drawRect(x, center - rms, x + barWidth, center + rms,
+          i < played ? mPlayedRmsPaint : mRmsPaint);
+    }
+  }
+
+}